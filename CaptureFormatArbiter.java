@@ -0,0 +1,152 @@
+package com.remotecontrol.android;
+
+import org.webrtc.VideoCapturer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Shares one capturer between several viewers' quality controllers.
+ *
+ * Each controller asks for the capture format of its operating point. The capturer runs at the
+ * largest size and highest frame rate anyone asked for. Viewers on a lower rung reach their own
+ * size through scaleResolutionDownBy, so a slow viewer never lowers what the others receive.
+ * A cap, set while the device runs hot or low on battery, limits the format whatever is asked.
+ */
+class CaptureFormatArbiter {
+
+    interface Client {
+        /**
+         * Called after the capture format changed because of another client's request.
+         */
+        void onCaptureFormatChanged();
+    }
+
+    private final VideoCapturer capturer;
+    private final Client observer;
+    private final Map<Client, StreamQualityPolicy.OperatingPoint> requests = new LinkedHashMap<>();
+    // What the capturer was started at; the format to return to while nobody has asked
+    private final int startWidth;
+    private final int startHeight;
+    private final int startFramerate;
+    private int width;
+    private int height;
+    private int framerate;
+    private int capWidth = Integer.MAX_VALUE;
+    private int capHeight = Integer.MAX_VALUE;
+    private int capFramerate = Integer.MAX_VALUE;
+
+    /**
+     * @param capturer a capturer already started at the given format
+     * @param observer told about every format change, whoever asked for it; may be null
+     */
+    CaptureFormatArbiter(VideoCapturer capturer, int width, int height, int framerate,
+                         Client observer) {
+        this.capturer = capturer;
+        this.observer = observer;
+        this.startWidth = width;
+        this.startHeight = height;
+        this.startFramerate = framerate;
+        this.width = width;
+        this.height = height;
+        this.framerate = framerate;
+    }
+
+    void request(Client client, StreamQualityPolicy.OperatingPoint point) {
+        Client[] others;
+        synchronized (this) {
+            requests.put(client, point);
+            if (!update()) {
+                return;
+            }
+            others = otherClients(client);
+        }
+        notifyChanged(others);
+    }
+
+    void remove(Client client) {
+        Client[] others;
+        synchronized (this) {
+            if (requests.remove(client) == null || requests.isEmpty() || !update()) {
+                return;
+            }
+            others = otherClients(client);
+        }
+        notifyChanged(others);
+    }
+
+    /**
+     * Limits the capture format to at most the given size and frame rate, and tells every client
+     * if that changed the format.
+     */
+    void setCap(int width, int height, int framerate) {
+        Client[] clients;
+        synchronized (this) {
+            capWidth = width;
+            capHeight = height;
+            capFramerate = framerate;
+            if (!update()) {
+                return;
+            }
+            clients = otherClients(null);
+        }
+        notifyChanged(clients);
+    }
+
+    synchronized int getWidth() {
+        return width;
+    }
+
+    synchronized int getHeight() {
+        return height;
+    }
+
+    private boolean update() {
+        int maxWidth = 0;
+        int maxHeight = 0;
+        int maxFramerate = 0;
+        for (StreamQualityPolicy.OperatingPoint point : requests.values()) {
+            maxWidth = Math.max(maxWidth, point.captureWidth);
+            maxHeight = Math.max(maxHeight, point.captureHeight);
+            maxFramerate = Math.max(maxFramerate, point.maxFramerate);
+        }
+        if (requests.isEmpty()) {
+            // Nobody has asked yet; cap the start format, not whatever an earlier cap left
+            maxWidth = startWidth;
+            maxHeight = startHeight;
+            maxFramerate = startFramerate;
+        }
+        maxWidth = Math.min(maxWidth, capWidth);
+        maxHeight = Math.min(maxHeight, capHeight);
+        maxFramerate = Math.min(maxFramerate, capFramerate);
+        if (maxWidth == width && maxHeight == height && maxFramerate == framerate) {
+            return false;
+        }
+        width = maxWidth;
+        height = maxHeight;
+        framerate = maxFramerate;
+        capturer.changeCaptureFormat(width, height, framerate);
+        return true;
+    }
+
+    private Client[] otherClients(Client requester) {
+        Client[] others = new Client[requests.size()];
+        int count = 0;
+        for (Client client : requests.keySet()) {
+            if (client != requester) {
+                others[count++] = client;
+            }
+        }
+        Client[] result = new Client[count];
+        System.arraycopy(others, 0, result, 0, count);
+        return result;
+    }
+
+    private void notifyChanged(Client[] clients) {
+        if (observer != null) {
+            observer.onCaptureFormatChanged();
+        }
+        for (Client client : clients) {
+            client.onCaptureFormatChanged();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.remotecontrol.android;
+
+import android.util.Log;
+import org.webrtc.EglBase;
+import org.webrtc.VideoCodecInfo;
+import org.webrtc.VideoDecoderFactory;
+import org.webrtc.VideoEncoderFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds the video encoder and decoder factories for a {@code PeerConnectionFactory} and records
+ * which implementation path each codec ended up on.
+ *
+ * Hardware H.264 and VP8 are preferred and advertised first. A codec whose hardware encoder fails
+ * is switched to software for the rest of the process.
+ */
+class CodecSelector {
+    private static final String TAG = "CodecSelector";
+
+    static final String PATH_HARDWARE = "hardware";
+    static final String PATH_SOFTWARE = "software";
+    static final String PATH_HARDWARE_WITH_FALLBACK = "hardware+software-fallback";
+    static final String PATH_FELL_BACK = "software (hardware failed)";
+    static final String PATH_FAILED = "failed, not advertised";
+
+    private static final List<String> PREFERRED_CODECS = Arrays.asList("H264", "VP8");
+
+    // Shared by every factory in the process: a broken hardware codec stays broken
+    private static final Set<String> hardwareBlacklist =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final EglBase.Context eglContext;
+    private final Map<String, String> encoderPaths = new ConcurrentHashMap<>();
+    private final Map<String, String> decoderPaths = new ConcurrentHashMap<>();
+    private final Map<String, String> activeEncoders = new ConcurrentHashMap<>();
+    private final AtomicInteger keyFrameRequests = new AtomicInteger();
+
+    CodecSelector(EglBase.Context eglContext) {
+        this.eglContext = eglContext;
+    }
+
+    VideoEncoderFactory createEncoderFactory() {
+        return new FallbackVideoEncoderFactory(eglContext, this);
+    }
+
+    VideoDecoderFactory createDecoderFactory() {
+        return new FallbackVideoDecoderFactory(eglContext, this);
+    }
+
+    boolean isHardwareAllowed(String codecName) {
+        return !hardwareBlacklist.contains(codecName);
+    }
+
+    void onEncoderCreated(String codecName, String path) {
+        if (path != null) {
+            encoderPaths.put(codecName, path);
+            Log.i(TAG, "Encoder " + codecName + ": " + path);
+        }
+    }
+
+    void onDecoderCreated(String codecName, String path) {
+        if (path != null) {
+            decoderPaths.put(codecName, path);
+            Log.i(TAG, "Decoder " + codecName + ": " + path);
+        }
+    }
+
+    void onEncoderActive(String codecName, String implementationName) {
+        activeEncoders.put(codecName, implementationName);
+    }
+
+    /**
+     * @param hasSoftwareFallback whether a software encoder takes over; if not, the codec stops
+     *                            being advertised
+     */
+    void onHardwareEncoderFailed(String codecName, String reason, boolean hasSoftwareFallback) {
+        Log.w(TAG, "Hardware " + codecName + " encoder failed (" + reason + "), "
+            + (hasSoftwareFallback ? "using software" : "no software encoder"));
+        hardwareBlacklist.add(codecName);
+        encoderPaths.put(codecName, hasSoftwareFallback ? PATH_FELL_BACK : PATH_FAILED);
+    }
+
+    /**
+     * Asks every monitored encoder to make its next frame a keyframe. Encoders on a software path
+     * are native and do not see it; see {@link #isKeyFrameRequestServed}.
+     */
+    void requestKeyFrame() {
+        keyFrameRequests.incrementAndGet();
+    }
+
+    /**
+     * Incremented by each {@link #requestKeyFrame}; encoders compare it with the last value
+     * they served.
+     */
+    int getKeyFrameRequests() {
+        return keyFrameRequests.get();
+    }
+
+    /**
+     * Whether {@link #requestKeyFrame} alone reaches every encoder created so far. Only hardware
+     * encoders are Java encoders that {@link MonitoredVideoEncoder} can wrap; the software ones
+     * come from native code, so once any codec runs in software, callers also have to restart the
+     * senders' encodings.
+     */
+    boolean isKeyFrameRequestServed() {
+        for (String path : encoderPaths.values()) {
+            if (PATH_SOFTWARE.equals(path) || PATH_FELL_BACK.equals(path)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Codec name to the encoder path chosen for it, e.g. {@code H264 -> hardware}.
+     */
+    Map<String, String> getEncoderPaths() {
+        return Collections.unmodifiableMap(encoderPaths);
+    }
+
+    Map<String, String> getDecoderPaths() {
+        return Collections.unmodifiableMap(decoderPaths);
+    }
+
+    /**
+     * Codec name to the implementation name of the hardware encoder that last initialized.
+     */
+    Map<String, String> getActiveEncoders() {
+        return Collections.unmodifiableMap(activeEncoders);
+    }
+
+    /**
+     * The codecs worth negotiating, most preferred first; descriptions are pruned to these.
+     */
+    static List<String> preferredCodecs() {
+        return PREFERRED_CODECS;
+    }
+
+    /**
+     * Merges hardware and software codec lists: preferred codecs first, and within one codec the
+     * hardware-supported variants before software-only ones.
+     */
+    static VideoCodecInfo[] preferredOrder(VideoCodecInfo[] hardware, VideoCodecInfo[] software) {
+        Set<VideoCodecInfo> merged = new LinkedHashSet<>();
+        for (String preferred : PREFERRED_CODECS) {
+            addMatching(merged, hardware, preferred);
+            addMatching(merged, software, preferred);
+        }
+        Collections.addAll(merged, hardware);
+        Collections.addAll(merged, software);
+        return merged.toArray(new VideoCodecInfo[0]);
+    }
+
+    private static void addMatching(Set<VideoCodecInfo> target, VideoCodecInfo[] codecs, String name) {
+        for (VideoCodecInfo codec : codecs) {
+            if (name.equalsIgnoreCase(codec.name)) {
+                target.add(codec);
+            }
+        }
+    }
+}
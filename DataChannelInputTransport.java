@@ -0,0 +1,98 @@
+package com.remotecontrol.android;
+
+import android.util.Log;
+import org.webrtc.DataChannel;
+import org.webrtc.PeerConnection;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link InputTransport} over two DataChannels on the media peer connection.
+ *
+ * Both channels are pre-negotiated with fixed ids, so guest and host each create them locally and
+ * no in-band DataChannel handshake is needed. Input latency then follows the media path instead of
+ * the signaling relay.
+ */
+class DataChannelInputTransport implements InputTransport {
+    private static final String TAG = "DataChannelInput";
+    private static final String MOVE_CHANNEL_LABEL = "input-move";
+    private static final String CONTROL_CHANNEL_LABEL = "input-control";
+    private static final int MOVE_CHANNEL_ID = 1;
+    private static final int CONTROL_CHANNEL_ID = 2;
+
+    private final DataChannel moveChannel;
+    private final DataChannel controlChannel;
+    private volatile Receiver receiver;
+
+    DataChannelInputTransport(PeerConnection peerConnection) {
+        DataChannel.Init moveInit = new DataChannel.Init();
+        moveInit.ordered = false;
+        moveInit.maxRetransmits = 0;
+        moveInit.negotiated = true;
+        moveInit.id = MOVE_CHANNEL_ID;
+        moveChannel = peerConnection.createDataChannel(MOVE_CHANNEL_LABEL, moveInit);
+
+        DataChannel.Init controlInit = new DataChannel.Init();
+        controlInit.ordered = true;
+        controlInit.negotiated = true;
+        controlInit.id = CONTROL_CHANNEL_ID;
+        controlChannel = peerConnection.createDataChannel(CONTROL_CHANNEL_LABEL, controlInit);
+
+        moveChannel.registerObserver(new ChannelObserver(moveChannel));
+        controlChannel.registerObserver(new ChannelObserver(controlChannel));
+    }
+
+    @Override
+    public boolean send(ByteBuffer message, boolean reliable) {
+        DataChannel channel = reliable ? controlChannel : moveChannel;
+        if (channel.state() != DataChannel.State.OPEN) {
+            return false;
+        }
+        return channel.send(new DataChannel.Buffer(message, true));
+    }
+
+    @Override
+    public void setReceiver(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return moveChannel.state() == DataChannel.State.OPEN
+            && controlChannel.state() == DataChannel.State.OPEN;
+    }
+
+    @Override
+    public void close() {
+        moveChannel.unregisterObserver();
+        controlChannel.unregisterObserver();
+        moveChannel.close();
+        controlChannel.close();
+        moveChannel.dispose();
+        controlChannel.dispose();
+    }
+
+    private class ChannelObserver implements DataChannel.Observer {
+        private final DataChannel channel;
+
+        ChannelObserver(DataChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void onBufferedAmountChange(long previousAmount) {
+        }
+
+        @Override
+        public void onStateChange() {
+            Log.d(TAG, channel.label() + " state: " + channel.state());
+        }
+
+        @Override
+        public void onMessage(DataChannel.Buffer buffer) {
+            Receiver current = receiver;
+            if (current != null && buffer.binary) {
+                current.onTouchMessage(buffer.data);
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.remotecontrol.android;
+
+import android.content.Context;
+import android.util.Log;
+import org.webrtc.DataChannel;
+import org.webrtc.PeerConnection;
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link TransferEngine.Link} over a dedicated reliable, ordered DataChannel on the media peer
+ * connection.
+ *
+ * Like the input channels it is pre-negotiated with a fixed id, so guest and host each create it
+ * locally. Bulk data has its own SCTP stream this way and never queues behind input, and the
+ * engine paces itself on this channel's buffered amount alone.
+ */
+class DataChannelTransferLink implements TransferEngine.Link {
+    private static final String TAG = "DataChannelTransfer";
+    private static final String CHANNEL_LABEL = "transfer";
+    private static final int CHANNEL_ID = 3;
+    private static final String DIRECTORY_NAME = "transfers";
+
+    private final DataChannel channel;
+    private volatile TransferEngine engine;
+
+    DataChannelTransferLink(PeerConnection peerConnection) {
+        DataChannel.Init init = new DataChannel.Init();
+        init.ordered = true;
+        init.negotiated = true;
+        init.id = CHANNEL_ID;
+        channel = peerConnection.createDataChannel(CHANNEL_LABEL, init);
+        channel.registerObserver(new DataChannel.Observer() {
+            @Override
+            public void onBufferedAmountChange(long previousAmount) {
+                TransferEngine current = engine;
+                if (current != null) {
+                    current.onBufferedAmountChange();
+                }
+            }
+
+            @Override
+            public void onStateChange() {
+                DataChannel.State state = channel.state();
+                Log.d(TAG, CHANNEL_LABEL + " state: " + state);
+                TransferEngine current = engine;
+                if (current != null && state == DataChannel.State.OPEN) {
+                    current.onLinkOpen();
+                }
+            }
+
+            @Override
+            public void onMessage(DataChannel.Buffer buffer) {
+                TransferEngine current = engine;
+                if (current != null && buffer.binary) {
+                    current.onFrame(buffer.data);
+                }
+            }
+        });
+    }
+
+    /**
+     * Where received files go: app storage the user can reach over USB if mounted, private
+     * storage otherwise.
+     */
+    static File getDirectory(Context context) {
+        File base = context.getExternalFilesDir(null);
+        return new File(base != null ? base : context.getFilesDir(), DIRECTORY_NAME);
+    }
+
+    /**
+     * Hands frames and channel events to {@code engine}. Call once, before the channel opens.
+     */
+    void attach(TransferEngine engine) {
+        this.engine = engine;
+        if (channel.state() == DataChannel.State.OPEN) {
+            engine.onLinkOpen();
+        }
+    }
+
+    @Override
+    public boolean send(ByteBuffer frame) {
+        if (channel.state() != DataChannel.State.OPEN) {
+            return false;
+        }
+        return channel.send(new DataChannel.Buffer(frame, true));
+    }
+
+    @Override
+    public long getBufferedAmount() {
+        return channel.bufferedAmount();
+    }
+
+    void close() {
+        channel.unregisterObserver();
+        channel.close();
+        channel.dispose();
+        TransferEngine current = engine;
+        if (current != null) {
+            current.close();
+            // No more frames can arrive once the observer is gone
+            current.closeIncoming();
+        }
+    }
+}
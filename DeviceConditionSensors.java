@@ -0,0 +1,81 @@
+package com.remotecontrol.android;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+
+/**
+ * The platform's thermal and battery readings for {@link CaptureGovernor}.
+ *
+ * The thermal status needs API 29 and the headroom forecast API 30. Below that, the battery
+ * temperature stands in for the status; it lags the SoC but rises with it.
+ */
+class DeviceConditionSensors implements CaptureGovernor.ThermalSensor, CaptureGovernor.BatterySensor {
+    // How far ahead the headroom forecast looks; about the time a step down takes to show
+    private static final int HEADROOM_FORECAST_SECONDS = 30;
+    // Battery temperatures, in tenths of a degree, taken as the start of each status
+    private static final int LIGHT_DECI_CELSIUS = 390;
+    private static final int MODERATE_DECI_CELSIUS = 420;
+    private static final int SEVERE_DECI_CELSIUS = 450;
+
+    private final Context context;
+    private final PowerManager powerManager;
+    private final BatteryManager batteryManager;
+
+    DeviceConditionSensors(Context context) {
+        this.context = context.getApplicationContext();
+        this.powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        this.batteryManager = (BatteryManager) context.getSystemService(Context.BATTERY_SERVICE);
+    }
+
+    @Override
+    public int getThermalStatus() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return powerManager.getCurrentThermalStatus();
+        }
+        Intent battery = readBattery();
+        int temperature = battery != null
+            ? battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, Integer.MIN_VALUE)
+            : Integer.MIN_VALUE;
+        if (temperature == Integer.MIN_VALUE) {
+            return CaptureGovernor.THERMAL_STATUS_UNKNOWN;
+        }
+        if (temperature >= SEVERE_DECI_CELSIUS) {
+            return CaptureGovernor.THERMAL_STATUS_SEVERE;
+        }
+        if (temperature >= MODERATE_DECI_CELSIUS) {
+            return CaptureGovernor.THERMAL_STATUS_MODERATE;
+        }
+        return temperature >= LIGHT_DECI_CELSIUS
+            ? CaptureGovernor.THERMAL_STATUS_LIGHT : CaptureGovernor.THERMAL_STATUS_NONE;
+    }
+
+    @Override
+    public float getThermalHeadroom() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            // NaN if the device has no forecast or we ask more than once a second
+            return powerManager.getThermalHeadroom(HEADROOM_FORECAST_SECONDS);
+        }
+        return Float.NaN;
+    }
+
+    @Override
+    public int getLevelPercent() {
+        int level = batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY);
+        return level > 0 && level <= 100 ? level : -1;
+    }
+
+    @Override
+    public boolean isCharging() {
+        Intent battery = readBattery();
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private Intent readBattery() {
+        // Sticky broadcast: returns the last value without registering anything
+        return context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+    }
+}
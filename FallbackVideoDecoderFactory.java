@@ -0,0 +1,46 @@
+package com.remotecontrol.android;
+
+import org.webrtc.EglBase;
+import org.webrtc.HardwareVideoDecoderFactory;
+import org.webrtc.SoftwareVideoDecoderFactory;
+import org.webrtc.VideoCodecInfo;
+import org.webrtc.VideoDecoder;
+import org.webrtc.VideoDecoderFactory;
+import org.webrtc.VideoDecoderFallback;
+
+/**
+ * Hardware-first decoder factory that falls back to software per codec.
+ */
+class FallbackVideoDecoderFactory implements VideoDecoderFactory {
+    private final VideoDecoderFactory hardwareFactory;
+    private final VideoDecoderFactory softwareFactory = new SoftwareVideoDecoderFactory();
+    private final CodecSelector selector;
+
+    FallbackVideoDecoderFactory(EglBase.Context eglContext, CodecSelector selector) {
+        this.hardwareFactory = new HardwareVideoDecoderFactory(eglContext);
+        this.selector = selector;
+    }
+
+    @Override
+    public VideoDecoder createDecoder(VideoCodecInfo info) {
+        VideoDecoder software = softwareFactory.createDecoder(info);
+        VideoDecoder hardware = hardwareFactory.createDecoder(info);
+
+        if (hardware == null) {
+            selector.onDecoderCreated(info.name, software != null ? CodecSelector.PATH_SOFTWARE : null);
+            return software;
+        }
+        if (software == null) {
+            selector.onDecoderCreated(info.name, CodecSelector.PATH_HARDWARE);
+            return hardware;
+        }
+        selector.onDecoderCreated(info.name, CodecSelector.PATH_HARDWARE_WITH_FALLBACK);
+        return new VideoDecoderFallback(software, hardware);
+    }
+
+    @Override
+    public VideoCodecInfo[] getSupportedCodecs() {
+        return CodecSelector.preferredOrder(
+            hardwareFactory.getSupportedCodecs(), softwareFactory.getSupportedCodecs());
+    }
+}
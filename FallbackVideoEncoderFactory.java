@@ -0,0 +1,64 @@
+package com.remotecontrol.android;
+
+import org.webrtc.EglBase;
+import org.webrtc.HardwareVideoEncoderFactory;
+import org.webrtc.SoftwareVideoEncoderFactory;
+import org.webrtc.VideoCodecInfo;
+import org.webrtc.VideoEncoder;
+import org.webrtc.VideoEncoderFactory;
+import org.webrtc.VideoEncoderFallback;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hardware-first encoder factory with a per-codec software fallback.
+ *
+ * Same idea as {@code DefaultVideoEncoderFactory}, but the hardware encoder is wrapped in a
+ * {@link MonitoredVideoEncoder} so failures are recorded and a codec that failed once is created
+ * in software from then on. A failed codec with no software encoder, H.264 in this build, is no
+ * longer advertised, so later sessions do not negotiate a codec they cannot encode.
+ */
+class FallbackVideoEncoderFactory implements VideoEncoderFactory {
+    private final VideoEncoderFactory hardwareFactory;
+    private final VideoEncoderFactory softwareFactory = new SoftwareVideoEncoderFactory();
+    private final CodecSelector selector;
+
+    FallbackVideoEncoderFactory(EglBase.Context eglContext, CodecSelector selector) {
+        this.hardwareFactory = new HardwareVideoEncoderFactory(
+            eglContext, /* enableIntelVp8Encoder= */ true, /* enableH264HighProfile= */ true);
+        this.selector = selector;
+    }
+
+    @Override
+    public VideoEncoder createEncoder(VideoCodecInfo info) {
+        VideoEncoder software = softwareFactory.createEncoder(info);
+        VideoEncoder hardware = selector.isHardwareAllowed(info.name)
+            ? hardwareFactory.createEncoder(info) : null;
+
+        if (hardware == null) {
+            // Native, so it cannot be wrapped; keyframe requests reach it through the sender
+            selector.onEncoderCreated(info.name, software != null ? CodecSelector.PATH_SOFTWARE : null);
+            return software;
+        }
+        VideoEncoder monitored = new MonitoredVideoEncoder(
+            hardware, info.name, selector, /* hasSoftwareFallback= */ software != null);
+        if (software == null) {
+            selector.onEncoderCreated(info.name, CodecSelector.PATH_HARDWARE);
+            return monitored;
+        }
+        selector.onEncoderCreated(info.name, CodecSelector.PATH_HARDWARE_WITH_FALLBACK);
+        return new VideoEncoderFallback(software, monitored);
+    }
+
+    @Override
+    public VideoCodecInfo[] getSupportedCodecs() {
+        List<VideoCodecInfo> hardware = new ArrayList<>();
+        for (VideoCodecInfo codec : hardwareFactory.getSupportedCodecs()) {
+            if (selector.isHardwareAllowed(codec.name)) {
+                hardware.add(codec);
+            }
+        }
+        return CodecSelector.preferredOrder(
+            hardware.toArray(new VideoCodecInfo[0]), softwareFactory.getSupportedCodecs());
+    }
+}
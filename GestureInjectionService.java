@@ -0,0 +1,148 @@
+package com.remotecontrol.android;
+
+import android.accessibilityservice.AccessibilityService;
+import android.accessibilityservice.GestureDescription;
+import android.graphics.Path;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.accessibility.AccessibilityEvent;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Injects the guest's input on the host as accessibility gestures.
+ *
+ * Segments from {@link StrokePlanner} become continued strokes, so a drag moves on the host
+ * while the guest is still dragging. {@link GesturePacer} decides when each one is dispatched.
+ * Continued strokes need API 26. On older devices input is ignored.
+ */
+public class GestureInjectionService extends AccessibilityService {
+    private static final String TAG = "GestureInjection";
+    private static final int MAX_POINTERS = 10;
+
+    private static volatile GestureInjectionService instance;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Guarded by the pacer: dispatch is only called from inside it
+    private final GestureDescription.StrokeDescription[] openStrokes =
+        new GestureDescription.StrokeDescription[MAX_POINTERS];
+
+    private final GesturePacer pacer = new GesturePacer(new GesturePacer.Dispatcher() {
+        @Override
+        public void dispatch(StrokePlanner.Segment segment, long durationMillis) {
+            if (!dispatchSegment(segment, durationMillis)) {
+                mainHandler.post(finishDispatch);
+            }
+        }
+    });
+
+    private final Runnable finishDispatch = new Runnable() {
+        @Override
+        public void run() {
+            pacer.onDispatchFinished(SystemClock.uptimeMillis());
+            SessionMetrics.get().setGauge(SessionMetrics.GAUGE_INJECT_LAG_MS, pacer.getLastLagMillis());
+        }
+    };
+
+    private final GestureResultCallback resultCallback = new GestureResultCallback() {
+        @Override
+        public void onCompleted(GestureDescription gestureDescription) {
+            finishDispatch.run();
+        }
+
+        @Override
+        public void onCancelled(GestureDescription gestureDescription) {
+            // Something else touched the screen; whatever comes next starts fresh strokes
+            synchronized (pacer) {
+                Arrays.fill(openStrokes, null);
+            }
+            finishDispatch.run();
+        }
+    };
+
+    /**
+     * The running service, or null if the user has not enabled it.
+     */
+    static GestureInjectionService get() {
+        return instance;
+    }
+
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+    }
+
+    @Override
+    protected void onServiceConnected() {
+        super.onServiceConnected();
+        instance = this;
+        Log.d(TAG, "Gesture injection available");
+    }
+
+    @Override
+    public void onAccessibilityEvent(AccessibilityEvent event) {
+    }
+
+    @Override
+    public void onInterrupt() {
+    }
+
+    @Override
+    public void onDestroy() {
+        instance = null;
+        pacer.clear();
+        super.onDestroy();
+    }
+
+    void inject(StrokePlanner.Segment segment) {
+        if (isSupported()) {
+            pacer.enqueue(segment, SystemClock.uptimeMillis());
+        }
+    }
+
+    /**
+     * Guest event time of the last touch sample whose injection finished, or -1 before the first.
+     */
+    long getLastInjectedSampleTime() {
+        return pacer.getLastInjectedSampleTime();
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println("Injected segments: " + pacer.getSegmentsDispatched()
+            + ", lag mean " + Math.round(pacer.getMeanLagMillis()) + " ms, max "
+            + pacer.getMaxLagMillis() + " ms");
+    }
+
+    private boolean dispatchSegment(StrokePlanner.Segment segment, long durationMillis) {
+        if (!isSupported()) {
+            return false;
+        }
+        GestureDescription.Builder builder = new GestureDescription.Builder();
+        for (StrokePlanner.Stroke stroke : segment.strokes) {
+            Path path = new Path();
+            path.moveTo(stroke.getX(0), stroke.getY(0));
+            for (int i = 1; i < stroke.pointCount; i++) {
+                path.lineTo(stroke.getX(i), stroke.getY(i));
+            }
+            GestureDescription.StrokeDescription previous = openStrokes[stroke.pointerId];
+            GestureDescription.StrokeDescription description;
+            if (stroke.continuesPrevious && previous != null) {
+                description = previous.continueStroke(path, 0, durationMillis, stroke.willContinue);
+            } else {
+                description = new GestureDescription.StrokeDescription(
+                    path, 0, durationMillis, stroke.willContinue);
+            }
+            openStrokes[stroke.pointerId] = stroke.willContinue ? description : null;
+            builder.addStroke(description);
+        }
+        try {
+            return dispatchGesture(builder.build(), resultCallback, mainHandler);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            Log.e(TAG, "Rejected gesture: " + e.getMessage());
+            Arrays.fill(openStrokes, null);
+            return false;
+        }
+    }
+}
@@ -1,11 +1,16 @@
 package com.remotecontrol.android;
 
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
 import android.view.MotionEvent;
-import android.view.SurfaceView;
 import android.view.View;
+import android.widget.FrameLayout;
 import android.widget.TextView;
 import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
@@ -13,17 +18,53 @@ import com.google.android.material.button.MaterialButton;
 import com.google.android.material.textfield.TextInputEditText;
 import org.webrtc.EglBase;
 import org.webrtc.PeerConnectionFactory;
+import org.webrtc.RendererCommon;
 import org.webrtc.SurfaceViewRenderer;
 import org.webrtc.VideoTrack;
 
 public class GuestActivity extends AppCompatActivity {
+    private static final long METRICS_OVERLAY_INTERVAL_MS = 500;
+
     private TextInputEditText hostCodeEditText;
     private MaterialButton connectButton;
     private TextView statusTextView;
-    private SurfaceView remoteScreenView;
+    private TextView metricsOverlayTextView;
+    private FrameLayout remoteScreenContainer;
+    private SurfaceViewRenderer remoteScreenView;
+    private RemoteScreenRenderer screenRenderer;
     private RemoteControlService remoteControlService;
     private PeerConnectionFactory peerConnectionFactory;
     private EglBase eglBase;
+    private boolean serviceBound;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final StringBuilder metricsText = new StringBuilder();
+
+    private final Runnable metricsOverlayUpdater = new Runnable() {
+        @Override
+        public void run() {
+            metricsText.setLength(0);
+            SessionMetrics.get().formatSummary(metricsText);
+            if (metricsText.length() > 0) {
+                metricsText.append('\n');
+            }
+            screenRenderer.formatCounters(metricsText);
+            metricsOverlayTextView.setText(metricsText);
+            handler.postDelayed(this, METRICS_OVERLAY_INTERVAL_MS);
+        }
+    };
+
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            remoteControlService = ((RemoteControlService.LocalBinder) service).getService();
+            remoteControlService.setRemoteViewRenderer(screenRenderer);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            remoteControlService = null;
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -34,10 +75,13 @@ public class GuestActivity extends AppCompatActivity {
         hostCodeEditText = findViewById(R.id.hostCodeEditText);
         connectButton = findViewById(R.id.connectButton);
         statusTextView = findViewById(R.id.statusTextView);
+        remoteScreenContainer = findViewById(R.id.remoteScreenContainer);
         remoteScreenView = findViewById(R.id.remoteScreenView);
+        metricsOverlayTextView = findViewById(R.id.metricsOverlayTextView);
 
         // Initialize WebRTC
         initializeWebRTC();
+        initializeRenderer();
 
         // Set up connect button
         connectButton.setOnClickListener(new View.OnClickListener() {
@@ -53,12 +97,21 @@ public class GuestActivity extends AppCompatActivity {
             }
         });
 
-        // Set up touch listener for remote control
-        remoteScreenView.setOnTouchListener(new View.OnTouchListener() {
+        // Long-press the status line to show or hide session metrics
+        statusTextView.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                setMetricsOverlayVisible(metricsOverlayTextView.getVisibility() != View.VISIBLE);
+                return true;
+            }
+        });
+
+        // Set up touch listener for remote control; the container includes the bars around the video
+        remoteScreenContainer.setOnTouchListener(new View.OnTouchListener() {
             @Override
             public boolean onTouch(View v, MotionEvent event) {
                 if (remoteControlService != null) {
-                    remoteControlService.sendTouchEvent(event);
+                    remoteControlService.sendTouchEvent(event, v.getWidth(), v.getHeight());
                 }
                 return true;
             }
@@ -66,19 +119,22 @@ public class GuestActivity extends AppCompatActivity {
     }
 
     private void initializeWebRTC() {
-        eglBase = EglBase.create();
-        PeerConnectionFactory.InitializationOptions initializationOptions =
-            PeerConnectionFactory.InitializationOptions.builder(this)
-                .createInitializationOptions();
-        PeerConnectionFactory.initialize(initializationOptions);
-
-        PeerConnectionFactory.Options options = new PeerConnectionFactory.Options();
-        peerConnectionFactory = PeerConnectionFactory.builder()
-            .setOptions(options)
-            .createPeerConnectionFactory();
+        // Shared with RemoteControlService; usually already warmed up by MainActivity
+        WebRtcEngine engine = WebRtcEngine.acquire(this);
+        peerConnectionFactory = engine.getFactory();
+        eglBase = engine.getEglBase();
+    }
+
+    private void initializeRenderer() {
+        remoteScreenView.init(eglBase.getEglBaseContext(), null);
+        remoteScreenView.setScalingType(RendererCommon.ScalingType.SCALE_ASPECT_FIT);
+        screenRenderer = new RemoteScreenRenderer(remoteScreenView,
+            getWindowManager().getDefaultDisplay().getRefreshRate());
     }
 
     private void connectToHost(String hostCode) {
+        SessionMetrics.get().startSession();
+        SessionMetrics.get().markPhase(SessionMetrics.PHASE_CONNECT_REQUESTED);
         statusTextView.setText("در حال اتصال به میزبان...");
         connectButton.setEnabled(false);
 
@@ -86,19 +142,42 @@ public class GuestActivity extends AppCompatActivity {
         Intent serviceIntent = new Intent(this, RemoteControlService.class);
         serviceIntent.putExtra("hostCode", hostCode);
         startService(serviceIntent);
+        serviceBound = bindService(serviceIntent, serviceConnection, Context.BIND_AUTO_CREATE);
 
         // Show remote screen view
-        remoteScreenView.setVisibility(View.VISIBLE);
+        remoteScreenContainer.setVisibility(View.VISIBLE);
+        setMetricsOverlayVisible(true);
+    }
+
+    private void setMetricsOverlayVisible(boolean visible) {
+        handler.removeCallbacks(metricsOverlayUpdater);
+        metricsOverlayTextView.setVisibility(visible ? View.VISIBLE : View.GONE);
+        // Markers are only read while someone is looking at the figures
+        screenRenderer.setMarkerReading(visible);
+        if (visible) {
+            metricsOverlayUpdater.run();
+        }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        handler.removeCallbacks(metricsOverlayUpdater);
+        if (remoteControlService != null) {
+            remoteControlService.setRemoteViewRenderer(null);
+        }
+        screenRenderer.release();
+        remoteScreenView.release();
+        if (serviceBound) {
+            unbindService(serviceConnection);
+            serviceBound = false;
+        }
         if (remoteControlService != null) {
             stopService(new Intent(this, RemoteControlService.class));
         }
         if (eglBase != null) {
-            eglBase.release();
+            WebRtcEngine.release();
+            eglBase = null;
         }
     }
 } 
\ No newline at end of file
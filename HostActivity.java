@@ -91,6 +91,7 @@ public class HostActivity extends AppCompatActivity {
             if (resultCode == RESULT_OK) {
                 // Start screen capture service
                 Intent serviceIntent = new Intent(this, ScreenCaptureService.class);
+                serviceIntent.putExtra("accessCode", accessCode);
                 serviceIntent.putExtra("resultCode", resultCode);
                 serviceIntent.putExtra("data", data);
                 startService(serviceIntent);
@@ -0,0 +1,83 @@
+package com.remotecontrol.android;
+
+import android.util.Log;
+import org.webrtc.CapturerObserver;
+import org.webrtc.VideoFrame;
+
+/**
+ * {@link CapturerObserver} that stops still frames from reaching the encoder.
+ *
+ * Each captured frame is scaled down on the GPU to {@link #PROBE_WIDTH} pixels wide and read
+ * back as I420; {@link FrameChangeDetector} hashes the luma plane and {@link IdleCapturePolicy}
+ * decides whether the frame goes on to the video source. Runs on the capturer's texture thread,
+ * where the GPU readback has to happen anyway.
+ */
+class IdleCaptureObserver implements CapturerObserver {
+    private static final String TAG = "IdleCaptureObserver";
+    static final int PROBE_WIDTH = 320;
+
+    interface Listener {
+        /**
+         * Called on the capture thread when a changed frame ends idle mode, before it is forwarded.
+         */
+        void onResumeFromIdle();
+    }
+
+    private final CapturerObserver delegate;
+    private final Listener listener;
+    private final FrameChangeDetector detector = new FrameChangeDetector();
+    private final IdleCapturePolicy policy = new IdleCapturePolicy();
+    private boolean wasIdle;
+
+    IdleCaptureObserver(CapturerObserver delegate, Listener listener) {
+        this.delegate = delegate;
+        this.listener = listener;
+    }
+
+    @Override
+    public void onCapturerStarted(boolean success) {
+        delegate.onCapturerStarted(success);
+    }
+
+    @Override
+    public void onCapturerStopped() {
+        delegate.onCapturerStopped();
+    }
+
+    @Override
+    public void onFrameCaptured(VideoFrame frame) {
+        int decision = policy.onFrame(hasChanged(frame.getBuffer()), frame.getTimestampNs());
+        if (policy.isIdle() != wasIdle) {
+            wasIdle = policy.isIdle();
+            Log.d(TAG, (wasIdle ? "Screen idle" : "Screen active") + ", dropped "
+                + policy.getFramesDropped() + " of " + policy.getFramesIn() + " frames so far");
+        }
+        if (decision == IdleCapturePolicy.DROP) {
+            return;
+        }
+        if (decision == IdleCapturePolicy.FORWARD_KEYFRAME) {
+            listener.onResumeFromIdle();
+        }
+        delegate.onFrameCaptured(frame);
+    }
+
+    private boolean hasChanged(VideoFrame.Buffer buffer) {
+        int width = buffer.getWidth();
+        int height = buffer.getHeight();
+        int probeWidth = Math.min(PROBE_WIDTH, width);
+        int probeHeight = Math.max(2, (probeWidth * height / width) & ~1);
+
+        VideoFrame.Buffer probe = buffer.cropAndScale(0, 0, width, height, probeWidth, probeHeight);
+        VideoFrame.I420Buffer i420 = probe.toI420();
+        probe.release();
+        if (i420 == null) {
+            // Readback failed; never hold back a frame we could not inspect
+            detector.reset();
+            return true;
+        }
+        boolean changed = detector.onFrame(i420.getDataY(), i420.getWidth(), i420.getHeight(),
+            i420.getStrideY());
+        i420.release();
+        return changed;
+    }
+}
@@ -0,0 +1,78 @@
+package com.remotecontrol.android;
+
+import org.webrtc.CapturerObserver;
+import org.webrtc.JavaI420Buffer;
+import org.webrtc.VideoFrame;
+import org.webrtc.YuvHelper;
+
+/**
+ * {@link CapturerObserver} that stamps a {@link LatencyMarker} into every frame on its way to the
+ * encoder while enabled, and passes frames through untouched otherwise. The marker includes the
+ * guest time of the last touch sample {@link GestureInjectionService} finished injecting.
+ *
+ * Stamping reads the whole frame back as I420 on the capturer's texture thread, so it is for
+ * measurement sessions only. Switching it on or off also makes a hardware encoder restart once,
+ * between texture and byte-buffer input.
+ */
+class LatencyMarkerObserver implements CapturerObserver {
+    private final CapturerObserver delegate;
+    private volatile boolean enabled;
+    // Only used on the capture thread
+    private int counter;
+
+    LatencyMarkerObserver(CapturerObserver delegate) {
+        this.delegate = delegate;
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void onCapturerStarted(boolean success) {
+        delegate.onCapturerStarted(success);
+    }
+
+    @Override
+    public void onCapturerStopped() {
+        delegate.onCapturerStopped();
+    }
+
+    @Override
+    public void onFrameCaptured(VideoFrame frame) {
+        if (!enabled) {
+            delegate.onFrameCaptured(frame);
+            return;
+        }
+        VideoFrame.I420Buffer i420 = frame.getBuffer().toI420();
+        if (i420 == null) {
+            delegate.onFrameCaptured(frame);
+            return;
+        }
+        if (i420.getDataY().isReadOnly()) {
+            i420 = copy(i420);
+        }
+        GestureInjectionService injector = GestureInjectionService.get();
+        long inputTime = injector != null ? injector.getLastInjectedSampleTime() : -1;
+        LatencyMarker.write(i420.getDataY(), i420.getStrideY(), i420.getWidth(), i420.getHeight(),
+            counter++, System.currentTimeMillis(), inputTime);
+        VideoFrame marked = new VideoFrame(i420, frame.getRotation(), frame.getTimestampNs());
+        delegate.onFrameCaptured(marked);
+        marked.release();
+    }
+
+    private static VideoFrame.I420Buffer copy(VideoFrame.I420Buffer source) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        JavaI420Buffer target = JavaI420Buffer.allocate(width, height);
+        YuvHelper.I420Copy(source.getDataY(), source.getStrideY(), source.getDataU(), source.getStrideU(),
+            source.getDataV(), source.getStrideV(), target.getDataY(), target.getStrideY(),
+            target.getDataU(), target.getStrideU(), target.getDataV(), target.getStrideV(), width, height);
+        source.release();
+        return target;
+    }
+}
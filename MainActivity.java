@@ -16,6 +16,9 @@ public class MainActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
+        // Build the WebRTC engine while the user is still choosing host or guest
+        WebRtcEngine.warmUp(this);
+
         // Initialize views
         hostButton = findViewById(R.id.hostButton);
         guestButton = findViewById(R.id.guestButton);
@@ -0,0 +1,99 @@
+package com.remotecontrol.android;
+
+import org.webrtc.EncodedImage;
+import org.webrtc.VideoCodecStatus;
+import org.webrtc.VideoEncoder;
+import org.webrtc.VideoFrame;
+
+/**
+ * Wraps a hardware encoder and reports failures to the {@link CodecSelector}.
+ *
+ * An initialization failure, or {@link #MAX_CONSECUTIVE_ERRORS} encode errors in a row, make it
+ * return {@link VideoCodecStatus#FALLBACK_SOFTWARE} so the surrounding fallback encoder switches
+ * to software. Without a software encoder to switch to it passes the error on instead. Either way
+ * the codec is blacklisted for hardware for the rest of the process.
+ *
+ * It also turns {@link CodecSelector#requestKeyFrame} into a keyframe on the next encode. Software
+ * encoders are native and cannot be wrapped like this; callers reach them through the sender
+ * instead, see {@link CodecSelector#isKeyFrameRequestServed}.
+ */
+class MonitoredVideoEncoder implements VideoEncoder {
+    private static final int MAX_CONSECUTIVE_ERRORS = 3;
+
+    private final VideoEncoder delegate;
+    private final String codecName;
+    private final CodecSelector selector;
+    private final boolean hasSoftwareFallback;
+    private int consecutiveErrors;
+    private int servedKeyFrameRequests;
+
+    MonitoredVideoEncoder(VideoEncoder delegate, String codecName, CodecSelector selector,
+                          boolean hasSoftwareFallback) {
+        this.delegate = delegate;
+        this.codecName = codecName;
+        this.selector = selector;
+        this.hasSoftwareFallback = hasSoftwareFallback;
+    }
+
+    @Override
+    public boolean isHardwareEncoder() {
+        return delegate.isHardwareEncoder();
+    }
+
+    @Override
+    public VideoCodecStatus initEncode(Settings settings, Callback encodeCallback) {
+        VideoCodecStatus status = delegate.initEncode(settings, encodeCallback);
+        if (status != VideoCodecStatus.OK) {
+            selector.onHardwareEncoderFailed(codecName, "initEncode returned " + status,
+                hasSoftwareFallback);
+            return hasSoftwareFallback ? VideoCodecStatus.FALLBACK_SOFTWARE : status;
+        }
+        consecutiveErrors = 0;
+        servedKeyFrameRequests = selector.getKeyFrameRequests();
+        selector.onEncoderActive(codecName, delegate.getImplementationName());
+        return status;
+    }
+
+    @Override
+    public VideoCodecStatus release() {
+        return delegate.release();
+    }
+
+    @Override
+    public VideoCodecStatus encode(VideoFrame frame, EncodeInfo info) {
+        int keyFrameRequests = selector.getKeyFrameRequests();
+        if (keyFrameRequests != servedKeyFrameRequests) {
+            servedKeyFrameRequests = keyFrameRequests;
+            info = new EncodeInfo(new EncodedImage.FrameType[] {EncodedImage.FrameType.VideoFrameKey});
+        }
+        VideoCodecStatus status = delegate.encode(frame, info);
+        if (status == VideoCodecStatus.OK || status == VideoCodecStatus.NO_OUTPUT) {
+            consecutiveErrors = 0;
+            if (status == VideoCodecStatus.OK) {
+                SessionMetrics.get().markPhase(SessionMetrics.PHASE_FIRST_ENCODED_FRAME);
+            }
+            return status;
+        }
+        if (++consecutiveErrors >= MAX_CONSECUTIVE_ERRORS) {
+            selector.onHardwareEncoderFailed(codecName,
+                consecutiveErrors + " encode errors, last " + status, hasSoftwareFallback);
+            return hasSoftwareFallback ? VideoCodecStatus.FALLBACK_SOFTWARE : status;
+        }
+        return status;
+    }
+
+    @Override
+    public VideoCodecStatus setRateAllocation(BitrateAllocation allocation, int framerate) {
+        return delegate.setRateAllocation(allocation, framerate);
+    }
+
+    @Override
+    public ScalingSettings getScalingSettings() {
+        return delegate.getScalingSettings();
+    }
+
+    @Override
+    public String getImplementationName() {
+        return delegate.getImplementationName();
+    }
+}
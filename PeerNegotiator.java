@@ -0,0 +1,290 @@
+package com.remotecontrol.android;
+
+import android.util.Log;
+import org.webrtc.IceCandidate;
+import org.webrtc.MediaConstraints;
+import org.webrtc.PeerConnection;
+import org.webrtc.SdpObserver;
+import org.webrtc.SessionDescription;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Offer/answer and trickle ICE for one peer connection over the signaling channel.
+ *
+ * Remote candidates that arrive before the remote description are held back and applied as soon
+ * as it is set. Local candidates are collected for a short window and sent as one message. When
+ * gathering completes, the last batch goes out marked complete, so the peer knows nothing more
+ * is coming.
+ */
+class PeerNegotiator {
+    private static final String TAG = "PeerNegotiator";
+    static final long DEFAULT_BATCH_WINDOW_MS = 20;
+
+    private final PeerConnection peerConnection;
+    private final SignalingClient signalingClient;
+    private final ScheduledExecutorService scheduler;
+    private final long batchWindowMs;
+    private volatile String remotePeerId;
+    private volatile String preferredCodec;
+    private volatile List<String> videoCodecs;
+
+    // Guarded by this
+    private final List<IceCandidate> pendingRemote = new ArrayList<>();
+    private final List<IceCandidate> localBatch = new ArrayList<>();
+    private boolean remoteDescriptionSet;
+    private boolean remoteComplete;
+    private ScheduledFuture<?> batchFlush;
+    private boolean closed;
+    private int candidatesSent;
+    private int candidateMessagesSent;
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushLocal(false);
+        }
+    };
+
+    /**
+     * @param remotePeerId  peer to address, or null until it is known
+     * @param batchWindowMs how long to collect local candidates before sending; 0 sends each
+     *                      candidate on its own
+     */
+    PeerNegotiator(PeerConnection peerConnection, SignalingClient signalingClient,
+                   String remotePeerId, long batchWindowMs) {
+        this.peerConnection = peerConnection;
+        this.signalingClient = signalingClient;
+        this.scheduler = signalingClient.getScheduler();
+        this.remotePeerId = remotePeerId;
+        this.batchWindowMs = batchWindowMs;
+    }
+
+    String getRemotePeerId() {
+        return remotePeerId;
+    }
+
+    void setRemotePeerId(String remotePeerId) {
+        this.remotePeerId = remotePeerId;
+    }
+
+    /**
+     * Puts a video codec first in our answers, see {@link SdpCodecs#preferCodec}. Null keeps the
+     * library's order.
+     */
+    void setPreferredCodec(String preferredCodec) {
+        this.preferredCodec = preferredCodec;
+    }
+
+    /**
+     * Prunes our offers and answers to these video codecs, see {@link SdpMinimizer#minimize}.
+     * Null sends descriptions as the library creates them.
+     */
+    void setVideoCodecs(List<String> videoCodecs) {
+        this.videoCodecs = videoCodecs;
+    }
+
+    void createOffer() {
+        peerConnection.createOffer(new SdpObserverAdapter("createOffer") {
+            @Override
+            public void onCreateSuccess(SessionDescription description) {
+                setLocalDescription(optimize(description));
+            }
+        }, new MediaConstraints());
+    }
+
+    void onRemoteDescription(final SessionDescription description) {
+        peerConnection.setRemoteDescription(new SdpObserverAdapter("setRemoteDescription") {
+            @Override
+            public void onSetSuccess() {
+                applyPendingRemote();
+                if (description.type == SessionDescription.Type.OFFER) {
+                    createAnswer();
+                }
+            }
+        }, description);
+    }
+
+    void onRemoteCandidates(List<IceCandidate> candidates, boolean complete) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (complete) {
+                remoteComplete = true;
+                Log.d(TAG, "Remote end of candidates from " + remotePeerId);
+            }
+            if (!remoteDescriptionSet) {
+                pendingRemote.addAll(candidates);
+                return;
+            }
+        }
+        for (IceCandidate candidate : candidates) {
+            peerConnection.addIceCandidate(candidate);
+        }
+    }
+
+    void onLocalCandidate(IceCandidate candidate) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            localBatch.add(candidate);
+            if (batchWindowMs > 0) {
+                if (batchFlush == null) {
+                    try {
+                        batchFlush = scheduler.schedule(flushRunnable, batchWindowMs, TimeUnit.MILLISECONDS);
+                    } catch (RejectedExecutionException e) {
+                        // The signaling client is closed; there is nobody left to send to
+                        localBatch.clear();
+                    }
+                }
+                return;
+            }
+        }
+        flushLocal(false);
+    }
+
+    void onLocalGatheringComplete() {
+        flushLocal(true);
+    }
+
+    synchronized boolean isRemoteComplete() {
+        return remoteComplete;
+    }
+
+    synchronized int getCandidatesSent() {
+        return candidatesSent;
+    }
+
+    synchronized int getCandidateMessagesSent() {
+        return candidateMessagesSent;
+    }
+
+    void close() {
+        synchronized (this) {
+            closed = true;
+            if (batchFlush != null) {
+                batchFlush.cancel(false);
+                batchFlush = null;
+            }
+            localBatch.clear();
+            pendingRemote.clear();
+        }
+    }
+
+    private void createAnswer() {
+        peerConnection.createAnswer(new SdpObserverAdapter("createAnswer") {
+            @Override
+            public void onCreateSuccess(SessionDescription description) {
+                setLocalDescription(optimize(description));
+            }
+        }, new MediaConstraints());
+    }
+
+    /**
+     * Applied before the description is set locally, so what we send is what we use.
+     */
+    private SessionDescription optimize(SessionDescription description) {
+        String sdp = description.description;
+        String codec = preferredCodec;
+        // Only answers pick the codec; reordering an offer would only express a wish
+        if (codec != null && description.type == SessionDescription.Type.ANSWER) {
+            sdp = SdpCodecs.preferCodec(sdp, codec);
+        }
+        List<String> codecs = videoCodecs;
+        if (codecs != null) {
+            int before = sdp.length();
+            sdp = SdpMinimizer.minimize(sdp, codecs);
+            Log.d(TAG, "Minimized " + description.type.canonicalForm() + " from " + before
+                + " to " + sdp.length() + " chars");
+        }
+        return sdp.equals(description.description)
+            ? description : new SessionDescription(description.type, sdp);
+    }
+
+    private void setLocalDescription(final SessionDescription description) {
+        peerConnection.setLocalDescription(new SdpObserverAdapter("setLocalDescription") {
+            @Override
+            public void onSetSuccess() {
+                signalingClient.sendSessionDescription(description, remotePeerId);
+            }
+        }, description);
+    }
+
+    private void applyPendingRemote() {
+        List<IceCandidate> pending;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            remoteDescriptionSet = true;
+            pending = new ArrayList<>(pendingRemote);
+            pendingRemote.clear();
+        }
+        for (IceCandidate candidate : pending) {
+            peerConnection.addIceCandidate(candidate);
+        }
+        if (!pending.isEmpty()) {
+            Log.d(TAG, "Applied " + pending.size() + " early candidates from " + remotePeerId);
+        }
+    }
+
+    private void flushLocal(boolean complete) {
+        List<IceCandidate> batch;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (batchFlush != null) {
+                batchFlush.cancel(false);
+                batchFlush = null;
+            }
+            if (localBatch.isEmpty() && !complete) {
+                return;
+            }
+            batch = new ArrayList<>(localBatch);
+            localBatch.clear();
+            candidatesSent += batch.size();
+            candidateMessagesSent++;
+        }
+        signalingClient.sendIceCandidates(batch, complete, remotePeerId);
+        if (complete) {
+            Log.d(TAG, "Sent " + candidatesSent + " candidates in " + candidateMessagesSent
+                + " messages to " + remotePeerId);
+        }
+    }
+
+    /**
+     * Logs failures; subclasses override the success callback they wait for.
+     */
+    private static class SdpObserverAdapter implements SdpObserver {
+        private final String operation;
+
+        SdpObserverAdapter(String operation) {
+            this.operation = operation;
+        }
+
+        @Override
+        public void onCreateSuccess(SessionDescription description) {
+        }
+
+        @Override
+        public void onSetSuccess() {
+        }
+
+        @Override
+        public void onCreateFailure(String error) {
+            Log.e(TAG, operation + " failed: " + error);
+        }
+
+        @Override
+        public void onSetFailure(String error) {
+            Log.e(TAG, operation + " failed: " + error);
+        }
+    }
+}
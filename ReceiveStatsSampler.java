@@ -0,0 +1,159 @@
+package com.remotecontrol.android;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import org.webrtc.PeerConnection;
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsCollectorCallback;
+import org.webrtc.RTCStatsReport;
+import java.util.Map;
+
+/**
+ * Polls the guest's peer connection stats and publishes receive-side figures to
+ * {@link SessionMetrics}: frame rate, average decode time, jitter buffer delay and round trip.
+ * It also keeps what the connection settled on, the local candidate type and the video codec,
+ * for the guest's {@link ConnectionProfileCache}.
+ */
+class ReceiveStatsSampler {
+    private static final long POLL_INTERVAL_MS = 1000;
+
+    private final PeerConnection peerConnection;
+    private final SessionMetrics metrics;
+    private final HandlerThread thread = new HandlerThread("ReceiveStats");
+    private Handler handler;
+
+    private double lastDecodeTime = -1;
+    private double lastFramesDecoded = -1;
+    private double lastJitterBufferDelay = -1;
+    private double lastJitterBufferEmitted = -1;
+    private volatile String candidateType;
+    private volatile String codec;
+
+    private final Runnable pollRunnable = new Runnable() {
+        @Override
+        public void run() {
+            poll();
+            handler.postDelayed(this, POLL_INTERVAL_MS);
+        }
+    };
+
+    ReceiveStatsSampler(PeerConnection peerConnection, SessionMetrics metrics) {
+        this.peerConnection = peerConnection;
+        this.metrics = metrics;
+    }
+
+    void start() {
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        handler.postDelayed(pollRunnable, POLL_INTERVAL_MS);
+    }
+
+    /**
+     * Local candidate type of the pair carrying media, e.g. "srflx", or null before it is known.
+     */
+    String getCandidateType() {
+        return candidateType;
+    }
+
+    /**
+     * Name of the codec being decoded, e.g. "H264", or null before the first frame.
+     */
+    String getCodec() {
+        return codec;
+    }
+
+    void stop() {
+        if (handler != null) {
+            handler.removeCallbacksAndMessages(null);
+        }
+        thread.quitSafely();
+    }
+
+    private void poll() {
+        peerConnection.getStats(new RTCStatsCollectorCallback() {
+            @Override
+            public void onStatsDelivered(final RTCStatsReport report) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onStats(report);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onStats(RTCStatsReport report) {
+        Map<String, RTCStats> statsMap = report.getStatsMap();
+        for (RTCStats stats : statsMap.values()) {
+            Map<String, Object> members = stats.getMembers();
+            switch (stats.getType()) {
+                case "inbound-rtp":
+                    if ("video".equals(members.get("kind"))) {
+                        onInboundVideo(members);
+                        String mimeType = referencedMember(statsMap, members.get("codecId"), "mimeType");
+                        if (mimeType != null) {
+                            // "video/H264" -> "H264"
+                            codec = mimeType.substring(mimeType.indexOf('/') + 1);
+                        }
+                    }
+                    break;
+                case "candidate-pair":
+                    if (Boolean.TRUE.equals(members.get("nominated"))
+                            && "succeeded".equals(members.get("state"))) {
+                        double rtt = number(members.get("currentRoundTripTime"));
+                        if (rtt >= 0) {
+                            metrics.setGauge(SessionMetrics.GAUGE_RTT_MS, rtt * 1000);
+                        }
+                        String type = referencedMember(statsMap, members.get("localCandidateId"),
+                            "candidateType");
+                        if (type != null) {
+                            candidateType = type;
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void onInboundVideo(Map<String, Object> members) {
+        double fps = number(members.get("framesPerSecond"));
+        if (fps >= 0) {
+            metrics.setGauge(SessionMetrics.GAUGE_FPS, fps);
+        }
+
+        double decodeTime = number(members.get("totalDecodeTime"));
+        double framesDecoded = number(members.get("framesDecoded"));
+        if (lastFramesDecoded >= 0 && framesDecoded > lastFramesDecoded && decodeTime >= lastDecodeTime) {
+            metrics.setGauge(SessionMetrics.GAUGE_DECODE_MS,
+                (decodeTime - lastDecodeTime) * 1000 / (framesDecoded - lastFramesDecoded));
+        }
+        lastDecodeTime = decodeTime;
+        lastFramesDecoded = framesDecoded;
+
+        double jitterDelay = number(members.get("jitterBufferDelay"));
+        double emitted = number(members.get("jitterBufferEmittedCount"));
+        if (lastJitterBufferEmitted >= 0 && emitted > lastJitterBufferEmitted
+                && jitterDelay >= lastJitterBufferDelay) {
+            metrics.setGauge(SessionMetrics.GAUGE_JITTER_BUFFER_MS,
+                (jitterDelay - lastJitterBufferDelay) * 1000 / (emitted - lastJitterBufferEmitted));
+        }
+        lastJitterBufferDelay = jitterDelay;
+        lastJitterBufferEmitted = emitted;
+    }
+
+    /**
+     * Looks up a string member of the stats object another one refers to by id.
+     */
+    private static String referencedMember(Map<String, RTCStats> statsMap, Object id, String member) {
+        RTCStats referenced = id instanceof String ? statsMap.get(id) : null;
+        Object value = referenced != null ? referenced.getMembers().get(member) : null;
+        return value instanceof String ? (String) value : null;
+    }
+
+    private static double number(Object value) {
+        return value instanceof Number ? ((Number) value).doubleValue() : -1;
+    }
+}
@@ -1,129 +1,540 @@
-package com.remotecontrol.android;
-
-import android.app.Service;
-import android.content.Intent;
-import android.os.IBinder;
-import android.view.MotionEvent;
-import org.webrtc.EglBase;
-import org.webrtc.PeerConnectionFactory;
-import org.webrtc.SurfaceViewRenderer;
-import org.webrtc.VideoTrack;
-
-public class RemoteControlService extends Service {
-    private String hostCode;
-    private SignalingClient signalingClient;
-    private PeerConnectionFactory peerConnectionFactory;
-    private EglBase eglBase;
-    private VideoTrack remoteVideoTrack;
-    private SurfaceViewRenderer remoteViewRenderer;
-
-    @Override
-    public void onCreate() {
-        super.onCreate();
-        eglBase = EglBase.create();
-        initializeWebRTC();
-    }
-
-    @Override
-    public int onStartCommand(Intent intent, int flags, int startId) {
-        if (intent != null) {
-            hostCode = intent.getStringExtra("hostCode");
-            if (hostCode != null) {
-                connectToHost();
-            }
-        }
-        return START_STICKY;
-    }
-
-    private void initializeWebRTC() {
-        PeerConnectionFactory.InitializationOptions initializationOptions =
-            PeerConnectionFactory.InitializationOptions.builder(this)
-                .createInitializationOptions();
-        PeerConnectionFactory.initialize(initializationOptions);
-
-        PeerConnectionFactory.Options options = new PeerConnectionFactory.Options();
-        peerConnectionFactory = PeerConnectionFactory.builder()
-            .setOptions(options)
-            .createPeerConnectionFactory();
-
-        signalingClient = new SignalingClient(this);
-    }
-
-    private void connectToHost() {
-        // Connect to signaling server
-        signalingClient.connect();
-        
-        // Send connection request with host code
-        signalingClient.sendConnectionRequest(hostCode);
-    }
-
-    public void sendTouchEvent(MotionEvent event) {
-        if (signalingClient != null) {
-            // Convert touch event to a format that can be sent over the network
-            TouchEvent touchEvent = new TouchEvent(
-                event.getAction(),
-                event.getX(),
-                event.getY(),
-                event.getPressure(),
-                event.getSize()
-            );
-            signalingClient.sendTouchEvent(touchEvent);
-        }
-    }
-
-    public void setRemoteVideoTrack(VideoTrack track) {
-        this.remoteVideoTrack = track;
-        if (remoteViewRenderer != null) {
-            track.addSink(remoteViewRenderer);
-        }
-    }
-
-    public void setRemoteViewRenderer(SurfaceViewRenderer renderer) {
-        this.remoteViewRenderer = renderer;
-        if (remoteVideoTrack != null) {
-            remoteVideoTrack.addSink(renderer);
-        }
-    }
-
-    @Override
-    public void onDestroy() {
-        if (remoteVideoTrack != null) {
-            remoteVideoTrack.dispose();
-        }
-        if (remoteViewRenderer != null) {
-            remoteViewRenderer.release();
-        }
-        if (eglBase != null) {
-            eglBase.release();
-        }
-        super.onDestroy();
-    }
-
-    @Override
-    public IBinder onBind(Intent intent) {
-        return null;
-    }
-
-    private static class TouchEvent {
-        private final int action;
-        private final float x;
-        private final float y;
-        private final float pressure;
-        private final float size;
-
-        public TouchEvent(int action, float x, float y, float pressure, float size) {
-            this.action = action;
-            this.x = x;
-            this.y = y;
-            this.pressure = pressure;
-            this.size = size;
-        }
-
-        // Getters
-        public int getAction() { return action; }
-        public float getX() { return x; }
-        public float getY() { return y; }
-        public float getPressure() { return pressure; }
-        public float getSize() { return size; }
-    }
+package com.remotecontrol.android;
+
+import android.app.Service;
+import android.content.ClipData;
+import android.content.ClipboardManager;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.wifi.WifiManager;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.MotionEvent;
+import org.webrtc.EglBase;
+import org.webrtc.IceCandidate;
+import org.webrtc.MediaStream;
+import org.webrtc.MediaStreamTrack;
+import org.webrtc.PeerConnection;
+import org.webrtc.PeerConnectionFactory;
+import org.webrtc.RtpReceiver;
+import org.webrtc.SessionDescription;
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoSink;
+import org.webrtc.VideoTrack;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class RemoteControlService extends Service {
+    private static final String TAG = "RemoteControlService";
+    private static final String PROFILE_FILE = "connection_profiles.json";
+
+    private final IBinder binder = new LocalBinder();
+    private final TouchSender touchSender = new TouchSender(new TouchBatcher.Output() {
+        @Override
+        public void onBatch(ByteBuffer message, boolean reliable) {
+            // Runs on the sender thread
+            sendTouchMessage(message, reliable);
+        }
+    });
+    private final Choreographer.FrameCallback touchFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            touchFlushScheduled = false;
+            touchSender.requestFlush();
+        }
+    };
+    private final VideoSink frameMetricsSink = new VideoSink() {
+        @Override
+        public void onFrame(VideoFrame frame) {
+            SessionMetrics.get().markPhase(SessionMetrics.PHASE_FIRST_DECODED_FRAME);
+            int width = frame.getRotatedWidth();
+            int height = frame.getRotatedHeight();
+            if (width != frameWidth || height != frameHeight) {
+                frameWidth = width;
+                frameHeight = height;
+            }
+        }
+    };
+    // Size of the latest frame as displayed, i.e. after rotation
+    private volatile int frameWidth;
+    private volatile int frameHeight;
+    // Only used on the UI thread
+    private CoordinateTransform viewTransform;
+    private boolean touchFlushScheduled;
+    private boolean signalingStarted;
+    private String hostCode;
+    private SignalingClient signalingClient;
+    private WebRtcEngine webRtcEngine;
+    private PeerConnectionFactory peerConnectionFactory;
+    private PeerConnection peerConnection;
+    private volatile PeerNegotiator negotiator;
+    private InputTransport dataChannelTransport;
+    private InputTransport signalingTransport;
+    private DataChannelTransferLink transferLink;
+    private TransferEngine transferEngine;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private EglBase eglBase;
+    private VideoTrack remoteVideoTrack;
+    private VideoSink remoteViewRenderer;
+    private ReceiveStatsSampler statsSampler;
+    private final ConnectionProfileCache profileCache = new ConnectionProfileCache();
+    // What the last session to this host code settled on, or null for a cold start
+    private ConnectionProfileCache.Profile warmProfile;
+    private List<String> iceServers;
+    private volatile int qualityLevel;
+    private volatile boolean iceFailed;
+    // Guarded by this
+    private boolean destroyed;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        profileCache.load(getProfileFile(), System.currentTimeMillis());
+        initializeWebRTC();
+        touchSender.start();
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null) {
+            hostCode = intent.getStringExtra("hostCode");
+            if (hostCode != null) {
+                connectToHost();
+            }
+        }
+        return START_STICKY;
+    }
+
+    private void initializeWebRTC() {
+        webRtcEngine = WebRtcEngine.acquire(this);
+        peerConnectionFactory = webRtcEngine.getFactory();
+        eglBase = webRtcEngine.getEglBase();
+
+        signalingClient = new SignalingClient(getString(R.string.signaling_server_url));
+        signalingClient.setListener(new SignalingClient.Listener() {
+            @Override
+            public void onConnectionRequest(String hostCode, String peerId) {
+                // Other guests joining the same host; nothing to do
+            }
+
+            @Override
+            public void onSessionDescription(SessionDescription description, String peerId) {
+                PeerNegotiator current = negotiator;
+                if (current == null || !isFromHost(current, peerId)) {
+                    return;
+                }
+                if (description.type == SessionDescription.Type.OFFER) {
+                    // The offering host is who everything from now on is addressed to
+                    current.setRemotePeerId(peerId);
+                }
+                current.onRemoteDescription(description);
+            }
+
+            @Override
+            public void onIceCandidates(List<IceCandidate> candidates, boolean complete, String peerId) {
+                PeerNegotiator current = negotiator;
+                if (current != null && isFromHost(current, peerId)) {
+                    current.onRemoteCandidates(candidates, complete);
+                }
+            }
+
+            @Override
+            public void onQualityLevel(int level, String peerId) {
+                // Only from the host we are talking to; other guests' hints are not for us
+                PeerNegotiator current = negotiator;
+                if (current != null && peerId != null && peerId.equals(current.getRemotePeerId())) {
+                    qualityLevel = level;
+                }
+            }
+        });
+        signalingTransport = new SignalingInputTransport(signalingClient);
+    }
+
+    private static boolean isFromHost(PeerNegotiator negotiator, String peerId) {
+        String host = negotiator.getRemotePeerId();
+        return host == null || peerId == null || host.equals(peerId);
+    }
+
+    private void connectToHost() {
+        warmProfile = profileCache.get(hostCode, System.currentTimeMillis());
+        Log.d(TAG, (warmProfile != null ? "Warm start: " + warmProfile : "Cold start") + " for " + hostCode);
+        createPeerConnection();
+
+        // Held until the socket opens, which waits for the LAN race
+        signalingClient.sendConnectionRequest(hostCode);
+        if (warmProfile != null) {
+            // Queued behind the join, so the host already has a session to seed
+            signalingClient.sendQualityLevel(warmProfile.qualityLevel, null);
+        }
+        if (!signalingStarted) {
+            signalingStarted = true;
+            raceLanDiscovery(hostCode);
+        }
+    }
+
+    /**
+     * Looks for the host on this network and signals through it directly if it answers and proves
+     * the code in time;
+     * otherwise connects to the relay. See LanDiscovery. Off Wi-Fi and Ethernet there is no host
+     * to find, so the relay does not wait for the race.
+     */
+    private void raceLanDiscovery(final String code) {
+        final boolean local = isOnLocalNetwork();
+        Thread race = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                LanDiscovery.Endpoint endpoint = null;
+                if (local) {
+                    WifiManager wifi = (WifiManager) getApplicationContext().getSystemService(WIFI_SERVICE);
+                    WifiManager.MulticastLock multicastLock = wifi.createMulticastLock(TAG);
+                    multicastLock.acquire();
+                    try {
+                        endpoint = LanDiscovery.race(code, LanDiscovery.RACE_MS, null);
+                    } finally {
+                        multicastLock.release();
+                    }
+                }
+                long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                synchronized (RemoteControlService.this) {
+                    if (destroyed) {
+                        return;
+                    }
+                    if (endpoint != null) {
+                        Log.d(TAG, "Host found on LAN at " + endpoint + " in " + elapsedMs + " ms");
+                        signalingClient.setLanEndpoint(endpoint.getUrl(), code, endpoint.nonce);
+                    } else {
+                        Log.d(TAG, "No host on LAN after " + elapsedMs + " ms, using the relay");
+                    }
+                    signalingClient.connect();
+                }
+            }
+        }, "LanDiscovery");
+        race.start();
+    }
+
+    private boolean isOnLocalNetwork() {
+        ConnectivityManager connectivity = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            Network active = connectivity.getActiveNetwork();
+            return active != null && isLocal(connectivity.getNetworkCapabilities(active));
+        }
+        // No way to name the default network before M; any connected Wi-Fi or Ethernet will do
+        for (Network network : connectivity.getAllNetworks()) {
+            if (isLocal(connectivity.getNetworkCapabilities(network))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isLocal(NetworkCapabilities capabilities) {
+        return capabilities != null
+            && (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)
+                || capabilities.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET));
+    }
+
+    private void createPeerConnection() {
+        if (peerConnection != null) {
+            return;
+        }
+        ConnectionProfileCache.Profile profile = warmProfile;
+        iceServers = profile != null && !profile.iceServers.isEmpty()
+            ? profile.iceServers : WebRtcConfig.DEFAULT_ICE_SERVERS;
+        qualityLevel = profile != null ? profile.qualityLevel : 0;
+        peerConnection = peerConnectionFactory.createPeerConnection(
+            WebRtcConfig.createRtcConfiguration(iceServers, profile != null && profile.isRelayed()),
+            new PeerConnectionObserver() {
+                @Override
+                public void onIceCandidate(IceCandidate iceCandidate) {
+                    negotiator.onLocalCandidate(iceCandidate);
+                }
+
+                @Override
+                public void onIceGatheringChange(PeerConnection.IceGatheringState state) {
+                    if (state == PeerConnection.IceGatheringState.COMPLETE) {
+                        SessionMetrics.get().markPhase(SessionMetrics.PHASE_ICE_GATHERED);
+                        negotiator.onLocalGatheringComplete();
+                    }
+                }
+
+                @Override
+                public void onIceConnectionChange(PeerConnection.IceConnectionState state) {
+                    if (state == PeerConnection.IceConnectionState.CONNECTED) {
+                        SessionMetrics.get().markPhase(SessionMetrics.PHASE_ICE_CONNECTED);
+                    } else if (state == PeerConnection.IceConnectionState.FAILED) {
+                        onIceFailed();
+                    }
+                }
+
+                @Override
+                public void onAddTrack(RtpReceiver receiver, MediaStream[] mediaStreams) {
+                    MediaStreamTrack track = receiver.track();
+                    if (track instanceof VideoTrack) {
+                        setRemoteVideoTrack((VideoTrack) track);
+                    }
+                }
+            });
+        negotiator = new PeerNegotiator(peerConnection, signalingClient, null,
+            PeerNegotiator.DEFAULT_BATCH_WINDOW_MS);
+        negotiator.setVideoCodecs(CodecSelector.preferredCodecs());
+        if (profile != null) {
+            negotiator.setPreferredCodec(profile.codec);
+        }
+        dataChannelTransport = new DataChannelInputTransport(peerConnection);
+        transferLink = new DataChannelTransferLink(peerConnection);
+        transferEngine = new TransferEngine(transferLink, DataChannelTransferLink.getDirectory(this),
+            new TransferEngine.Listener() {
+                @Override
+                public void onSent(long id) {
+                    Log.d(TAG, "Transfer " + Long.toHexString(id) + " sent");
+                }
+
+                @Override
+                public void onFileReceived(File file) {
+                    Log.d(TAG, "Received " + file);
+                }
+
+                @Override
+                public void onTextReceived(final String text) {
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            ClipboardManager clipboard = (ClipboardManager) getSystemService(CLIPBOARD_SERVICE);
+                            clipboard.setPrimaryClip(ClipData.newPlainText("remote", text));
+                        }
+                    });
+                }
+
+                @Override
+                public void onFailed(long id, String reason) {
+                    Log.w(TAG, "Transfer " + Long.toHexString(id) + " failed: " + reason);
+                }
+            });
+        transferLink.attach(transferEngine);
+        statsSampler = new ReceiveStatsSampler(peerConnection, SessionMetrics.get());
+        statsSampler.start();
+    }
+
+    private void onIceFailed() {
+        iceFailed = true;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (warmProfile != null) {
+                    // Whatever the profile pinned may be what broke; start cold next time
+                    Log.w(TAG, "Warm start failed, forgetting profile for " + hostCode);
+                    profileCache.remove(hostCode);
+                    saveProfiles();
+                }
+            }
+        });
+    }
+
+    /**
+     * Keeps what this session settled on for the next connection to the same host code, if the
+     * session got as far as showing a frame.
+     */
+    private void rememberProfile() {
+        if (hostCode == null || statsSampler == null || iceFailed
+                || SessionMetrics.get().phaseMillis(SessionMetrics.PHASE_FIRST_DECODED_FRAME) < 0) {
+            return;
+        }
+        String candidateType = statsSampler.getCandidateType();
+        String codec = statsSampler.getCodec();
+        if (candidateType == null || codec == null) {
+            return;
+        }
+        profileCache.put(hostCode, new ConnectionProfileCache.Profile(candidateType, codec,
+            qualityLevel, iceServers, System.currentTimeMillis()));
+        saveProfiles();
+    }
+
+    private void saveProfiles() {
+        try {
+            profileCache.save(getProfileFile());
+        } catch (IOException e) {
+            Log.w(TAG, "Could not save connection profiles: " + e.getMessage());
+        }
+    }
+
+    private File getProfileFile() {
+        return new File(getFilesDir(), PROFILE_FILE);
+    }
+
+    /**
+     * Called from the UI thread for every touch event on the remote view. Coordinates are
+     * normalized to the video frame as it is fitted into the view, then copied into the ring
+     * buffer; batching, encoding and sending happen on the sender thread.
+     */
+    public void sendTouchEvent(MotionEvent event, int viewWidth, int viewHeight) {
+        if (signalingClient == null) {
+            return;
+        }
+        CoordinateTransform transform = viewTransform;
+        int width = frameWidth;
+        int height = frameHeight;
+        if (transform == null || !transform.matches(width, height, viewWidth, viewHeight)) {
+            transform = CoordinateTransform.fit(width, height, viewWidth, viewHeight);
+            viewTransform = transform;
+        }
+        if (transform == null) {
+            // No frame yet, so nothing on the host to aim at
+            return;
+        }
+        int action = event.getActionMasked();
+        if (action == MotionEvent.ACTION_MOVE) {
+            // A MOVE carries every sample since the previous event; replay them in time order
+            int pointerCount = event.getPointerCount();
+            for (int h = 0; h < event.getHistorySize(); h++) {
+                for (int p = 0; p < pointerCount; p++) {
+                    touchSender.offer(action, event.getPointerId(p), event.getHistoricalEventTime(h),
+                        transform.toNormalizedContentX(event.getHistoricalX(p, h)),
+                        transform.toNormalizedContentY(event.getHistoricalY(p, h)),
+                        event.getHistoricalPressure(p, h), event.getHistoricalSize(p, h));
+                }
+            }
+            for (int p = 0; p < pointerCount; p++) {
+                touchSender.offer(action, event.getPointerId(p), event.getEventTime(),
+                    transform.toNormalizedContentX(event.getX(p)),
+                    transform.toNormalizedContentY(event.getY(p)),
+                    event.getPressure(p), event.getSize(p));
+            }
+            scheduleTouchFlush();
+        } else {
+            int actionIndex = event.getActionIndex();
+            touchSender.offer(action, event.getPointerId(actionIndex), event.getEventTime(),
+                transform.toNormalizedContentX(event.getX(actionIndex)),
+                transform.toNormalizedContentY(event.getY(actionIndex)),
+                event.getPressure(actionIndex), event.getSize(actionIndex));
+        }
+    }
+
+    private void scheduleTouchFlush() {
+        if (!touchFlushScheduled) {
+            touchFlushScheduled = true;
+            Choreographer.getInstance().postFrameCallback(touchFrameCallback);
+        }
+    }
+
+    /**
+     * Sends a file to the host. Returns the transfer id, or -1 before connecting.
+     */
+    public long sendFile(File file) {
+        return transferEngine != null ? transferEngine.sendFile(file) : -1;
+    }
+
+    /**
+     * Puts text on the host's clipboard. Returns the transfer id, or -1 before connecting.
+     */
+    public long sendClipboardText(String text) {
+        return transferEngine != null ? transferEngine.sendText(text) : -1;
+    }
+
+    public void setTouchBatchDeadlineMs(long deadlineMs) {
+        touchSender.setDeadlineNanos(TimeUnit.MILLISECONDS.toNanos(deadlineMs));
+    }
+
+    TouchSender getTouchSender() {
+        return touchSender;
+    }
+
+    private void sendTouchMessage(ByteBuffer message, boolean reliable) {
+        // Prefer the peer connection; the signaling socket only carries input until it is up
+        if (dataChannelTransport != null && dataChannelTransport.isOpen()) {
+            dataChannelTransport.send(message, reliable);
+        } else {
+            signalingTransport.send(message, reliable);
+        }
+    }
+
+    public void setRemoteVideoTrack(VideoTrack track) {
+        this.remoteVideoTrack = track;
+        track.addSink(frameMetricsSink);
+        if (remoteViewRenderer != null) {
+            track.addSink(remoteViewRenderer);
+        }
+    }
+
+    /**
+     * Shows the remote screen on {@code renderer}, or stops showing it if null. The renderer
+     * belongs to the caller.
+     */
+    public void setRemoteViewRenderer(VideoSink renderer) {
+        if (remoteVideoTrack != null && remoteViewRenderer != null) {
+            remoteVideoTrack.removeSink(remoteViewRenderer);
+        }
+        this.remoteViewRenderer = renderer;
+        if (remoteVideoTrack != null && renderer != null) {
+            remoteVideoTrack.addSink(renderer);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        Choreographer.getInstance().removeFrameCallback(touchFrameCallback);
+        touchSender.stop();
+        synchronized (this) {
+            // A LAN race still running must not connect after this
+            destroyed = true;
+            signalingClient.close();
+        }
+        rememberProfile();
+        if (statsSampler != null) {
+            statsSampler.stop();
+        }
+        if (negotiator != null) {
+            negotiator.close();
+        }
+        if (dataChannelTransport != null) {
+            dataChannelTransport.close();
+        }
+        if (transferLink != null) {
+            transferLink.close();
+        }
+        if (peerConnection != null) {
+            // Disposing the connection also disposes the remote track it owns
+            peerConnection.dispose();
+            remoteVideoTrack = null;
+        }
+        if (remoteVideoTrack != null) {
+            remoteVideoTrack.dispose();
+        }
+        // The factory and EGL context belong to the shared engine
+        WebRtcEngine.release();
+        super.onDestroy();
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        // Compare first-decoded across warm and cold starts to the same host code
+        writer.println("Connection profile: " + (warmProfile != null ? "warm, " + warmProfile : "cold")
+            + ", " + profileCache.size() + " cached");
+        if (signalingClient != null) {
+            writer.println("Signaling dispatch: " + signalingClient.describeDispatch());
+        }
+        SessionMetrics.get().dump(writer);
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    public class LocalBinder extends Binder {
+        RemoteControlService getService() {
+            return RemoteControlService.this;
+        }
+    }
 } 
\ No newline at end of file
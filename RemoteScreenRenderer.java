@@ -0,0 +1,205 @@
+package com.remotecontrol.android;
+
+import android.os.SystemClock;
+import android.view.Choreographer;
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoSink;
+
+/**
+ * Sits between the remote video track and the guest's {@code SurfaceViewRenderer} and hands it
+ * only the newest decoded frame, once per vsync.
+ *
+ * A frame that is overtaken by a newer one before the next vsync is dropped rather than queued,
+ * so a burst after a network stall costs no extra latency. A frame counts as late when it waited
+ * more than one and a half vsync periods to be shown, i.e. it missed the first vsync after it
+ * arrived. With {@link #setMarkerReading} on, frames carrying a {@link LatencyMarker} publish
+ * glass-to-glass latency to {@link SessionMetrics}, up to the hand-off to the view; composition
+ * adds one or two vsyncs on top. The first frame that carries a new injected touch time publishes
+ * touch-to-pixel latency, from the guest's touch sample to the hand-off of the first frame the
+ * host captured after injecting it.
+ */
+class RemoteScreenRenderer implements VideoSink {
+    private static final long PUBLISH_INTERVAL_NANOS = 1_000_000_000L;
+
+    private final VideoSink target;
+    private final Choreographer choreographer;
+    private final long lateThresholdNanos;
+    private volatile boolean markerReading;
+
+    // Guarded by this
+    private VideoFrame pending;
+    private long pendingArrivalNanos;
+    private long pendingMarker = -1;
+    private int pendingInputTime = -1;
+    private boolean callbackPosted;
+    private long framesRendered;
+    private long framesDropped;
+    private long framesLate;
+
+    // Only used on the main thread
+    private long latencySumMillis;
+    private int latencyCount;
+    private long lastPublishNanos;
+    private int lastInputTime = -1;
+    private long touchLatencySumMillis;
+    private int touchLatencyCount;
+    private long lastTouchPublishNanos;
+
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            render(frameTimeNanos);
+        }
+    };
+
+    /**
+     * Create on the main thread.
+     *
+     * @param refreshRate the display's refresh rate in Hz
+     */
+    RemoteScreenRenderer(VideoSink target, float refreshRate) {
+        this.target = target;
+        choreographer = Choreographer.getInstance();
+        lateThresholdNanos = (long) (1.5e9 / refreshRate);
+    }
+
+    void setMarkerReading(boolean markerReading) {
+        this.markerReading = markerReading;
+    }
+
+    /**
+     * Called on the decoder thread.
+     */
+    @Override
+    public void onFrame(VideoFrame frame) {
+        long marker = -1;
+        int inputTime = -1;
+        if (markerReading) {
+            int width = frame.getBuffer().getWidth();
+            VideoFrame.I420Buffer corner = readMarkerRegion(frame.getBuffer());
+            if (corner != null) {
+                // The marker's geometry follows the full frame width, not the crop's
+                marker = LatencyMarker.read(corner.getDataY(), corner.getStrideY(), width, corner.getHeight());
+                inputTime = LatencyMarker.readInputTime(corner.getDataY(), corner.getStrideY(), width,
+                    corner.getHeight());
+                corner.release();
+            }
+        }
+        frame.retain();
+        synchronized (this) {
+            if (pending != null) {
+                pending.release();
+                framesDropped++;
+            }
+            pending = frame;
+            pendingArrivalNanos = System.nanoTime();
+            pendingMarker = marker;
+            pendingInputTime = inputTime;
+            if (!callbackPosted) {
+                callbackPosted = true;
+                choreographer.postFrameCallback(frameCallback);
+            }
+        }
+    }
+
+    private void render(long frameTimeNanos) {
+        VideoFrame frame;
+        long arrivalNanos;
+        long marker;
+        int inputTime;
+        synchronized (this) {
+            callbackPosted = false;
+            frame = pending;
+            arrivalNanos = pendingArrivalNanos;
+            marker = pendingMarker;
+            inputTime = pendingInputTime;
+            pending = null;
+            if (frame == null) {
+                return;
+            }
+            framesRendered++;
+            if (frameTimeNanos - arrivalNanos > lateThresholdNanos) {
+                framesLate++;
+            }
+        }
+        target.onFrame(frame);
+        frame.release();
+        if (marker >= 0) {
+            latencySumMillis += LatencyMarker.millisSince(marker, System.currentTimeMillis());
+            latencyCount++;
+            if (frameTimeNanos - lastPublishNanos >= PUBLISH_INTERVAL_NANOS) {
+                lastPublishNanos = frameTimeNanos;
+                SessionMetrics.get().setGauge(SessionMetrics.GAUGE_GLASS_TO_GLASS_MS,
+                    (double) latencySumMillis / latencyCount);
+                latencySumMillis = 0;
+                latencyCount = 0;
+            }
+        }
+        if (inputTime >= 0 && inputTime != lastInputTime) {
+            // The first time seen may be from before this session, so it only sets the baseline
+            if (lastInputTime >= 0) {
+                touchLatencySumMillis += LatencyMarker.millisSinceInput(inputTime, SystemClock.uptimeMillis());
+                touchLatencyCount++;
+            }
+            lastInputTime = inputTime;
+        }
+        if (touchLatencyCount > 0 && frameTimeNanos - lastTouchPublishNanos >= PUBLISH_INTERVAL_NANOS) {
+            lastTouchPublishNanos = frameTimeNanos;
+            SessionMetrics.get().setGauge(SessionMetrics.GAUGE_TOUCH_TO_PIXEL_MS,
+                (double) touchLatencySumMillis / touchLatencyCount);
+            touchLatencySumMillis = 0;
+            touchLatencyCount = 0;
+        }
+    }
+
+    synchronized long getFramesRendered() {
+        return framesRendered;
+    }
+
+    synchronized long getFramesDropped() {
+        return framesDropped;
+    }
+
+    synchronized long getFramesLate() {
+        return framesLate;
+    }
+
+    /**
+     * Appends the frame counters in the same form as {@link SessionMetrics#formatSummary}.
+     */
+    synchronized void formatCounters(StringBuilder out) {
+        out.append("rendered ").append(framesRendered)
+            .append("\ndropped ").append(framesDropped)
+            .append("\nlate ").append(framesLate);
+    }
+
+    /**
+     * Drops a frame still waiting for its vsync. Call on the main thread before releasing the
+     * target.
+     */
+    void release() {
+        choreographer.removeFrameCallback(frameCallback);
+        synchronized (this) {
+            callbackPosted = false;
+            if (pending != null) {
+                pending.release();
+                pending = null;
+            }
+        }
+    }
+
+    /**
+     * Reads back only the corner the marker is in; the rest of the frame stays on the GPU.
+     * Returns null if the buffer could not be converted.
+     */
+    private static VideoFrame.I420Buffer readMarkerRegion(VideoFrame.Buffer buffer) {
+        int width = buffer.getWidth();
+        int regionWidth = Math.min(width, (LatencyMarker.regionWidth(width) + 1) & ~1);
+        int regionHeight = Math.min(buffer.getHeight(), (LatencyMarker.regionHeight(width) + 1) & ~1);
+        VideoFrame.Buffer corner = buffer.cropAndScale(0, 0, regionWidth, regionHeight,
+            regionWidth, regionHeight);
+        VideoFrame.I420Buffer i420 = corner.toI420();
+        corner.release();
+        return i420;
+    }
+}
@@ -1,131 +1,582 @@
-package com.remotecontrol.android;
-
-import android.app.Service;
-import android.content.Intent;
-import android.media.projection.MediaProjection;
-import android.media.projection.MediaProjectionManager;
-import android.os.IBinder;
-import android.util.DisplayMetrics;
-import android.view.WindowManager;
-import org.webrtc.EglBase;
-import org.webrtc.MediaConstraints;
-import org.webrtc.PeerConnectionFactory;
-import org.webrtc.ScreenCapturerAndroid;
-import org.webrtc.VideoCapturer;
-import org.webrtc.VideoSource;
-import org.webrtc.VideoTrack;
-
-public class ScreenCaptureService extends Service {
-    private MediaProjection mediaProjection;
-    private VideoCapturer videoCapturer;
-    private VideoSource videoSource;
-    private VideoTrack videoTrack;
-    private EglBase eglBase;
-    private PeerConnectionFactory peerConnectionFactory;
-    private SignalingClient signalingClient;
-
-    @Override
-    public void onCreate() {
-        super.onCreate();
-        eglBase = EglBase.create();
-        initializeWebRTC();
-    }
-
-    @Override
-    public int onStartCommand(Intent intent, int flags, int startId) {
-        if (intent != null) {
-            int resultCode = intent.getIntExtra("resultCode", -1);
-            Intent data = intent.getParcelableExtra("data");
-            if (resultCode != -1 && data != null) {
-                startScreenCapture(resultCode, data);
-            }
-        }
-        return START_STICKY;
-    }
-
-    private void initializeWebRTC() {
-        PeerConnectionFactory.InitializationOptions initializationOptions =
-            PeerConnectionFactory.InitializationOptions.builder(this)
-                .createInitializationOptions();
-        PeerConnectionFactory.initialize(initializationOptions);
-
-        PeerConnectionFactory.Options options = new PeerConnectionFactory.Options();
-        peerConnectionFactory = PeerConnectionFactory.builder()
-            .setOptions(options)
-            .createPeerConnectionFactory();
-
-        signalingClient = new SignalingClient(this);
-    }
-
-    private void startScreenCapture(int resultCode, Intent data) {
-        MediaProjectionManager projectionManager = 
-            (MediaProjectionManager) getSystemService(MEDIA_PROJECTION_SERVICE);
-        mediaProjection = projectionManager.getMediaProjection(resultCode, data);
-
-        WindowManager windowManager = (WindowManager) getSystemService(WINDOW_SERVICE);
-        DisplayMetrics metrics = new DisplayMetrics();
-        windowManager.getDefaultDisplay().getMetrics(metrics);
-
-        videoCapturer = new ScreenCapturerAndroid(data, new MediaProjection.Callback() {
-            @Override
-            public void onStop() {
-                super.onStop();
-                stopSelf();
-            }
-        });
-
-        videoSource = peerConnectionFactory.createVideoSource(videoCapturer.isScreencast());
-        videoCapturer.initialize(eglBase.getEglBaseContext(), this, videoSource.getCapturerObserver());
-
-        videoTrack = peerConnectionFactory.createVideoTrack("screen_track", videoSource);
-
-        // Start streaming
-        startStreaming();
-    }
-
-    private void startStreaming() {
-        // Configure video constraints
-        MediaConstraints constraints = new MediaConstraints();
-        constraints.mandatory.add(
-            new MediaConstraints.KeyValuePair("maxWidth", "1280"));
-        constraints.mandatory.add(
-            new MediaConstraints.KeyValuePair("maxHeight", "720"));
-        constraints.mandatory.add(
-            new MediaConstraints.KeyValuePair("maxFrameRate", "30"));
-
-        // Start the video capturer
-        videoCapturer.startCapture(1280, 720, 30);
-
-        // Connect to signaling server
-        signalingClient.connect();
-    }
-
-    @Override
-    public void onDestroy() {
-        if (videoCapturer != null) {
-            try {
-                videoCapturer.stopCapture();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-        if (videoSource != null) {
-            videoSource.dispose();
-        }
-        if (videoTrack != null) {
-            videoTrack.dispose();
-        }
-        if (mediaProjection != null) {
-            mediaProjection.stop();
-        }
-        if (eglBase != null) {
-            eglBase.release();
-        }
-        super.onDestroy();
-    }
-
-    @Override
-    public IBinder onBind(Intent intent) {
-        return null;
-    }
+package com.remotecontrol.android;
+
+import android.app.Service;
+import android.content.ClipData;
+import android.content.ClipboardManager;
+import android.content.Intent;
+import android.hardware.display.DisplayManager;
+import android.media.projection.MediaProjection;
+import android.media.projection.MediaProjectionManager;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.view.Display;
+import org.webrtc.CapturerObserver;
+import org.webrtc.EglBase;
+import org.webrtc.IceCandidate;
+import org.webrtc.PeerConnectionFactory;
+import org.webrtc.ScreenCapturerAndroid;
+import org.webrtc.SessionDescription;
+import org.webrtc.VideoCapturer;
+import org.webrtc.VideoSource;
+import org.webrtc.VideoTrack;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class ScreenCaptureService extends Service {
+    private static final String TAG = "ScreenCaptureService";
+    private static final int MAX_VIEWERS = 8;
+    // Key for a guest that predates peer ids; only one of those can be told apart
+    private static final String LEGACY_PEER_ID = "legacy";
+    // Thermal state changes over tens of seconds; polling is two binder calls
+    private static final long GOVERNOR_POLL_INTERVAL_MS = 10_000;
+
+    private MediaProjection mediaProjection;
+    private VideoCapturer videoCapturer;
+    private VideoSource videoSource;
+    private VideoTrack videoTrack;
+    private EglBase eglBase;
+    private WebRtcEngine webRtcEngine;
+    private PeerConnectionFactory peerConnectionFactory;
+    private SignalingClient signalingClient;
+    private InputTransport.Receiver signalingInputReceiver;
+    // LAN mode: our room served on this network too, see LanDiscovery. Guarded by lanLock, as
+    // they are filled in on the thread that binds the sockets.
+    private final Object lanLock = new Object();
+    private LocalSignalingServer lanServer;
+    private LanDiscovery.Announcer lanAnnouncer;
+    private SignalingClient lanSignalingClient;
+    private WifiManager.MulticastLock multicastLock;
+    private String accessCode;
+    private TouchInputReceiver touchInputReceiver;
+    private DisplayTouchMapper displayTouchMapper;
+    private DisplayManager displayManager;
+    private ControlToken controlToken;
+    private CaptureFormatArbiter captureFormat;
+    private LatencyMarkerObserver latencyMarker;
+    private CaptureGovernor captureGovernor;
+    private final Map<String, ViewerSession> viewers = new LinkedHashMap<>();
+    // Guarded by viewers. Joining viewers' sessions are still being built; they count against
+    // the limit already.
+    private final Set<String> joiningViewers = new HashSet<>();
+    private boolean destroyed;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private long startCpuTimeMs;
+
+    private final Runnable governorPoll = new Runnable() {
+        @Override
+        public void run() {
+            if (captureGovernor.poll(SystemClock.elapsedRealtime())) {
+                CaptureGovernor.Cap cap = captureGovernor.current();
+                Log.i(TAG, "Capture governor: " + captureGovernor.describe());
+                captureFormat.setCap(cap.width, cap.height, cap.framerate);
+            }
+            mainHandler.postDelayed(this, GOVERNOR_POLL_INTERVAL_MS);
+        }
+    };
+
+    private final DisplayManager.DisplayListener displayListener = new DisplayManager.DisplayListener() {
+        @Override
+        public void onDisplayAdded(int displayId) {
+        }
+
+        @Override
+        public void onDisplayRemoved(int displayId) {
+        }
+
+        @Override
+        public void onDisplayChanged(int displayId) {
+            if (displayId == Display.DEFAULT_DISPLAY) {
+                updateDisplayGeometry();
+            }
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        initializeWebRTC();
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null) {
+            accessCode = intent.getStringExtra("accessCode");
+            int resultCode = intent.getIntExtra("resultCode", -1);
+            Intent data = intent.getParcelableExtra("data");
+            if (resultCode != -1 && data != null) {
+                startScreenCapture(resultCode, data);
+            }
+        }
+        return START_STICKY;
+    }
+
+    private void initializeWebRTC() {
+        webRtcEngine = WebRtcEngine.acquire(this);
+        peerConnectionFactory = webRtcEngine.getFactory();
+        eglBase = webRtcEngine.getEglBase();
+
+        signalingClient = new SignalingClient(getString(R.string.signaling_server_url));
+        signalingClient.setListener(createSignalingListener(signalingClient, null));
+
+        StrokePlanner strokePlanner = new StrokePlanner(new StrokePlanner.Output() {
+            @Override
+            public void onSegment(StrokePlanner.Segment segment) {
+                GestureInjectionService injector = GestureInjectionService.get();
+                if (injector != null) {
+                    injector.inject(segment);
+                }
+            }
+        });
+        displayTouchMapper = new DisplayTouchMapper(strokePlanner);
+        touchInputReceiver = new TouchInputReceiver(displayTouchMapper);
+        if (!GestureInjectionService.isSupported()) {
+            Log.w(TAG, "Gesture injection needs Android 8.0, guest input will be ignored");
+        }
+        controlToken = new ControlToken(new ControlToken.Listener() {
+            @Override
+            public void onHolderChanged(String holder) {
+                Log.d(TAG, "Control token holder: " + holder);
+                // A gesture the previous holder left half-done must not carry over
+                touchInputReceiver.cancelActivePointers();
+            }
+        });
+
+        // Input relayed over signaling carries no sender, and anyone in the relay room can send it
+        signalingInputReceiver = new InputTransport.Receiver() {
+            @Override
+            public void onTouchMessage(ByteBuffer message) {
+                if (isSoleViewerInControl()) {
+                    touchInputReceiver.onTouchMessage(message);
+                }
+            }
+        };
+        new SignalingInputTransport(signalingClient).setReceiver(signalingInputReceiver);
+    }
+
+    /**
+     * Viewers answer through the client their join came from, the relay or the LAN endpoint.
+     *
+     * @param room what a join must name on the LAN endpoint, its session nonce; null on the relay,
+     *             where it is the access code, if there is one
+     */
+    private SignalingClient.Listener createSignalingListener(final SignalingClient client,
+                                                             final String room) {
+        return new SignalingClient.Listener() {
+            @Override
+            public void onConnectionRequest(String hostCode, String peerId) {
+                String expected = room != null ? room : accessCode;
+                if (expected == null || expected.equals(hostCode)) {
+                    addViewer(peerId != null ? peerId : LEGACY_PEER_ID, client);
+                }
+            }
+
+            @Override
+            public void onSessionDescription(SessionDescription description, String peerId) {
+                ViewerSession session = getViewer(peerId);
+                if (session != null) {
+                    session.getNegotiator().onRemoteDescription(description);
+                }
+            }
+
+            @Override
+            public void onIceCandidates(List<IceCandidate> candidates, boolean complete, String peerId) {
+                ViewerSession session = getViewer(peerId);
+                if (session != null) {
+                    session.getNegotiator().onRemoteCandidates(candidates, complete);
+                }
+            }
+
+            @Override
+            public void onQualityLevel(int level, String peerId) {
+                // Only guests send this to the host: a hint from their connection profile
+                ViewerSession session = getViewer(peerId);
+                if (session != null) {
+                    Log.d(TAG, "Viewer " + peerId + " resumes at level " + level);
+                    session.seedQualityLevel(level);
+                }
+            }
+        };
+    }
+
+    private void addViewer(final String peerId, SignalingClient client) {
+        synchronized (viewers) {
+            if (destroyed || videoTrack == null || viewers.containsKey(peerId)
+                    || joiningViewers.contains(peerId)) {
+                return;
+            }
+            if (viewers.size() + joiningViewers.size() >= MAX_VIEWERS) {
+                Log.w(TAG, "Viewer limit reached, ignoring " + peerId);
+                return;
+            }
+            joiningViewers.add(peerId);
+        }
+        // Every viewer gets its own connection and encoder fed from the one screen track. Built
+        // outside the lock: it takes a while and the other signaling client may be waiting.
+        ViewerSession session = new ViewerSession(peerId, LEGACY_PEER_ID.equals(peerId) ? null : peerId,
+            peerConnectionFactory, client, videoTrack, captureFormat,
+            controlToken, touchInputReceiver, DataChannelTransferLink.getDirectory(this),
+            createTransferListener(peerId), new ViewerSession.Listener() {
+                @Override
+                public void onDisconnected(final String peerId) {
+                    // Not from the observer callback: disposing there deadlocks WebRTC
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            removeViewer(peerId);
+                        }
+                    });
+                }
+            });
+        // The answer comes back through this same client's thread, so it cannot overtake the put
+        session.start();
+        boolean added;
+        synchronized (viewers) {
+            joiningViewers.remove(peerId);
+            added = !destroyed;
+            if (added) {
+                viewers.put(peerId, session);
+            }
+        }
+        if (!added) {
+            session.close();
+            return;
+        }
+        controlToken.addViewer(peerId);
+        Log.d(TAG, "Viewer " + peerId + " joined, " + controlToken.getViewerCount() + " watching");
+    }
+
+    private TransferEngine.Listener createTransferListener(final String peerId) {
+        return new TransferEngine.Listener() {
+            @Override
+            public void onSent(long id) {
+                Log.d(TAG, "Transfer " + Long.toHexString(id) + " to " + peerId + " sent");
+            }
+
+            @Override
+            public void onFileReceived(File file) {
+                Log.d(TAG, "Received " + file + " from " + peerId);
+            }
+
+            @Override
+            public void onTextReceived(final String text) {
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Only the guest in control may change what the host pastes
+                        if (!controlToken.isHolder(peerId)) {
+                            Log.d(TAG, "Ignoring clipboard from " + peerId + ", not in control");
+                            return;
+                        }
+                        ClipboardManager clipboard = (ClipboardManager) getSystemService(CLIPBOARD_SERVICE);
+                        clipboard.setPrimaryClip(ClipData.newPlainText("remote", text));
+                    }
+                });
+            }
+
+            @Override
+            public void onFailed(long id, String reason) {
+                Log.w(TAG, "Transfer " + Long.toHexString(id) + " with " + peerId + " failed: " + reason);
+            }
+        };
+    }
+
+    /**
+     * Whether exactly one viewer is connected, none is still joining, and that one holds the
+     * token, so input without a sender can only be theirs. With no viewer nobody holds it.
+     */
+    private boolean isSoleViewerInControl() {
+        String sole;
+        synchronized (viewers) {
+            if (viewers.size() != 1 || !joiningViewers.isEmpty()) {
+                return false;
+            }
+            sole = viewers.keySet().iterator().next();
+        }
+        return controlToken.isHolder(sole);
+    }
+
+    private List<ViewerSession> getViewers() {
+        synchronized (viewers) {
+            return new ArrayList<>(viewers.values());
+        }
+    }
+
+    private ViewerSession getViewer(String peerId) {
+        synchronized (viewers) {
+            return viewers.get(peerId != null ? peerId : LEGACY_PEER_ID);
+        }
+    }
+
+    private void removeViewer(String peerId) {
+        ViewerSession session;
+        synchronized (viewers) {
+            session = viewers.remove(peerId);
+        }
+        if (session != null) {
+            controlToken.removeViewer(peerId);
+            session.close();
+            Log.d(TAG, "Viewer " + peerId + " left, " + controlToken.getViewerCount() + " watching");
+        }
+    }
+
+    private void startScreenCapture(int resultCode, Intent data) {
+        SessionMetrics.get().startSession();
+        MediaProjectionManager projectionManager = 
+            (MediaProjectionManager) getSystemService(MEDIA_PROJECTION_SERVICE);
+        mediaProjection = projectionManager.getMediaProjection(resultCode, data);
+
+        // Guest touches are mapped onto the physical display; follow rotation and size changes
+        displayManager = (DisplayManager) getSystemService(DISPLAY_SERVICE);
+        displayManager.registerDisplayListener(displayListener, mainHandler);
+        updateDisplayGeometry();
+
+        videoCapturer = new ScreenCapturerAndroid(data, new MediaProjection.Callback() {
+            @Override
+            public void onStop() {
+                super.onStop();
+                stopSelf();
+            }
+        });
+
+        videoSource = peerConnectionFactory.createVideoSource(videoCapturer.isScreencast());
+        // Still screens are held back before the encoder; see IdleCaptureObserver. The latency
+        // marker comes after it, so it does not make every frame look changed.
+        latencyMarker = new LatencyMarkerObserver(videoSource.getCapturerObserver());
+        CapturerObserver capturerObserver = new IdleCaptureObserver(latencyMarker,
+            new IdleCaptureObserver.Listener() {
+                @Override
+                public void onResumeFromIdle() {
+                    CodecSelector selector = webRtcEngine.getCodecSelector();
+                    selector.requestKeyFrame();
+                    if (!selector.isKeyFrameRequestServed()) {
+                        for (ViewerSession session : getViewers()) {
+                            session.requestKeyFrame();
+                        }
+                    }
+                }
+            });
+        videoCapturer.initialize(eglBase.getEglBaseContext(), this, capturerObserver);
+
+        videoTrack = peerConnectionFactory.createVideoTrack("screen_track", videoSource);
+
+        // Start streaming
+        startStreaming();
+    }
+
+    private void updateDisplayGeometry() {
+        Display display = displayManager.getDisplay(Display.DEFAULT_DISPLAY);
+        if (display == null) {
+            return;
+        }
+        DisplayMetrics metrics = new DisplayMetrics();
+        display.getRealMetrics(metrics);
+        displayTouchMapper.setDisplay(metrics.widthPixels, metrics.heightPixels, display.getRotation());
+    }
+
+    private void startStreaming() {
+        // Start at the top of the quality ladder; each viewer's controller steps down once stats arrive
+        StreamQualityPolicy.OperatingPoint initial = StreamQualityPolicy.LADDER[0];
+        videoCapturer.startCapture(initial.captureWidth, initial.captureHeight, initial.maxFramerate);
+        captureFormat = new CaptureFormatArbiter(videoCapturer,
+            initial.captureWidth, initial.captureHeight, initial.maxFramerate,
+            new CaptureFormatArbiter.Client() {
+                @Override
+                public void onCaptureFormatChanged() {
+                    displayTouchMapper.setFrameSize(captureFormat.getWidth(), captureFormat.getHeight());
+                }
+            });
+        displayTouchMapper.setFrameSize(initial.captureWidth, initial.captureHeight);
+        DeviceConditionSensors sensors = new DeviceConditionSensors(this);
+        captureGovernor = new CaptureGovernor(sensors, sensors);
+        mainHandler.post(governorPoll);
+        startCpuTimeMs = Process.getElapsedCpuTime();
+
+        // Connect to signaling server and join the room for our access code
+        signalingClient.connect();
+        if (accessCode != null) {
+            signalingClient.sendConnectionRequest(accessCode);
+            startLanSignaling();
+        }
+    }
+
+    /**
+     * Serves our room on this network as well and announces it, so guests on the same Wi-Fi find
+     * us without the relay. Guests elsewhere still come through the relay. Binding blocks, so it
+     * runs on a thread of its own.
+     */
+    private void startLanSignaling() {
+        WifiManager wifi = (WifiManager) getApplicationContext().getSystemService(WIFI_SERVICE);
+        synchronized (lanLock) {
+            // Without it many Wi-Fi drivers drop the guests' queries
+            multicastLock = wifi.createMulticastLock(TAG);
+            multicastLock.setReferenceCounted(false);
+            multicastLock.acquire();
+        }
+        final String code = accessCode;
+        Thread start = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                openLanSignaling(code);
+            }
+        }, "LanSignalingStart");
+        start.start();
+    }
+
+    private void openLanSignaling(String code) {
+        LocalSignalingServer server;
+        LanDiscovery.Announcer announcer;
+        try {
+            server = new LocalSignalingServer(LocalSignalingServer.Impairment.NONE,
+                InetAddress.getByName("0.0.0.0"), code);
+            server.start();
+        } catch (IOException e) {
+            Log.w(TAG, "LAN mode unavailable: " + e.getMessage());
+            stopLanSignaling();
+            return;
+        }
+        try {
+            announcer = new LanDiscovery.Announcer(server.getSessionNonce(), server.getPort(), null);
+            announcer.start();
+        } catch (IOException e) {
+            Log.w(TAG, "LAN mode unavailable: " + e.getMessage());
+            server.stop();
+            stopLanSignaling();
+            return;
+        }
+        synchronized (lanLock) {
+            if (multicastLock == null) {
+                // Stopped while we were binding
+                announcer.stop();
+                server.stop();
+                return;
+            }
+            lanServer = server;
+            lanAnnouncer = announcer;
+            lanSignalingClient = new SignalingClient(server.getUrl());
+            lanSignalingClient.setListener(createSignalingListener(lanSignalingClient, server.getSessionNonce()));
+            new SignalingInputTransport(lanSignalingClient).setReceiver(signalingInputReceiver);
+            // Our own client proves the code like any guest; it never leaves this device
+            lanSignalingClient.setLanEndpoint(server.getUrl(), code, server.getSessionNonce());
+            lanSignalingClient.connect();
+            lanSignalingClient.sendConnectionRequest(code);
+        }
+        Log.d(TAG, "LAN signaling on port " + server.getPort());
+    }
+
+    private void stopLanSignaling() {
+        synchronized (lanLock) {
+            if (lanSignalingClient != null) {
+                lanSignalingClient.close();
+                lanSignalingClient = null;
+            }
+            if (lanAnnouncer != null) {
+                lanAnnouncer.stop();
+                lanAnnouncer = null;
+            }
+            if (lanServer != null) {
+                lanServer.stop();
+                lanServer = null;
+            }
+            if (multicastLock != null) {
+                multicastLock.release();
+                multicastLock = null;
+            }
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        signalingClient.close();
+        stopLanSignaling();
+        mainHandler.removeCallbacksAndMessages(null);
+        if (displayManager != null) {
+            displayManager.unregisterDisplayListener(displayListener);
+        }
+        List<ViewerSession> sessions;
+        synchronized (viewers) {
+            destroyed = true;
+            sessions = new ArrayList<>(viewers.values());
+            viewers.clear();
+        }
+        for (ViewerSession session : sessions) {
+            session.close();
+        }
+        if (videoCapturer != null) {
+            try {
+                videoCapturer.stopCapture();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        if (videoSource != null) {
+            videoSource.dispose();
+        }
+        if (videoTrack != null) {
+            videoTrack.dispose();
+        }
+        if (mediaProjection != null) {
+            mediaProjection.stop();
+        }
+        // The factory and EGL context belong to the shared engine
+        WebRtcEngine.release();
+        super.onDestroy();
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        // dumpsys activity service .ScreenCaptureService latency-marker on|off
+        if (args != null && args.length == 2 && "latency-marker".equals(args[0]) && latencyMarker != null) {
+            latencyMarker.setEnabled("on".equals(args[1]));
+        }
+        if (latencyMarker != null) {
+            writer.println("Latency marker: " + (latencyMarker.isEnabled() ? "on" : "off"));
+        }
+        synchronized (viewers) {
+            writer.println("Viewers: " + viewers.keySet() + ", control: " + controlToken.getHolder());
+        }
+        if (signalingClient != null) {
+            writer.println("Signaling dispatch: " + signalingClient.describeDispatch());
+        }
+        synchronized (lanLock) {
+            if (lanServer != null) {
+                writer.println("LAN signaling: port " + lanServer.getPort() + ", "
+                    + lanAnnouncer.getAnswered() + " queries answered");
+                writer.println("LAN signaling dispatch: " + lanSignalingClient.describeDispatch());
+            }
+        }
+        GestureInjectionService injector = GestureInjectionService.get();
+        if (injector != null) {
+            injector.dump(writer);
+        } else {
+            writer.println("Gesture injection service not enabled");
+        }
+        if (captureFormat != null) {
+            // Process CPU time since capture start; compare across viewer counts for the same period
+            writer.println("Capture: " + captureFormat.getWidth() + "x" + captureFormat.getHeight()
+                + ", process CPU " + (Process.getElapsedCpuTime() - startCpuTimeMs) + " ms");
+            writer.println("Capture governor: " + captureGovernor.describe());
+        }
+        SessionMetrics.get().dump(writer);
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
 } 
\ No newline at end of file
@@ -1,197 +1,683 @@
-package com.remotecontrol.android;
-
-import android.content.Context;
-import android.util.Log;
-import com.google.gson.Gson;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
-import okhttp3.WebSocket;
-import okhttp3.WebSocketListener;
-import org.webrtc.IceCandidate;
-import org.webrtc.PeerConnection;
-import org.webrtc.SessionDescription;
-import java.util.concurrent.TimeUnit;
-
-public class SignalingClient {
-    private static final String TAG = "SignalingClient";
-    private static final String SIGNALING_SERVER_URL = "wss://remotepanel.liara.run/";
-    private static final int MAX_RECONNECT_ATTEMPTS = 5;
-    private static final int RECONNECT_DELAY_MS = 3000;
-
-    private final Context context;
-    private final OkHttpClient client;
-    private final Gson gson;
-    private WebSocket webSocket;
-    private int reconnectAttempts = 0;
-    private boolean isConnected = false;
-
-    public SignalingClient(Context context) {
-        this.context = context;
-        this.client = new OkHttpClient.Builder()
-            .readTimeout(30, TimeUnit.SECONDS)
-            .connectTimeout(30, TimeUnit.SECONDS)
-            .build();
-        this.gson = new Gson();
-    }
-
-    public void connect() {
-        Request request = new Request.Builder()
-            .url(SIGNALING_SERVER_URL)
-            .build();
-
-        webSocket = client.newWebSocket(request, new WebSocketListener() {
-            @Override
-            public void onOpen(WebSocket webSocket, Response response) {
-                Log.d(TAG, "WebSocket connection opened");
-                isConnected = true;
-                reconnectAttempts = 0;
-            }
-
-            @Override
-            public void onMessage(WebSocket webSocket, String text) {
-                handleSignalingMessage(text);
-            }
-
-            @Override
-            public void onClosing(WebSocket webSocket, int code, String reason) {
-                Log.d(TAG, "WebSocket closing: " + reason);
-                webSocket.close(1000, null);
-            }
-
-            @Override
-            public void onFailure(WebSocket webSocket, Throwable t, Response response) {
-                Log.e(TAG, "WebSocket failure: " + t.getMessage());
-                isConnected = false;
-                attemptReconnect();
-            }
-        });
-    }
-
-    private void attemptReconnect() {
-        if (reconnectAttempts < MAX_RECONNECT_ATTEMPTS) {
-            reconnectAttempts++;
-            Log.d(TAG, "Attempting to reconnect... Attempt " + reconnectAttempts);
-            client.newCall(new Request.Builder()
-                .url(SIGNALING_SERVER_URL)
-                .build())
-                .enqueue(new okhttp3.Callback() {
-                    @Override
-                    public void onFailure(okhttp3.Call call, java.io.IOException e) {
-                        Log.e(TAG, "Reconnect failed: " + e.getMessage());
-                    }
-
-                    @Override
-                    public void onResponse(okhttp3.Call call, Response response) {
-                        if (response.isSuccessful()) {
-                            connect();
-                        }
-                    }
-                });
-        }
-    }
-
-    public void sendConnectionRequest(String hostCode) {
-        if (isConnected) {
-            SignalingMessage message = new SignalingMessage(
-                SignalingMessage.Type.CONNECTION_REQUEST,
-                hostCode
-            );
-            sendMessage(message);
-        }
-    }
-
-    public void sendIceCandidate(IceCandidate candidate) {
-        if (isConnected) {
-            SignalingMessage message = new SignalingMessage(
-                SignalingMessage.Type.ICE_CANDIDATE,
-                gson.toJson(candidate)
-            );
-            sendMessage(message);
-        }
-    }
-
-    public void sendSessionDescription(SessionDescription description) {
-        if (isConnected) {
-            SignalingMessage message = new SignalingMessage(
-                SignalingMessage.Type.SESSION_DESCRIPTION,
-                gson.toJson(description)
-            );
-            sendMessage(message);
-        }
-    }
-
-    public void sendTouchEvent(RemoteControlService.TouchEvent event) {
-        if (isConnected) {
-            SignalingMessage message = new SignalingMessage(
-                SignalingMessage.Type.TOUCH_EVENT,
-                gson.toJson(event)
-            );
-            sendMessage(message);
-        }
-    }
-
-    private void sendMessage(SignalingMessage message) {
-        if (webSocket != null) {
-            webSocket.send(gson.toJson(message));
-        }
-    }
-
-    private void handleSignalingMessage(String message) {
-        try {
-            SignalingMessage signalingMessage = gson.fromJson(message, SignalingMessage.class);
-            switch (signalingMessage.getType()) {
-                case CONNECTION_REQUEST:
-                    handleConnectionRequest(signalingMessage.getData());
-                    break;
-                case ICE_CANDIDATE:
-                    handleIceCandidate(signalingMessage.getData());
-                    break;
-                case SESSION_DESCRIPTION:
-                    handleSessionDescription(signalingMessage.getData());
-                    break;
-                case TOUCH_EVENT:
-                    handleTouchEvent(signalingMessage.getData());
-                    break;
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error handling signaling message: " + e.getMessage());
-        }
-    }
-
-    private void handleConnectionRequest(String data) {
-        // Handle connection request from guest
-    }
-
-    private void handleIceCandidate(String data) {
-        // Handle ICE candidate from peer
-    }
-
-    private void handleSessionDescription(String data) {
-        // Handle session description from peer
-    }
-
-    private void handleTouchEvent(String data) {
-        // Handle touch event from guest
-    }
-
-    private static class SignalingMessage {
-        public enum Type {
-            CONNECTION_REQUEST,
-            ICE_CANDIDATE,
-            SESSION_DESCRIPTION,
-            TOUCH_EVENT
-        }
-
-        private final Type type;
-        private final String data;
-
-        public SignalingMessage(Type type, String data) {
-            this.type = type;
-            this.data = data;
-        }
-
-        public Type getType() { return type; }
-        public String getData() { return data; }
-    }
+package com.remotecontrol.android;
+
+import android.util.Log;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okio.ByteString;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+public class SignalingClient {
+    private static final String TAG = "SignalingClient";
+    static final String DEFAULT_SERVER_URL = "wss://remotepanel.liara.run/";
+    private static final int RECONNECT_DELAY_MS = 500;
+    private static final int MAX_RECONNECT_DELAY_MS = 15000;
+    private static final int MAX_QUEUED_CRITICAL = 256;
+    private static final int MAX_QUEUED_INPUT = 32;
+    private static final long MAX_QUEUED_INPUT_AGE_MS = 250;
+
+    enum State {
+        IDLE,
+        CONNECTING,
+        OPEN,
+        WAITING_TO_RECONNECT,
+        CLOSED
+    }
+
+    private final String peerId = UUID.randomUUID().toString().substring(0, 8);
+    private final OkHttpClient client;
+    private final ByteBuffer touchBuffer = ByteBuffer.allocate(
+        TouchEventCodec.HEADER_BYTES + TouchEventCodec.MAX_EVENT_BYTES);
+    private final TouchEventCodec.Writer touchWriter = new TouchEventCodec.Writer();
+    private final ReconnectPolicy reconnectPolicy = new ReconnectPolicy(
+        RECONNECT_DELAY_MS, MAX_RECONNECT_DELAY_MS, ReconnectPolicy.UNLIMITED_ATTEMPTS, new Random());
+    private final OutboundQueue<Object> outboundQueue = new OutboundQueue<>(
+        MAX_QUEUED_CRITICAL, MAX_QUEUED_INPUT, TimeUnit.MILLISECONDS.toNanos(MAX_QUEUED_INPUT_AGE_MS));
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    // Owns the connection state below; socket callbacks and callers post to it
+    private final SignalingMailbox mailbox = new SignalingMailbox("Signaling");
+    // Peers whose descriptions said they read compressed ones
+    private final Set<String> compressingPeers =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final OutboundQueue.Sender<Object> frameSender = new OutboundQueue.Sender<Object>() {
+        @Override
+        public boolean send(Object frame) {
+            return sendFrame(frame);
+        }
+    };
+
+    // Mailbox thread only, as is outboundQueue
+    private String serverUrl;
+    // Set while pointed at a host's LAN endpoint; relayUrl is where a failed host sends us back
+    private String lanCode;
+    private String lanNonce;
+    private String relayUrl;
+    private State state = State.IDLE;
+    private WebSocket webSocket;
+    private int reconnectAttempts = 0;
+    private ScheduledFuture<?> pendingReconnect;
+    private String joinCode;
+    private long disconnectedAtNanos;
+    private long legacyTouchEvents;
+
+    // Written on the mailbox thread, for readers anywhere
+    private volatile State publishedState = State.IDLE;
+    private volatile long lastReconnectNanos = -1;
+
+    private final SignalingCodec.Handler messageHandler = new SignalingCodec.Handler() {
+        @Override
+        public boolean accepts(String from, String to) {
+            return !peerId.equals(from) && (to == null || to.equals(peerId));
+        }
+
+        @Override
+        public void onConnectionRequest(String hostCode, String from) {
+            handleConnectionRequest(hostCode, from);
+        }
+
+        @Override
+        public void onIceCandidate(SignalingCodec.Candidate candidate, String from) {
+            handleIceCandidates(Collections.singletonList(fromWire(candidate)), false, from);
+        }
+
+        @Override
+        public void onIceCandidates(List<SignalingCodec.Candidate> candidates, boolean complete, String from) {
+            List<IceCandidate> converted = new ArrayList<>(candidates.size());
+            for (SignalingCodec.Candidate candidate : candidates) {
+                converted.add(fromWire(candidate));
+            }
+            handleIceCandidates(converted, complete, from);
+        }
+
+        @Override
+        public void onSessionDescription(SignalingCodec.Description description, String from) {
+            if (description.acceptsCompressed && from != null) {
+                compressingPeers.add(from);
+            }
+            SessionDescription converted = new SessionDescription(
+                SessionDescription.Type.fromCanonicalForm(description.type), description.sdp);
+            markDescriptionPhase(converted);
+            handleSessionDescription(converted, from);
+        }
+
+        @Override
+        public void onTouchEvent(TouchEvent event, String from) {
+            handleTouchEvent(event);
+        }
+
+        @Override
+        public void onQualityLevel(int level, String from) {
+            handleQualityLevel(level, from);
+        }
+    };
+
+    private volatile boolean isConnected = false;
+    private volatile Listener listener;
+    private volatile InputTransport.Receiver inputReceiver;
+
+    /**
+     * Callbacks arrive on the signaling thread, one at a time and in the order the messages
+     * arrived, so the PeerConnection calls they make reach WebRTC's own signaling thread in that
+     * order too. {@code peerId} is the sender's id, or null from peers without addressing.
+     */
+    public interface Listener {
+        void onConnectionRequest(String hostCode, String peerId);
+
+        void onSessionDescription(SessionDescription description, String peerId);
+
+        /**
+         * @param complete the peer has finished gathering; no more candidates will follow
+         */
+        void onIceCandidates(List<IceCandidate> candidates, boolean complete, String peerId);
+
+        /**
+         * A guest's hint where to start its stream, or the host reporting where it is now.
+         */
+        void onQualityLevel(int level, String peerId);
+    }
+
+    public SignalingClient() {
+        this(DEFAULT_SERVER_URL);
+    }
+
+    /**
+     * @param serverUrl WebSocket URL of the relay, e.g. a {@link LocalSignalingServer} in tests
+     */
+    public SignalingClient(String serverUrl) {
+        this.serverUrl = serverUrl;
+        this.client = new OkHttpClient.Builder()
+            .readTimeout(30, TimeUnit.SECONDS)
+            .connectTimeout(30, TimeUnit.SECONDS)
+            .build();
+        mailbox.start();
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    void setInputReceiver(InputTransport.Receiver inputReceiver) {
+        this.inputReceiver = inputReceiver;
+    }
+
+    public boolean isConnected() {
+        return isConnected;
+    }
+
+    /**
+     * Points the next {@link #connect()} at another server; a host found on the LAN goes through
+     * {@link #setLanEndpoint} instead. Ignored unless called before connecting or after
+     * {@link #disconnect()}.
+     */
+    public void setServerUrl(final String url) {
+        mailbox.post(new Runnable() {
+            @Override
+            public void run() {
+                if (state != State.IDLE && state != State.CLOSED) {
+                    Log.w(TAG, "Ignoring " + url + ", still using " + serverUrl);
+                    return;
+                }
+                serverUrl = url;
+                lanCode = null;
+                lanNonce = null;
+            }
+        });
+    }
+
+    /**
+     * Points the next {@link #connect()} at a host's LAN endpoint, found and checked by
+     * {@code LanDiscovery}. Every socket runs a fresh {@code Spake2} exchange keyed by the access
+     * code, and the join names the host's session nonce instead of the code. A host that refuses
+     * the exchange or fails to confirm it sends the client back to the server it had before.
+     * Ignored in the same states as {@link #setServerUrl}.
+     */
+    public void setLanEndpoint(final String url, final String hostCode, final String hostNonce) {
+        mailbox.post(new Runnable() {
+            @Override
+            public void run() {
+                if (state != State.IDLE && state != State.CLOSED) {
+                    Log.w(TAG, "Ignoring " + url + ", still using " + serverUrl);
+                    return;
+                }
+                relayUrl = serverUrl;
+                serverUrl = url;
+                lanCode = hostCode;
+                lanNonce = hostNonce;
+            }
+        });
+    }
+
+    /**
+     * Random id this client puts in the {@code from} field of everything it sends.
+     */
+    String getPeerId() {
+        return peerId;
+    }
+
+    /**
+     * Single thread for timed signaling work such as reconnects and candidate batching.
+     */
+    ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    State getState() {
+        return publishedState;
+    }
+
+    /**
+     * Time from losing the socket to the next successful open, or -1 if there was no reconnect.
+     */
+    long getLastReconnectMillis() {
+        long nanos = lastReconnectNanos;
+        return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * Queue depth and dispatch wait of the signaling thread, for dumps.
+     */
+    String describeDispatch() {
+        return mailbox.describe();
+    }
+
+    public void connect() {
+        mailbox.post(new Runnable() {
+            @Override
+            public void run() {
+                if (state == State.IDLE || state == State.CLOSED) {
+                    reconnectAttempts = 0;
+                    openSocket();
+                }
+            }
+        });
+    }
+
+    /**
+     * Closes the socket for good: no reconnects, queued messages are discarded. Anything sent
+     * before this call is still handed to the socket first.
+     */
+    public void disconnect() {
+        mailbox.post(new Runnable() {
+            @Override
+            public void run() {
+                setState(State.CLOSED);
+                isConnected = false;
+                joinCode = null;
+                if (pendingReconnect != null) {
+                    pendingReconnect.cancel(false);
+                    pendingReconnect = null;
+                }
+                if (webSocket != null) {
+                    webSocket.close(1000, null);
+                    webSocket = null;
+                }
+                outboundQueue.clear();
+            }
+        });
+    }
+
+    /**
+     * {@link #disconnect()}, then stops the signaling thread and the timers once the socket is
+     * closed, so nothing of this client outlives it. It cannot be connected again.
+     */
+    public void close() {
+        disconnect();
+        mailbox.post(new Runnable() {
+            @Override
+            public void run() {
+                // Pending reconnects and candidate batches; later posts are never run
+                scheduler.shutdownNow();
+                client.dispatcher().executorService().shutdown();
+                client.connectionPool().evictAll();
+                mailbox.stop();
+            }
+        });
+    }
+
+    private void setState(State next) {
+        state = next;
+        publishedState = next;
+    }
+
+    /**
+     * OkHttp calls back on its reader thread; everything is handed to the mailbox, parsing
+     * included, so a slow handler never holds up the socket.
+     */
+    private void openSocket() {
+        setState(State.CONNECTING);
+        Request.Builder request = new Request.Builder()
+            .url(serverUrl);
+        final Spake2 pake = lanCode != null ? new Spake2(Spake2.GUEST, lanCode, lanNonce) : null;
+        if (pake != null) {
+            request.header(LanDiscovery.HEADER_PAKE, pake.getMessage());
+        }
+        webSocket = client.newWebSocket(request.build(), new WebSocketListener() {
+            @Override
+            public void onOpen(final WebSocket webSocket, Response response) {
+                final String hostMessage = response.header(LanDiscovery.HEADER_PAKE);
+                final String hostConfirmation = response.header(LanDiscovery.HEADER_CONFIRM);
+                mailbox.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Log.d(TAG, "WebSocket connection opened");
+                        onSocketOpen(webSocket, pake, hostMessage, hostConfirmation);
+                    }
+                });
+            }
+
+            @Override
+            public void onMessage(WebSocket webSocket, final String text) {
+                mailbox.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleSignalingMessage(text);
+                    }
+                });
+            }
+
+            @Override
+            public void onMessage(WebSocket webSocket, final ByteString bytes) {
+                mailbox.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleBinaryMessage(bytes);
+                    }
+                });
+            }
+
+            @Override
+            public void onClosing(WebSocket webSocket, int code, String reason) {
+                Log.d(TAG, "WebSocket closing: " + reason);
+                webSocket.close(1000, null);
+            }
+
+            @Override
+            public void onClosed(final WebSocket webSocket, int code, String reason) {
+                mailbox.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onSocketLost(webSocket);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(final WebSocket webSocket, Throwable t, Response response) {
+                Log.e(TAG, "WebSocket failure: " + t.getMessage());
+                // A LAN endpoint that turns down the exchange is not our host, or no longer takes guests
+                final boolean refused = pake != null && response != null && response.code() == 403;
+                mailbox.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (refused && webSocket == SignalingClient.this.webSocket) {
+                            leaveLan("refused the exchange");
+                        }
+                        onSocketLost(webSocket);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @param pake             this socket's exchange, null off the LAN
+     * @param hostMessage      the host's element in it
+     * @param hostConfirmation the host's key confirmation
+     */
+    private void onSocketOpen(WebSocket socket, Spake2 pake, String hostMessage, String hostConfirmation) {
+        if (socket != webSocket || state != State.CONNECTING) {
+            return;
+        }
+        if (pake != null) {
+            if (!pake.receive(hostMessage) || !pake.isConfirmation(hostConfirmation)) {
+                leaveLan("did not confirm the access code");
+                socket.cancel();
+                onSocketLost(socket);
+                return;
+            }
+            // Nothing we send is relayed until the host has this
+            socket.send(LanDiscovery.confirmMessage(pake.getConfirmation()));
+        }
+        setState(State.OPEN);
+        isConnected = true;
+        SessionMetrics.get().markPhase(SessionMetrics.PHASE_SIGNALING_OPEN);
+        if (reconnectAttempts > 0) {
+            lastReconnectNanos = System.nanoTime() - disconnectedAtNanos;
+            Log.d(TAG, "Reconnected after " + getLastReconnectMillis() + " ms");
+        }
+        reconnectAttempts = 0;
+
+        // The relay forgets us with the old socket, so the join always goes out first
+        if (joinCode != null) {
+            sendFrame(SignalingCodec.encodeConnectionRequest(roomFor(joinCode), peerId, null));
+            SessionMetrics.get().markPhase(SessionMetrics.PHASE_JOIN_SENT);
+        }
+        outboundQueue.flush(frameSender, System.nanoTime());
+    }
+
+    private void leaveLan(String reason) {
+        Log.w(TAG, "LAN host " + reason + ", back to " + relayUrl);
+        serverUrl = relayUrl;
+        lanCode = null;
+        lanNonce = null;
+    }
+
+    /**
+     * What the join names: the code, or on a LAN endpoint the host's session nonce, so the code
+     * never crosses the LAN.
+     */
+    private String roomFor(String hostCode) {
+        return lanNonce != null ? lanNonce : hostCode;
+    }
+
+    private void onSocketLost(WebSocket socket) {
+        if (socket != webSocket || state == State.CLOSED) {
+            return;
+        }
+        if (state == State.OPEN) {
+            disconnectedAtNanos = System.nanoTime();
+        }
+        isConnected = false;
+        webSocket = null;
+        attemptReconnect();
+    }
+
+    private void attemptReconnect() {
+        if (!reconnectPolicy.shouldRetry(reconnectAttempts)) {
+            Log.e(TAG, "Giving up after " + reconnectAttempts + " reconnect attempts");
+            setState(State.CLOSED);
+            return;
+        }
+        long delayMs = reconnectPolicy.delayMs(reconnectAttempts);
+        reconnectAttempts++;
+        setState(State.WAITING_TO_RECONNECT);
+        Log.d(TAG, "Attempting to reconnect in " + delayMs + " ms... Attempt " + reconnectAttempts);
+        final Runnable reconnect = new Runnable() {
+            @Override
+            public void run() {
+                if (state == State.WAITING_TO_RECONNECT) {
+                    pendingReconnect = null;
+                    openSocket();
+                }
+            }
+        };
+        pendingReconnect = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mailbox.post(reconnect);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void sendConnectionRequest(final String hostCode) {
+        mailbox.post(new Runnable() {
+            @Override
+            public void run() {
+                // Remembered so the join can be replayed on every new socket
+                joinCode = hostCode;
+                if (state == State.OPEN) {
+                    sendOrQueue(SignalingCodec.encodeConnectionRequest(roomFor(hostCode), peerId, null),
+                        System.nanoTime());
+                    SessionMetrics.get().markPhase(SessionMetrics.PHASE_JOIN_SENT);
+                }
+            }
+        });
+    }
+
+    public void sendIceCandidate(IceCandidate candidate) {
+        sendIceCandidate(candidate, null);
+    }
+
+    /**
+     * @param to peer id of the recipient, or null for everyone in the room
+     */
+    public void sendIceCandidate(IceCandidate candidate, String to) {
+        sendMessage(SignalingCodec.encodeIceCandidate(toWire(candidate), peerId, to));
+    }
+
+    /**
+     * Sends trickled candidates in one message. An empty list with {@code complete} set only
+     * signals the end of candidates.
+     */
+    public void sendIceCandidates(List<IceCandidate> candidates, boolean complete, String to) {
+        List<SignalingCodec.Candidate> converted = new ArrayList<>(candidates.size());
+        for (IceCandidate candidate : candidates) {
+            converted.add(toWire(candidate));
+        }
+        sendMessage(SignalingCodec.encodeIceCandidates(converted, complete, peerId, to));
+    }
+
+    public void sendSessionDescription(SessionDescription description) {
+        sendSessionDescription(description, null);
+    }
+
+    /**
+     * Compresses the SDP if the recipient has sent us a description saying it reads compressed
+     * ones; the first offer to a peer therefore always goes out plain.
+     */
+    public void sendSessionDescription(SessionDescription description, String to) {
+        boolean compress = to != null && compressingPeers.contains(to);
+        sendMessage(SignalingCodec.encodeSessionDescription(new SignalingCodec.Description(
+            description.type.canonicalForm(), description.description), peerId, to, compress));
+        markDescriptionPhase(description);
+    }
+
+    /**
+     * @param to peer id of the recipient, or null for everyone in the room
+     */
+    public void sendQualityLevel(int level, String to) {
+        sendMessage(SignalingCodec.encodeQualityLevel(level, peerId, to));
+    }
+
+    public void sendTouchEvent(TouchEvent event) {
+        touchBuffer.clear();
+        touchWriter.begin(touchBuffer);
+        touchWriter.add(event);
+        touchWriter.finish();
+        touchBuffer.flip();
+        sendTouchMessage(touchBuffer);
+    }
+
+    /**
+     * Touch input goes out as a binary frame, see TouchEventCodec. While the socket is down it is
+     * queued behind session messages and dropped if it goes stale. Returns whether the socket was
+     * open when called.
+     */
+    boolean sendTouchMessage(ByteBuffer message) {
+        final ByteString frame = ByteString.of(message);
+        final long nowNanos = System.nanoTime();
+        mailbox.post(new Runnable() {
+            @Override
+            public void run() {
+                if (state == State.OPEN && sendFrame(frame)) {
+                    return;
+                }
+                if (state != State.CLOSED) {
+                    outboundQueue.offerInput(frame, nowNanos);
+                }
+            }
+        });
+        return isConnected;
+    }
+
+    /**
+     * Encodes on the caller's thread; only the send is ordered through the mailbox.
+     */
+    private void sendMessage(final String frame) {
+        final long nowNanos = System.nanoTime();
+        mailbox.post(new Runnable() {
+            @Override
+            public void run() {
+                sendOrQueue(frame, nowNanos);
+            }
+        });
+    }
+
+    private void sendOrQueue(String frame, long nowNanos) {
+        if (state == State.OPEN && outboundQueue.size() == 0 && sendFrame(frame)) {
+            return;
+        }
+        if (state == State.CLOSED) {
+            return;
+        }
+        if (!outboundQueue.offerCritical(frame, nowNanos)) {
+            Log.e(TAG, "Outbound queue full, dropping signaling message");
+        }
+        if (state == State.OPEN) {
+            // Behind an earlier send that failed; retry the backlog now rather than on reconnect
+            outboundQueue.flush(frameSender, nowNanos);
+        }
+    }
+
+    private boolean sendFrame(Object frame) {
+        WebSocket socket = webSocket;
+        if (socket == null) {
+            return false;
+        }
+        if (frame instanceof ByteString) {
+            return socket.send((ByteString) frame);
+        }
+        return socket.send((String) frame);
+    }
+
+    private static SignalingCodec.Candidate toWire(IceCandidate candidate) {
+        return new SignalingCodec.Candidate(candidate.sdpMid, candidate.sdpMLineIndex, candidate.sdp);
+    }
+
+    private static IceCandidate fromWire(SignalingCodec.Candidate candidate) {
+        return new IceCandidate(candidate.sdpMid, candidate.sdpMLineIndex, candidate.sdp);
+    }
+
+    private static void markDescriptionPhase(SessionDescription description) {
+        if (description.type == SessionDescription.Type.OFFER) {
+            SessionMetrics.get().markPhase(SessionMetrics.PHASE_OFFER);
+        } else if (description.type == SessionDescription.Type.ANSWER) {
+            SessionMetrics.get().markPhase(SessionMetrics.PHASE_ANSWER);
+        }
+    }
+
+    private void handleSignalingMessage(String message) {
+        try {
+            SignalingCodec.decode(message, messageHandler);
+        } catch (Exception e) {
+            Log.e(TAG, "Error handling signaling message: " + e.getMessage());
+        }
+    }
+
+    private void handleBinaryMessage(ByteString bytes) {
+        InputTransport.Receiver receiver = inputReceiver;
+        if (receiver != null) {
+            receiver.onTouchMessage(bytes.asByteBuffer());
+        }
+    }
+
+    private void handleConnectionRequest(String data, String from) {
+        if (listener != null) {
+            listener.onConnectionRequest(data, from);
+        }
+    }
+
+    private void handleIceCandidates(List<IceCandidate> candidates, boolean complete, String from) {
+        if (listener != null) {
+            listener.onIceCandidates(candidates, complete, from);
+        }
+    }
+
+    private void handleSessionDescription(SessionDescription description, String from) {
+        if (listener != null) {
+            listener.onSessionDescription(description, from);
+        }
+    }
+
+    private void handleQualityLevel(int level, String from) {
+        if (listener != null) {
+            listener.onQualityLevel(level, from);
+        }
+    }
+
+    /**
+     * JSON touch events come from guests that predate {@link TouchEventCodec}. They carry raw
+     * view pixels and an unmasked action with no frame size to place them by, so like version 1
+     * binary messages they are dropped.
+     */
+    private void handleTouchEvent(TouchEvent event) {
+        if (legacyTouchEvents++ == 0) {
+            Log.w(TAG, "Ignoring JSON touch events; the guest needs to update");
+        }
+    }
 } 
\ No newline at end of file
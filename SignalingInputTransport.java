@@ -0,0 +1,35 @@
+package com.remotecontrol.android;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link InputTransport} over the signaling WebSocket. Used until the DataChannels are open.
+ * Every message is delivered reliably and in order, whatever the caller asks for.
+ */
+class SignalingInputTransport implements InputTransport {
+    private final SignalingClient signalingClient;
+
+    SignalingInputTransport(SignalingClient signalingClient) {
+        this.signalingClient = signalingClient;
+    }
+
+    @Override
+    public boolean send(ByteBuffer message, boolean reliable) {
+        return signalingClient.sendTouchMessage(message);
+    }
+
+    @Override
+    public void setReceiver(Receiver receiver) {
+        signalingClient.setInputReceiver(receiver);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return signalingClient.isConnected();
+    }
+
+    @Override
+    public void close() {
+        signalingClient.setInputReceiver(null);
+    }
+}
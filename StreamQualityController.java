@@ -0,0 +1,257 @@
+package com.remotecontrol.android;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import org.webrtc.PeerConnection;
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsCollectorCallback;
+import org.webrtc.RTCStatsReport;
+import org.webrtc.RtpParameters;
+import org.webrtc.RtpSender;
+import java.util.Map;
+
+/**
+ * Polls peer connection stats and applies {@link StreamQualityPolicy} decisions to the capturer
+ * and to the video sender's encoding parameters.
+ *
+ * There is one controller per viewer. The capturer is shared through a
+ * {@link CaptureFormatArbiter}, so the encoding scale is worked out against the actual capture
+ * size rather than this viewer's rung.
+ */
+class StreamQualityController implements CaptureFormatArbiter.Client {
+    private static final String TAG = "StreamQualityController";
+    private static final long POLL_INTERVAL_MS = 1000;
+    private static final double DEFAULT_QP_HIGH = 37;
+
+    interface Listener {
+        /**
+         * Called on the controller thread after a new rung of the ladder was applied.
+         */
+        void onLevelChanged(int level);
+    }
+
+    private final PeerConnection peerConnection;
+    private final RtpSender videoSender;
+    private final CaptureFormatArbiter captureFormat;
+    private final StreamQualityPolicy policy;
+    private final Listener listener;
+    private final HandlerThread thread = new HandlerThread("StreamQuality");
+    private Handler handler;
+
+    private long lastQpSum = -1;
+    private long lastFramesEncoded = -1;
+    private double lastEncodeTime = -1;
+    private StreamQualityPolicy.OperatingPoint applied;
+
+    private final Runnable pollRunnable = new Runnable() {
+        @Override
+        public void run() {
+            poll();
+            handler.postDelayed(this, POLL_INTERVAL_MS);
+        }
+    };
+
+    StreamQualityController(PeerConnection peerConnection, RtpSender videoSender,
+                            CaptureFormatArbiter captureFormat, Listener listener) {
+        this.peerConnection = peerConnection;
+        this.videoSender = videoSender;
+        this.captureFormat = captureFormat;
+        this.policy = new StreamQualityPolicy(DEFAULT_QP_HIGH);
+        this.listener = listener;
+    }
+
+    StreamQualityPolicy.OperatingPoint getInitialOperatingPoint() {
+        return policy.current();
+    }
+
+    void start() {
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                applied = policy.current();
+                captureFormat.request(StreamQualityController.this, applied);
+                applyEncoding(applied);
+            }
+        });
+        handler.postDelayed(pollRunnable, POLL_INTERVAL_MS);
+    }
+
+    /**
+     * Jumps to a rung known to hold on this link, e.g. the one a returning guest last settled on,
+     * instead of stepping down to it one congested sample at a time.
+     */
+    void seedLevel(final int level) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                policy.setLevel(level);
+                if (policy.current() != applied) {
+                    apply(policy.current());
+                }
+            }
+        });
+    }
+
+    /**
+     * Makes the sender's encoder, whatever implements it, start over with a keyframe: an encoding
+     * that goes from inactive to active asks its encoder for one. Native encoders cannot be
+     * reached any other way from Java.
+     */
+    void requestKeyFrame() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!setActive(false) || !setActive(true)) {
+                    Log.w(TAG, "Failed to restart the encoding for a keyframe");
+                }
+            }
+        });
+    }
+
+    void stop() {
+        if (handler != null) {
+            handler.removeCallbacksAndMessages(null);
+        }
+        thread.quitSafely();
+        captureFormat.remove(this);
+    }
+
+    @Override
+    public void onCaptureFormatChanged() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (applied != null) {
+                    applyEncoding(applied);
+                }
+            }
+        });
+    }
+
+    private void poll() {
+        peerConnection.getStats(new RTCStatsCollectorCallback() {
+            @Override
+            public void onStatsDelivered(final RTCStatsReport report) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onStats(report);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onStats(RTCStatsReport report) {
+        double rttMs = -1;
+        double lossFraction = -1;
+        double availableBitrate = -1;
+        double averageQp = -1;
+
+        for (RTCStats stats : report.getStatsMap().values()) {
+            Map<String, Object> members = stats.getMembers();
+            switch (stats.getType()) {
+                case "candidate-pair":
+                    if (Boolean.TRUE.equals(members.get("nominated"))
+                            && "succeeded".equals(members.get("state"))) {
+                        double rtt = number(members.get("currentRoundTripTime"));
+                        if (rtt >= 0) {
+                            rttMs = rtt * 1000;
+                            SessionMetrics.get().setGauge(SessionMetrics.GAUGE_RTT_MS, rttMs);
+                        }
+                        availableBitrate = number(members.get("availableOutgoingBitrate"));
+                    }
+                    break;
+                case "remote-inbound-rtp":
+                    if ("video".equals(members.get("kind"))) {
+                        lossFraction = number(members.get("fractionLost"));
+                    }
+                    break;
+                case "outbound-rtp":
+                    if ("video".equals(members.get("kind"))) {
+                        publishEncodeStats(members);
+                        averageQp = averageQp(members);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        StreamQualityPolicy.LinkSample sample =
+            new StreamQualityPolicy.LinkSample(rttMs, lossFraction, availableBitrate, averageQp);
+        if (policy.onSample(sample)) {
+            apply(policy.current());
+        }
+    }
+
+    private void publishEncodeStats(Map<String, Object> members) {
+        SessionMetrics metrics = SessionMetrics.get();
+        double fps = number(members.get("framesPerSecond"));
+        if (fps >= 0) {
+            metrics.setGauge(SessionMetrics.GAUGE_FPS, fps);
+        }
+        long framesEncoded = (long) number(members.get("framesEncoded"));
+        double encodeTime = number(members.get("totalEncodeTime"));
+        if (framesEncoded > 0) {
+            // Software encoders are not wrapped by MonitoredVideoEncoder; catch their first frame here
+            metrics.markPhase(SessionMetrics.PHASE_FIRST_ENCODED_FRAME);
+        }
+        if (lastFramesEncoded >= 0 && framesEncoded > lastFramesEncoded && encodeTime >= lastEncodeTime) {
+            metrics.setGauge(SessionMetrics.GAUGE_ENCODE_MS,
+                (encodeTime - lastEncodeTime) * 1000 / (framesEncoded - lastFramesEncoded));
+        }
+        lastEncodeTime = encodeTime;
+    }
+
+    private double averageQp(Map<String, Object> members) {
+        long qpSum = (long) number(members.get("qpSum"));
+        long framesEncoded = (long) number(members.get("framesEncoded"));
+        double average = -1;
+        if (lastFramesEncoded >= 0 && framesEncoded > lastFramesEncoded && qpSum >= lastQpSum) {
+            average = (double) (qpSum - lastQpSum) / (framesEncoded - lastFramesEncoded);
+        }
+        lastQpSum = qpSum;
+        lastFramesEncoded = framesEncoded;
+        return average;
+    }
+
+    private void apply(StreamQualityPolicy.OperatingPoint point) {
+        captureFormat.request(this, point);
+        applyEncoding(point);
+        applied = point;
+        Log.d(TAG, "Operating point: " + point);
+        listener.onLevelChanged(policy.level());
+    }
+
+    private void applyEncoding(StreamQualityPolicy.OperatingPoint point) {
+        // Another viewer may keep the capture larger than this rung asks for, and the capture
+        // governor may hold it smaller, in which case the frames go out as captured
+        double targetWidth = point.captureWidth / point.scaleResolutionDownBy;
+        double scale = Math.max(1.0, captureFormat.getWidth() / targetWidth);
+        RtpParameters parameters = videoSender.getParameters();
+        for (RtpParameters.Encoding encoding : parameters.encodings) {
+            encoding.maxBitrateBps = point.maxBitrateBps;
+            encoding.maxFramerate = point.maxFramerate;
+            encoding.scaleResolutionDownBy = scale;
+        }
+        if (!videoSender.setParameters(parameters)) {
+            Log.w(TAG, "Failed to apply encoding parameters for " + point);
+        }
+    }
+
+    private boolean setActive(boolean active) {
+        RtpParameters parameters = videoSender.getParameters();
+        for (RtpParameters.Encoding encoding : parameters.encodings) {
+            encoding.active = active;
+        }
+        return videoSender.setParameters(parameters);
+    }
+
+    private static double number(Object value) {
+        return value instanceof Number ? ((Number) value).doubleValue() : -1;
+    }
+}
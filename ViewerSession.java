@@ -0,0 +1,161 @@
+package com.remotecontrol.android;
+
+import android.util.Log;
+import org.webrtc.IceCandidate;
+import org.webrtc.PeerConnection;
+import org.webrtc.PeerConnectionFactory;
+import org.webrtc.RtpSender;
+import org.webrtc.VideoTrack;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+
+/**
+ * One guest watching the host: its peer connection, its own encoder and quality controller fed
+ * from the shared screen track, its input channels and its file and clipboard transfers.
+ *
+ * Input from the guest is passed on only while it holds the {@link ControlToken}.
+ */
+class ViewerSession {
+    private static final String TAG = "ViewerSession";
+
+    interface Listener {
+        /**
+         * Called once when the connection fails or closes. The session should then be closed.
+         */
+        void onDisconnected(String peerId);
+    }
+
+    private final String peerId;
+    private final PeerConnection peerConnection;
+    private final PeerNegotiator negotiator;
+    private final StreamQualityController qualityController;
+    private final InputTransport inputTransport;
+    private final DataChannelTransferLink transferLink;
+    private final TransferEngine transferEngine;
+    private boolean disconnected;
+
+    /**
+     * @param address           peer id to address signaling to, or null for a guest without one
+     * @param transferDirectory where files from this guest are stored
+     */
+    ViewerSession(final String peerId, final String address, PeerConnectionFactory factory,
+                  final SignalingClient signalingClient, VideoTrack videoTrack,
+                  CaptureFormatArbiter captureFormat, final ControlToken controlToken,
+                  final InputTransport.Receiver inputReceiver, File transferDirectory,
+                  TransferEngine.Listener transferListener, final Listener listener) {
+        this.peerId = peerId;
+        peerConnection = factory.createPeerConnection(
+            WebRtcConfig.createRtcConfiguration(), new PeerConnectionObserver() {
+                @Override
+                public void onIceCandidate(IceCandidate iceCandidate) {
+                    negotiator.onLocalCandidate(iceCandidate);
+                }
+
+                @Override
+                public void onIceGatheringChange(PeerConnection.IceGatheringState state) {
+                    if (state == PeerConnection.IceGatheringState.COMPLETE) {
+                        SessionMetrics.get().markPhase(SessionMetrics.PHASE_ICE_GATHERED);
+                        negotiator.onLocalGatheringComplete();
+                    }
+                }
+
+                @Override
+                public void onIceConnectionChange(PeerConnection.IceConnectionState state) {
+                    Log.d(TAG, peerId + " ICE connection state: " + state);
+                    if (state == PeerConnection.IceConnectionState.CONNECTED) {
+                        SessionMetrics.get().markPhase(SessionMetrics.PHASE_ICE_CONNECTED);
+                    } else if (state == PeerConnection.IceConnectionState.FAILED
+                            || state == PeerConnection.IceConnectionState.CLOSED) {
+                        onDisconnected(listener);
+                    }
+                }
+            });
+        negotiator = new PeerNegotiator(peerConnection, signalingClient, address,
+            PeerNegotiator.DEFAULT_BATCH_WINDOW_MS);
+        negotiator.setVideoCodecs(CodecSelector.preferredCodecs());
+        RtpSender videoSender = peerConnection.addTrack(videoTrack, Collections.singletonList("screen"));
+        qualityController = new StreamQualityController(peerConnection, videoSender, captureFormat,
+            new StreamQualityController.Listener() {
+                @Override
+                public void onLevelChanged(int level) {
+                    // The guest keeps the last level in its connection profile for next time. A
+                    // guest without an address cannot be told apart from the others in the room.
+                    if (address != null) {
+                        signalingClient.sendQualityLevel(level, address);
+                    }
+                }
+            });
+
+        inputTransport = new DataChannelInputTransport(peerConnection);
+        inputTransport.setReceiver(new InputTransport.Receiver() {
+            @Override
+            public void onTouchMessage(ByteBuffer message) {
+                if (controlToken.isHolder(peerId)) {
+                    inputReceiver.onTouchMessage(message);
+                }
+            }
+        });
+        transferLink = new DataChannelTransferLink(peerConnection);
+        transferEngine = new TransferEngine(transferLink, transferDirectory, transferListener);
+        transferLink.attach(transferEngine);
+    }
+
+    /**
+     * Starts quality control and sends the offer. Tracks and channels are all in place by now,
+     * so they are negotiated at once.
+     */
+    void start() {
+        qualityController.start();
+        negotiator.createOffer();
+    }
+
+    private void onDisconnected(Listener listener) {
+        synchronized (this) {
+            if (disconnected) {
+                return;
+            }
+            disconnected = true;
+        }
+        listener.onDisconnected(peerId);
+    }
+
+    String getPeerId() {
+        return peerId;
+    }
+
+    PeerConnection getPeerConnection() {
+        return peerConnection;
+    }
+
+    PeerNegotiator getNegotiator() {
+        return negotiator;
+    }
+
+    TransferEngine getTransferEngine() {
+        return transferEngine;
+    }
+
+    /**
+     * Starts the stream at the rung the guest settled on last time it connected.
+     */
+    void seedQualityLevel(int level) {
+        qualityController.seedLevel(level);
+    }
+
+    /**
+     * Restarts this viewer's encoding so its next frame is a keyframe, see
+     * {@link StreamQualityController#requestKeyFrame}.
+     */
+    void requestKeyFrame() {
+        qualityController.requestKeyFrame();
+    }
+
+    void close() {
+        negotiator.close();
+        qualityController.stop();
+        inputTransport.close();
+        transferLink.close();
+        peerConnection.dispose();
+    }
+}
@@ -0,0 +1,38 @@
+package com.remotecontrol.android;
+
+import org.webrtc.PeerConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Peer connection settings shared by the host and guest sides.
+ */
+final class WebRtcConfig {
+    private static final String STUN_SERVER_URL = "stun:stun.l.google.com:19302";
+    static final List<String> DEFAULT_ICE_SERVERS = Collections.singletonList(STUN_SERVER_URL);
+
+    private WebRtcConfig() {}
+
+    static PeerConnection.RTCConfiguration createRtcConfiguration() {
+        return createRtcConfiguration(DEFAULT_ICE_SERVERS, false);
+    }
+
+    /**
+     * @param relayOnly gather relay candidates only, for a peer that last time could only be
+     *                  reached through a TURN server from {@code iceServerUrls}
+     */
+    static PeerConnection.RTCConfiguration createRtcConfiguration(List<String> iceServerUrls,
+                                                                  boolean relayOnly) {
+        List<PeerConnection.IceServer> iceServers = new ArrayList<>(iceServerUrls.size());
+        for (String url : iceServerUrls) {
+            iceServers.add(PeerConnection.IceServer.builder(url).createIceServer());
+        }
+        PeerConnection.RTCConfiguration configuration = new PeerConnection.RTCConfiguration(iceServers);
+        configuration.sdpSemantics = PeerConnection.SdpSemantics.UNIFIED_PLAN;
+        if (relayOnly) {
+            configuration.iceTransportsType = PeerConnection.IceTransportsType.RELAY;
+        }
+        return configuration;
+    }
+}
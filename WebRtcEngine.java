@@ -0,0 +1,175 @@
+package com.remotecontrol.android;
+
+import android.content.Context;
+import android.util.Log;
+import org.webrtc.EglBase;
+import org.webrtc.PeerConnectionFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide WebRTC engine: one native library init, one {@link PeerConnectionFactory} with its
+ * network/worker/signaling threads, and one root {@link EglBase} shared by capture, encode, decode
+ * and rendering.
+ *
+ * Components {@link #acquire} the engine and {@link #release} it when done; the last release
+ * disposes it. {@link #warmUp} builds it ahead of time on a background thread so the first
+ * acquire only has to wait for whatever is left.
+ */
+final class WebRtcEngine {
+    private static final String TAG = "WebRtcEngine";
+
+    private static final Object lock = new Object();
+    private static boolean nativeInitialized;
+    private static WebRtcEngine instance;
+    private static int refCount;
+
+    private final EglBase eglBase;
+    private final CodecSelector codecSelector;
+    private final PeerConnectionFactory factory;
+    private final StartupTimings timings;
+
+    private WebRtcEngine(EglBase eglBase, CodecSelector codecSelector,
+                         PeerConnectionFactory factory, StartupTimings timings) {
+        this.eglBase = eglBase;
+        this.codecSelector = codecSelector;
+        this.factory = factory;
+        this.timings = timings;
+    }
+
+    /**
+     * Starts building the engine in the background. Safe to call more than once.
+     */
+    static void warmUp(Context context) {
+        final Context appContext = context.getApplicationContext();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (lock) {
+                    if (instance == null) {
+                        instance = create(appContext, true);
+                    }
+                }
+            }
+        }, "WebRtcWarmUp");
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        thread.start();
+    }
+
+    static WebRtcEngine acquire(Context context) {
+        long start = System.nanoTime();
+        synchronized (lock) {
+            if (instance == null) {
+                instance = create(context.getApplicationContext(), false);
+            }
+            refCount++;
+            instance.timings.onAcquire(System.nanoTime() - start);
+            return instance;
+        }
+    }
+
+    static void release() {
+        synchronized (lock) {
+            if (refCount == 0) {
+                return;
+            }
+            if (--refCount == 0 && instance != null) {
+                instance.dispose();
+                instance = null;
+            }
+        }
+    }
+
+    private static WebRtcEngine create(Context appContext, boolean warmUp) {
+        long start = System.nanoTime();
+        if (!nativeInitialized) {
+            PeerConnectionFactory.initialize(
+                PeerConnectionFactory.InitializationOptions.builder(appContext)
+                    .createInitializationOptions());
+            nativeInitialized = true;
+        }
+        long nativeDone = System.nanoTime();
+
+        EglBase eglBase = EglBase.create();
+        long eglDone = System.nanoTime();
+
+        CodecSelector codecSelector = new CodecSelector(eglBase.getEglBaseContext());
+        PeerConnectionFactory factory = PeerConnectionFactory.builder()
+            .setOptions(new PeerConnectionFactory.Options())
+            .setVideoEncoderFactory(codecSelector.createEncoderFactory())
+            .setVideoDecoderFactory(codecSelector.createDecoderFactory())
+            .createPeerConnectionFactory();
+        long factoryDone = System.nanoTime();
+
+        StartupTimings timings = new StartupTimings(warmUp,
+            nativeDone - start, eglDone - nativeDone, factoryDone - eglDone);
+        Log.i(TAG, "Engine created: " + timings);
+        return new WebRtcEngine(eglBase, codecSelector, factory, timings);
+    }
+
+    private void dispose() {
+        factory.dispose();
+        eglBase.release();
+        Log.i(TAG, "Engine disposed");
+    }
+
+    PeerConnectionFactory getFactory() {
+        return factory;
+    }
+
+    EglBase getEglBase() {
+        return eglBase;
+    }
+
+    CodecSelector getCodecSelector() {
+        return codecSelector;
+    }
+
+    StartupTimings getStartupTimings() {
+        return timings;
+    }
+
+    /**
+     * What building the engine cost and how long the first acquire had to wait for it. With a
+     * warm-up the wait is the cold-start saving seen by the session.
+     */
+    static final class StartupTimings {
+        final boolean warmedUp;
+        final long nativeInitNanos;
+        final long eglCreateNanos;
+        final long factoryCreateNanos;
+        private volatile long firstAcquireWaitNanos = -1;
+
+        StartupTimings(boolean warmedUp, long nativeInitNanos, long eglCreateNanos,
+                       long factoryCreateNanos) {
+            this.warmedUp = warmedUp;
+            this.nativeInitNanos = nativeInitNanos;
+            this.eglCreateNanos = eglCreateNanos;
+            this.factoryCreateNanos = factoryCreateNanos;
+        }
+
+        long totalCreateNanos() {
+            return nativeInitNanos + eglCreateNanos + factoryCreateNanos;
+        }
+
+        long firstAcquireWaitNanos() {
+            return firstAcquireWaitNanos;
+        }
+
+        void onAcquire(long waitNanos) {
+            if (firstAcquireWaitNanos < 0) {
+                firstAcquireWaitNanos = waitNanos;
+                Log.i(TAG, "First acquire waited " + TimeUnit.NANOSECONDS.toMillis(waitNanos)
+                    + " ms of " + TimeUnit.NANOSECONDS.toMillis(totalCreateNanos()) + " ms cold start"
+                    + (warmedUp ? " (warmed up)" : " (cold)"));
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "native=" + TimeUnit.NANOSECONDS.toMillis(nativeInitNanos) + "ms"
+                + " egl=" + TimeUnit.NANOSECONDS.toMillis(eglCreateNanos) + "ms"
+                + " factory=" + TimeUnit.NANOSECONDS.toMillis(factoryCreateNanos) + "ms"
+                + (warmedUp ? " warm-up" : " on demand");
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.remotecontrol.android;
+
+/**
+ * Caps the shared capture format while the device runs hot or low on battery, so a long host
+ * session gives up resolution and frame rate before the OS throttles the CPU and GPU under it.
+ *
+ * Pressure is read from the thermal headroom forecast where the platform has one, otherwise from
+ * the thermal status. The cap steps down as far as the pressure calls for in one go, since heat
+ * builds up while we wait. It steps back up one level at a time, and only after the pressure has
+ * stayed below the current level by a margin for {@link #RECOVERY_MS}, so it does not oscillate
+ * around a threshold. The sensors are interfaces so recorded or scripted traces can be replayed.
+ */
+class CaptureGovernor {
+    // Same values as PowerManager.THERMAL_STATUS_*
+    static final int THERMAL_STATUS_UNKNOWN = -1;
+    static final int THERMAL_STATUS_NONE = 0;
+    static final int THERMAL_STATUS_LIGHT = 1;
+    static final int THERMAL_STATUS_MODERATE = 2;
+    static final int THERMAL_STATUS_SEVERE = 3;
+
+    static final Cap[] CAPS = {
+        new Cap(1280, 720, 30),
+        new Cap(1280, 720, 20),
+        new Cap(960, 540, 15),
+        new Cap(960, 540, 10),
+        new Cap(640, 360, 10),
+    };
+
+    // Headroom at which each level starts; 1.0 is where the platform expects severe throttling
+    static final float[] HEADROOM_THRESHOLDS = {0f, 0.7f, 0.8f, 0.9f, 0.95f};
+    static final float HEADROOM_HYSTERESIS = 0.1f;
+    static final int LOW_BATTERY_PERCENT = 30;
+    static final int CRITICAL_BATTERY_PERCENT = 15;
+    static final long RECOVERY_MS = 120_000;
+
+    interface ThermalSensor {
+        /**
+         * One of the {@code THERMAL_STATUS_*} values, or {@link #THERMAL_STATUS_UNKNOWN}.
+         */
+        int getThermalStatus();
+
+        /**
+         * Forecast headroom as {@code PowerManager.getThermalHeadroom} reports it, or NaN where
+         * the platform has none.
+         */
+        float getThermalHeadroom();
+    }
+
+    interface BatterySensor {
+        /**
+         * Charge in percent, or -1 if unknown.
+         */
+        int getLevelPercent();
+
+        boolean isCharging();
+    }
+
+    static final class Cap {
+        final int width;
+        final int height;
+        final int framerate;
+
+        Cap(int width, int height, int framerate) {
+            this.width = width;
+            this.height = height;
+            this.framerate = framerate;
+        }
+
+        @Override
+        public String toString() {
+            return width + "x" + height + "@" + framerate;
+        }
+    }
+
+    private final ThermalSensor thermalSensor;
+    private final BatterySensor batterySensor;
+    private int level;
+    private long calmSinceMs = -1;
+    private int lastStatus = THERMAL_STATUS_UNKNOWN;
+    private float lastHeadroom = Float.NaN;
+    private int lastBatteryPercent = -1;
+    private boolean lastCharging;
+    private long stepsDown;
+    private long stepsUp;
+
+    CaptureGovernor(ThermalSensor thermalSensor, BatterySensor batterySensor) {
+        this.thermalSensor = thermalSensor;
+        this.batterySensor = batterySensor;
+    }
+
+    /**
+     * Reads the sensors and returns true if the cap changed.
+     */
+    boolean poll(long nowMs) {
+        lastStatus = thermalSensor.getThermalStatus();
+        lastHeadroom = thermalSensor.getThermalHeadroom();
+        lastBatteryPercent = batterySensor.getLevelPercent();
+        lastCharging = batterySensor.isCharging();
+
+        int pressure = pressureLevel(0);
+        if (pressure > level) {
+            level = pressure;
+            calmSinceMs = -1;
+            stepsDown++;
+            return true;
+        }
+        if (pressureLevel(HEADROOM_HYSTERESIS) >= level) {
+            calmSinceMs = -1;
+            return false;
+        }
+        if (calmSinceMs < 0) {
+            calmSinceMs = nowMs;
+        } else if (nowMs - calmSinceMs >= RECOVERY_MS) {
+            level--;
+            // The next step up has to wait a full recovery period of its own
+            calmSinceMs = nowMs;
+            stepsUp++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * The level current conditions call for, with the headroom read {@code margin} higher than
+     * it is.
+     */
+    private int pressureLevel(float margin) {
+        int pressure;
+        if (!Float.isNaN(lastHeadroom)) {
+            pressure = 0;
+            float headroom = lastHeadroom + margin;
+            while (pressure + 1 < HEADROOM_THRESHOLDS.length
+                    && headroom >= HEADROOM_THRESHOLDS[pressure + 1]) {
+                pressure++;
+            }
+        } else {
+            pressure = statusLevel(lastStatus);
+        }
+        // Capture and encode are most of what drains the battery during a session
+        if (!lastCharging && lastBatteryPercent >= 0) {
+            if (lastBatteryPercent <= CRITICAL_BATTERY_PERCENT) {
+                pressure = Math.max(pressure, CAPS.length - 1);
+            } else if (lastBatteryPercent <= LOW_BATTERY_PERCENT) {
+                pressure = Math.max(pressure, 2);
+            }
+        }
+        return pressure;
+    }
+
+    /**
+     * Without a forecast the status only reports throttling that has already begun, so each
+     * status skips a level compared to the headroom thresholds.
+     */
+    private static int statusLevel(int status) {
+        switch (status) {
+            case THERMAL_STATUS_UNKNOWN:
+            case THERMAL_STATUS_NONE:
+                return 0;
+            case THERMAL_STATUS_LIGHT:
+                return 2;
+            case THERMAL_STATUS_MODERATE:
+                return 3;
+            default:
+                return CAPS.length - 1;
+        }
+    }
+
+    Cap current() {
+        return CAPS[level];
+    }
+
+    int level() {
+        return level;
+    }
+
+    long getStepsDown() {
+        return stepsDown;
+    }
+
+    long getStepsUp() {
+        return stepsUp;
+    }
+
+    /**
+     * One line with the cap and the readings it was based on, for dumps.
+     */
+    String describe() {
+        return "cap " + current() + " (level " + level + "), thermal status " + lastStatus
+            + ", headroom " + lastHeadroom + ", battery " + lastBatteryPercent + "%"
+            + (lastCharging ? " charging" : "") + ", " + stepsDown + " down / " + stepsUp + " up";
+    }
+}
@@ -0,0 +1,218 @@
+package com.remotecontrol.android;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What worked the last time the guest connected to a host code, so the next session to the
+ * same host can start from there instead of from scratch.
+ *
+ * Entries are evicted least recently used first once there are more than the maximum, and are
+ * dropped when older than the maximum age: a profile that old says little about today's network.
+ * A profile that led to a failed connection should be {@link #remove removed} so the next attempt
+ * starts cold.
+ */
+class ConnectionProfileCache {
+    static final int DEFAULT_MAX_ENTRIES = 32;
+    static final long DEFAULT_MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
+    static final class Profile {
+        // Local candidate type of the pair that carried media: "host", "srflx", "prflx" or "relay"
+        final String candidateType;
+        // Decoded codec name as in the SDP, e.g. "H264"
+        final String codec;
+        // Rung of StreamQualityPolicy.LADDER the host settled on
+        final int qualityLevel;
+        final List<String> iceServers;
+        final long savedAtMs;
+
+        Profile(String candidateType, String codec, int qualityLevel, List<String> iceServers,
+                long savedAtMs) {
+            this.candidateType = candidateType;
+            this.codec = codec;
+            this.qualityLevel = qualityLevel;
+            this.iceServers = Collections.unmodifiableList(new ArrayList<>(iceServers));
+            this.savedAtMs = savedAtMs;
+        }
+
+        boolean isRelayed() {
+            return "relay".equals(candidateType);
+        }
+
+        @Override
+        public String toString() {
+            return candidateType + " " + codec + " level " + qualityLevel;
+        }
+    }
+
+    private final int maxEntries;
+    private final long maxAgeMs;
+    // Access order, so the eldest entry is the least recently used one
+    private final LinkedHashMap<String, Profile> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    ConnectionProfileCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_AGE_MS);
+    }
+
+    ConnectionProfileCache(int maxEntries, long maxAgeMs) {
+        this.maxEntries = maxEntries;
+        this.maxAgeMs = maxAgeMs;
+    }
+
+    /**
+     * Returns the profile for a host code, or null if there is none or it has expired.
+     */
+    synchronized Profile get(String hostCode, long nowMs) {
+        Profile profile = entries.get(hostCode);
+        if (profile != null && isExpired(profile, nowMs)) {
+            entries.remove(hostCode);
+            return null;
+        }
+        return profile;
+    }
+
+    synchronized void put(String hostCode, Profile profile) {
+        entries.put(hostCode, profile);
+        Iterator<Map.Entry<String, Profile>> it = entries.entrySet().iterator();
+        while (entries.size() > maxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    synchronized void remove(String hostCode) {
+        entries.remove(hostCode);
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private boolean isExpired(Profile profile, long nowMs) {
+        return nowMs - profile.savedAtMs > maxAgeMs;
+    }
+
+    /**
+     * Replaces the contents with what {@link #save} wrote. A missing file leaves the cache empty;
+     * a corrupt one is treated the same, since every entry is only an optimization.
+     */
+    synchronized void load(File file, long nowMs) {
+        entries.clear();
+        if (!file.exists()) {
+            return;
+        }
+        try (Reader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            read(new JsonReader(in), nowMs);
+        } catch (IOException | RuntimeException e) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Writes the cache, least recently used first, through a temporary file so a crash midway
+     * leaves the previous contents in place.
+     */
+    synchronized void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            write(new JsonWriter(out));
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    private void read(JsonReader reader, long nowMs) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String hostCode = null;
+            String candidateType = null;
+            String codec = null;
+            int qualityLevel = 0;
+            List<String> iceServers = new ArrayList<>();
+            long savedAtMs = 0;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "hostCode":
+                        hostCode = reader.nextString();
+                        break;
+                    case "candidateType":
+                        candidateType = nextNullableString(reader);
+                        break;
+                    case "codec":
+                        codec = nextNullableString(reader);
+                        break;
+                    case "qualityLevel":
+                        qualityLevel = reader.nextInt();
+                        break;
+                    case "iceServers":
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            iceServers.add(reader.nextString());
+                        }
+                        reader.endArray();
+                        break;
+                    case "savedAt":
+                        savedAtMs = reader.nextLong();
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+            Profile profile = new Profile(candidateType, codec, qualityLevel, iceServers, savedAtMs);
+            if (hostCode != null && !isExpired(profile, nowMs)) {
+                put(hostCode, profile);
+            }
+        }
+        reader.endArray();
+    }
+
+    private void write(JsonWriter writer) throws IOException {
+        writer.beginArray();
+        for (Map.Entry<String, Profile> entry : entries.entrySet()) {
+            Profile profile = entry.getValue();
+            writer.beginObject();
+            writer.name("hostCode").value(entry.getKey());
+            writer.name("candidateType").value(profile.candidateType);
+            writer.name("codec").value(profile.codec);
+            writer.name("qualityLevel").value(profile.qualityLevel);
+            writer.name("iceServers").beginArray();
+            for (String url : profile.iceServers) {
+                writer.value(url);
+            }
+            writer.endArray();
+            writer.name("savedAt").value(profile.savedAtMs);
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.flush();
+    }
+
+    private static String nextNullableString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+}
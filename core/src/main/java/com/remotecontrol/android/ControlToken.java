@@ -0,0 +1,75 @@
+package com.remotecontrol.android;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Which viewer may drive the host's input. Everyone else only watches.
+ *
+ * The first viewer to join holds the token. When the holder leaves it passes to the viewer that
+ * has been connected longest, so a session with viewers left always has someone in control.
+ */
+class ControlToken {
+
+    interface Listener {
+        /**
+         * @param holder new holder's peer id, or null if no viewer is left
+         */
+        void onHolderChanged(String holder);
+    }
+
+    private final Listener listener;
+    private final List<String> viewers = new ArrayList<>();
+    private String holder;
+
+    ControlToken(Listener listener) {
+        this.listener = listener;
+    }
+
+    void addViewer(String peerId) {
+        String changed = null;
+        synchronized (this) {
+            if (viewers.contains(peerId)) {
+                return;
+            }
+            viewers.add(peerId);
+            if (holder == null) {
+                holder = peerId;
+                changed = holder;
+            }
+        }
+        if (changed != null) {
+            listener.onHolderChanged(changed);
+        }
+    }
+
+    void removeViewer(String peerId) {
+        boolean wasHolder;
+        String next;
+        synchronized (this) {
+            if (!viewers.remove(peerId)) {
+                return;
+            }
+            wasHolder = peerId.equals(holder);
+            if (wasHolder) {
+                holder = viewers.isEmpty() ? null : viewers.get(0);
+            }
+            next = holder;
+        }
+        if (wasHolder) {
+            listener.onHolderChanged(next);
+        }
+    }
+
+    synchronized boolean isHolder(String peerId) {
+        return peerId != null && peerId.equals(holder);
+    }
+
+    synchronized String getHolder() {
+        return holder;
+    }
+
+    synchronized int getViewerCount() {
+        return viewers.size();
+    }
+}
@@ -0,0 +1,73 @@
+package com.remotecontrol.android;
+
+/**
+ * Maps points between a container and content that is scaled to fit inside it, keeping its
+ * aspect ratio and centered between bars.
+ *
+ * The guest's view is the container for the video frame. On the host, the captured frame is the
+ * container for the mirrored display. Touch coordinates cross the wire normalized to the video
+ * frame, so neither side needs to know the other's pixel sizes. Instances are immutable; build a
+ * new one when a size or the rotation changes.
+ */
+final class CoordinateTransform {
+    final int contentWidth;
+    final int contentHeight;
+    final int containerWidth;
+    final int containerHeight;
+    private final float scale;
+    private final float offsetX;
+    private final float offsetY;
+
+    private CoordinateTransform(int contentWidth, int contentHeight,
+                                int containerWidth, int containerHeight) {
+        this.contentWidth = contentWidth;
+        this.contentHeight = contentHeight;
+        this.containerWidth = containerWidth;
+        this.containerHeight = containerHeight;
+        scale = Math.min((float) containerWidth / contentWidth, (float) containerHeight / contentHeight);
+        offsetX = (containerWidth - contentWidth * scale) / 2f;
+        offsetY = (containerHeight - contentHeight * scale) / 2f;
+    }
+
+    /**
+     * Returns null if any size is not positive, e.g. before the first frame arrived.
+     */
+    static CoordinateTransform fit(int contentWidth, int contentHeight,
+                                   int containerWidth, int containerHeight) {
+        if (contentWidth <= 0 || contentHeight <= 0 || containerWidth <= 0 || containerHeight <= 0) {
+            return null;
+        }
+        return new CoordinateTransform(contentWidth, contentHeight, containerWidth, containerHeight);
+    }
+
+    boolean matches(int contentWidth, int contentHeight, int containerWidth, int containerHeight) {
+        return this.contentWidth == contentWidth && this.contentHeight == contentHeight
+            && this.containerWidth == containerWidth && this.containerHeight == containerHeight;
+    }
+
+    /**
+     * Container pixel to content normalized to 0..1. Points on the bars clamp to the nearest edge.
+     */
+    float toNormalizedContentX(float containerX) {
+        return clamp((containerX - offsetX) / (contentWidth * scale));
+    }
+
+    float toNormalizedContentY(float containerY) {
+        return clamp((containerY - offsetY) / (contentHeight * scale));
+    }
+
+    /**
+     * Container position normalized to 0..1 to a content pixel.
+     */
+    float fromNormalizedContainerX(float normalizedX) {
+        return Math.min(contentWidth - 1, Math.max(0, (normalizedX * containerWidth - offsetX) / scale));
+    }
+
+    float fromNormalizedContainerY(float normalizedY) {
+        return Math.min(contentHeight - 1, Math.max(0, (normalizedY * containerHeight - offsetY) / scale));
+    }
+
+    private static float clamp(float value) {
+        return Math.max(0f, Math.min(1f, value));
+    }
+}
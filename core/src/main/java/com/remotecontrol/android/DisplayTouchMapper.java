@@ -0,0 +1,69 @@
+package com.remotecontrol.android;
+
+/**
+ * Host-side stage that turns touch coordinates normalized to the video frame into physical
+ * display pixels.
+ *
+ * The captured frame holds the display fitted inside it. The transform between the two is
+ * rebuilt when the frame size, the display size or the rotation changes, never per event. A
+ * gesture that spans a resolution switch keeps landing on the same spot, because coordinates
+ * are relative to the frame, not to its pixel size.
+ */
+class DisplayTouchMapper implements TouchEventCodec.Sink {
+    private final TouchEventCodec.Sink target;
+
+    // Guarded by this
+    private int frameWidth;
+    private int frameHeight;
+    private int displayWidth;
+    private int displayHeight;
+    private int rotation;
+    private long rebuilds;
+
+    private volatile CoordinateTransform transform;
+
+    DisplayTouchMapper(TouchEventCodec.Sink target) {
+        this.target = target;
+    }
+
+    synchronized void setFrameSize(int width, int height) {
+        if (width != frameWidth || height != frameHeight) {
+            frameWidth = width;
+            frameHeight = height;
+            rebuild();
+        }
+    }
+
+    /**
+     * @param width    display width in pixels in the current rotation
+     * @param rotation the display's {@code Surface.ROTATION_*} value
+     */
+    synchronized void setDisplay(int width, int height, int rotation) {
+        if (width != displayWidth || height != displayHeight || rotation != this.rotation) {
+            displayWidth = width;
+            displayHeight = height;
+            this.rotation = rotation;
+            rebuild();
+        }
+    }
+
+    @Override
+    public void onTouchEvent(int action, int pointerId, long eventTime,
+                             float x, float y, float pressure, float size) {
+        CoordinateTransform current = transform;
+        if (current == null) {
+            return;
+        }
+        target.onTouchEvent(action, pointerId, eventTime,
+            current.fromNormalizedContainerX(x), current.fromNormalizedContainerY(y), pressure, size);
+    }
+
+    synchronized long getRebuilds() {
+        return rebuilds;
+    }
+
+    private void rebuild() {
+        transform = CoordinateTransform.fit(displayWidth, displayHeight, frameWidth, frameHeight);
+        rebuilds++;
+    }
+}
@@ -0,0 +1,79 @@
+package com.remotecontrol.android;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tells whether a frame differs from the previous one by hashing a grid of tiles over a
+ * downscaled luma plane.
+ *
+ * Only every {@link #SAMPLE_STEP}th pixel of every {@link #SAMPLE_STEP}th row feeds a tile's
+ * hash, which keeps the cost flat for a given input size. The input is expected to be a small
+ * GPU-downscaled copy of the frame, so the sampled pixels already average the area around them.
+ */
+class FrameChangeDetector {
+    static final int TILE_COLUMNS = 16;
+    static final int TILE_ROWS = 9;
+    static final int SAMPLE_STEP = 2;
+
+    private long[] previous = new long[TILE_COLUMNS * TILE_ROWS];
+    private long[] current = new long[TILE_COLUMNS * TILE_ROWS];
+    private boolean hasPrevious;
+    private int lastWidth;
+    private int lastHeight;
+    private int changedTiles;
+
+    /**
+     * Hashes the luma plane and compares it with the previous frame. The first frame, and any
+     * frame whose size differs from the previous one, counts as changed.
+     */
+    boolean onFrame(ByteBuffer luma, int width, int height, int stride) {
+        for (int row = 0; row < TILE_ROWS; row++) {
+            int top = row * height / TILE_ROWS;
+            int bottom = (row + 1) * height / TILE_ROWS;
+            for (int column = 0; column < TILE_COLUMNS; column++) {
+                int left = column * width / TILE_COLUMNS;
+                int right = (column + 1) * width / TILE_COLUMNS;
+                current[row * TILE_COLUMNS + column] = hashTile(luma, stride, left, top, right, bottom);
+            }
+        }
+
+        boolean sameSize = width == lastWidth && height == lastHeight;
+        changedTiles = 0;
+        for (int i = 0; i < current.length; i++) {
+            if (!hasPrevious || !sameSize || current[i] != previous[i]) {
+                changedTiles++;
+            }
+        }
+        long[] swap = previous;
+        previous = current;
+        current = swap;
+        hasPrevious = true;
+        lastWidth = width;
+        lastHeight = height;
+        return changedTiles > 0;
+    }
+
+    /**
+     * Forgets the previous frame so the next one counts as changed.
+     */
+    void reset() {
+        hasPrevious = false;
+    }
+
+    int getChangedTiles() {
+        return changedTiles;
+    }
+
+    private static long hashTile(ByteBuffer luma, int stride, int left, int top, int right, int bottom) {
+        // FNV-1a over the sampled pixels
+        long hash = 0xcbf29ce484222325L;
+        for (int y = top; y < bottom; y += SAMPLE_STEP) {
+            int rowStart = y * stride;
+            for (int x = left; x < right; x += SAMPLE_STEP) {
+                hash ^= luma.get(rowStart + x) & 0xff;
+                hash *= 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+}
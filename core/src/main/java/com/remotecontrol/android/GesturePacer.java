@@ -0,0 +1,133 @@
+package com.remotecontrol.android;
+
+import java.util.ArrayDeque;
+
+/**
+ * Dispatches gesture segments one at a time, paced to the timestamps of the original samples.
+ *
+ * The first segment of a gesture pins sample time to local time, plus a playout delay of about
+ * one slice. Each segment is then given the duration that makes it end at its last sample's
+ * time. A segment therefore normally plays at the speed the guest moved. If a segment shows up
+ * late, its duration shrinks so the gesture catches up instead of drifting further behind.
+ *
+ * Only one segment is in flight at a time, because dispatching a gesture cancels the one still
+ * running. Times are passed in, so recorded traces can be replayed without a clock.
+ */
+class GesturePacer {
+    static final long MIN_DURATION_MS = 1;
+    static final long DEFAULT_PLAYOUT_DELAY_MS = StrokePlanner.DEFAULT_SLICE_MS;
+
+    interface Dispatcher {
+        /**
+         * Injects {@code segment} over {@code durationMillis}. {@link #onDispatchFinished} must be
+         * called once it completes or is cancelled.
+         */
+        void dispatch(StrokePlanner.Segment segment, long durationMillis);
+    }
+
+    private final Dispatcher dispatcher;
+    private final long playoutDelayMillis;
+    private final ArrayDeque<StrokePlanner.Segment> queue = new ArrayDeque<>();
+    private final ArrayDeque<Long> arrivals = new ArrayDeque<>();
+    private boolean inFlight;
+    private long inFlightEndTime;
+    private long lastInjectedSampleTime = -1;
+    private boolean anchored;
+    private long offsetMillis;
+
+    private long segmentsDispatched;
+    private long totalLagMillis;
+    private long maxLagMillis;
+    private long lastLagMillis;
+
+    GesturePacer(Dispatcher dispatcher) {
+        this(dispatcher, DEFAULT_PLAYOUT_DELAY_MS);
+    }
+
+    /**
+     * @param playoutDelayMillis headroom for the next segment to arrive while the current one
+     *                           plays; 0 injects every segment as soon as it arrives
+     */
+    GesturePacer(Dispatcher dispatcher, long playoutDelayMillis) {
+        this.dispatcher = dispatcher;
+        this.playoutDelayMillis = playoutDelayMillis;
+    }
+
+    synchronized void enqueue(StrokePlanner.Segment segment, long nowMillis) {
+        queue.add(segment);
+        arrivals.add(nowMillis);
+        if (!inFlight) {
+            dispatchNext(nowMillis);
+        }
+    }
+
+    synchronized void onDispatchFinished(long nowMillis) {
+        if (inFlight) {
+            lastInjectedSampleTime = inFlightEndTime;
+        }
+        inFlight = false;
+        dispatchNext(nowMillis);
+    }
+
+    /**
+     * Drops everything not yet injected, e.g. when control passes to another viewer.
+     */
+    synchronized void clear() {
+        queue.clear();
+        arrivals.clear();
+        anchored = false;
+    }
+
+    /**
+     * Sample time, on the sender's clock, of the end of the last segment that finished
+     * injecting, or -1 before the first one.
+     */
+    synchronized long getLastInjectedSampleTime() {
+        return lastInjectedSampleTime;
+    }
+
+    synchronized long getSegmentsDispatched() {
+        return segmentsDispatched;
+    }
+
+    /**
+     * Time from a segment's last sample arriving to the end of its injection.
+     */
+    synchronized long getLastLagMillis() {
+        return lastLagMillis;
+    }
+
+    synchronized long getMaxLagMillis() {
+        return maxLagMillis;
+    }
+
+    synchronized double getMeanLagMillis() {
+        return segmentsDispatched == 0 ? 0 : (double) totalLagMillis / segmentsDispatched;
+    }
+
+    private void dispatchNext(long nowMillis) {
+        StrokePlanner.Segment segment = queue.poll();
+        if (segment == null) {
+            return;
+        }
+        long arrival = arrivals.poll();
+        if (!anchored) {
+            offsetMillis = nowMillis + playoutDelayMillis - segment.startTime;
+            anchored = true;
+        }
+        long duration = Math.max(MIN_DURATION_MS, segment.endTime + offsetMillis - nowMillis);
+        if (segment.isLast()) {
+            anchored = false;
+        }
+
+        long lag = nowMillis + duration - arrival;
+        segmentsDispatched++;
+        totalLagMillis += lag;
+        maxLagMillis = Math.max(maxLagMillis, lag);
+        lastLagMillis = lag;
+
+        inFlight = true;
+        inFlightEndTime = segment.endTime;
+        dispatcher.dispatch(segment, duration);
+    }
+}
@@ -0,0 +1,81 @@
+package com.remotecontrol.android;
+
+/**
+ * Decides which captured frames are worth encoding while the screen is still.
+ *
+ * Every frame is forwarded while the screen changes. Once nothing has changed for the quiet
+ * period the policy goes idle and forwards one keep-alive frame per interval so the receiver
+ * keeps a live stream. The first changed frame ends idle mode; it is forwarded at once and asks
+ * for a keyframe so the picture recovers in one frame. Holds no Android or WebRTC types so
+ * synthetic frame sequences can be replayed through it.
+ */
+class IdleCapturePolicy {
+    static final long DEFAULT_QUIET_PERIOD_NANOS = 1_500_000_000L;
+    static final long DEFAULT_KEEP_ALIVE_INTERVAL_NANOS = 1_000_000_000L;
+
+    static final int FORWARD = 0;
+    static final int FORWARD_KEYFRAME = 1;
+    static final int DROP = 2;
+
+    private final long quietPeriodNanos;
+    private final long keepAliveIntervalNanos;
+    private boolean idle;
+    private long lastChangeNanos = Long.MIN_VALUE;
+    private long lastForwardNanos = Long.MIN_VALUE;
+
+    private long framesIn;
+    private long framesDropped;
+    private long idleEntries;
+
+    IdleCapturePolicy() {
+        this(DEFAULT_QUIET_PERIOD_NANOS, DEFAULT_KEEP_ALIVE_INTERVAL_NANOS);
+    }
+
+    IdleCapturePolicy(long quietPeriodNanos, long keepAliveIntervalNanos) {
+        this.quietPeriodNanos = quietPeriodNanos;
+        this.keepAliveIntervalNanos = keepAliveIntervalNanos;
+    }
+
+    /**
+     * Returns {@link #FORWARD}, {@link #FORWARD_KEYFRAME} or {@link #DROP} for a frame.
+     */
+    int onFrame(boolean changed, long timestampNanos) {
+        framesIn++;
+        if (changed || lastChangeNanos == Long.MIN_VALUE) {
+            lastChangeNanos = timestampNanos;
+            lastForwardNanos = timestampNanos;
+            if (idle) {
+                idle = false;
+                return FORWARD_KEYFRAME;
+            }
+            return FORWARD;
+        }
+
+        if (!idle && timestampNanos - lastChangeNanos >= quietPeriodNanos) {
+            idle = true;
+            idleEntries++;
+        }
+        if (!idle || timestampNanos - lastForwardNanos >= keepAliveIntervalNanos) {
+            lastForwardNanos = timestampNanos;
+            return FORWARD;
+        }
+        framesDropped++;
+        return DROP;
+    }
+
+    boolean isIdle() {
+        return idle;
+    }
+
+    long getFramesIn() {
+        return framesIn;
+    }
+
+    long getFramesDropped() {
+        return framesDropped;
+    }
+
+    long getIdleEntries() {
+        return idleEntries;
+    }
+}
@@ -0,0 +1,31 @@
+package com.remotecontrol.android;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Carries encoded touch messages (see {@link TouchEventCodec}) between guest and host.
+ *
+ * MOVE-only messages are sent unreliably: a newer sample supersedes a lost one, so waiting for a
+ * retransmission only adds latency. Anything that changes pointer state (DOWN, UP, CANCEL) goes
+ * over the reliable path.
+ */
+interface InputTransport {
+
+    interface Receiver {
+        /**
+         * Called with one complete message. The buffer is only valid for the duration of the call.
+         */
+        void onTouchMessage(ByteBuffer message);
+    }
+
+    /**
+     * Sends the remaining bytes of {@code message}. Returns false if the transport is not open.
+     */
+    boolean send(ByteBuffer message, boolean reliable);
+
+    void setReceiver(Receiver receiver);
+
+    boolean isOpen();
+
+    void close();
+}
@@ -0,0 +1,396 @@
+package com.remotecontrol.android;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds a host on the same network, so signaling can skip the relay.
+ *
+ * The host listens on a UDP multicast group and answers every query with a random nonce for its
+ * session and the port of its LAN signaling endpoint, a {@link LocalSignalingServer}. It also
+ * repeats the answer every {@link #ANNOUNCE_INTERVAL_MS}, for guests whose query was lost. The
+ * host's address is where the answer came from. Nothing derived from the access code is
+ * broadcast.
+ *
+ * Anyone can answer, so guest and host run a {@link Spake2} exchange keyed by the access code
+ * over each connection. The WebSocket upgrade carries the guest's element, the host answers with
+ * its element and its confirmation, and the guest's first message is its own confirmation. A
+ * guest drops a host whose confirmation fails before sending anything derived from the code, and
+ * the endpoint admits only guests whose confirmation holds. Neither side, nor anyone listening,
+ * can test guesses at the code offline; each failed connection is one online guess, and the
+ * endpoint stops admitting after {@link LocalSignalingServer#MAX_FAILED_ATTEMPTS} of them. The
+ * join then names the session nonce instead of the code.
+ *
+ * The exchange authenticates who connects, not what is sent afterwards: signaling messages
+ * cross the LAN unencrypted, as they would over plain WebSocket. Media and input stay under
+ * DTLS.
+ */
+final class LanDiscovery {
+    static final String GROUP = "239.255.42.99";
+    static final int PORT = 42999;
+    static final long ANNOUNCE_INTERVAL_MS = 2000;
+    // A lost query costs this much, not a whole race
+    static final long QUERY_INTERVAL_MS = 200;
+    // Long enough for a few queries over Wi-Fi power save; the relay waits this long at most
+    static final long RACE_MS = 1000;
+
+    // Upgrade headers: each side's SPAKE2 element, and the host's confirmation
+    static final String HEADER_PAKE = "X-Lan-Pake";
+    static final String HEADER_CONFIRM = "X-Lan-Confirm";
+    // Type of the guest's first message, carrying its confirmation
+    static final String CONFIRM_TYPE = "LAN_CONFIRM";
+
+    private static final String MAGIC = "RCLAN2";
+    private static final String QUERY = "Q";
+    private static final String ANNOUNCE = "A";
+    private static final int MAX_DATAGRAM_BYTES = 512;
+    private static final int MIN_PROBE_MS = 300;
+    private static final int NONCE_BYTES = 16;
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * A host's LAN signaling endpoint.
+     */
+    static final class Endpoint {
+        final InetAddress address;
+        final int port;
+        // The host's session nonce, from its announce
+        final String nonce;
+
+        Endpoint(InetAddress address, int port, String nonce) {
+            this.address = address;
+            this.port = port;
+            this.nonce = nonce;
+        }
+
+        /**
+         * URL to hand to {@code SignalingClient}, along with the nonce.
+         */
+        String getUrl() {
+            return "ws://" + getHost() + ":" + port + "/";
+        }
+
+        private String getHost() {
+            String host = address.getHostAddress();
+            return host.indexOf(':') >= 0 ? "[" + host + "]" : host;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Endpoint)) {
+                return false;
+            }
+            Endpoint that = (Endpoint) other;
+            return address.equals(that.address) && port == that.port && nonce.equals(that.nonce);
+        }
+
+        @Override
+        public int hashCode() {
+            return (address.hashCode() * 31 + port) * 31 + nonce.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return getUrl();
+        }
+    }
+
+    /**
+     * The host side: answers queries with the session nonce until stopped.
+     */
+    static final class Announcer implements Runnable {
+        private final String announce;
+        private final NetworkInterface networkInterface;
+        private MulticastSocket socket;
+        private volatile boolean stopped;
+        private long answered;
+
+        /**
+         * @param sessionNonce     the endpoint's {@link LocalSignalingServer#getSessionNonce}
+         * @param networkInterface interface to announce on, or null for the system's default
+         */
+        Announcer(String sessionNonce, int signalingPort, NetworkInterface networkInterface) {
+            this.announce = ANNOUNCE + " " + sessionNonce + " " + signalingPort;
+            this.networkInterface = networkInterface;
+        }
+
+        void start() throws IOException {
+            socket = open(networkInterface);
+            socket.setSoTimeout((int) ANNOUNCE_INTERVAL_MS);
+            Thread thread = new Thread(this, "LanAnnouncer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop() {
+            stopped = true;
+            if (socket != null) {
+                socket.close();
+            }
+        }
+
+        synchronized long getAnswered() {
+            return answered;
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[MAX_DATAGRAM_BYTES];
+            long nextAnnounceNanos = 0;
+            try {
+                while (!stopped) {
+                    long now = System.nanoTime();
+                    if (now - nextAnnounceNanos >= 0) {
+                        send(socket, announce);
+                        nextAnnounceNanos = now + TimeUnit.MILLISECONDS.toNanos(ANNOUNCE_INTERVAL_MS);
+                    }
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    try {
+                        socket.receive(packet);
+                    } catch (SocketTimeoutException e) {
+                        continue;
+                    }
+                    String[] fields = parse(packet);
+                    if (fields != null && fields.length == 2 && QUERY.equals(fields[1])) {
+                        // Answered to the group: guests listening for the repeat hear it too
+                        send(socket, announce);
+                        nextAnnounceNanos = System.nanoTime()
+                            + TimeUnit.MILLISECONDS.toNanos(ANNOUNCE_INTERVAL_MS);
+                        synchronized (this) {
+                            answered++;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // Closed by stop(), or the network went away
+            } finally {
+                socket.close();
+            }
+        }
+    }
+
+    private LanDiscovery() {}
+
+    /**
+     * Queries for hosts until one proves it knows the code or the timeout passes, plus a minimal
+     * probe time if that host answered late. Returns null if none did.
+     *
+     * @param networkInterface interface to query on, or null for the system's default
+     */
+    static Endpoint find(String hostCode, long timeoutMs, NetworkInterface networkInterface)
+            throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        byte[] buffer = new byte[MAX_DATAGRAM_BYTES];
+        Set<Endpoint> rejected = new HashSet<>();
+        MulticastSocket socket = open(networkInterface);
+        try {
+            long nextQueryNanos = 0;
+            while (true) {
+                long now = System.nanoTime();
+                if (now - deadline >= 0) {
+                    return null;
+                }
+                if (now - nextQueryNanos >= 0) {
+                    send(socket, QUERY);
+                    nextQueryNanos = now + TimeUnit.MILLISECONDS.toNanos(QUERY_INTERVAL_MS);
+                }
+                long waitNanos = Math.min(deadline, nextQueryNanos) - now;
+                socket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                String[] fields = parse(packet);
+                if (fields == null || fields.length != 4 || !ANNOUNCE.equals(fields[1])) {
+                    continue;
+                }
+                Endpoint endpoint;
+                try {
+                    endpoint = new Endpoint(packet.getAddress(), Integer.parseInt(fields[3]), fields[2]);
+                } catch (NumberFormatException e) {
+                    // Not one of ours after all
+                    continue;
+                }
+                if (rejected.contains(endpoint)) {
+                    continue;
+                }
+                long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (verify(endpoint, hostCode, Math.max(MIN_PROBE_MS, remainingMs))) {
+                    return endpoint;
+                }
+                // Another host on this network, or one pretending to be ours
+                rejected.add(endpoint);
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Runs the exchange against the endpoint in a throwaway WebSocket connection, confirming to a
+     * host that confirmed first. This also shows it takes TCP connections; access points that
+     * isolate clients pass multicast but not this.
+     */
+    static boolean verify(Endpoint endpoint, String hostCode, long timeoutMs) {
+        Spake2 pake = new Spake2(Spake2.GUEST, hostCode, endpoint.nonce);
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(endpoint.address, endpoint.port), (int) timeoutMs);
+            socket.setSoTimeout((int) timeoutMs);
+            String request = "GET / HTTP/1.1\r\n"
+                + "Host: " + endpoint.getHost() + ":" + endpoint.port + "\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: " + newNonce() + "\r\n"
+                + "Sec-WebSocket-Version: 13\r\n"
+                + HEADER_PAKE + ": " + pake.getMessage() + "\r\n\r\n";
+            OutputStream out = socket.getOutputStream();
+            out.write(request.getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                StandardCharsets.US_ASCII));
+            String line = in.readLine();
+            if (line == null || !line.startsWith("HTTP/1.1 101 ")) {
+                return false;
+            }
+            String hostMessage = null;
+            String hostConfirmation = null;
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim();
+                if (name.equalsIgnoreCase(HEADER_PAKE)) {
+                    hostMessage = line.substring(colon + 1).trim();
+                } else if (name.equalsIgnoreCase(HEADER_CONFIRM)) {
+                    hostConfirmation = line.substring(colon + 1).trim();
+                }
+            }
+            if (!pake.receive(hostMessage) || !pake.isConfirmation(hostConfirmation)) {
+                return false;
+            }
+            // Confirmed, so the host does not count this probe as a failed guess
+            writeTextFrame(out, confirmMessage(pake.getConfirmation()));
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Finds and verifies the host within {@code timeoutMs}. Returns null if the guest should use
+     * the relay.
+     */
+    static Endpoint race(String hostCode, long timeoutMs, NetworkInterface networkInterface) {
+        try {
+            return find(hostCode, timeoutMs, networkInterface);
+        } catch (IOException e) {
+            // No multicast on this network, e.g. mobile data only
+            return null;
+        }
+    }
+
+    /**
+     * A random nonce, as hex: one per host session.
+     */
+    static String newNonce() {
+        byte[] nonce = new byte[NONCE_BYTES];
+        synchronized (random) {
+            random.nextBytes(nonce);
+        }
+        return hex(nonce);
+    }
+
+    /**
+     * The guest's first message on a LAN connection.
+     */
+    static String confirmMessage(String confirmation) {
+        return "{\"type\":\"" + CONFIRM_TYPE + "\",\"data\":\"" + confirmation + "\"}";
+    }
+
+    /**
+     * One masked text frame, as a client must send.
+     */
+    private static void writeTextFrame(OutputStream out, String text) throws IOException {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        byte[] mask = new byte[4];
+        synchronized (random) {
+            random.nextBytes(mask);
+        }
+        if (payload.length < 126) {
+            out.write(new byte[] {(byte) 0x81, (byte) (0x80 | payload.length)});
+        } else {
+            out.write(new byte[] {(byte) 0x81, (byte) (0x80 | 126),
+                (byte) (payload.length >>> 8), (byte) payload.length});
+        }
+        out.write(mask);
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] ^= mask[i & 3];
+        }
+        out.write(payload);
+        out.flush();
+    }
+
+    private static String hex(byte[] data) {
+        StringBuilder hex = new StringBuilder(data.length * 2);
+        for (byte b : data) {
+            hex.append(Character.forDigit((b >>> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static MulticastSocket open(NetworkInterface networkInterface) throws IOException {
+        // Host and guest share the port on one machine, as in the loopback replay
+        MulticastSocket socket = new MulticastSocket(null);
+        try {
+            socket.setReuseAddress(true);
+            socket.bind(new InetSocketAddress(PORT));
+            socket.setTimeToLive(1);
+            if (networkInterface != null) {
+                socket.setNetworkInterface(networkInterface);
+            }
+            socket.joinGroup(new InetSocketAddress(InetAddress.getByName(GROUP), PORT),
+                networkInterface);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private static void send(MulticastSocket socket, String message) throws IOException {
+        byte[] payload = (MAGIC + " " + message).getBytes(StandardCharsets.US_ASCII);
+        socket.send(new DatagramPacket(payload, payload.length,
+            InetAddress.getByName(GROUP), PORT));
+    }
+
+    private static String[] parse(DatagramPacket packet) {
+        String text = new String(packet.getData(), packet.getOffset(), packet.getLength(),
+            StandardCharsets.US_ASCII);
+        String[] fields = text.split(" ");
+        return fields.length > 1 && MAGIC.equals(fields[0]) ? fields : null;
+    }
+}
@@ -0,0 +1,157 @@
+package com.remotecontrol.android;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A frame counter and wall-clock time stamped into the top-left corner of a video frame's luma
+ * plane, for measuring glass-to-glass latency.
+ *
+ * The host writes the marker before the encoder; the guest reads it from the decoded frame. The
+ * 48 bits (4 sync bits, a 12-bit counter, the low 32 bits of {@code System.currentTimeMillis()})
+ * are drawn as two rows of 24 black or white blocks. Block positions are fractions of the frame
+ * width, so the marker still reads after the encoder scaled the frame down. The time only gives
+ * a latency if both devices' clocks are in sync; the counter works without, e.g. when filming
+ * both screens.
+ *
+ * A third row carries the guest event time of the last touch sample the host finished injecting
+ * before the frame was captured (4 sync bits and the low 20 bits of the time). That time is on
+ * the guest's own clock, so the first frame that carries a new one gives touch-to-pixel latency
+ * without any clock sync. The row stays black until the host has injected something.
+ */
+final class LatencyMarker {
+    static final int BITS = 48;
+    static final int BLOCKS_PER_ROW = 24;
+    static final int ROWS = BITS / BLOCKS_PER_ROW + 1;
+    static final int COUNTER_MASK = 0xFFF;
+    static final int INPUT_TIME_MASK = 0xFFFFF;
+    // Block size as a fraction of the frame width
+    private static final int WIDTH_DIVISOR = 60;
+    private static final int SYNC = 0xA;
+    private static final int BLACK = 16;
+    private static final int WHITE = 235;
+    private static final int THRESHOLD = (BLACK + WHITE) / 2;
+
+    private LatencyMarker() {}
+
+    /**
+     * Width in pixels of the area the marker covers in a frame {@code frameWidth} wide.
+     */
+    static int regionWidth(int frameWidth) {
+        return blockEdge(BLOCKS_PER_ROW, frameWidth);
+    }
+
+    static int regionHeight(int frameWidth) {
+        return blockEdge(ROWS, frameWidth);
+    }
+
+    /**
+     * @param inputTime guest event time of the last injected touch sample, or -1 for none yet
+     */
+    static void write(ByteBuffer y, int stride, int width, int height, int counter, long timeMillis,
+                      long inputTime) {
+        if (regionHeight(width) > height) {
+            return;
+        }
+        long bits = ((long) SYNC << 44) | ((long) (counter & COUNTER_MASK) << 32) | (timeMillis & 0xFFFFFFFFL);
+        writeBlocks(y, stride, width, 0, bits, BITS);
+        long inputBits = inputTime < 0 ? 0 : ((long) SYNC << 20) | (inputTime & INPUT_TIME_MASK);
+        writeBlocks(y, stride, width, BITS, inputBits, BLOCKS_PER_ROW);
+    }
+
+    /**
+     * Returns the marker's bits, or -1 if the frame carries none. Use {@link #counterOf} and
+     * {@link #timeOf} to take them apart.
+     */
+    static long read(ByteBuffer y, int stride, int width, int height) {
+        if (regionHeight(width) > height) {
+            return -1;
+        }
+        long bits = readBlocks(y, stride, width, 0, BITS);
+        return (bits >>> 44) == SYNC ? bits : -1;
+    }
+
+    /**
+     * Returns the low 20 bits of the last injected touch sample's guest event time, or -1 if the
+     * frame carries none.
+     */
+    static int readInputTime(ByteBuffer y, int stride, int width, int height) {
+        if (regionHeight(width) > height) {
+            return -1;
+        }
+        long bits = readBlocks(y, stride, width, BITS, BLOCKS_PER_ROW);
+        return (bits >>> 20) == SYNC ? (int) (bits & INPUT_TIME_MASK) : -1;
+    }
+
+    static int counterOf(long marker) {
+        return (int) (marker >>> 32) & COUNTER_MASK;
+    }
+
+    static long timeOf(long marker) {
+        return marker & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Milliseconds from the marker's time to {@code nowMillis}, across wraps of the 32-bit field.
+     */
+    static long millisSince(long marker, long nowMillis) {
+        return (int) (nowMillis - timeOf(marker));
+    }
+
+    /**
+     * Milliseconds from an input time read from a frame to {@code nowMillis} on the guest's
+     * uptime clock, across wraps of the 20-bit field.
+     */
+    static long millisSinceInput(int inputTime, long nowMillis) {
+        return (nowMillis - inputTime) & INPUT_TIME_MASK;
+    }
+
+    /**
+     * Draws {@code count} bits, most significant first, starting at block {@code first}.
+     */
+    private static void writeBlocks(ByteBuffer y, int stride, int width, int first, long bits, int count) {
+        for (int i = 0; i < count; i++) {
+            byte value = (byte) (((bits >>> (count - 1 - i)) & 1) != 0 ? WHITE : BLACK);
+            int column = (first + i) % BLOCKS_PER_ROW;
+            int row = (first + i) / BLOCKS_PER_ROW;
+            int x0 = blockEdge(column, width);
+            int x1 = blockEdge(column + 1, width);
+            int y1 = blockEdge(row + 1, width);
+            for (int line = blockEdge(row, width); line < y1; line++) {
+                int base = line * stride;
+                for (int x = x0; x < x1; x++) {
+                    y.put(base + x, value);
+                }
+            }
+        }
+    }
+
+    private static long readBlocks(ByteBuffer y, int stride, int width, int first, int count) {
+        long bits = 0;
+        for (int i = 0; i < count; i++) {
+            int column = (first + i) % BLOCKS_PER_ROW;
+            int row = (first + i) / BLOCKS_PER_ROW;
+            int x0 = blockEdge(column, width);
+            int x1 = blockEdge(column + 1, width);
+            int y0 = blockEdge(row, width);
+            int y1 = blockEdge(row + 1, width);
+            // Only the middle of each block; its edges bleed into the neighbours after encoding
+            int insetX = (x1 - x0) / 4;
+            int insetY = (y1 - y0) / 4;
+            int sum = 0;
+            int pixels = 0;
+            for (int line = y0 + insetY; line < y1 - insetY; line++) {
+                int base = line * stride;
+                for (int x = x0 + insetX; x < x1 - insetX; x++) {
+                    sum += y.get(base + x) & 0xFF;
+                    pixels++;
+                }
+            }
+            bits = (bits << 1) | (pixels > 0 && sum / pixels >= THRESHOLD ? 1 : 0);
+        }
+        return bits;
+    }
+
+    private static int blockEdge(int index, int frameWidth) {
+        return index * frameWidth / WIDTH_DIVISOR;
+    }
+}
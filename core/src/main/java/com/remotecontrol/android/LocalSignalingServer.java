@@ -0,0 +1,561 @@
+package com.remotecontrol.android;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process stand-in for the signaling relay, so {@code SignalingClient} can be exercised
+ * without the public server.
+ *
+ * Speaks plain WebSocket on the loopback interface. A connection joins a room with its first
+ * {@code CONNECTION_REQUEST}, keyed by the host code; from then on every message it sends, the
+ * join included, is relayed to the other members of that room. Messages before the join are
+ * dropped, as the real relay does.
+ *
+ * An {@link Impairment} delays what the relay delivers. The socket runs over TCP, so packet loss
+ * shows up as a retransmission delay, not as a missing message, and jitter never reorders.
+ * Connections can also be cut, once or periodically, without a close handshake.
+ *
+ * In LAN mode the host serves its own room from one of these, bound to every interface. Every
+ * connection runs a {@link Spake2} exchange keyed by the access code, and nothing it sends is
+ * relayed until it has confirmed; the only room is the one named by the session nonce. Guests
+ * find it, and check it, through {@link LanDiscovery}.
+ */
+class LocalSignalingServer {
+    /**
+     * LAN mode answers this many exchanges that were never confirmed, then admits nobody for the
+     * rest of the session. Each is one online guess at the code.
+     */
+    static final int MAX_FAILED_ATTEMPTS = 16;
+
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int OPCODE_CONTINUATION = 0x0;
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_BINARY = 0x2;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xA;
+    private static final int MAX_MESSAGE_BYTES = 1024 * 1024;
+    // Minimum TCP retransmission timeout, what one lost segment costs
+    private static final long RETRANSMIT_DELAY_MS = 200;
+
+    /**
+     * Network conditions between the relay and each client, applied to every delivered message.
+     */
+    static final class Impairment {
+        static final Impairment NONE = new Impairment("none", 0, 0, 0, 0);
+
+        final String name;
+        final long latencyMs;
+        final long jitterMs;
+        final double lossRate;
+        final long disconnectIntervalMs;
+
+        /**
+         * @param latencyMs            fixed one-way delay
+         * @param jitterMs             extra delay, uniform between 0 and this
+         * @param lossRate             share of messages that need a retransmission
+         * @param disconnectIntervalMs cut all connections this often, or 0 for never
+         */
+        Impairment(String name, long latencyMs, long jitterMs, double lossRate, long disconnectIntervalMs) {
+            this.name = name;
+            this.latencyMs = latencyMs;
+            this.jitterMs = jitterMs;
+            this.lossRate = lossRate;
+            this.disconnectIntervalMs = disconnectIntervalMs;
+        }
+    }
+
+    private final Impairment impairment;
+    private final InetAddress bindAddress;
+    private final String accessCode;
+    private final String sessionNonce;
+    private final ScheduledExecutorService delivery = Executors.newSingleThreadScheduledExecutor();
+    private final Random random = new Random();
+    private ServerSocket serverSocket;
+
+    // Guarded by this
+    private final Map<String, Set<Connection>> rooms = new HashMap<>();
+    private final Set<Connection> connections = new HashSet<>();
+    // LAN mode: counted when the host answers an exchange and taken back when the guest
+    // confirms, so attempts still in flight count too
+    private int failedAttempts;
+    private long relayed;
+    private long disconnects;
+
+    LocalSignalingServer(Impairment impairment) {
+        this(impairment, InetAddress.getLoopbackAddress(), null);
+    }
+
+    /**
+     * @param bindAddress where to listen; the wildcard address serves the whole network
+     * @param accessCode  if set, LAN mode: connections must share this code, see {@link LanDiscovery}
+     */
+    LocalSignalingServer(Impairment impairment, InetAddress bindAddress, String accessCode) {
+        this.impairment = impairment;
+        this.bindAddress = bindAddress;
+        this.accessCode = accessCode;
+        this.sessionNonce = accessCode != null ? LanDiscovery.newNonce() : null;
+    }
+
+    void start() throws IOException {
+        serverSocket = new ServerSocket(0, 50, bindAddress);
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "LocalSignalingAccept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        if (impairment.disconnectIntervalMs > 0) {
+            delivery.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    dropConnections();
+                }
+            }, impairment.disconnectIntervalMs, impairment.disconnectIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * URL to hand to {@code SignalingClient}.
+     */
+    String getUrl() {
+        return "ws://127.0.0.1:" + serverSocket.getLocalPort() + "/";
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * In LAN mode, the nonce to announce and the only room there is; null otherwise.
+     */
+    String getSessionNonce() {
+        return sessionNonce;
+    }
+
+    void stop() {
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+        }
+        dropConnections();
+        delivery.shutdownNow();
+    }
+
+    /**
+     * Cuts every connection at once, without a close frame, as a network drop would.
+     */
+    void dropConnections() {
+        List<Connection> dropped;
+        synchronized (this) {
+            dropped = new ArrayList<>(connections);
+            disconnects += dropped.size();
+        }
+        for (Connection connection : dropped) {
+            connection.close();
+        }
+    }
+
+    synchronized int getRoomSize(String hostCode) {
+        Set<Connection> room = rooms.get(hostCode);
+        return room != null ? room.size() : 0;
+    }
+
+    synchronized long getRelayed() {
+        return relayed;
+    }
+
+    synchronized long getDisconnects() {
+        return disconnects;
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                return;
+            }
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, "LocalSignalingConnection");
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        Connection connection;
+        try {
+            connection = new Connection(socket);
+            connection.handshake();
+        } catch (IOException e) {
+            closeQuietly(socket);
+            return;
+        }
+        synchronized (this) {
+            connections.add(connection);
+        }
+        try {
+            connection.readLoop();
+        } catch (IOException e) {
+            // Dropped, by the peer or by dropConnections
+        } finally {
+            connection.close();
+            synchronized (this) {
+                connections.remove(connection);
+                if (connection.room != null) {
+                    Set<Connection> room = rooms.get(connection.room);
+                    room.remove(connection);
+                    if (room.isEmpty()) {
+                        rooms.remove(connection.room);
+                    }
+                }
+            }
+        }
+    }
+
+    private void onMessage(Connection from, int opcode, byte[] payload) {
+        if (!from.confirmed) {
+            String confirmation = opcode == OPCODE_TEXT ? parseMessage(payload, LanDiscovery.CONFIRM_TYPE) : null;
+            if (!from.pake.isConfirmation(confirmation)) {
+                from.close();
+                return;
+            }
+            from.confirmed = true;
+            synchronized (this) {
+                failedAttempts--;
+            }
+            return;
+        }
+        if (from.room == null) {
+            String hostCode = opcode == OPCODE_TEXT ? parseMessage(payload, "CONNECTION_REQUEST") : null;
+            if (hostCode == null) {
+                return;
+            }
+            if (sessionNonce != null && !sessionNonce.equals(hostCode)) {
+                from.close();
+                return;
+            }
+            synchronized (this) {
+                from.room = hostCode;
+                Set<Connection> room = rooms.get(hostCode);
+                if (room == null) {
+                    room = new HashSet<>();
+                    rooms.put(hostCode, room);
+                }
+                room.add(from);
+            }
+        }
+        List<Connection> recipients = new ArrayList<>();
+        synchronized (this) {
+            Set<Connection> room = rooms.get(from.room);
+            if (room == null) {
+                return;
+            }
+            for (Connection member : room) {
+                if (member != from) {
+                    recipients.add(member);
+                }
+            }
+            relayed += recipients.size();
+        }
+        for (Connection recipient : recipients) {
+            deliver(recipient, opcode, payload);
+        }
+    }
+
+    private void deliver(final Connection to, final int opcode, final byte[] payload) {
+        long delayMs = impairment.latencyMs;
+        synchronized (random) {
+            if (impairment.jitterMs > 0) {
+                delayMs += (long) (random.nextDouble() * impairment.jitterMs);
+            }
+            if (random.nextDouble() < impairment.lossRate) {
+                delayMs += RETRANSMIT_DELAY_MS;
+            }
+        }
+        long dueNanos;
+        synchronized (to) {
+            // A byte stream delivers in order: nothing overtakes a message held back before it
+            dueNanos = Math.max(to.lastDueNanos, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs));
+            to.lastDueNanos = dueNanos;
+        }
+        Runnable send = new Runnable() {
+            @Override
+            public void run() {
+                to.send(opcode, payload);
+            }
+        };
+        if (impairment.latencyMs == 0 && impairment.jitterMs == 0 && impairment.lossRate == 0) {
+            send.run();
+        } else {
+            delivery.schedule(send, Math.max(0, dueNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Returns the data of a message of this type, such as the host code of a join, else null.
+     */
+    private static String parseMessage(byte[] payload, String expectedType) {
+        try {
+            JsonObject message = JsonParser.parseString(new String(payload, StandardCharsets.UTF_8))
+                .getAsJsonObject();
+            JsonElement type = message.get("type");
+            JsonElement data = message.get("data");
+            if (type != null && expectedType.equals(type.getAsString()) && data != null) {
+                return data.getAsString();
+            }
+        } catch (RuntimeException e) {
+            // Not JSON or not of that type
+        }
+        return null;
+    }
+
+    /**
+     * Answers a LAN mode guest's element, or returns null to turn the connection away.
+     */
+    private Spake2 answer(String guestMessage) {
+        synchronized (this) {
+            if (failedAttempts >= MAX_FAILED_ATTEMPTS) {
+                return null;
+            }
+        }
+        Spake2 pake = new Spake2(Spake2.HOST, accessCode, sessionNonce);
+        if (!pake.receive(guestMessage)) {
+            return null;
+        }
+        synchronized (this) {
+            if (failedAttempts >= MAX_FAILED_ATTEMPTS) {
+                return null;
+            }
+            failedAttempts++;
+        }
+        return pake;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private final class Connection {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+        volatile String room;
+        // LAN mode: this connection's exchange, and whether the guest has confirmed it
+        Spake2 pake;
+        volatile boolean confirmed = accessCode == null;
+        // Guarded by this
+        long lastDueNanos;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            in = new DataInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+        }
+
+        void handshake() throws IOException {
+            Map<String, String> headers = new HashMap<>();
+            String line = readLine();
+            if (line == null || !line.startsWith("GET ")) {
+                throw new IOException("Not a WebSocket upgrade: " + line);
+            }
+            while ((line = readLine()) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                        line.substring(colon + 1).trim());
+                }
+            }
+            String key = headers.get("sec-websocket-key");
+            if (key == null) {
+                throw new IOException("Missing Sec-WebSocket-Key");
+            }
+            String response = "HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + acceptKey(key) + "\r\n";
+            if (accessCode != null) {
+                pake = answer(headers.get(LanDiscovery.HEADER_PAKE.toLowerCase(Locale.ROOT)));
+                if (pake == null) {
+                    synchronized (out) {
+                        out.write("HTTP/1.1 403 Forbidden\r\nContent-Length: 0\r\n\r\n"
+                            .getBytes(StandardCharsets.US_ASCII));
+                        out.flush();
+                    }
+                    throw new IOException("LAN exchange refused");
+                }
+                response += LanDiscovery.HEADER_PAKE + ": " + pake.getMessage() + "\r\n"
+                    + LanDiscovery.HEADER_CONFIRM + ": " + pake.getConfirmation() + "\r\n";
+            }
+            response += "\r\n";
+            synchronized (out) {
+                out.write(response.getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+            }
+        }
+
+        void readLoop() throws IOException {
+            ByteArrayOutputStream fragments = new ByteArrayOutputStream();
+            int messageOpcode = 0;
+            while (true) {
+                int first = in.readUnsignedByte();
+                int second = in.readUnsignedByte();
+                boolean fin = (first & 0x80) != 0;
+                int opcode = first & 0x0F;
+                long length = second & 0x7F;
+                if (length == 126) {
+                    length = in.readUnsignedShort();
+                } else if (length == 127) {
+                    length = in.readLong();
+                }
+                if (length > MAX_MESSAGE_BYTES) {
+                    throw new IOException("Frame too large: " + length);
+                }
+                byte[] mask = new byte[4];
+                if ((second & 0x80) != 0) {
+                    in.readFully(mask);
+                }
+                byte[] payload = new byte[(int) length];
+                in.readFully(payload);
+                for (int i = 0; i < payload.length; i++) {
+                    payload[i] ^= mask[i & 3];
+                }
+
+                switch (opcode) {
+                    case OPCODE_CLOSE:
+                        send(OPCODE_CLOSE, payload);
+                        return;
+                    case OPCODE_PING:
+                        send(OPCODE_PONG, payload);
+                        continue;
+                    case OPCODE_PONG:
+                        continue;
+                    case OPCODE_CONTINUATION:
+                        break;
+                    default:
+                        messageOpcode = opcode;
+                        fragments.reset();
+                        break;
+                }
+                fragments.write(payload);
+                if (fragments.size() > MAX_MESSAGE_BYTES) {
+                    throw new IOException("Message too large");
+                }
+                if (fin && (messageOpcode == OPCODE_TEXT || messageOpcode == OPCODE_BINARY)) {
+                    onMessage(this, messageOpcode, fragments.toByteArray());
+                }
+            }
+        }
+
+        /**
+         * Writes one unmasked frame; servers never mask.
+         */
+        void send(int opcode, byte[] payload) {
+            byte[] header;
+            if (payload.length < 126) {
+                header = new byte[] {(byte) (0x80 | opcode), (byte) payload.length};
+            } else if (payload.length <= 0xFFFF) {
+                header = new byte[] {(byte) (0x80 | opcode), 126,
+                    (byte) (payload.length >>> 8), (byte) payload.length};
+            } else {
+                header = new byte[10];
+                header[0] = (byte) (0x80 | opcode);
+                header[1] = 127;
+                for (int i = 0; i < 8; i++) {
+                    header[2 + i] = (byte) ((long) payload.length >>> (56 - 8 * i));
+                }
+            }
+            try {
+                synchronized (out) {
+                    out.write(header);
+                    out.write(payload);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void close() {
+            closeQuietly(socket);
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) >= 0) {
+                if (c == '\n') {
+                    int end = line.length();
+                    return end > 0 && line.charAt(end - 1) == '\r' ? line.substring(0, end - 1) : line.toString();
+                }
+                line.append((char) c);
+            }
+            return line.length() > 0 ? line.toString() : null;
+        }
+    }
+
+    private static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return base64(sha1.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * java.util.Base64 needs API 26; this only ever encodes one 20-byte digest.
+     */
+    private static String base64(byte[] data) {
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        StringBuilder out = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int i = 0; i < data.length; i += 3) {
+            int b = (data[i] & 0xFF) << 16;
+            if (i + 1 < data.length) {
+                b |= (data[i + 1] & 0xFF) << 8;
+            }
+            if (i + 2 < data.length) {
+                b |= data[i + 2] & 0xFF;
+            }
+            out.append(alphabet.charAt((b >>> 18) & 63)).append(alphabet.charAt((b >>> 12) & 63));
+            out.append(i + 1 < data.length ? alphabet.charAt((b >>> 6) & 63) : '=');
+            out.append(i + 2 < data.length ? alphabet.charAt(b & 63) : '=');
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,129 @@
+package com.remotecontrol.android;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process {@link InputTransport} pair with configurable one-way latency, jitter and loss.
+ *
+ * Mirrors the DataChannel setup: unreliable messages may be lost and reordered by jitter,
+ * reliable messages are never lost and are delivered in order.
+ */
+final class LoopbackInputTransport implements InputTransport {
+    private final ScheduledExecutorService executor;
+    private final long latencyMs;
+    private final long jitterMs;
+    private final double lossRate;
+    private final Random random;
+
+    private final AtomicLong sentMessages = new AtomicLong();
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private final AtomicLong deliveredMessages = new AtomicLong();
+    private final AtomicLong heldBackMessages = new AtomicLong();
+    // Reliable messages on their way, oldest first; each delivery takes the head
+    private final Queue<byte[]> reliableInFlight = new ConcurrentLinkedQueue<>();
+
+    private LoopbackInputTransport peer;
+    private volatile Receiver receiver;
+    private volatile boolean open = true;
+    private long lastReliableDeliveryNanos;
+
+    private LoopbackInputTransport(ScheduledExecutorService executor, long latencyMs, long jitterMs,
+                                   double lossRate, Random random) {
+        this.executor = executor;
+        this.latencyMs = latencyMs;
+        this.jitterMs = jitterMs;
+        this.lossRate = lossRate;
+        this.random = random;
+    }
+
+    /**
+     * Creates two connected endpoints. Both directions share the same impairment settings.
+     * The executor should be single-threaded so that reliable messages keep their order.
+     */
+    static LoopbackInputTransport[] createPair(ScheduledExecutorService executor, long latencyMs,
+                                               long jitterMs, double lossRate, long seed) {
+        Random random = new Random(seed);
+        LoopbackInputTransport a = new LoopbackInputTransport(executor, latencyMs, jitterMs, lossRate, random);
+        LoopbackInputTransport b = new LoopbackInputTransport(executor, latencyMs, jitterMs, lossRate, random);
+        a.peer = b;
+        b.peer = a;
+        return new LoopbackInputTransport[] { a, b };
+    }
+
+    @Override
+    public boolean send(ByteBuffer message, final boolean reliable) {
+        if (!open) {
+            return false;
+        }
+        sentMessages.incrementAndGet();
+        final byte[] copy = new byte[message.remaining()];
+        message.get(copy);
+
+        long delayNanos;
+        synchronized (this) {
+            if (!reliable && random.nextDouble() < lossRate) {
+                droppedMessages.incrementAndGet();
+                return true;
+            }
+            long jitter = jitterMs > 0 ? (long) (random.nextDouble() * jitterMs) : 0;
+            delayNanos = TimeUnit.MILLISECONDS.toNanos(latencyMs + jitter);
+            if (reliable) {
+                // Reliable delivery is ordered, so a message never overtakes the previous one
+                long ownDeliveryNanos = System.nanoTime() + delayNanos;
+                if (lastReliableDeliveryNanos > ownDeliveryNanos) {
+                    heldBackMessages.incrementAndGet();
+                }
+                long deliverAt = Math.max(ownDeliveryNanos, lastReliableDeliveryNanos);
+                lastReliableDeliveryNanos = deliverAt;
+                delayNanos = deliverAt - System.nanoTime();
+                // Deliveries due at the same moment may fire in either order, so they take
+                // messages from the queue rather than each carrying its own
+                reliableInFlight.add(copy);
+            }
+        }
+
+        final LoopbackInputTransport target = peer;
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                target.deliver(reliable ? reliableInFlight.poll() : copy);
+            }
+        }, Math.max(0, delayNanos), TimeUnit.NANOSECONDS);
+        return true;
+    }
+
+    private void deliver(byte[] message) {
+        Receiver current = receiver;
+        if (open && current != null) {
+            deliveredMessages.incrementAndGet();
+            current.onTouchMessage(ByteBuffer.wrap(message));
+        }
+    }
+
+    @Override
+    public void setReceiver(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    long getSentMessages() { return sentMessages.get(); }
+    long getDroppedMessages() { return droppedMessages.get(); }
+    long getDeliveredMessages() { return deliveredMessages.get(); }
+    /** Reliable messages that had to wait for an earlier one drawn a longer delay. */
+    long getHeldBackMessages() { return heldBackMessages.get(); }
+}
@@ -0,0 +1,105 @@
+package com.remotecontrol.android;
+
+import java.util.ArrayDeque;
+
+/**
+ * Bounded queue for signaling messages that could not be sent because the socket was down.
+ *
+ * Session-critical messages (connection requests, SDP, ICE) are kept in order and always flushed
+ * first. Input is only worth sending while it is fresh: it has its own smaller budget, the oldest
+ * entry is dropped when that is full, and anything older than the input max age is discarded at
+ * flush time.
+ */
+class OutboundQueue<T> {
+
+    interface Sender<T> {
+        /**
+         * Returns false if the message could not be handed to the socket; flushing stops there.
+         */
+        boolean send(T message);
+    }
+
+    private final int criticalCapacity;
+    private final int inputCapacity;
+    private final long inputMaxAgeNanos;
+    private final ArrayDeque<Entry<T>> critical = new ArrayDeque<>();
+    private final ArrayDeque<Entry<T>> input = new ArrayDeque<>();
+    private long droppedCritical;
+    private long droppedInput;
+
+    OutboundQueue(int criticalCapacity, int inputCapacity, long inputMaxAgeNanos) {
+        this.criticalCapacity = criticalCapacity;
+        this.inputCapacity = inputCapacity;
+        this.inputMaxAgeNanos = inputMaxAgeNanos;
+    }
+
+    /**
+     * Returns false if a critical message had to be refused because the queue is full.
+     */
+    synchronized boolean offerCritical(T message, long nowNanos) {
+        if (critical.size() >= criticalCapacity) {
+            droppedCritical++;
+            return false;
+        }
+        critical.addLast(new Entry<>(message, nowNanos));
+        return true;
+    }
+
+    synchronized void offerInput(T message, long nowNanos) {
+        if (input.size() >= inputCapacity) {
+            input.pollFirst();
+            droppedInput++;
+        }
+        input.addLast(new Entry<>(message, nowNanos));
+    }
+
+    /**
+     * Sends queued messages in order, critical ones first. Returns the number sent.
+     */
+    synchronized int flush(Sender<T> sender, long nowNanos) {
+        int sent = 0;
+        while (!critical.isEmpty()) {
+            if (!sender.send(critical.peekFirst().message)) {
+                return sent;
+            }
+            critical.pollFirst();
+            sent++;
+        }
+        while (!input.isEmpty()) {
+            Entry<T> entry = input.peekFirst();
+            if (nowNanos - entry.enqueuedNanos > inputMaxAgeNanos) {
+                input.pollFirst();
+                droppedInput++;
+                continue;
+            }
+            if (!sender.send(entry.message)) {
+                return sent;
+            }
+            input.pollFirst();
+            sent++;
+        }
+        return sent;
+    }
+
+    synchronized void clear() {
+        critical.clear();
+        input.clear();
+    }
+
+    synchronized int size() {
+        return critical.size() + input.size();
+    }
+
+    synchronized long getDroppedCritical() { return droppedCritical; }
+    synchronized long getDroppedInput() { return droppedInput; }
+
+    private static final class Entry<T> {
+        final T message;
+        final long enqueuedNanos;
+
+        Entry(T message, long enqueuedNanos) {
+            this.message = message;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.remotecontrol.android;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter for signaling reconnects.
+ *
+ * The delay for attempt {@code n} is drawn uniformly from [d/2, d] where
+ * {@code d = min(maxDelay, baseDelay * 2^n)}. Keeping half of the delay fixed gives a predictable
+ * floor; the random half spreads out clients that lost the relay at the same moment.
+ */
+class ReconnectPolicy {
+    static final int UNLIMITED_ATTEMPTS = 0;
+
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final int maxAttempts;
+    private final Random random;
+
+    /**
+     * @param maxAttempts attempts before giving up, or {@link #UNLIMITED_ATTEMPTS}
+     */
+    ReconnectPolicy(long baseDelayMs, long maxDelayMs, int maxAttempts, Random random) {
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.maxAttempts = maxAttempts;
+        this.random = random;
+    }
+
+    boolean shouldRetry(int attempt) {
+        return maxAttempts == UNLIMITED_ATTEMPTS || attempt < maxAttempts;
+    }
+
+    /**
+     * Delay before reconnect attempt {@code attempt}, counting from 0.
+     */
+    long delayMs(int attempt) {
+        long ceiling = baseDelayMs << Math.min(attempt, 20);
+        if (ceiling <= 0 || ceiling > maxDelayMs) {
+            ceiling = maxDelayMs;
+        }
+        long floor = ceiling / 2;
+        synchronized (random) {
+            return floor + (long) (random.nextDouble() * (ceiling - floor + 1));
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.remotecontrol.android;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Edits to the codec lists of a session description.
+ *
+ * The sender encodes with the first codec of the answer it accepted that it also offered, so
+ * moving a codec to the front of the answer's video section picks it without removing the
+ * others as fallbacks.
+ */
+final class SdpCodecs {
+    private static final String LINE_END = "\r\n";
+
+    private SdpCodecs() {}
+
+    /**
+     * Moves every payload type of {@code codec} to the front of each video section's format
+     * list, keeping the relative order of the rest. Returns the description unchanged if no video
+     * section carries the codec.
+     */
+    static String preferCodec(String sdp, String codec) {
+        String[] lines = sdp.split(LINE_END, -1);
+        boolean changed = false;
+        int section = -1;
+        for (int i = 0; i <= lines.length; i++) {
+            if (i == lines.length || lines[i].startsWith("m=")) {
+                if (section >= 0 && lines[section].startsWith("m=video ")) {
+                    String reordered = reorder(lines, section, i, codec);
+                    if (!reordered.equals(lines[section])) {
+                        lines[section] = reordered;
+                        changed = true;
+                    }
+                }
+                section = i;
+            }
+        }
+        if (!changed) {
+            return sdp;
+        }
+        StringBuilder out = new StringBuilder(sdp.length());
+        for (int i = 0; i < lines.length; i++) {
+            if (i > 0) {
+                out.append(LINE_END);
+            }
+            out.append(lines[i]);
+        }
+        return out.toString();
+    }
+
+    private static String reorder(String[] lines, int start, int end, String codec) {
+        List<String> preferred = new ArrayList<>();
+        for (int i = start + 1; i < end; i++) {
+            String payloadType = rtpmapPayloadType(lines[i], codec);
+            if (payloadType != null) {
+                preferred.add(payloadType);
+            }
+        }
+        if (preferred.isEmpty()) {
+            return lines[start];
+        }
+        // m=video <port> <proto> <fmt> <fmt> ...
+        String[] fields = lines[start].split(" ");
+        if (fields.length < 4) {
+            return lines[start];
+        }
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < 3; i++) {
+            out.append(fields[i]).append(' ');
+        }
+        for (String payloadType : preferred) {
+            out.append(payloadType).append(' ');
+        }
+        for (int i = 3; i < fields.length; i++) {
+            if (!preferred.contains(fields[i])) {
+                out.append(fields[i]).append(' ');
+            }
+        }
+        out.setLength(out.length() - 1);
+        return out.toString();
+    }
+
+    /**
+     * Returns the payload type if the line is an rtpmap for the codec, else null.
+     */
+    private static String rtpmapPayloadType(String line, String codec) {
+        // a=rtpmap:<pt> <name>/<clock rate>[/<channels>]
+        if (!line.startsWith("a=rtpmap:")) {
+            return null;
+        }
+        int space = line.indexOf(' ');
+        int slash = line.indexOf('/', space + 1);
+        if (space < 0 || slash < 0) {
+            return null;
+        }
+        String name = line.substring(space + 1, slash);
+        return name.equalsIgnoreCase(codec) ? line.substring("a=rtpmap:".length(), space) : null;
+    }
+}
@@ -0,0 +1,112 @@
+package com.remotecontrol.android;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Raw deflate plus base64 for session descriptions sent through the relay.
+ *
+ * SDP is line-oriented text with long repeated prefixes, so it compresses to about a third; the
+ * base64 that keeps it a JSON string gives a third of that back. Inflating stops at
+ * {@link #MAX_INFLATED_BYTES}, since the input comes from whoever is in the room.
+ */
+final class SdpCompression {
+    static final String ENCODING = "deflate";
+    static final int MAX_INFLATED_BYTES = 256 * 1024;
+
+    // java.util.Base64 needs API 26
+    private static final String ALPHABET =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    private SdpCompression() {}
+
+    static String compress(String sdp) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setInput(sdp.getBytes(StandardCharsets.UTF_8));
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(sdp.length() / 2);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return encodeBase64(out.toByteArray());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static String decompress(String encoded) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(decodeBase64(encoded));
+            ByteArrayOutputStream out = new ByteArrayOutputStream(encoded.length() * 3);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && !inflater.finished()
+                        && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed description");
+                }
+                if (out.size() + count > MAX_INFLATED_BYTES) {
+                    throw new IOException("Compressed description inflates past "
+                        + MAX_INFLATED_BYTES + " bytes");
+                }
+                out.write(buffer, 0, count);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed description", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    static String encodeBase64(byte[] data) {
+        StringBuilder out = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int i = 0; i < data.length; i += 3) {
+            int b = (data[i] & 0xFF) << 16;
+            if (i + 1 < data.length) {
+                b |= (data[i + 1] & 0xFF) << 8;
+            }
+            if (i + 2 < data.length) {
+                b |= data[i + 2] & 0xFF;
+            }
+            out.append(ALPHABET.charAt((b >>> 18) & 63)).append(ALPHABET.charAt((b >>> 12) & 63));
+            out.append(i + 1 < data.length ? ALPHABET.charAt((b >>> 6) & 63) : '=');
+            out.append(i + 2 < data.length ? ALPHABET.charAt(b & 63) : '=');
+        }
+        return out.toString();
+    }
+
+    static byte[] decodeBase64(String text) throws IOException {
+        int length = text.length();
+        while (length > 0 && text.charAt(length - 1) == '=') {
+            length--;
+        }
+        if (text.length() % 4 != 0 || text.length() - length > 2) {
+            throw new IOException("Malformed base64");
+        }
+        byte[] out = new byte[length * 3 / 4];
+        int bits = 0;
+        int bitCount = 0;
+        int position = 0;
+        for (int i = 0; i < length; i++) {
+            int value = ALPHABET.indexOf(text.charAt(i));
+            if (value < 0) {
+                throw new IOException("Malformed base64");
+            }
+            bits = (bits << 6) | value;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                out[position++] = (byte) (bits >>> bitCount);
+            }
+        }
+        return out;
+    }
+}
@@ -0,0 +1,312 @@
+package com.remotecontrol.android;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cuts a local session description down to what a screen-share session negotiates, before it
+ * is set locally and sent through the relay.
+ *
+ * Video sections keep only the payload types of the given codecs, in their original order, and
+ * the rtx types that repair them; red and FEC go too, since losses are repaired by NACK. Header
+ * extensions outside {@link #KEPT_EXTENSIONS} are dropped from every RTP section, as are the
+ * per-SSRC attributes other than cname that only repeat {@code a=msid}. Rejected sections shrink
+ * to their m-line and mid. Sections are never removed or reordered, since the m-line count and
+ * mids must match the transceivers, and a video section that carries none of the codecs keeps
+ * all of them rather than becoming unusable.
+ */
+final class SdpMinimizer {
+    private static final String LINE_END = "\r\n";
+
+    static final String MID_EXTENSION = "urn:ietf:params:rtp-hdrext:sdes:mid";
+    static final String TRANSPORT_CC_EXTENSION =
+        "http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01";
+
+    static final List<String> KEPT_EXTENSIONS = Arrays.asList(
+        // BUNDLE demultiplexing
+        MID_EXTENSION,
+        // Send-side bandwidth estimation
+        TRANSPORT_CC_EXTENSION,
+        "urn:3gpp:video-orientation",
+        "http://www.webrtc.org/experiments/rtp-hdrext/playout-delay");
+
+    private SdpMinimizer() {}
+
+    /**
+     * @param videoCodecs codec names as in rtpmap lines, e.g. "H264"; matched ignoring case
+     */
+    static String minimize(String sdp, List<String> videoCodecs) {
+        boolean lineEndAtEnd = sdp.endsWith(LINE_END);
+        String[] lines = (lineEndAtEnd ? sdp.substring(0, sdp.length() - LINE_END.length()) : sdp)
+            .split(LINE_END, -1);
+        StringBuilder out = new StringBuilder(sdp.length());
+        int section = -1;
+        for (int i = 0; i <= lines.length; i++) {
+            if (i < lines.length && !lines[i].startsWith("m=")) {
+                continue;
+            }
+            if (section < 0) {
+                // Session level, kept whole
+                for (int j = 0; j < i; j++) {
+                    append(out, lines[j]);
+                }
+            } else {
+                appendSection(out, lines, section, i, videoCodecs);
+            }
+            section = i;
+        }
+        if (!lineEndAtEnd) {
+            out.setLength(out.length() - LINE_END.length());
+        }
+        return out.toString();
+    }
+
+    private static void appendSection(StringBuilder out, String[] lines, int start, int end,
+                                      List<String> videoCodecs) {
+        String[] fields = lines[start].split(" ");
+        boolean rtp = fields.length >= 4 && fields[2].contains("RTP");
+        if (!rtp) {
+            for (int i = start; i < end; i++) {
+                append(out, lines[i]);
+            }
+            return;
+        }
+        if ("0".equals(fields[1]) && !hasLine(lines, start, end, "a=bundle-only")) {
+            appendRejected(out, lines, start, end, fields);
+            return;
+        }
+
+        Set<String> kept = null;
+        if (lines[start].startsWith("m=video ")) {
+            kept = keptPayloadTypes(lines, start, end, videoCodecs);
+        }
+        boolean transportCc = hasExtension(lines, start, end, TRANSPORT_CC_EXTENSION);
+
+        if (kept == null) {
+            append(out, lines[start]);
+        } else {
+            StringBuilder mLine = new StringBuilder();
+            for (int i = 0; i < 3; i++) {
+                mLine.append(fields[i]).append(' ');
+            }
+            for (int i = 3; i < fields.length; i++) {
+                if (kept.contains(fields[i])) {
+                    mLine.append(fields[i]).append(' ');
+                }
+            }
+            mLine.setLength(mLine.length() - 1);
+            append(out, mLine.toString());
+        }
+        for (int i = start + 1; i < end; i++) {
+            String line = lines[i];
+            if (kept != null) {
+                String payloadType = payloadTypeOf(line);
+                if (payloadType != null && !kept.contains(payloadType)) {
+                    continue;
+                }
+            }
+            if (line.startsWith("a=extmap:") && !KEPT_EXTENSIONS.contains(extensionUri(line))) {
+                continue;
+            }
+            // Transport-wide feedback replaces receiver-side estimation when both are offered
+            if (transportCc && line.startsWith("a=rtcp-fb:") && line.endsWith(" goog-remb")) {
+                continue;
+            }
+            if (line.startsWith("a=ssrc:") && !isCname(line)) {
+                continue;
+            }
+            append(out, line);
+        }
+    }
+
+    /**
+     * Returns the payload types to keep, or null to keep the section's list as it is.
+     */
+    private static Set<String> keptPayloadTypes(String[] lines, int start, int end,
+                                                List<String> videoCodecs) {
+        Set<String> kept = new HashSet<>();
+        Map<String, String> repairs = new HashMap<>();
+        for (int i = start + 1; i < end; i++) {
+            String line = lines[i];
+            if (line.startsWith("a=rtpmap:")) {
+                int space = line.indexOf(' ');
+                int slash = line.indexOf('/', space + 1);
+                if (space < 0 || slash < 0) {
+                    continue;
+                }
+                String name = line.substring(space + 1, slash);
+                for (String codec : videoCodecs) {
+                    if (codec.equalsIgnoreCase(name)) {
+                        kept.add(line.substring("a=rtpmap:".length(), space));
+                    }
+                }
+            } else if (line.startsWith("a=fmtp:") && line.contains(" apt=")) {
+                // a=fmtp:<rtx pt> apt=<repaired pt>
+                String apt = line.substring(line.indexOf(" apt=") + " apt=".length());
+                int separator = apt.indexOf(';');
+                repairs.put(payloadTypeOf(line), separator < 0 ? apt : apt.substring(0, separator));
+            }
+        }
+        if (kept.isEmpty()) {
+            return null;
+        }
+        Set<String> repairing = new HashSet<>();
+        for (Map.Entry<String, String> repair : repairs.entrySet()) {
+            if (kept.contains(repair.getValue())) {
+                repairing.add(repair.getKey());
+            }
+        }
+        kept.addAll(repairing);
+        return kept;
+    }
+
+    private static void appendRejected(StringBuilder out, String[] lines, int start, int end,
+                                       String[] fields) {
+        // A rejected section still needs one format to be well formed
+        append(out, fields[0] + " 0 " + fields[2] + " " + fields[3]);
+        for (int i = start + 1; i < end; i++) {
+            if (lines[i].startsWith("c=") || lines[i].startsWith("a=mid:")) {
+                append(out, lines[i]);
+            }
+        }
+    }
+
+    /**
+     * The payload type an rtpmap, fmtp or rtcp-fb line is about, else null.
+     */
+    private static String payloadTypeOf(String line) {
+        int prefix;
+        if (line.startsWith("a=rtpmap:")) {
+            prefix = "a=rtpmap:".length();
+        } else if (line.startsWith("a=fmtp:")) {
+            prefix = "a=fmtp:".length();
+        } else if (line.startsWith("a=rtcp-fb:")) {
+            prefix = "a=rtcp-fb:".length();
+        } else {
+            return null;
+        }
+        int space = line.indexOf(' ', prefix);
+        String payloadType = space < 0 ? line.substring(prefix) : line.substring(prefix, space);
+        // a=rtcp-fb:* applies to every format and is not ours to drop
+        return "*".equals(payloadType) ? null : payloadType;
+    }
+
+    private static String extensionUri(String line) {
+        // a=extmap:<id>[/<direction>] <uri> [<attributes>]
+        String[] fields = line.split(" ");
+        return fields.length > 1 ? fields[1] : "";
+    }
+
+    private static boolean isCname(String line) {
+        // a=ssrc:<ssrc> <attribute>[:<value>]
+        int space = line.indexOf(' ');
+        return space >= 0 && line.startsWith("cname:", space + 1);
+    }
+
+    private static boolean hasLine(String[] lines, int start, int end, String prefix) {
+        for (int i = start + 1; i < end; i++) {
+            if (lines[i].startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasExtension(String[] lines, int start, int end, String uri) {
+        for (int i = start + 1; i < end; i++) {
+            if (lines[i].startsWith("a=extmap:") && uri.equals(extensionUri(lines[i]))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void append(StringBuilder out, String line) {
+        out.append(line).append(LINE_END);
+    }
+
+    /**
+     * Returns what is wrong with a description's structure, or an empty list: formats without
+     * an rtpmap, attributes or rtx types that refer to dropped formats, sections without a mid,
+     * BUNDLE entries without a section, and extension ids used twice in a section.
+     */
+    static List<String> check(String sdp) {
+        List<String> problems = new ArrayList<>();
+        String[] lines = sdp.split(LINE_END);
+        Set<String> mids = new HashSet<>();
+        List<String> bundled = new ArrayList<>();
+        int section = -1;
+        for (int i = 0; i <= lines.length; i++) {
+            if (i < lines.length && !lines[i].startsWith("m=")) {
+                if (section < 0 && lines[i].startsWith("a=group:BUNDLE ")) {
+                    bundled.addAll(Arrays.asList(lines[i].substring("a=group:BUNDLE ".length()).split(" ")));
+                }
+                continue;
+            }
+            if (section >= 0) {
+                checkSection(lines, section, i, mids, problems);
+            }
+            section = i;
+        }
+        for (String mid : bundled) {
+            if (!mids.contains(mid)) {
+                problems.add("BUNDLE names mid " + mid + " with no section");
+            }
+        }
+        return problems;
+    }
+
+    private static void checkSection(String[] lines, int start, int end, Set<String> mids,
+                                     List<String> problems) {
+        String[] fields = lines[start].split(" ");
+        String mid = null;
+        Set<String> extensionIds = new HashSet<>();
+        Set<String> mapped = new HashSet<>();
+        Set<String> formats = new HashSet<>(Arrays.asList(fields).subList(Math.min(3, fields.length), fields.length));
+        for (int i = start + 1; i < end; i++) {
+            String line = lines[i];
+            if (line.startsWith("a=mid:")) {
+                mid = line.substring("a=mid:".length());
+            } else if (line.startsWith("a=extmap:")) {
+                String id = line.substring("a=extmap:".length()).split("[ /]")[0];
+                if (!extensionIds.add(id)) {
+                    problems.add("extension id " + id + " used twice in " + lines[start]);
+                }
+            }
+            String payloadType = payloadTypeOf(line);
+            if (payloadType == null) {
+                continue;
+            }
+            if (!formats.contains(payloadType)) {
+                problems.add("'" + line + "' refers to a format not in the m-line");
+            }
+            if (line.startsWith("a=rtpmap:")) {
+                mapped.add(payloadType);
+            } else if (line.startsWith("a=fmtp:") && line.contains(" apt=")) {
+                String apt = line.substring(line.indexOf(" apt=") + " apt=".length()).split(";")[0];
+                if (!formats.contains(apt)) {
+                    problems.add("rtx " + payloadType + " repairs dropped format " + apt);
+                }
+            }
+        }
+        if (mid == null) {
+            problems.add("no mid in " + lines[start]);
+        } else {
+            mids.add(mid);
+        }
+        boolean rtp = fields.length >= 4 && fields[2].contains("RTP");
+        if (rtp && !"0".equals(fields[1])) {
+            for (String format : formats) {
+                // Payload types below 35 are statically assigned and need no rtpmap
+                if (!mapped.contains(format) && Integer.parseInt(format) >= 35) {
+                    problems.add("format " + format + " has no rtpmap in " + lines[start]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.remotecontrol.android;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide session timeline and steady-state figures.
+ *
+ * Each setup phase keeps the time it was first reached, measured from {@link #startSession}.
+ * Gauges hold the latest sample of a steady-state figure. Every record also goes into a fixed
+ * ring log that {@link #dump} prints oldest first. Recording only touches atomic arrays: it never
+ * locks or allocates, so it stays on in production builds. Formatting happens only when the
+ * overlay or a dump asks for it.
+ */
+final class SessionMetrics {
+    static final int PHASE_CONNECT_REQUESTED = 0;
+    static final int PHASE_SIGNALING_OPEN = 1;
+    static final int PHASE_JOIN_SENT = 2;
+    static final int PHASE_OFFER = 3;
+    static final int PHASE_ANSWER = 4;
+    static final int PHASE_ICE_GATHERED = 5;
+    static final int PHASE_ICE_CONNECTED = 6;
+    static final int PHASE_FIRST_ENCODED_FRAME = 7;
+    static final int PHASE_FIRST_DECODED_FRAME = 8;
+    static final int PHASE_COUNT = 9;
+
+    static final int GAUGE_FPS = 0;
+    static final int GAUGE_ENCODE_MS = 1;
+    static final int GAUGE_DECODE_MS = 2;
+    static final int GAUGE_JITTER_BUFFER_MS = 3;
+    static final int GAUGE_TOUCH_TO_PIXEL_MS = 4;
+    static final int GAUGE_RTT_MS = 5;
+    static final int GAUGE_INJECT_LAG_MS = 6;
+    static final int GAUGE_GLASS_TO_GLASS_MS = 7;
+    static final int GAUGE_COUNT = 8;
+
+    private static final String[] PHASE_NAMES = {
+        "connect", "signaling-open", "join-sent", "offer", "answer",
+        "ice-gathered", "ice-connected", "first-encoded", "first-decoded"
+    };
+    private static final String[] GAUGE_NAMES = {
+        "fps", "encode-ms", "decode-ms", "jitter-buffer-ms", "touch-to-pixel-ms", "rtt-ms",
+        "inject-lag-ms", "glass-to-glass-ms"
+    };
+
+    private static final long UNSET = Long.MIN_VALUE;
+    private static final int KIND_SESSION_START = -1;
+    private static final int KIND_GAUGE_BASE = 100;
+    private static final int LOG_CAPACITY = 512;
+
+    private static final SessionMetrics instance = new SessionMetrics(LOG_CAPACITY);
+
+    private final AtomicLong sessionStartNanos = new AtomicLong(UNSET);
+    private final AtomicLongArray phaseNanos = new AtomicLongArray(PHASE_COUNT);
+    private final AtomicLongArray gaugeBits = new AtomicLongArray(GAUGE_COUNT);
+
+    // Ring log. A slot's stamp is 0 while it is being written and seq + 1 once it is complete,
+    // so a dump can tell a finished entry from a torn or overwritten one.
+    private final int logMask;
+    private final AtomicLong logSequence = new AtomicLong();
+    private final AtomicLongArray logStamps;
+    private final AtomicLongArray logTimes;
+    private final AtomicLongArray logKinds;
+    private final AtomicLongArray logValues;
+
+    SessionMetrics(int logCapacity) {
+        if (Integer.bitCount(logCapacity) != 1) {
+            throw new IllegalArgumentException("Log capacity must be a power of two: " + logCapacity);
+        }
+        logMask = logCapacity - 1;
+        logStamps = new AtomicLongArray(logCapacity);
+        logTimes = new AtomicLongArray(logCapacity);
+        logKinds = new AtomicLongArray(logCapacity);
+        logValues = new AtomicLongArray(logCapacity);
+        clearSession();
+    }
+
+    static SessionMetrics get() {
+        return instance;
+    }
+
+    /**
+     * Starts a new timeline. Phases from a previous session are forgotten; the log keeps them.
+     */
+    void startSession() {
+        clearSession();
+        long now = System.nanoTime();
+        sessionStartNanos.set(now);
+        record(KIND_SESSION_START, now, 0);
+    }
+
+    private void clearSession() {
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            phaseNanos.set(i, UNSET);
+        }
+        for (int i = 0; i < GAUGE_COUNT; i++) {
+            gaugeBits.set(i, Double.doubleToRawLongBits(Double.NaN));
+        }
+    }
+
+    /**
+     * Records that a phase was reached. Only the first time per session counts.
+     */
+    void markPhase(int phase) {
+        long now = System.nanoTime();
+        // Per-frame callers only read; the first one of the session pays for the CAS
+        if (phaseNanos.get(phase) == UNSET && phaseNanos.compareAndSet(phase, UNSET, now)) {
+            record(phase, now, 0);
+        }
+    }
+
+    void setGauge(int gauge, double value) {
+        gaugeBits.set(gauge, Double.doubleToRawLongBits(value));
+        record(KIND_GAUGE_BASE + gauge, System.nanoTime(), Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * Milliseconds from session start to the phase, or -1 if it has not been reached.
+     */
+    long phaseMillis(int phase) {
+        long start = sessionStartNanos.get();
+        long reached = phaseNanos.get(phase);
+        if (start == UNSET || reached == UNSET) {
+            return -1;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(reached - start);
+    }
+
+    /**
+     * Latest sample of the gauge, or NaN if there is none this session.
+     */
+    double gauge(int gauge) {
+        return Double.longBitsToDouble(gaugeBits.get(gauge));
+    }
+
+    private void record(int kind, long timeNanos, long value) {
+        long seq = logSequence.getAndIncrement();
+        int slot = (int) (seq & logMask);
+        logStamps.set(slot, 0);
+        logTimes.set(slot, timeNanos);
+        logKinds.set(slot, kind);
+        logValues.set(slot, value);
+        logStamps.set(slot, seq + 1);
+    }
+
+    /**
+     * Short multi-line summary for the in-app overlay.
+     */
+    void formatSummary(StringBuilder out) {
+        for (int phase = 0; phase < PHASE_COUNT; phase++) {
+            long ms = phaseMillis(phase);
+            if (ms >= 0) {
+                out.append(PHASE_NAMES[phase]).append(' ').append(ms).append(" ms\n");
+            }
+        }
+        for (int gauge = 0; gauge < GAUGE_COUNT; gauge++) {
+            double value = gauge(gauge);
+            if (!Double.isNaN(value)) {
+                out.append(GAUGE_NAMES[gauge]).append(' ').append(Math.round(value * 10) / 10.0).append('\n');
+            }
+        }
+        if (out.length() > 0 && out.charAt(out.length() - 1) == '\n') {
+            out.setLength(out.length() - 1);
+        }
+    }
+
+    /**
+     * Prints the current session and the ring log, e.g. from {@code Service.dump}.
+     */
+    void dump(PrintWriter writer) {
+        StringBuilder summary = new StringBuilder();
+        formatSummary(summary);
+        writer.println("Session metrics:");
+        writer.println(summary);
+
+        long end = logSequence.get();
+        long begin = Math.max(0, end - (logMask + 1));
+        writer.println("Event log (" + (end - begin) + " of " + end + " entries):");
+        for (long seq = begin; seq < end; seq++) {
+            int slot = (int) (seq & logMask);
+            long stamp = logStamps.get(slot);
+            long time = logTimes.get(slot);
+            long kind = logKinds.get(slot);
+            long value = logValues.get(slot);
+            if (stamp != seq + 1 || logStamps.get(slot) != stamp) {
+                // Overwritten or still being written
+                continue;
+            }
+            writer.print(TimeUnit.NANOSECONDS.toMillis(time));
+            writer.print(' ');
+            if (kind == KIND_SESSION_START) {
+                writer.println("session-start");
+            } else if (kind >= KIND_GAUGE_BASE) {
+                writer.println(GAUGE_NAMES[(int) kind - KIND_GAUGE_BASE] + " "
+                    + Double.longBitsToDouble(value));
+            } else {
+                writer.println(PHASE_NAMES[(int) kind]);
+            }
+        }
+    }
+}
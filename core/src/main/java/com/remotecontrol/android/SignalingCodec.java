@@ -0,0 +1,502 @@
+package com.remotecontrol.android;
+
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Streaming JSON codec for the signaling envelope {@code {"type": ..., "data": ...}}.
+ *
+ * Payloads are written inline as JSON objects in one pass, and the reader dispatches on the type
+ * straight from the token stream, so neither side builds an intermediate payload string or goes
+ * through reflection. Older peers sent the payload as an escaped JSON string; the reader still
+ * accepts that form.
+ *
+ * The optional {@code from} and {@code to} fields carry peer ids so one host can talk to several
+ * guests through the same relay room. A message without {@code to} is for everyone in the room.
+ *
+ * Candidates and descriptions are plain {@link Candidate} and {@link Description} values, not the
+ * WebRTC types, so the codec runs on a plain JVM; the client converts at its edge.
+ *
+ * Every description says it accepts deflate-compressed descriptions in return; a sender only
+ * compresses for a peer that said so, since older peers read the field as plain SDP.
+ */
+final class SignalingCodec {
+    enum Type {
+        CONNECTION_REQUEST,
+        ICE_CANDIDATE,
+        ICE_CANDIDATES,
+        SESSION_DESCRIPTION,
+        TOUCH_EVENT,
+        QUALITY_LEVEL
+    }
+
+    /**
+     * Receives decoded messages. {@code from} is the sender's peer id, or null from peers that
+     * predate addressing.
+     */
+    interface Handler {
+        /**
+         * Returns false to drop a message, e.g. one addressed to another peer or an echo of our
+         * own, before its payload is used.
+         */
+        boolean accepts(String from, String to);
+
+        void onConnectionRequest(String hostCode, String from);
+
+        void onIceCandidate(Candidate candidate, String from);
+
+        /**
+         * A batch of trickled candidates. {@code complete} marks the sender's end of candidates;
+         * the batch may then be empty.
+         */
+        void onIceCandidates(List<Candidate> candidates, boolean complete, String from);
+
+        void onSessionDescription(Description description, String from);
+
+        void onTouchEvent(TouchEvent event, String from);
+
+        /**
+         * A rung of {@code StreamQualityPolicy.LADDER}: from a guest, where it would like the
+         * stream to start; from the host, where the stream is now.
+         */
+        void onQualityLevel(int level, String from);
+    }
+
+    /**
+     * An ICE candidate as it crosses the wire.
+     */
+    static final class Candidate {
+        final String sdpMid;
+        final int sdpMLineIndex;
+        final String sdp;
+
+        Candidate(String sdpMid, int sdpMLineIndex, String sdp) {
+            this.sdpMid = sdpMid;
+            this.sdpMLineIndex = sdpMLineIndex;
+            this.sdp = sdp;
+        }
+    }
+
+    /**
+     * A session description as it crosses the wire.
+     */
+    static final class Description {
+        static final String OFFER = "offer";
+        static final String ANSWER = "answer";
+
+        // Canonical form: "offer", "pranswer", "answer" or "rollback"
+        final String type;
+        final String sdp;
+        // Whether the sender reads compressed descriptions; only meaningful on received ones
+        final boolean acceptsCompressed;
+
+        Description(String type, String sdp) {
+            this(type, sdp, false);
+        }
+
+        Description(String type, String sdp, boolean acceptsCompressed) {
+            this.type = type;
+            this.sdp = sdp;
+            this.acceptsCompressed = acceptsCompressed;
+        }
+    }
+
+    // Typical sizes, so the writer rarely has to grow
+    private static final int SMALL_MESSAGE_CHARS = 256;
+    private static final int SDP_OVERHEAD_CHARS = 64;
+
+    private SignalingCodec() {
+    }
+
+    static String encodeConnectionRequest(String hostCode, String from, String to) {
+        StringWriter out = new StringWriter(SMALL_MESSAGE_CHARS);
+        try {
+            JsonWriter writer = beginMessage(out, Type.CONNECTION_REQUEST, from, to);
+            writer.value(hostCode);
+            return endMessage(writer, out);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    static String encodeIceCandidate(Candidate candidate, String from, String to) {
+        StringWriter out = new StringWriter(SMALL_MESSAGE_CHARS + candidate.sdp.length());
+        try {
+            JsonWriter writer = beginMessage(out, Type.ICE_CANDIDATE, from, to);
+            writeIceCandidate(writer, candidate);
+            return endMessage(writer, out);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    static String encodeIceCandidates(List<Candidate> candidates, boolean complete, String from,
+                                      String to) {
+        StringWriter out = new StringWriter(SMALL_MESSAGE_CHARS * (1 + candidates.size()));
+        try {
+            JsonWriter writer = beginMessage(out, Type.ICE_CANDIDATES, from, to);
+            writer.beginObject();
+            writer.name("candidates").beginArray();
+            for (Candidate candidate : candidates) {
+                writeIceCandidate(writer, candidate);
+            }
+            writer.endArray();
+            writer.name("complete").value(complete);
+            writer.endObject();
+            return endMessage(writer, out);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    static String encodeSessionDescription(Description description, String from, String to) {
+        return encodeSessionDescription(description, from, to, false);
+    }
+
+    /**
+     * @param compress deflate the SDP; only for a peer whose description
+     *                 {@link Description#acceptsCompressed accepts} it
+     */
+    static String encodeSessionDescription(Description description, String from, String to,
+                                           boolean compress) {
+        String sdp = compress ? SdpCompression.compress(description.sdp) : description.sdp;
+        StringWriter out = new StringWriter(SDP_OVERHEAD_CHARS + sdp.length() * 11 / 10);
+        try {
+            JsonWriter writer = beginMessage(out, Type.SESSION_DESCRIPTION, from, to);
+            writer.beginObject();
+            writer.name("type").value(description.type);
+            if (compress) {
+                writer.name("encoding").value(SdpCompression.ENCODING);
+            }
+            writer.name("description").value(sdp);
+            writer.name("acceptEncoding").value(SdpCompression.ENCODING);
+            writer.endObject();
+            return endMessage(writer, out);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    static String encodeQualityLevel(int level, String from, String to) {
+        StringWriter out = new StringWriter(SMALL_MESSAGE_CHARS);
+        try {
+            JsonWriter writer = beginMessage(out, Type.QUALITY_LEVEL, from, to);
+            writer.beginObject();
+            writer.name("level").value(level);
+            writer.endObject();
+            return endMessage(writer, out);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void writeIceCandidate(JsonWriter writer, Candidate candidate) throws IOException {
+        writer.beginObject();
+        writer.name("sdpMid").value(candidate.sdpMid);
+        writer.name("sdpMLineIndex").value(candidate.sdpMLineIndex);
+        writer.name("sdp").value(candidate.sdp);
+        writer.endObject();
+    }
+
+    private static JsonWriter beginMessage(StringWriter out, Type type, String from, String to)
+            throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginObject();
+        writer.name("type").value(type.name());
+        if (from != null) {
+            writer.name("from").value(from);
+        }
+        if (to != null) {
+            writer.name("to").value(to);
+        }
+        writer.name("data");
+        return writer;
+    }
+
+    private static String endMessage(JsonWriter writer, StringWriter out) throws IOException {
+        writer.endObject();
+        writer.flush();
+        return out.toString();
+    }
+
+    /**
+     * Parses one message and passes its payload to the handler. Unknown types and messages the
+     * handler does not accept are skipped.
+     *
+     * @throws IOException if the message is not valid JSON or is missing its type
+     */
+    static void decode(String message, Handler handler) throws IOException {
+        JsonReader reader = new JsonReader(new StringReader(message));
+        boolean hasType = false;
+        Type type = null;
+        String from = null;
+        String to = null;
+        Object payload = null;
+        String deferredData = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("type".equals(name)) {
+                hasType = true;
+                type = parseType(reader.nextString());
+            } else if ("from".equals(name)) {
+                from = nextNullableString(reader);
+            } else if ("to".equals(name)) {
+                to = nextNullableString(reader);
+            } else if ("data".equals(name) && !hasType) {
+                // Only if a peer puts data before type; keep it and read it once the type is known
+                deferredData = JsonParser.parseReader(reader).toString();
+            } else if ("data".equals(name) && type != null) {
+                payload = readData(reader, type);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (!hasType) {
+            throw new IOException("Signaling message without a type");
+        }
+        if (type == null || !handler.accepts(from, to)) {
+            return;
+        }
+        if (deferredData != null) {
+            payload = readData(new JsonReader(new StringReader(deferredData)), type);
+        }
+        if (payload == null) {
+            throw new IOException("Signaling message without data: " + type);
+        }
+        // Addressing fields may follow the payload, so dispatch only once the envelope is read
+        switch (type) {
+            case CONNECTION_REQUEST:
+                handler.onConnectionRequest((String) payload, from);
+                break;
+            case ICE_CANDIDATE:
+                handler.onIceCandidate((Candidate) payload, from);
+                break;
+            case ICE_CANDIDATES:
+                CandidateBatch batch = (CandidateBatch) payload;
+                handler.onIceCandidates(batch.candidates, batch.complete, from);
+                break;
+            case SESSION_DESCRIPTION:
+                handler.onSessionDescription((Description) payload, from);
+                break;
+            case TOUCH_EVENT:
+                handler.onTouchEvent((TouchEvent) payload, from);
+                break;
+            case QUALITY_LEVEL:
+                handler.onQualityLevel((Integer) payload, from);
+                break;
+        }
+    }
+
+    private static Type parseType(String name) {
+        try {
+            return Type.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static Object readData(JsonReader reader, Type type) throws IOException {
+        if (type != Type.CONNECTION_REQUEST && reader.peek() == JsonToken.STRING) {
+            // Legacy peers send the payload as an escaped JSON string
+            reader = new JsonReader(new StringReader(reader.nextString()));
+        }
+        switch (type) {
+            case CONNECTION_REQUEST:
+                return reader.nextString();
+            case ICE_CANDIDATE:
+                return readIceCandidate(reader);
+            case ICE_CANDIDATES:
+                return readCandidateBatch(reader);
+            case SESSION_DESCRIPTION:
+                return readSessionDescription(reader);
+            case TOUCH_EVENT:
+                return readTouchEvent(reader);
+            case QUALITY_LEVEL:
+                return readQualityLevel(reader);
+            default:
+                throw new IllegalArgumentException("Unknown type " + type);
+        }
+    }
+
+    private static Candidate readIceCandidate(JsonReader reader) throws IOException {
+        String sdpMid = null;
+        int sdpMLineIndex = 0;
+        String sdp = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "sdpMid":
+                    sdpMid = nextNullableString(reader);
+                    break;
+                case "sdpMLineIndex":
+                    sdpMLineIndex = reader.nextInt();
+                    break;
+                case "sdp":
+                case "candidate":
+                    sdp = reader.nextString();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        if (sdp == null) {
+            throw new IOException("ICE candidate without sdp");
+        }
+        return new Candidate(sdpMid, sdpMLineIndex, sdp);
+    }
+
+    private static CandidateBatch readCandidateBatch(JsonReader reader) throws IOException {
+        CandidateBatch batch = new CandidateBatch();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "candidates":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        batch.candidates.add(readIceCandidate(reader));
+                    }
+                    reader.endArray();
+                    break;
+                case "complete":
+                    batch.complete = reader.nextBoolean();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        return batch;
+    }
+
+    private static Description readSessionDescription(JsonReader reader) throws IOException {
+        String type = null;
+        String description = null;
+        String encoding = null;
+        boolean acceptsCompressed = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "type":
+                    // Canonical "offer" from current peers, enum name "OFFER" from legacy ones
+                    type = reader.nextString().toLowerCase(Locale.ROOT);
+                    break;
+                case "description":
+                case "sdp":
+                    description = reader.nextString();
+                    break;
+                case "encoding":
+                    encoding = nextNullableString(reader);
+                    break;
+                case "acceptEncoding":
+                    acceptsCompressed = SdpCompression.ENCODING.equals(nextNullableString(reader));
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        if (type == null || description == null) {
+            throw new IOException("Incomplete session description");
+        }
+        if (!isDescriptionType(type)) {
+            throw new IOException("Unknown session description type: " + type);
+        }
+        if (SdpCompression.ENCODING.equals(encoding)) {
+            description = SdpCompression.decompress(description);
+        } else if (encoding != null) {
+            throw new IOException("Unknown session description encoding: " + encoding);
+        }
+        return new Description(type, description, acceptsCompressed);
+    }
+
+    private static TouchEvent readTouchEvent(JsonReader reader) throws IOException {
+        int action = 0;
+        int pointerId = 0;
+        long eventTime = 0;
+        float x = 0;
+        float y = 0;
+        float pressure = 0;
+        float size = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "action":
+                    action = reader.nextInt();
+                    break;
+                case "pointerId":
+                    pointerId = reader.nextInt();
+                    break;
+                case "eventTime":
+                    eventTime = reader.nextLong();
+                    break;
+                case "x":
+                    x = (float) reader.nextDouble();
+                    break;
+                case "y":
+                    y = (float) reader.nextDouble();
+                    break;
+                case "pressure":
+                    pressure = (float) reader.nextDouble();
+                    break;
+                case "size":
+                    size = (float) reader.nextDouble();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        return new TouchEvent(action, pointerId, eventTime, x, y, pressure, size);
+    }
+
+    private static Integer readQualityLevel(JsonReader reader) throws IOException {
+        Integer level = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("level".equals(reader.nextName())) {
+                level = reader.nextInt();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (level == null || level < 0) {
+            throw new IOException("Quality level missing or negative");
+        }
+        return level;
+    }
+
+    private static boolean isDescriptionType(String type) {
+        return type.equals(Description.OFFER) || type.equals("pranswer") || type.equals(Description.ANSWER)
+            || type.equals("rollback");
+    }
+
+    private static String nextNullableString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    private static final class CandidateBatch {
+        final List<Candidate> candidates = new ArrayList<>();
+        boolean complete;
+    }
+}
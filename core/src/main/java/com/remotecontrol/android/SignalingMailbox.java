@@ -0,0 +1,189 @@
+package com.remotecontrol.android;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One thread that runs signaling work in the order it was posted, fed by a lock-free queue.
+ *
+ * A {@code SignalingClient} keeps its session state on this thread only, so socket callbacks, UI
+ * calls and timers post tasks instead of taking a lock. Tasks run one at a time; tasks posted by
+ * one thread run in the order that thread posted them.
+ *
+ * Posting never blocks: it swaps the tail and links the previous node. The thread parks while the
+ * queue is empty, and a post that finds it parked unparks it. Queue depth and how long tasks
+ * waited are kept for dumps, so a stalled consumer shows up there.
+ */
+final class SignalingMailbox implements Runnable {
+    // Log2 buckets of microseconds waited, the last one open-ended at about 8 s
+    private static final int LATENCY_BUCKETS = 24;
+
+    private static final class Node {
+        Runnable task;
+        final long postedNanos;
+        volatile Node next;
+
+        Node(Runnable task, long postedNanos) {
+            this.task = task;
+            this.postedNanos = postedNanos;
+        }
+    }
+
+    private final Thread thread;
+    // Producers swap in new nodes here
+    private final AtomicReference<Node> tail;
+    // Dispatch thread only: the last node taken
+    private Node head;
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicInteger maxDepth = new AtomicInteger();
+    private final AtomicLongArray waitBuckets = new AtomicLongArray(LATENCY_BUCKETS);
+    // Written by the dispatch thread only
+    private volatile long dispatched;
+    private volatile long maxWaitNanos;
+    private volatile long failed;
+    private volatile String lastFailure;
+    private volatile boolean parked;
+    private volatile boolean running;
+
+    SignalingMailbox(String name) {
+        Node stub = new Node(null, 0);
+        head = stub;
+        tail = new AtomicReference<>(stub);
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * Stops after the task running now; anything still queued is dropped.
+     */
+    void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Queues a task. Safe from any thread, including the dispatch thread.
+     */
+    void post(Runnable task) {
+        Node node = new Node(task, System.nanoTime());
+        int queued = depth.incrementAndGet();
+        int max = maxDepth.get();
+        while (queued > max && !maxDepth.compareAndSet(max, queued)) {
+            max = maxDepth.get();
+        }
+        Node previous = tail.getAndSet(node);
+        previous.next = node;
+        if (parked) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    boolean isDispatchThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            Node next = head.next;
+            if (next == null) {
+                if (tail.get() != head) {
+                    // A post has swapped the tail but not linked its node yet
+                    Thread.yield();
+                    continue;
+                }
+                parked = true;
+                // Checked again after publishing parked, so a post in between is not missed
+                if (head.next == null && tail.get() == head && running) {
+                    LockSupport.park(this);
+                }
+                parked = false;
+                continue;
+            }
+            head = next;
+            Runnable task = next.task;
+            next.task = null;
+            depth.decrementAndGet();
+            recordWait(System.nanoTime() - next.postedNanos);
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // One bad message must not stop the session
+                failed++;
+                lastFailure = e.toString();
+            }
+            dispatched++;
+        }
+    }
+
+    int getDepth() {
+        return depth.get();
+    }
+
+    int getMaxDepth() {
+        return maxDepth.get();
+    }
+
+    long getDispatched() {
+        return dispatched;
+    }
+
+    long getFailed() {
+        return failed;
+    }
+
+    /**
+     * Upper bound of the wait below which {@code quantile} of tasks started, in microseconds.
+     */
+    long waitPercentileMicros(double quantile) {
+        long total = 0;
+        long[] counts = new long[LATENCY_BUCKETS];
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            counts[i] = waitBuckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return 1L << i;
+            }
+        }
+        return 1L << (LATENCY_BUCKETS - 1);
+    }
+
+    long getMaxWaitMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxWaitNanos);
+    }
+
+    String describe() {
+        String summary = String.format(Locale.ROOT,
+            "%d dispatched, depth %d (max %d), wait p50 <%d us, p99 <%d us, max %d us, %d failed",
+            dispatched, getDepth(), getMaxDepth(), waitPercentileMicros(0.50),
+            waitPercentileMicros(0.99), getMaxWaitMicros(), failed);
+        String failure = lastFailure;
+        return failure != null ? summary + ", last: " + failure : summary;
+    }
+
+    private void recordWait(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        int bucket = micros <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+        waitBuckets.incrementAndGet(Math.min(bucket, LATENCY_BUCKETS - 1));
+        if (nanos > maxWaitNanos) {
+            maxWaitNanos = nanos;
+        }
+    }
+}
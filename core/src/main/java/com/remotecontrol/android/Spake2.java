@@ -0,0 +1,217 @@
+package com.remotecontrol.android;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * One side of a SPAKE2 exchange keyed by the access code, in the 2048-bit MODP group of RFC 3526.
+ *
+ * Each side sends one group element that hides a fresh secret behind the code, then a
+ * confirmation that only someone who used the same code can produce. Neither message lets an
+ * eavesdropper or a dishonest peer test guesses at the code offline: a peer with a wrong code
+ * learns only that its one guess was wrong. The guest's element is T, the host's is S, as in
+ * RFC 9382, and both are bound to the host's session nonce.
+ *
+ * Not thread-safe; one instance per connection attempt.
+ */
+final class Spake2 {
+    static final String GUEST = "guest";
+    static final String HOST = "host";
+
+    // RFC 3526 group 14: a safe prime p = 2q + 1, and 2 generates the subgroup of order q
+    private static final BigInteger P = new BigInteger(
+        "FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD129024E088A67CC74020BBEA63B139B22514A0879"
+            + "8E3404DDEF9519B3CD3A431B302B0A6DF25F14374FE1356D6D51C245E485B576625E7EC6F44C42E9A637ED"
+            + "6B0BFF5CB6F406B7EDEE386BFB5A899FA5AE9F24117C4B1FE649286651ECE45B3DC2007CB8A163BF0598DA"
+            + "48361C55D39A69163FA8FD24CF5F83655D23DCA3AD961C62F356208552BB9ED529077096966D670C354E4A"
+            + "BC9804F1746C08CA18217C32905E462E36CE3BE39E772C180E86039B2783A2EC07A28FB5C55DF06F4C52C9"
+            + "DE2BCBF6955817183995497CEA956AE515D2261898FA051015728E5A8AACAA68FFFFFFFFFFFFFFFF", 16);
+    private static final BigInteger Q = P.shiftRight(1);
+    private static final BigInteger G = BigInteger.valueOf(2);
+    private static final int ELEMENT_BYTES = 256;
+    // Secret exponents; twice the security level the group offers
+    private static final int EXPONENT_BITS = 256;
+    // Nothing-up-my-sleeve elements with unknown discrete logs, one per side
+    private static final BigInteger M = hashToGroup("RCLAN2 SPAKE2 M");
+    private static final BigInteger N = hashToGroup("RCLAN2 SPAKE2 N");
+    private static final SecureRandom random = new SecureRandom();
+
+    private final String side;
+    private final String hostNonce;
+    private final BigInteger w;
+    private final BigInteger secret;
+    private final BigInteger message;
+    private byte[] ownConfirmKey;
+    private byte[] peerConfirmKey;
+    private byte[] transcriptHash;
+
+    /**
+     * @param side      {@link #GUEST} or {@link #HOST}
+     * @param hostNonce the host's session nonce, from its announce
+     */
+    Spake2(String side, String hostCode, String hostNonce) {
+        if (!GUEST.equals(side) && !HOST.equals(side)) {
+            throw new IllegalArgumentException(side);
+        }
+        this.side = side;
+        this.hostNonce = hostNonce;
+        w = new BigInteger(1, sha256(("RCLAN2 SPAKE2 w " + hostCode).getBytes(StandardCharsets.UTF_8))).mod(Q);
+        BigInteger exponent;
+        synchronized (random) {
+            do {
+                exponent = new BigInteger(EXPONENT_BITS, random);
+            } while (exponent.signum() == 0);
+        }
+        secret = exponent;
+        BigInteger blind = (GUEST.equals(side) ? M : N).modPow(w, P);
+        message = G.modPow(secret, P).multiply(blind).mod(P);
+    }
+
+    /**
+     * This side's element, T or S, as hex.
+     */
+    String getMessage() {
+        return toHex(toBytes(message));
+    }
+
+    /**
+     * Takes the peer's element and derives the shared keys. Returns false, and derives nothing,
+     * if it is not an element of the group.
+     */
+    boolean receive(String peerMessage) {
+        BigInteger peer = parseElement(peerMessage);
+        if (peer == null || transcriptHash != null) {
+            return false;
+        }
+        boolean guest = GUEST.equals(side);
+        BigInteger unblind = (guest ? N : M).modPow(w, P).modInverse(P);
+        BigInteger key = peer.multiply(unblind).mod(P).modPow(secret, P);
+        BigInteger t = guest ? message : peer;
+        BigInteger s = guest ? peer : message;
+
+        MessageDigest transcript = sha256Digest();
+        append(transcript, GUEST.getBytes(StandardCharsets.US_ASCII));
+        append(transcript, (HOST + " " + hostNonce).getBytes(StandardCharsets.UTF_8));
+        append(transcript, toBytes(M));
+        append(transcript, toBytes(N));
+        append(transcript, toBytes(t));
+        append(transcript, toBytes(s));
+        append(transcript, toBytes(key));
+        append(transcript, toBytes(w));
+        transcriptHash = transcript.digest();
+        byte[] guestKey = hmac(transcriptHash, "guest confirmation".getBytes(StandardCharsets.US_ASCII));
+        byte[] hostKey = hmac(transcriptHash, "host confirmation".getBytes(StandardCharsets.US_ASCII));
+        ownConfirmKey = guest ? guestKey : hostKey;
+        peerConfirmKey = guest ? hostKey : guestKey;
+        return true;
+    }
+
+    /**
+     * This side's key confirmation, as hex; only after {@link #receive} succeeded.
+     */
+    String getConfirmation() {
+        if (transcriptHash == null) {
+            throw new IllegalStateException("No peer element yet");
+        }
+        return toHex(hmac(ownConfirmKey, transcriptHash));
+    }
+
+    /**
+     * Whether the peer used the same code, compared in constant time.
+     */
+    boolean isConfirmation(String peerConfirmation) {
+        if (transcriptHash == null || peerConfirmation == null) {
+            return false;
+        }
+        byte[] expected = toHex(hmac(peerConfirmKey, transcriptHash)).getBytes(StandardCharsets.US_ASCII);
+        return MessageDigest.isEqual(expected, peerConfirmation.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Hex of exactly one element in the order-q subgroup other than 1, else null.
+     */
+    private static BigInteger parseElement(String hex) {
+        if (hex == null || hex.length() != 2 * ELEMENT_BYTES) {
+            return null;
+        }
+        BigInteger element;
+        try {
+            element = new BigInteger(hex, 16);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (element.compareTo(BigInteger.ONE) <= 0 || element.compareTo(P) >= 0
+                || !element.modPow(Q, P).equals(BigInteger.ONE)) {
+            return null;
+        }
+        return element;
+    }
+
+    private static BigInteger hashToGroup(String seed) {
+        // Wide enough that reducing mod p leaves no useful bias; squaring lands in the subgroup
+        byte[] wide = new byte[ELEMENT_BYTES + 32];
+        for (int block = 0; block * 32 < wide.length; block++) {
+            byte[] digest = sha256((seed + " " + block).getBytes(StandardCharsets.US_ASCII));
+            System.arraycopy(digest, 0, wide, block * 32, Math.min(32, wide.length - block * 32));
+        }
+        return new BigInteger(1, wide).mod(P).modPow(BigInteger.valueOf(2), P);
+    }
+
+    /**
+     * Length-prefixed, so no two transcripts hash the same bytes.
+     */
+    private static void append(MessageDigest digest, byte[] field) {
+        long length = field.length;
+        for (int i = 0; i < 8; i++) {
+            digest.update((byte) (length >>> (8 * i)));
+        }
+        digest.update(field);
+    }
+
+    /**
+     * Big-endian, left-padded to the size of p.
+     */
+    private static byte[] toBytes(BigInteger value) {
+        byte[] raw = value.toByteArray();
+        byte[] out = new byte[ELEMENT_BYTES];
+        int copy = Math.min(raw.length, ELEMENT_BYTES);
+        System.arraycopy(raw, raw.length - copy, out, ELEMENT_BYTES - copy, copy);
+        return out;
+    }
+
+    private static String toHex(byte[] data) {
+        StringBuilder hex = new StringBuilder(data.length * 2);
+        for (byte b : data) {
+            hex.append(Character.forDigit((b >>> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static MessageDigest sha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static byte[] sha256(byte[] data) {
+        return sha256Digest().digest(data);
+    }
+
+    private static byte[] hmac(byte[] key, byte[] data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data);
+        } catch (GeneralSecurityException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
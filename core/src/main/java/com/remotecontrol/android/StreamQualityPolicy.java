@@ -0,0 +1,190 @@
+package com.remotecontrol.android;
+
+/**
+ * Decides the screen stream operating point from periodic link measurements.
+ *
+ * The policy walks a fixed ladder. It steps down after {@link #DOWN_SAMPLES} consecutive congested
+ * samples and up only after a longer run of clean ones. If a step up is followed by congestion
+ * soon after, the wait before the next probe doubles, so a link that sits between two rungs
+ * settles instead of oscillating. It holds no Android or WebRTC types so it can be driven by a
+ * simulator.
+ *
+ * The bandwidth estimate starts low and climbs over the first seconds of a call. While it is still
+ * climbing, falling short of the current cap says nothing about the link, so a shortfall only
+ * counts as congestion once the estimate has stopped growing.
+ */
+class StreamQualityPolicy {
+    static final int DOWN_SAMPLES = 2;
+    static final int MIN_UP_SAMPLES = 5;
+    static final int MAX_UP_SAMPLES = 40;
+    static final int FAILED_PROBE_WINDOW = 6;
+
+    static final double LOSS_CONGESTED = 0.05;
+    static final double LOSS_CLEAN = 0.02;
+    static final double RTT_CONGESTED_MS = 400;
+    static final double RTT_CLEAN_MS = 250;
+    static final double BITRATE_HEADROOM = 1.2;
+    static final double BITRATE_SHORTFALL = 0.85;
+    // Growth per sample above which the estimate is taken to be still ramping up
+    static final double BITRATE_GROWTH = 1.01;
+
+    static final OperatingPoint[] LADDER = {
+        new OperatingPoint(1280, 720, 1.0, 30, 2_500_000),
+        new OperatingPoint(1280, 720, 1.0, 20, 1_500_000),
+        new OperatingPoint(1280, 720, 1.5, 20, 900_000),
+        new OperatingPoint(960, 540, 1.5, 15, 500_000),
+        new OperatingPoint(960, 540, 2.0, 10, 250_000),
+    };
+
+    private final double qpHigh;
+    private int level;
+    private int congestedRun;
+    private int cleanRun;
+    private int upSamples = MIN_UP_SAMPLES;
+    private int samplesSinceStepUp = Integer.MAX_VALUE;
+    private double lastAvailableBitrateBps = -1;
+    private boolean estimateRising = true;
+
+    /**
+     * @param qpHigh average QP above which the encoder is considered starved; codec dependent
+     *               (around 37 for H.264, around 95 for VP8)
+     */
+    StreamQualityPolicy(double qpHigh) {
+        this.qpHigh = qpHigh;
+    }
+
+    OperatingPoint current() {
+        return LADDER[level];
+    }
+
+    int level() {
+        return level;
+    }
+
+    /**
+     * Starts from a known-good level instead of the top, e.g. from a cached profile.
+     */
+    void setLevel(int level) {
+        this.level = Math.max(0, Math.min(LADDER.length - 1, level));
+        congestedRun = 0;
+        cleanRun = 0;
+    }
+
+    /**
+     * Feeds one measurement and returns true if the operating point changed.
+     */
+    boolean onSample(LinkSample sample) {
+        if (samplesSinceStepUp != Integer.MAX_VALUE) {
+            samplesSinceStepUp++;
+        }
+        if (sample.hasAvailableBitrate()) {
+            estimateRising = lastAvailableBitrateBps < 0
+                || sample.availableBitrateBps > lastAvailableBitrateBps * BITRATE_GROWTH;
+            lastAvailableBitrateBps = sample.availableBitrateBps;
+        }
+        if (isCongested(sample)) {
+            cleanRun = 0;
+            congestedRun++;
+            if (congestedRun >= DOWN_SAMPLES && level < LADDER.length - 1) {
+                if (samplesSinceStepUp <= FAILED_PROBE_WINDOW) {
+                    // The last probe up did not hold; wait longer before the next one
+                    upSamples = Math.min(MAX_UP_SAMPLES, upSamples * 2);
+                }
+                level++;
+                congestedRun = 0;
+                samplesSinceStepUp = Integer.MAX_VALUE;
+                return true;
+            }
+            return false;
+        }
+
+        congestedRun = 0;
+        if (!isClean(sample)) {
+            cleanRun = 0;
+            return false;
+        }
+        cleanRun++;
+        if (cleanRun >= upSamples && level > 0) {
+            level--;
+            cleanRun = 0;
+            samplesSinceStepUp = 0;
+            return true;
+        }
+        if (samplesSinceStepUp != Integer.MAX_VALUE && samplesSinceStepUp > FAILED_PROBE_WINDOW
+                && upSamples > MIN_UP_SAMPLES) {
+            // The level held; relax the probe interval again
+            upSamples = Math.max(MIN_UP_SAMPLES, upSamples / 2);
+            samplesSinceStepUp = Integer.MAX_VALUE;
+        }
+        return false;
+    }
+
+    private boolean isCongested(LinkSample sample) {
+        OperatingPoint point = current();
+        return sample.lossFraction > LOSS_CONGESTED
+            || sample.rttMs > RTT_CONGESTED_MS
+            || (sample.hasAvailableBitrate() && !estimateRising
+                && sample.availableBitrateBps < point.maxBitrateBps * BITRATE_SHORTFALL)
+            || (sample.hasQp() && sample.averageQp > qpHigh);
+    }
+
+    private boolean isClean(LinkSample sample) {
+        if (level == 0) {
+            return false;
+        }
+        // The bandwidth estimate rarely runs far ahead of what we send, so headroom above the
+        // current cap is enough to probe the next rung; a failed probe is caught by the backoff
+        return sample.lossFraction < LOSS_CLEAN
+            && sample.rttMs < RTT_CLEAN_MS
+            && (!sample.hasAvailableBitrate()
+                || sample.availableBitrateBps >= current().maxBitrateBps * BITRATE_HEADROOM);
+    }
+
+    static final class OperatingPoint {
+        final int captureWidth;
+        final int captureHeight;
+        final double scaleResolutionDownBy;
+        final int maxFramerate;
+        final int maxBitrateBps;
+
+        OperatingPoint(int captureWidth, int captureHeight, double scaleResolutionDownBy,
+                       int maxFramerate, int maxBitrateBps) {
+            this.captureWidth = captureWidth;
+            this.captureHeight = captureHeight;
+            this.scaleResolutionDownBy = scaleResolutionDownBy;
+            this.maxFramerate = maxFramerate;
+            this.maxBitrateBps = maxBitrateBps;
+        }
+
+        @Override
+        public String toString() {
+            return captureWidth + "x" + captureHeight + "/" + scaleResolutionDownBy
+                + "@" + maxFramerate + " " + (maxBitrateBps / 1000) + "kbps";
+        }
+    }
+
+    static final class LinkSample {
+        final double rttMs;
+        final double lossFraction;
+        final double availableBitrateBps;
+        final double averageQp;
+
+        /**
+         * Pass a negative value for any measurement that is not available yet.
+         */
+        LinkSample(double rttMs, double lossFraction, double availableBitrateBps, double averageQp) {
+            this.rttMs = rttMs;
+            this.lossFraction = lossFraction;
+            this.availableBitrateBps = availableBitrateBps;
+            this.averageQp = averageQp;
+        }
+
+        boolean hasAvailableBitrate() {
+            return availableBitrateBps >= 0;
+        }
+
+        boolean hasQp() {
+            return averageQp >= 0;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package com.remotecontrol.android;
+
+import java.util.Arrays;
+
+/**
+ * Turns the host's stream of touch samples into gesture segments that can be injected while the
+ * gesture is still in progress.
+ *
+ * A segment covers a short slice of sample time and holds one stroke per pointer that is down.
+ * A stroke that continues the previous segment starts where that one ended, and a stroke whose
+ * pointer is still down is marked to continue. Long drags are therefore injected slice by slice,
+ * not held back until UP. Holds no Android types; {@code GestureInjectionService} maps
+ * segments to continued {@code StrokeDescription}s.
+ */
+class StrokePlanner implements TouchEventCodec.Sink {
+    static final long DEFAULT_SLICE_MS = 16;
+    private static final int MAX_POINTERS = 10;
+
+    interface Output {
+        void onSegment(Segment segment);
+    }
+
+    static final class Stroke {
+        final int pointerId;
+        final float[] points;
+        final int pointCount;
+        final boolean continuesPrevious;
+        final boolean willContinue;
+
+        Stroke(int pointerId, float[] points, int pointCount, boolean continuesPrevious,
+               boolean willContinue) {
+            this.pointerId = pointerId;
+            this.points = points;
+            this.pointCount = pointCount;
+            this.continuesPrevious = continuesPrevious;
+            this.willContinue = willContinue;
+        }
+
+        float getX(int index) {
+            return points[index * 2];
+        }
+
+        float getY(int index) {
+            return points[index * 2 + 1];
+        }
+    }
+
+    static final class Segment {
+        final long startTime;
+        final long endTime;
+        final Stroke[] strokes;
+
+        Segment(long startTime, long endTime, Stroke[] strokes) {
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.strokes = strokes;
+        }
+
+        long getDuration() {
+            return endTime - startTime;
+        }
+
+        /**
+         * True if no stroke continues into the next segment, i.e. the gesture is over.
+         */
+        boolean isLast() {
+            for (Stroke stroke : strokes) {
+                if (stroke.willContinue) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final Output output;
+    private final long sliceMs;
+
+    // Per pointer: points collected for the open segment, and whether it is down at all
+    private final boolean[] down = new boolean[MAX_POINTERS];
+    private final boolean[] ending = new boolean[MAX_POINTERS];
+    private final boolean[] continuing = new boolean[MAX_POINTERS];
+    private final float[][] points = new float[MAX_POINTERS][];
+    private final int[] pointCount = new int[MAX_POINTERS];
+    private final float[] lastX = new float[MAX_POINTERS];
+    private final float[] lastY = new float[MAX_POINTERS];
+    private final float[] segmentEndX = new float[MAX_POINTERS];
+    private final float[] segmentEndY = new float[MAX_POINTERS];
+    private long segmentStart = -1;
+    private long lastTime;
+    private long segments;
+
+    StrokePlanner(Output output) {
+        this(output, DEFAULT_SLICE_MS);
+    }
+
+    StrokePlanner(Output output, long sliceMs) {
+        this.output = output;
+        this.sliceMs = sliceMs;
+        for (int i = 0; i < MAX_POINTERS; i++) {
+            points[i] = new float[32];
+        }
+    }
+
+    @Override
+    public void onTouchEvent(int action, int pointerId, long eventTime,
+                             float x, float y, float pressure, float size) {
+        if (pointerId >= MAX_POINTERS) {
+            return;
+        }
+        switch (action) {
+            case TouchInputReceiver.ACTION_DOWN:
+            case TouchInputReceiver.ACTION_POINTER_DOWN:
+                if (down[pointerId]) {
+                    return;
+                }
+                // A new pointer starts a new segment so the strokes already running keep their timing
+                flush(eventTime);
+                if (segmentStart < 0) {
+                    segmentStart = eventTime;
+                }
+                down[pointerId] = true;
+                continuing[pointerId] = false;
+                addPoint(pointerId, x, y, eventTime);
+                // Put the finger down right away; a tap or long press should not wait for the slice
+                flush(eventTime);
+                break;
+            case TouchInputReceiver.ACTION_MOVE:
+                if (!down[pointerId]) {
+                    return;
+                }
+                holdUntil(eventTime);
+                addPoint(pointerId, x, y, eventTime);
+                if (lastTime - segmentStart >= sliceMs) {
+                    flush(lastTime);
+                }
+                break;
+            case TouchInputReceiver.ACTION_UP:
+            case TouchInputReceiver.ACTION_POINTER_UP:
+            case TouchInputReceiver.ACTION_CANCEL:
+                if (!down[pointerId]) {
+                    return;
+                }
+                holdUntil(eventTime);
+                addPoint(pointerId, x, y, eventTime);
+                ending[pointerId] = true;
+                flush(lastTime);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Emits what has been collected so far even though the slice is not full, e.g. when a finger
+     * rests without producing new samples.
+     */
+    void flush() {
+        flush(lastTime);
+    }
+
+    long getSegmentCount() {
+        return segments;
+    }
+
+    /**
+     * After a pause in the samples, emits a segment in which the pointers stay where they are.
+     * Otherwise the next segment would stretch one movement over the whole pause.
+     */
+    private void holdUntil(long eventTime) {
+        if (eventTime - lastTime > sliceMs) {
+            flush(lastTime);
+            flush(eventTime - sliceMs);
+        }
+    }
+
+    private void addPoint(int pointerId, float x, float y, long eventTime) {
+        // Injected paths cannot have negative coordinates
+        x = Math.max(0, x);
+        y = Math.max(0, y);
+        int count = pointCount[pointerId];
+        if ((count > 0 || continuing[pointerId]) && lastX[pointerId] == x && lastY[pointerId] == y) {
+            lastTime = Math.max(lastTime, eventTime);
+            return;
+        }
+        float[] buffer = points[pointerId];
+        if (buffer.length < (count + 1) * 2) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            points[pointerId] = buffer;
+        }
+        buffer[count * 2] = x;
+        buffer[count * 2 + 1] = y;
+        pointCount[pointerId] = count + 1;
+        lastX[pointerId] = x;
+        lastY[pointerId] = y;
+        lastTime = Math.max(lastTime, eventTime);
+    }
+
+    private void flush(long endTime) {
+        if (segmentStart < 0) {
+            return;
+        }
+        int active = 0;
+        boolean pending = false;
+        for (int i = 0; i < MAX_POINTERS; i++) {
+            if (down[i]) {
+                active++;
+                pending |= pointCount[i] > 0 || ending[i];
+            }
+        }
+        if (active == 0) {
+            segmentStart = -1;
+            return;
+        }
+        if (!pending && endTime <= segmentStart) {
+            return;
+        }
+        endTime = Math.max(endTime, segmentStart);
+
+        Stroke[] strokes = new Stroke[active];
+        int index = 0;
+        for (int i = 0; i < MAX_POINTERS; i++) {
+            if (!down[i]) {
+                continue;
+            }
+            float[] strokePoints;
+            int count = pointCount[i];
+            if (continuing[i]) {
+                // A continuation has to start exactly where the previous stroke ended
+                strokePoints = new float[(count + 1) * 2];
+                strokePoints[0] = segmentEndX[i];
+                strokePoints[1] = segmentEndY[i];
+                System.arraycopy(points[i], 0, strokePoints, 2, count * 2);
+                count++;
+            } else {
+                strokePoints = Arrays.copyOf(points[i], count * 2);
+            }
+            boolean willContinue = !ending[i];
+            strokes[index++] = new Stroke(i, strokePoints, count, continuing[i], willContinue);
+            segmentEndX[i] = strokePoints[(count - 1) * 2];
+            segmentEndY[i] = strokePoints[(count - 1) * 2 + 1];
+
+            if (willContinue) {
+                continuing[i] = true;
+            } else {
+                down[i] = false;
+                continuing[i] = false;
+                ending[i] = false;
+            }
+            pointCount[i] = 0;
+        }
+        segments++;
+        output.onSegment(new Segment(segmentStart, endTime, strokes));
+
+        boolean anyDown = false;
+        for (int i = 0; i < MAX_POINTERS; i++) {
+            anyDown |= down[i];
+        }
+        segmentStart = anyDown ? endTime : -1;
+    }
+}
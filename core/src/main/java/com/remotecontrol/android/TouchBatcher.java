@@ -0,0 +1,191 @@
+package com.remotecontrol.android;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Collects touch samples between flushes and sends them as one {@link TouchEventCodec} message.
+ *
+ * Consecutive MOVE samples of the same pointer are coalesced: a pending sample is replaced by the
+ * next one unless it is a visible bend in the path, in which case it is kept so curves survive.
+ * State changes (DOWN, UP, CANCEL) flush right away because they carry the gesture semantics.
+ * Everything else waits for the next display frame or for the deadline, whichever comes first.
+ */
+class TouchBatcher {
+    static final long DEFAULT_DEADLINE_NANOS = 8_000_000L;
+    // Coordinates are fractions of the video frame; this is about 1.5 px on a phone-sized view
+    static final float DEFAULT_BEND_TOLERANCE = 0.001f;
+    static final int CAPACITY = 64;
+
+    interface Output {
+        void onBatch(ByteBuffer message, boolean reliable);
+    }
+
+    private final Output output;
+    private final ByteBuffer buffer = ByteBuffer.allocate(
+        TouchEventCodec.HEADER_BYTES + CAPACITY * TouchEventCodec.MAX_EVENT_BYTES);
+    private final TouchEventCodec.Writer writer = new TouchEventCodec.Writer();
+
+    private final int[] actions = new int[CAPACITY];
+    private final int[] pointerIds = new int[CAPACITY];
+    private final long[] eventTimes = new long[CAPACITY];
+    private final float[] xs = new float[CAPACITY];
+    private final float[] ys = new float[CAPACITY];
+    private final float[] pressures = new float[CAPACITY];
+    private final float[] sizes = new float[CAPACITY];
+    private int count;
+    private long firstPendingNanos;
+
+    private volatile long deadlineNanos = DEFAULT_DEADLINE_NANOS;
+    private volatile float bendTolerance = DEFAULT_BEND_TOLERANCE;
+
+    private long samplesIn;
+    private long samplesCoalesced;
+    private long samplesSent;
+    private long messagesSent;
+    private long totalAddedLatencyNanos;
+    private long maxAddedLatencyNanos;
+
+    TouchBatcher(Output output) {
+        this.output = output;
+    }
+
+    void setDeadlineNanos(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    long getDeadlineNanos() {
+        return deadlineNanos;
+    }
+
+    void setBendTolerance(float bendTolerance) {
+        this.bendTolerance = bendTolerance;
+    }
+
+    /**
+     * Adds one sample. {@code nowNanos} is the monotonic time the sample was handed over, used
+     * for the deadline and for the added-latency counters.
+     */
+    void add(int action, int pointerId, long eventTime, float x, float y,
+             float pressure, float size, long nowNanos) {
+        samplesIn++;
+        boolean move = TouchInputReceiver.isMove(action);
+        // A replaced sample keeps its place in the batch, so the deadline does not restart
+        boolean wasEmpty = count == 0;
+
+        if (move && count > 0 && isCoalescible(count - 1, pointerId)) {
+            int last = count - 1;
+            if (!isBend(last, x, y)) {
+                // The pending sample lies on the way to the new one, so the new one replaces it
+                samplesCoalesced++;
+                count--;
+            }
+        }
+
+        if (count == CAPACITY) {
+            flush(nowNanos);
+            wasEmpty = true;
+        }
+        if (wasEmpty) {
+            firstPendingNanos = nowNanos;
+        }
+        actions[count] = action;
+        pointerIds[count] = pointerId;
+        eventTimes[count] = eventTime;
+        xs[count] = x;
+        ys[count] = y;
+        pressures[count] = pressure;
+        sizes[count] = size;
+        count++;
+
+        if (!move) {
+            flush(nowNanos);
+        }
+    }
+
+    boolean hasPending() {
+        return count > 0;
+    }
+
+    /**
+     * Returns the time at which pending samples must be sent, or {@code Long.MAX_VALUE} if none.
+     */
+    long nextDeadlineNanos() {
+        return count > 0 ? firstPendingNanos + deadlineNanos : Long.MAX_VALUE;
+    }
+
+    boolean flushIfDue(long nowNanos) {
+        if (count > 0 && nowNanos >= nextDeadlineNanos()) {
+            flush(nowNanos);
+            return true;
+        }
+        return false;
+    }
+
+    void flush(long nowNanos) {
+        if (count == 0) {
+            return;
+        }
+        boolean reliable = false;
+        buffer.clear();
+        writer.begin(buffer);
+        for (int i = 0; i < count; i++) {
+            writer.add(actions[i], pointerIds[i], eventTimes[i], xs[i], ys[i], pressures[i], sizes[i]);
+            reliable |= !TouchInputReceiver.isMove(actions[i]);
+        }
+        writer.finish();
+        buffer.flip();
+
+        long addedLatency = nowNanos - firstPendingNanos;
+        totalAddedLatencyNanos += addedLatency;
+        maxAddedLatencyNanos = Math.max(maxAddedLatencyNanos, addedLatency);
+        samplesSent += count;
+        messagesSent++;
+        count = 0;
+
+        output.onBatch(buffer, reliable);
+    }
+
+    private boolean isCoalescible(int index, int pointerId) {
+        return TouchInputReceiver.isMove(actions[index]) && pointerIds[index] == pointerId;
+    }
+
+    private boolean isBend(int index, float x, float y) {
+        // Need the sample before the pending one to judge whether the path turns at it
+        int previous = -1;
+        for (int i = index - 1; i >= 0; i--) {
+            if (pointerIds[i] == pointerIds[index]) {
+                previous = i;
+                break;
+            }
+        }
+        if (previous < 0) {
+            return true;
+        }
+        float ax = xs[previous];
+        float ay = ys[previous];
+        float dx = x - ax;
+        float dy = y - ay;
+        float length = (float) Math.sqrt(dx * dx + dy * dy);
+        if (length == 0f) {
+            return false;
+        }
+        float distance = Math.abs(dx * (ay - ys[index]) - dy * (ax - xs[index])) / length;
+        return distance > bendTolerance;
+    }
+
+    long getSamplesIn() { return samplesIn; }
+    long getSamplesCoalesced() { return samplesCoalesced; }
+    long getSamplesSent() { return samplesSent; }
+    long getMessagesSent() { return messagesSent; }
+
+    /**
+     * Messages that were not sent compared to one message per sample.
+     */
+    long getMessagesSaved() { return samplesIn - messagesSent; }
+
+    long getAverageAddedLatencyNanos() {
+        return messagesSent == 0 ? 0 : totalAddedLatencyNanos / messagesSent;
+    }
+
+    long getMaxAddedLatencyNanos() { return maxAddedLatencyNanos; }
+}
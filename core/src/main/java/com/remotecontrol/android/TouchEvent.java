@@ -0,0 +1,41 @@
+package com.remotecontrol.android;
+
+/**
+ * One touch sample. Coordinates are normalized to the video frame, as {@link TouchEventCodec}
+ * sends them. The legacy JSON signaling message has the same fields but carries view pixels, and
+ * the host drops it.
+ */
+class TouchEvent {
+    private final int action;
+    private final int pointerId;
+    private final long eventTime;
+    private final float x;
+    private final float y;
+    private final float pressure;
+    private final float size;
+
+    public TouchEvent(int action, float x, float y, float pressure, float size) {
+        this(action, 0, 0, x, y, pressure, size);
+    }
+
+    public TouchEvent(int action, int pointerId, long eventTime,
+                      float x, float y, float pressure, float size) {
+        this.action = action;
+        this.pointerId = pointerId;
+        this.eventTime = eventTime;
+        this.x = x;
+        this.y = y;
+        this.pressure = pressure;
+        this.size = size;
+    }
+
+    // Getters
+    public int getAction() { return action; }
+    public int getPointerId() { return pointerId; }
+    public long getEventTime() { return eventTime; }
+    public float getX() { return x; }
+    public float getY() { return y; }
+    public float getPressure() { return pressure; }
+    public float getSize() { return size; }
+}
+
@@ -0,0 +1,188 @@
+package com.remotecontrol.android;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Versioned binary wire format for touch input.
+ *
+ * Layout of one message:
+ * <pre>
+ *   u8      version
+ *   u8      event count
+ *   events:
+ *     u8      (action << 4) | pointerId
+ *     varint  event time in ms; absolute for the first event, delta to the previous one after that
+ *     u16     x as a fraction of the video frame width, 0..{@link #COORDINATE_MAX}
+ *     u16     y as a fraction of the video frame height, same scale as x
+ *     u8      pressure scaled to 0..255
+ *     u8      size scaled to 0..255
+ * </pre>
+ * Every message is self-contained, so a lost message never corrupts the ones after it.
+ * Coordinates are normalized to the frame the guest sees (see {@link CoordinateTransform}), so
+ * they do not depend on either device's resolution. Version 1 carried guest view pixels, which
+ * the host has no way to place, and is rejected.
+ */
+final class TouchEventCodec {
+    static final int VERSION = 2;
+    static final int HEADER_BYTES = 2;
+    static final int MAX_EVENT_BYTES = 1 + 10 + 2 + 2 + 1 + 1;
+    static final int MAX_EVENTS_PER_MESSAGE = 255;
+    static final int COORDINATE_MAX = 0xFFFF;
+
+    private static final float COORDINATE_SCALE = COORDINATE_MAX;
+
+    private TouchEventCodec() {}
+
+    interface Sink {
+        void onTouchEvent(int action, int pointerId, long eventTime,
+                          float x, float y, float pressure, float size);
+    }
+
+    /**
+     * One-off encoding with a throwaway {@link Writer}; paths that send often keep their own
+     * writer, as {@link TouchBatcher} does.
+     */
+    static int encode(TouchEvent event, ByteBuffer out) {
+        Writer writer = new Writer().begin(out);
+        writer.add(event);
+        return writer.finish();
+    }
+
+    static int encode(List<TouchEvent> events, ByteBuffer out) {
+        if (events.size() > MAX_EVENTS_PER_MESSAGE) {
+            throw new IllegalArgumentException("Too many events in one message: " + events.size());
+        }
+        Writer writer = new Writer().begin(out);
+        for (TouchEvent event : events) {
+            writer.add(event);
+        }
+        return writer.finish();
+    }
+
+    static List<TouchEvent> decode(ByteBuffer in) {
+        final List<TouchEvent> events = new ArrayList<>();
+        decode(in, new Sink() {
+            @Override
+            public void onTouchEvent(int action, int pointerId, long eventTime,
+                                     float x, float y, float pressure, float size) {
+                events.add(new TouchEvent(
+                    action, pointerId, eventTime, x, y, pressure, size));
+            }
+        });
+        return events;
+    }
+
+    /**
+     * Decodes one message and reports each event to the sink. Returns the number of events read.
+     */
+    static int decode(ByteBuffer in, Sink sink) {
+        int version = in.get() & 0xFF;
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported touch codec version: " + version);
+        }
+        int count = in.get() & 0xFF;
+        long eventTime = 0;
+        for (int i = 0; i < count; i++) {
+            int actionAndPointer = in.get() & 0xFF;
+            eventTime += readVarLong(in);
+            float x = (in.getShort() & 0xFFFF) / COORDINATE_SCALE;
+            float y = (in.getShort() & 0xFFFF) / COORDINATE_SCALE;
+            float pressure = (in.get() & 0xFF) / 255f;
+            float size = (in.get() & 0xFF) / 255f;
+            sink.onTouchEvent(actionAndPointer >>> 4, actionAndPointer & 0x0F, eventTime,
+                x, y, pressure, size);
+        }
+        return count;
+    }
+
+    /**
+     * Appends events to a message in place. A writer can be reused for any number of messages.
+     */
+    static final class Writer {
+        private ByteBuffer out;
+        private int countPosition;
+        private int count;
+        private long lastEventTime;
+
+        Writer begin(ByteBuffer out) {
+            this.out = out;
+            this.count = 0;
+            this.lastEventTime = 0;
+            out.put((byte) VERSION);
+            countPosition = out.position();
+            out.put((byte) 0);
+            return this;
+        }
+
+        boolean isFull() {
+            return count == MAX_EVENTS_PER_MESSAGE || out.remaining() < MAX_EVENT_BYTES;
+        }
+
+        int count() {
+            return count;
+        }
+
+        void add(TouchEvent event) {
+            add(event.getAction(), event.getPointerId(), event.getEventTime(),
+                event.getX(), event.getY(), event.getPressure(), event.getSize());
+        }
+
+        void add(int action, int pointerId, long eventTime,
+                 float x, float y, float pressure, float size) {
+            if (isFull()) {
+                throw new IllegalStateException("Touch message is full");
+            }
+            // Timestamps never go backwards within a gesture; clamp if the caller mixes clocks
+            long delta = Math.max(0, eventTime - lastEventTime);
+            lastEventTime = lastEventTime + delta;
+
+            out.put((byte) (((action & 0x0F) << 4) | (pointerId & 0x0F)));
+            writeVarLong(out, delta);
+            out.putShort((short) toFixedPoint(x));
+            out.putShort((short) toFixedPoint(y));
+            out.put((byte) toUnitByte(pressure));
+            out.put((byte) toUnitByte(size));
+            count++;
+        }
+
+        /**
+         * Patches the event count into the header and returns the message length in bytes.
+         */
+        int finish() {
+            out.put(countPosition, (byte) count);
+            return out.position() - (countPosition - 1);
+        }
+    }
+
+    private static int toFixedPoint(float value) {
+        int fixed = Math.round(value * COORDINATE_SCALE);
+        return Math.max(0, Math.min(COORDINATE_MAX, fixed));
+    }
+
+    private static int toUnitByte(float value) {
+        int scaled = Math.round(value * 255f);
+        return Math.max(0, Math.min(0xFF, scaled));
+    }
+
+    private static void writeVarLong(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint in touch message");
+    }
+}
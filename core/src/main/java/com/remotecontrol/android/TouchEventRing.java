@@ -0,0 +1,126 @@
+package com.remotecontrol.android;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Preallocated single-producer/single-consumer ring of touch samples stored in primitive arrays.
+ *
+ * The UI thread offers samples without allocating; the sender thread drains them. MOVEs may only
+ * fill the ring up to a reserve kept for state changes. Past that the oldest sample is evicted if
+ * it is a MOVE; if it is not, the incoming MOVE is dropped instead. DOWN, UP and CANCEL are never
+ * evicted and can use the reserve; they are only rejected once the whole ring is full, which
+ * means the consumer has stopped draining.
+ *
+ * The consumer claims a slot by advancing {@code tail} with a CAS. The producer uses the same CAS
+ * to evict the oldest MOVE, so a sample is either delivered or dropped, never both.
+ */
+final class TouchEventRing {
+    private final int mask;
+    private final int moveLimit;
+    private final int[] actions;
+    private final int[] pointerIds;
+    private final long[] eventTimes;
+    private final float[] xs;
+    private final float[] ys;
+    private final float[] pressures;
+    private final float[] sizes;
+
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong droppedMoves = new AtomicLong();
+    private final AtomicLong rejectedEvents = new AtomicLong();
+
+    TouchEventRing(int capacity) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        mask = capacity - 1;
+        moveLimit = capacity - capacity / 8;
+        actions = new int[capacity];
+        pointerIds = new int[capacity];
+        eventTimes = new long[capacity];
+        xs = new float[capacity];
+        ys = new float[capacity];
+        pressures = new float[capacity];
+        sizes = new float[capacity];
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Producer side. Returns false if the sample was not stored.
+     */
+    boolean offer(int action, int pointerId, long eventTime,
+                  float x, float y, float pressure, float size) {
+        long h = head.get();
+        boolean move = TouchInputReceiver.isMove(action);
+        long limit = move ? moveLimit : capacity();
+        if (h - tail.get() >= limit && !evictOldestMove()) {
+            if (move) {
+                droppedMoves.incrementAndGet();
+            } else {
+                rejectedEvents.incrementAndGet();
+            }
+            return false;
+        }
+        int slot = (int) (h & mask);
+        actions[slot] = action;
+        pointerIds[slot] = pointerId;
+        eventTimes[slot] = eventTime;
+        xs[slot] = x;
+        ys[slot] = y;
+        pressures[slot] = pressure;
+        sizes[slot] = size;
+        head.lazySet(h + 1);
+        return true;
+    }
+
+    private boolean evictOldestMove() {
+        long t = tail.get();
+        if (!TouchInputReceiver.isMove(actions[(int) (t & mask)])) {
+            return false;
+        }
+        if (tail.compareAndSet(t, t + 1)) {
+            droppedMoves.incrementAndGet();
+        }
+        // Either we evicted the slot or the consumer just took it; both free one slot
+        return true;
+    }
+
+    /**
+     * Consumer side. Hands up to {@code max} samples to the sink in order and returns how many.
+     */
+    int drain(TouchEventCodec.Sink sink, int max) {
+        int drained = 0;
+        while (drained < max) {
+            long t = tail.get();
+            if (t == head.get()) {
+                break;
+            }
+            int slot = (int) (t & mask);
+            int action = actions[slot];
+            int pointerId = pointerIds[slot];
+            long eventTime = eventTimes[slot];
+            float x = xs[slot];
+            float y = ys[slot];
+            float pressure = pressures[slot];
+            float size = sizes[slot];
+            if (!tail.compareAndSet(t, t + 1)) {
+                // The producer evicted this MOVE while we were reading it
+                continue;
+            }
+            sink.onTouchEvent(action, pointerId, eventTime, x, y, pressure, size);
+            drained++;
+        }
+        return drained;
+    }
+
+    int size() {
+        return (int) (head.get() - tail.get());
+    }
+
+    long getDroppedMoves() { return droppedMoves.get(); }
+    long getRejectedEvents() { return rejectedEvents.get(); }
+}
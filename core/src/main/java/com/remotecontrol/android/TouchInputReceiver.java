@@ -0,0 +1,91 @@
+package com.remotecontrol.android;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Host-side entry point for touch messages from any {@link InputTransport}.
+ *
+ * MOVE samples arrive on an unordered channel, so a late one can show up after a newer sample or
+ * after the UP that ended its gesture. Those are dropped here instead of being replayed.
+ */
+class TouchInputReceiver implements InputTransport.Receiver, TouchEventCodec.Sink {
+    private static final int MAX_POINTERS = 16;
+
+    // Android MotionEvent action codes, kept here so this class stays free of framework types
+    static final int ACTION_DOWN = 0;
+    static final int ACTION_UP = 1;
+    static final int ACTION_MOVE = 2;
+    static final int ACTION_CANCEL = 3;
+    static final int ACTION_POINTER_DOWN = 5;
+    static final int ACTION_POINTER_UP = 6;
+
+    private final TouchEventCodec.Sink target;
+    private final boolean[] pointerDown = new boolean[MAX_POINTERS];
+    private final long[] lastEventTime = new long[MAX_POINTERS];
+    private final float[] lastX = new float[MAX_POINTERS];
+    private final float[] lastY = new float[MAX_POINTERS];
+    private long staleMoves;
+    private long malformedMessages;
+
+    TouchInputReceiver(TouchEventCodec.Sink target) {
+        this.target = target;
+    }
+
+    @Override
+    public synchronized void onTouchMessage(ByteBuffer message) {
+        try {
+            TouchEventCodec.decode(message, this);
+        } catch (RuntimeException e) {
+            malformedMessages++;
+        }
+    }
+
+    @Override
+    public void onTouchEvent(int action, int pointerId, long eventTime,
+                             float x, float y, float pressure, float size) {
+        switch (action) {
+            case ACTION_DOWN:
+            case ACTION_POINTER_DOWN:
+                pointerDown[pointerId] = true;
+                break;
+            case ACTION_MOVE:
+                if (!pointerDown[pointerId] || eventTime < lastEventTime[pointerId]) {
+                    staleMoves++;
+                    return;
+                }
+                break;
+            case ACTION_UP:
+            case ACTION_POINTER_UP:
+            case ACTION_CANCEL:
+                pointerDown[pointerId] = false;
+                break;
+            default:
+                break;
+        }
+        lastEventTime[pointerId] = eventTime;
+        lastX[pointerId] = x;
+        lastY[pointerId] = y;
+        target.onTouchEvent(action, pointerId, eventTime, x, y, pressure, size);
+    }
+
+    /**
+     * Ends every gesture still in progress with a CANCEL, e.g. when control passes to another
+     * viewer mid-gesture.
+     */
+    synchronized void cancelActivePointers() {
+        for (int pointerId = 0; pointerId < MAX_POINTERS; pointerId++) {
+            if (pointerDown[pointerId]) {
+                pointerDown[pointerId] = false;
+                target.onTouchEvent(ACTION_CANCEL, pointerId, lastEventTime[pointerId],
+                    lastX[pointerId], lastY[pointerId], 0, 0);
+            }
+        }
+    }
+
+    static boolean isMove(int action) {
+        return action == ACTION_MOVE;
+    }
+
+    synchronized long getStaleMoves() { return staleMoves; }
+    synchronized long getMalformedMessages() { return malformedMessages; }
+}
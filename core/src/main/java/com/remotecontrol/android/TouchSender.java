@@ -0,0 +1,118 @@
+package com.remotecontrol.android;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Dedicated thread that drains the {@link TouchEventRing}, batches samples and sends them.
+ *
+ * Encoding and transport calls never run on the UI thread. The UI thread only writes primitives
+ * into the ring and unparks this thread; it asks for a flush once per display frame.
+ */
+final class TouchSender implements Runnable, TouchEventCodec.Sink {
+    private static final int RING_CAPACITY = 256;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final TouchEventRing ring = new TouchEventRing(RING_CAPACITY);
+    private final TouchBatcher batcher;
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private volatile boolean running;
+    private volatile Thread thread;
+    private long drainNanos;
+
+    TouchSender(TouchBatcher.Output output) {
+        this.batcher = new TouchBatcher(output);
+    }
+
+    void start() {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, "TouchSender");
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        Thread current = thread;
+        if (current != null) {
+            LockSupport.unpark(current);
+            thread = null;
+        }
+    }
+
+    /**
+     * UI thread. Does not allocate.
+     */
+    boolean offer(int action, int pointerId, long eventTime,
+                  float x, float y, float pressure, float size) {
+        boolean stored = ring.offer(action, pointerId, eventTime, x, y, pressure, size);
+        if (!TouchInputReceiver.isMove(action) || ring.size() >= RING_CAPACITY / 2) {
+            // State changes go out immediately; MOVEs wait for the frame or the deadline
+            // unless the ring is filling up
+            wakeUp();
+        }
+        return stored;
+    }
+
+    /**
+     * UI thread, once per display frame while samples are pending.
+     */
+    void requestFlush() {
+        flushRequested.set(true);
+        wakeUp();
+    }
+
+    private void wakeUp() {
+        Thread current = thread;
+        if (current != null) {
+            LockSupport.unpark(current);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            drainNanos = System.nanoTime();
+            ring.drain(this, RING_CAPACITY);
+            long now = System.nanoTime();
+            if (flushRequested.getAndSet(false)) {
+                batcher.flush(now);
+            } else {
+                batcher.flushIfDue(now);
+            }
+
+            long parkNanos = IDLE_PARK_NANOS;
+            if (ring.size() > 0) {
+                parkNanos = 0;
+            } else if (batcher.hasPending()) {
+                parkNanos = Math.min(parkNanos, Math.max(0, batcher.nextDeadlineNanos() - now));
+            }
+            if (parkNanos > 0) {
+                LockSupport.parkNanos(this, parkNanos);
+            }
+        }
+        batcher.flush(System.nanoTime());
+    }
+
+    @Override
+    public void onTouchEvent(int action, int pointerId, long eventTime,
+                             float x, float y, float pressure, float size) {
+        batcher.add(action, pointerId, eventTime, x, y, pressure, size, drainNanos);
+    }
+
+    void setDeadlineNanos(long deadlineNanos) {
+        batcher.setDeadlineNanos(deadlineNanos);
+    }
+
+    TouchBatcher getBatcher() {
+        return batcher;
+    }
+
+    TouchEventRing getRing() {
+        return ring;
+    }
+}
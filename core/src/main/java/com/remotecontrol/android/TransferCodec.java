@@ -0,0 +1,138 @@
+package com.remotecontrol.android;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary frames of the file and clipboard transfer protocol (see {@link TransferEngine}).
+ *
+ * Layout of one frame:
+ * <pre>
+ *   u8      type
+ *   u64     transfer id
+ *   OFFER:  u8 kind, u64 length, u16 name length, name in UTF-8
+ *   ACCEPT: u64 offset to resume from
+ *   DATA:   u64 offset, payload up to the end of the frame
+ *   ACK:    u64 bytes received and written so far
+ *   FINISH: u64 length, u32 CRC-32 of the whole content
+ *   DONE:   u8 1 if the content arrived intact, 0 if not
+ *   CANCEL: nothing
+ * </pre>
+ * All integers are big-endian.
+ */
+final class TransferCodec {
+    static final int TYPE_OFFER = 1;
+    static final int TYPE_ACCEPT = 2;
+    static final int TYPE_DATA = 3;
+    static final int TYPE_ACK = 4;
+    static final int TYPE_FINISH = 5;
+    static final int TYPE_DONE = 6;
+    static final int TYPE_CANCEL = 7;
+
+    static final int KIND_FILE = 0;
+    static final int KIND_TEXT = 1;
+
+    static final int HEADER_BYTES = 1 + 8;
+    static final int DATA_HEADER_BYTES = HEADER_BYTES + 8;
+    static final int MAX_NAME_BYTES = 255;
+    static final int MAX_CONTROL_BYTES = HEADER_BYTES + 1 + 8 + 2 + MAX_NAME_BYTES;
+
+    private TransferCodec() {}
+
+    interface Handler {
+        void onOffer(long id, int kind, long length, String name);
+
+        void onAccept(long id, long offset);
+
+        /**
+         * {@code payload} is only valid for the duration of the call.
+         */
+        void onData(long id, long offset, ByteBuffer payload);
+
+        void onAck(long id, long received);
+
+        void onFinish(long id, long length, int crc);
+
+        void onDone(long id, boolean ok);
+
+        void onCancel(long id);
+    }
+
+    static void writeOffer(ByteBuffer out, long id, int kind, long length, String name) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int nameLength = Math.min(nameBytes.length, MAX_NAME_BYTES);
+        out.put((byte) TYPE_OFFER).putLong(id);
+        out.put((byte) kind).putLong(length).putShort((short) nameLength);
+        out.put(nameBytes, 0, nameLength);
+    }
+
+    static void writeAccept(ByteBuffer out, long id, long offset) {
+        out.put((byte) TYPE_ACCEPT).putLong(id).putLong(offset);
+    }
+
+    /**
+     * Writes the DATA header. The payload follows at the buffer's position.
+     */
+    static void writeDataHeader(ByteBuffer out, long id, long offset) {
+        out.put((byte) TYPE_DATA).putLong(id).putLong(offset);
+    }
+
+    static void writeAck(ByteBuffer out, long id, long received) {
+        out.put((byte) TYPE_ACK).putLong(id).putLong(received);
+    }
+
+    static void writeFinish(ByteBuffer out, long id, long length, int crc) {
+        out.put((byte) TYPE_FINISH).putLong(id).putLong(length).putInt(crc);
+    }
+
+    static void writeDone(ByteBuffer out, long id, boolean ok) {
+        out.put((byte) TYPE_DONE).putLong(id).put((byte) (ok ? 1 : 0));
+    }
+
+    static void writeCancel(ByteBuffer out, long id) {
+        out.put((byte) TYPE_CANCEL).putLong(id);
+    }
+
+    /**
+     * Decodes one frame. Throws IllegalArgumentException for unknown types and
+     * BufferUnderflowException for truncated frames.
+     */
+    static void decode(ByteBuffer in, Handler handler) {
+        int type = in.get() & 0xFF;
+        long id = in.getLong();
+        switch (type) {
+            case TYPE_OFFER: {
+                int kind = in.get() & 0xFF;
+                long length = in.getLong();
+                byte[] name = new byte[in.getShort() & 0xFFFF];
+                in.get(name);
+                handler.onOffer(id, kind, length, new String(name, StandardCharsets.UTF_8));
+                break;
+            }
+            case TYPE_ACCEPT:
+                handler.onAccept(id, in.getLong());
+                break;
+            case TYPE_DATA: {
+                long offset = in.getLong();
+                handler.onData(id, offset, in);
+                break;
+            }
+            case TYPE_ACK:
+                handler.onAck(id, in.getLong());
+                break;
+            case TYPE_FINISH: {
+                long length = in.getLong();
+                handler.onFinish(id, length, in.getInt());
+                break;
+            }
+            case TYPE_DONE:
+                handler.onDone(id, in.get() != 0);
+                break;
+            case TYPE_CANCEL:
+                handler.onCancel(id);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown transfer frame type: " + type);
+        }
+    }
+}
@@ -0,0 +1,682 @@
+package com.remotecontrol.android;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Moves files and clipboard text between guest and host over one reliable, ordered link, in
+ * {@link TransferCodec} frames.
+ *
+ * Content is streamed in chunks of a fixed size. Each chunk is read straight into one reused
+ * direct buffer, and the receiver writes each chunk straight to disk, so memory use does not
+ * grow with the file size. The sender stops while the link holds more than
+ * {@link #HIGH_WATER_BYTES} unsent and goes on once it drains below {@link #LOW_WATER_BYTES}.
+ * That keeps a bulk transfer from starving the media and input channels of the same connection.
+ * When the link comes back after a drop, the sender offers the transfer again. The receiver
+ * answers with how much it already wrote, and the transfer resumes from there. Frames the sender
+ * wrote before it noticed the drop arrive after a gap; the receiver answers the gap the same way.
+ * A CRC-32 of the whole content is checked at the end.
+ *
+ * Sending runs on an internal thread. Frames from the link must all arrive on one thread.
+ * Listener callbacks come from either.
+ */
+class TransferEngine implements TransferCodec.Handler {
+    static final int FRAME_BYTES = 16 * 1024;
+    static final int CHUNK_BYTES = FRAME_BYTES - TransferCodec.DATA_HEADER_BYTES;
+    static final long HIGH_WATER_BYTES = 1024 * 1024;
+    static final long LOW_WATER_BYTES = 256 * 1024;
+    static final long ACK_INTERVAL_BYTES = 256 * 1024;
+    static final int MAX_TEXT_BYTES = 1024 * 1024;
+    static final int COMPLETED_IDS = 16;
+
+    interface Link {
+        /**
+         * Sends one frame reliably and in order. Returns false if the link is not open. The
+         * buffer may be reused as soon as this returns.
+         */
+        boolean send(ByteBuffer frame);
+
+        /**
+         * Bytes handed to {@link #send} that have not gone out yet.
+         */
+        long getBufferedAmount();
+    }
+
+    interface Listener {
+        void onSent(long id);
+
+        void onFileReceived(File file);
+
+        void onTextReceived(String text);
+
+        void onFailed(long id, String reason);
+    }
+
+    private final Link link;
+    private final File directory;
+    private final Listener listener;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Random random = new Random();
+    private final AtomicBoolean waitingForDrain = new AtomicBoolean();
+
+    // Sending side; only used on the executor
+    private final ArrayDeque<Outgoing> queue = new ArrayDeque<>();
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(FRAME_BYTES);
+    private final ByteBuffer sendControl = ByteBuffer.allocate(TransferCodec.MAX_CONTROL_BYTES);
+    private final byte[] sendScratch = new byte[CHUNK_BYTES];
+    private Outgoing active;
+
+    // Receiving side; only used on the link's thread
+    private final Map<Long, Incoming> incoming = new HashMap<>();
+    // Recently finished transfers, in case the link dropped before the peer saw DONE
+    private final ArrayDeque<Long> completed = new ArrayDeque<>();
+    private final ByteBuffer receiveControl = ByteBuffer.allocate(TransferCodec.MAX_CONTROL_BYTES);
+    private final byte[] receiveScratch = new byte[FRAME_BYTES];
+    private long malformedFrames;
+
+    private final Runnable pump = new Runnable() {
+        @Override
+        public void run() {
+            pump();
+        }
+    };
+
+    /**
+     * @param directory where received files are written; created if missing
+     */
+    TransferEngine(Link link, File directory, Listener listener) {
+        this.link = link;
+        this.directory = directory;
+        this.listener = listener;
+    }
+
+    /**
+     * Queues a file and returns its transfer id.
+     */
+    long sendFile(File file) {
+        final long id = random.nextLong();
+        final File source = file;
+        post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    FileChannel channel = new RandomAccessFile(source, "r").getChannel();
+                    enqueue(new Outgoing(id, TransferCodec.KIND_FILE, source.getName(), channel.size(),
+                        channel, null));
+                } catch (IOException e) {
+                    listener.onFailed(id, "Cannot read " + source + ": " + e.getMessage());
+                }
+            }
+        });
+        return id;
+    }
+
+    /**
+     * Queues clipboard text and returns its transfer id.
+     */
+    long sendText(String text) {
+        final long id = random.nextLong();
+        final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (bytes.length > MAX_TEXT_BYTES) {
+                    listener.onFailed(id, "Text too large: " + bytes.length + " bytes");
+                    return;
+                }
+                enqueue(new Outgoing(id, TransferCodec.KIND_TEXT, "", bytes.length, null, bytes));
+            }
+        });
+        return id;
+    }
+
+    /**
+     * Called when the link opens, including after it was lost. Offers the current transfer again
+     * so it resumes.
+     */
+    void onLinkOpen() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (active != null) {
+                    active.accepted = false;
+                    sendOffer(active);
+                }
+            }
+        });
+    }
+
+    void onBufferedAmountChange() {
+        if (link.getBufferedAmount() <= LOW_WATER_BYTES && waitingForDrain.compareAndSet(true, false)) {
+            post(pump);
+        }
+    }
+
+    /**
+     * Handles one frame from the link. The buffer is only read during the call.
+     */
+    void onFrame(ByteBuffer frame) {
+        try {
+            TransferCodec.decode(frame, this);
+        } catch (RuntimeException e) {
+            malformedFrames++;
+        }
+    }
+
+    void close() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (active != null) {
+                    active.close();
+                    active = null;
+                }
+                for (Outgoing outgoing : queue) {
+                    outgoing.close();
+                }
+                queue.clear();
+            }
+        });
+        executor.shutdown();
+    }
+
+    /**
+     * Closes files of transfers still being received. Call on the link's thread, or once no more
+     * frames can arrive. Partial files stay on disk so a later transfer can resume them.
+     */
+    void closeIncoming() {
+        for (Incoming in : incoming.values()) {
+            in.close();
+        }
+        incoming.clear();
+    }
+
+    long getMalformedFrames() {
+        return malformedFrames;
+    }
+
+    // Receiving side
+
+    @Override
+    public void onOffer(long id, int kind, long length, String name) {
+        if (completed.contains(id)) {
+            reply(TransferCodec.TYPE_DONE, id, 1);
+            return;
+        }
+        Incoming in = incoming.get(id);
+        if (in == null) {
+            if (kind == TransferCodec.KIND_TEXT ? length > MAX_TEXT_BYTES : length < 0) {
+                reply(TransferCodec.TYPE_CANCEL, id, 0);
+                return;
+            }
+            try {
+                in = openIncoming(id, kind, length, name);
+            } catch (IOException e) {
+                reply(TransferCodec.TYPE_CANCEL, id, 0);
+                listener.onFailed(id, "Cannot store " + name + ": " + e.getMessage());
+                return;
+            }
+            incoming.put(id, in);
+        }
+        in.lastAck = in.received;
+        in.acceptedAt = in.received;
+        reply(TransferCodec.TYPE_ACCEPT, id, in.received);
+    }
+
+    @Override
+    public void onData(long id, long offset, ByteBuffer payload) {
+        Incoming in = incoming.get(id);
+        if (in == null) {
+            return;
+        }
+        long skip = in.received - offset;
+        if (skip < 0) {
+            // A gap; tell the sender where to go on from
+            acceptFrom(in);
+            return;
+        }
+        if (skip >= payload.remaining()) {
+            return;
+        }
+        payload.position(payload.position() + (int) skip);
+        int count = Math.min(payload.remaining(), (int) Math.min(Integer.MAX_VALUE, in.length - in.received));
+        payload.limit(payload.position() + count);
+
+        payload.duplicate().get(receiveScratch, 0, count);
+        in.crc.update(receiveScratch, 0, count);
+        try {
+            in.write(payload, receiveScratch, count);
+        } catch (IOException e) {
+            in.discard();
+            incoming.remove(id);
+            reply(TransferCodec.TYPE_CANCEL, id, 0);
+            listener.onFailed(id, e.getMessage());
+            return;
+        }
+        in.received += count;
+        if (in.received - in.lastAck >= ACK_INTERVAL_BYTES) {
+            in.lastAck = in.received;
+            reply(TransferCodec.TYPE_ACK, id, in.received);
+        }
+    }
+
+    @Override
+    public void onFinish(long id, long length, int crc) {
+        Incoming in = incoming.get(id);
+        if (in == null) {
+            return;
+        }
+        if (in.received < length && length == in.length) {
+            // Data was lost to a drop the sender had not noticed yet; it goes on from the gap
+            acceptFrom(in);
+            return;
+        }
+        incoming.remove(id);
+        boolean ok = in.received == length && (int) in.crc.getValue() == crc;
+        String failure = ok ? null : "Checksum mismatch for " + in.name;
+        File file = null;
+        String text = null;
+        if (ok) {
+            try {
+                if (in.kind == TransferCodec.KIND_TEXT) {
+                    text = new String(in.text, 0, (int) in.received, StandardCharsets.UTF_8);
+                } else {
+                    file = in.complete(directory);
+                }
+            } catch (IOException e) {
+                ok = false;
+                failure = e.getMessage();
+            }
+        }
+        if (!ok) {
+            in.discard();
+        } else {
+            completed.add(id);
+            if (completed.size() > COMPLETED_IDS) {
+                completed.poll();
+            }
+        }
+        reply(TransferCodec.TYPE_DONE, id, ok ? 1 : 0);
+        if (!ok) {
+            listener.onFailed(id, failure);
+        } else if (file != null) {
+            listener.onFileReceived(file);
+        } else {
+            listener.onTextReceived(text);
+        }
+    }
+
+    @Override
+    public void onCancel(final long id) {
+        Incoming in = incoming.remove(id);
+        if (in != null) {
+            in.discard();
+        }
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (active != null && active.id == id) {
+                    finishActive(false, "Cancelled by peer");
+                }
+            }
+        });
+    }
+
+    // Sending side; frames from the peer are handed over to the executor
+
+    @Override
+    public void onAccept(final long id, final long offset) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (active == null || active.id != id) {
+                    return;
+                }
+                try {
+                    active.resumeAt(Math.max(0, Math.min(offset, active.length)), sendBuffer, sendScratch);
+                } catch (IOException e) {
+                    finishActive(false, e.getMessage());
+                    return;
+                }
+                pump();
+            }
+        });
+    }
+
+    @Override
+    public void onAck(final long id, final long received) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (active != null && active.id == id) {
+                    active.acked = received;
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onDone(final long id, final boolean ok) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (active != null && active.id == id) {
+                    finishActive(ok, ok ? null : "Peer reported a checksum mismatch");
+                }
+            }
+        });
+    }
+
+    private void post(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Closed; late callbacks from the link are dropped
+        }
+    }
+
+    private void enqueue(Outgoing outgoing) {
+        queue.add(outgoing);
+        if (active == null) {
+            startNext();
+        }
+    }
+
+    private void startNext() {
+        active = queue.poll();
+        if (active != null) {
+            sendOffer(active);
+        }
+    }
+
+    private void sendOffer(Outgoing outgoing) {
+        sendControl.clear();
+        TransferCodec.writeOffer(sendControl, outgoing.id, outgoing.kind, outgoing.length, outgoing.name);
+        sendControl.flip();
+        link.send(sendControl);
+    }
+
+    private void finishActive(boolean ok, String reason) {
+        Outgoing done = active;
+        done.close();
+        active = null;
+        if (ok) {
+            listener.onSent(done.id);
+        } else {
+            listener.onFailed(done.id, reason);
+        }
+        startNext();
+    }
+
+    private void pump() {
+        while (active != null && active.accepted && !active.finishSent) {
+            if (link.getBufferedAmount() >= HIGH_WATER_BYTES) {
+                waitingForDrain.set(true);
+                // The link may have drained between the check and the flag; do not wait for nothing
+                if (link.getBufferedAmount() > LOW_WATER_BYTES || !waitingForDrain.compareAndSet(true, false)) {
+                    return;
+                }
+                continue;
+            }
+            Outgoing out = active;
+            if (out.offset == out.length) {
+                sendControl.clear();
+                TransferCodec.writeFinish(sendControl, out.id, out.length, (int) out.crc.getValue());
+                sendControl.flip();
+                if (link.send(sendControl)) {
+                    out.finishSent = true;
+                }
+                return;
+            }
+
+            sendBuffer.clear();
+            TransferCodec.writeDataHeader(sendBuffer, out.id, out.offset);
+            int payloadStart = sendBuffer.position();
+            int count = (int) Math.min(CHUNK_BYTES, out.length - out.offset);
+            sendBuffer.limit(payloadStart + count);
+            try {
+                out.read(sendBuffer, out.offset);
+            } catch (IOException e) {
+                finishActive(false, e.getMessage());
+                sendCancel(out.id);
+                continue;
+            }
+            sendBuffer.position(payloadStart);
+            sendBuffer.get(sendScratch, 0, count);
+            sendBuffer.position(0);
+            if (!link.send(sendBuffer)) {
+                // Link is down; onLinkOpen offers the transfer again
+                return;
+            }
+            out.crc.update(sendScratch, 0, count);
+            out.offset += count;
+        }
+    }
+
+    private void sendCancel(long id) {
+        sendControl.clear();
+        TransferCodec.writeCancel(sendControl, id);
+        sendControl.flip();
+        link.send(sendControl);
+    }
+
+    /**
+     * Sends a frame from the receiving side, which has its own buffer since it runs on the link's
+     * thread.
+     */
+    private void reply(int type, long id, long value) {
+        receiveControl.clear();
+        switch (type) {
+            case TransferCodec.TYPE_ACCEPT:
+                TransferCodec.writeAccept(receiveControl, id, value);
+                break;
+            case TransferCodec.TYPE_ACK:
+                TransferCodec.writeAck(receiveControl, id, value);
+                break;
+            case TransferCodec.TYPE_DONE:
+                TransferCodec.writeDone(receiveControl, id, value != 0);
+                break;
+            default:
+                TransferCodec.writeCancel(receiveControl, id);
+                break;
+        }
+        receiveControl.flip();
+        link.send(receiveControl);
+    }
+
+    /**
+     * Asks the sender to go on from what was received, once per offset. Frames it sent before
+     * rewinding would otherwise each make it rewind again.
+     */
+    private void acceptFrom(Incoming in) {
+        if (in.acceptedAt != in.received) {
+            in.acceptedAt = in.received;
+            reply(TransferCodec.TYPE_ACCEPT, in.id, in.received);
+        }
+    }
+
+    private Incoming openIncoming(long id, int kind, long length, String name) throws IOException {
+        if (kind == TransferCodec.KIND_TEXT) {
+            return new Incoming(id, kind, length, name, null, null, new byte[(int) length]);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File part = new File(directory, Long.toHexString(id) + ".part");
+        FileChannel channel = new RandomAccessFile(part, "rw").getChannel();
+        Incoming in = new Incoming(id, kind, length, name, part, channel, null);
+        // Pick up what an earlier, interrupted attempt already wrote
+        long existing = Math.min(channel.size(), length);
+        channel.truncate(existing);
+        ByteBuffer buffer = ByteBuffer.wrap(receiveScratch);
+        while (in.received < existing) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), existing - in.received));
+            int read = channel.read(buffer, in.received);
+            if (read <= 0) {
+                break;
+            }
+            in.crc.update(receiveScratch, 0, read);
+            in.received += read;
+        }
+        return in;
+    }
+
+    private static final class Outgoing {
+        final long id;
+        final int kind;
+        final String name;
+        final long length;
+        final FileChannel channel;
+        final byte[] text;
+        final CRC32 crc = new CRC32();
+        // Next byte to send; the checksum covers everything before it
+        long offset;
+        boolean accepted;
+        long acked;
+        boolean finishSent;
+
+        Outgoing(long id, int kind, String name, long length, FileChannel channel, byte[] text) {
+            this.id = id;
+            this.kind = kind;
+            this.name = name;
+            this.length = length;
+            this.channel = channel;
+            this.text = text;
+        }
+
+        /**
+         * Fills the buffer up to its limit with content starting at {@code position}.
+         */
+        void read(ByteBuffer buffer, long position) throws IOException {
+            if (text != null) {
+                buffer.put(text, (int) position, buffer.remaining());
+                return;
+            }
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException(name + " got shorter while sending");
+                }
+                position += read;
+            }
+        }
+
+        /**
+         * Continues from {@code start}, the offset the receiver accepted. Anywhere but where
+         * sending stopped, the checksum of everything before it is computed again.
+         */
+        void resumeAt(long start, ByteBuffer buffer, byte[] scratch) throws IOException {
+            if (start != offset) {
+                crc.reset();
+                long position = 0;
+                while (position < start) {
+                    int count = (int) Math.min(scratch.length, start - position);
+                    buffer.clear();
+                    buffer.limit(count);
+                    read(buffer, position);
+                    buffer.flip();
+                    buffer.get(scratch, 0, count);
+                    crc.update(scratch, 0, count);
+                    position += count;
+                }
+                offset = start;
+            }
+            accepted = true;
+            finishSent = false;
+        }
+
+        void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static final class Incoming {
+        final long id;
+        final int kind;
+        final long length;
+        final String name;
+        final File part;
+        final FileChannel channel;
+        final byte[] text;
+        final CRC32 crc = new CRC32();
+        long received;
+        long lastAck;
+        long acceptedAt = -1;
+
+        Incoming(long id, int kind, long length, String name, File part, FileChannel channel,
+                 byte[] text) {
+            this.id = id;
+            this.kind = kind;
+            this.length = length;
+            this.name = name;
+            this.part = part;
+            this.channel = channel;
+            this.text = text;
+        }
+
+        void write(ByteBuffer payload, byte[] copy, int count) throws IOException {
+            if (text != null) {
+                System.arraycopy(copy, 0, text, (int) received, count);
+                return;
+            }
+            long position = received;
+            while (payload.hasRemaining()) {
+                position += channel.write(payload, position);
+            }
+        }
+
+        /**
+         * Moves the finished part file to its final name and returns it.
+         */
+        File complete(File directory) throws IOException {
+            channel.close();
+            String base = new File(name).getName();
+            if (base.isEmpty() || base.startsWith(".")) {
+                base = "transfer-" + Long.toHexString(id);
+            }
+            File target = new File(directory, base);
+            for (int n = 1; target.exists(); n++) {
+                target = new File(directory, n + "-" + base);
+            }
+            if (!part.renameTo(target)) {
+                throw new IOException("Cannot rename " + part + " to " + target);
+            }
+            return target;
+        }
+
+        void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        void discard() {
+            close();
+            if (part != null) {
+                part.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.remotecontrol.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Drives {@link CaptureGovernor} with scripted sensors: how far and how fast the cap moves in
+ * each direction, and how the battery floor combines with heat.
+ */
+public class CaptureGovernorTest {
+    private static final long POLL_MS = 10_000;
+
+    /**
+     * Readings the test sets directly; headroom NaN means the platform has no forecast.
+     */
+    private static final class Sensors implements CaptureGovernor.ThermalSensor,
+            CaptureGovernor.BatterySensor {
+        int status = CaptureGovernor.THERMAL_STATUS_NONE;
+        float headroom = Float.NaN;
+        int batteryPercent = 80;
+        boolean charging;
+
+        @Override
+        public int getThermalStatus() {
+            return status;
+        }
+
+        @Override
+        public float getThermalHeadroom() {
+            return headroom;
+        }
+
+        @Override
+        public int getLevelPercent() {
+            return batteryPercent;
+        }
+
+        @Override
+        public boolean isCharging() {
+            return charging;
+        }
+    }
+
+    private final Sensors sensors = new Sensors();
+    private CaptureGovernor governor;
+    private long now;
+
+    @Before
+    public void setUp() {
+        governor = new CaptureGovernor(sensors, sensors);
+        sensors.headroom = 0.5f;
+        assertFalse(poll());
+        assertEquals(0, governor.level());
+    }
+
+    private boolean poll() {
+        boolean changed = governor.poll(now);
+        now += POLL_MS;
+        return changed;
+    }
+
+    /**
+     * Polls at the usual interval for {@code ms} and returns how often the cap changed.
+     */
+    private int pollFor(long ms) {
+        int changes = 0;
+        for (long end = now + ms; now < end; ) {
+            changes += poll() ? 1 : 0;
+        }
+        return changes;
+    }
+
+    @Test
+    public void stepsDownAsFarAsThePressureCallsForAtOnce() {
+        sensors.headroom = 0.92f;
+        assertTrue(poll());
+        assertEquals(3, governor.level());
+        assertEquals(CaptureGovernor.CAPS[3].framerate, governor.current().framerate);
+
+        sensors.headroom = 1.2f;
+        assertTrue(poll());
+        assertEquals(CaptureGovernor.CAPS.length - 1, governor.level());
+        assertEquals(2, governor.getStepsDown());
+    }
+
+    @Test
+    public void statusWithoutForecastSkipsALevel() {
+        sensors.headroom = Float.NaN;
+        sensors.status = CaptureGovernor.THERMAL_STATUS_LIGHT;
+        assertTrue(poll());
+        assertEquals(2, governor.level());
+
+        sensors.status = CaptureGovernor.THERMAL_STATUS_SEVERE;
+        assertTrue(poll());
+        assertEquals(CaptureGovernor.CAPS.length - 1, governor.level());
+    }
+
+    @Test
+    public void recoversOneLevelPerRecoveryPeriod() {
+        sensors.headroom = 0.96f;
+        assertTrue(poll());
+        assertEquals(4, governor.level());
+
+        sensors.headroom = 0.3f;
+        // The first calm poll starts the clock; nothing moves until a full period has passed
+        assertEquals(0, pollFor(CaptureGovernor.RECOVERY_MS));
+        assertEquals(4, governor.level());
+        assertTrue(poll());
+        assertEquals(3, governor.level());
+
+        assertEquals(0, pollFor(CaptureGovernor.RECOVERY_MS - POLL_MS));
+        assertTrue(poll());
+        assertEquals(2, governor.level());
+
+        pollFor(2 * CaptureGovernor.RECOVERY_MS + POLL_MS);
+        assertEquals(0, governor.level());
+        assertEquals(4, governor.getStepsUp());
+        assertEquals(1, governor.getStepsDown());
+    }
+
+    @Test
+    public void headroomJustBelowTheThresholdDoesNotRecover() {
+        sensors.headroom = 0.85f;
+        assertTrue(poll());
+        assertEquals(2, governor.level());
+
+        // Below level 2's threshold, but within the hysteresis margin of it
+        sensors.headroom = 0.8f - CaptureGovernor.HEADROOM_HYSTERESIS / 2;
+        assertEquals(0, pollFor(10 * CaptureGovernor.RECOVERY_MS));
+        assertEquals(2, governor.level());
+
+        // A calm stretch interrupted by a warm reading starts over
+        sensors.headroom = 0.5f;
+        pollFor(CaptureGovernor.RECOVERY_MS - POLL_MS);
+        sensors.headroom = 0.75f;
+        assertFalse(poll());
+        sensors.headroom = 0.5f;
+        assertEquals(0, pollFor(CaptureGovernor.RECOVERY_MS));
+        assertTrue(poll());
+        assertEquals(1, governor.level());
+    }
+
+    @Test
+    public void lowBatteryFloorsTheCapUnlessCharging() {
+        sensors.batteryPercent = CaptureGovernor.LOW_BATTERY_PERCENT;
+        assertTrue(poll());
+        assertEquals(2, governor.level());
+
+        sensors.batteryPercent = CaptureGovernor.CRITICAL_BATTERY_PERCENT;
+        assertTrue(poll());
+        assertEquals(CaptureGovernor.CAPS.length - 1, governor.level());
+
+        // Plugged in, only the heat counts, and the cap recovers at the usual pace
+        sensors.charging = true;
+        assertEquals(0, pollFor(CaptureGovernor.RECOVERY_MS));
+        assertTrue(poll());
+        assertEquals(CaptureGovernor.CAPS.length - 2, governor.level());
+
+        sensors.charging = false;
+        assertTrue(poll());
+        assertEquals(CaptureGovernor.CAPS.length - 1, governor.level());
+    }
+
+    @Test
+    public void batteryFloorAndHeatTakeTheStricter() {
+        sensors.batteryPercent = CaptureGovernor.LOW_BATTERY_PERCENT;
+        sensors.headroom = 0.92f;
+        assertTrue(poll());
+        assertEquals(3, governor.level());
+
+        // Cooling down does not lift the cap past the battery floor
+        sensors.headroom = 0.3f;
+        pollFor(10 * CaptureGovernor.RECOVERY_MS);
+        assertEquals(2, governor.level());
+
+        sensors.batteryPercent = -1;
+        pollFor(3 * CaptureGovernor.RECOVERY_MS);
+        assertEquals(0, governor.level());
+    }
+}
@@ -0,0 +1,216 @@
+package com.remotecontrol.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Eviction, expiry and persistence of {@link ConnectionProfileCache}, and the path a cached
+ * quality level takes from the guest's QUALITY_LEVEL message to the host's
+ * {@link StreamQualityPolicy}.
+ */
+public class ConnectionProfileCacheTest {
+    private static final long MAX_AGE_MS = 60_000;
+    private static final long NOW = 1_700_000_000_000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ConnectionProfileCache.Profile profile(int qualityLevel, long savedAtMs) {
+        return new ConnectionProfileCache.Profile("srflx", "H264", qualityLevel,
+            Collections.singletonList("stun:stun.l.google.com:19302"), savedAtMs);
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedEntry() {
+        ConnectionProfileCache cache = new ConnectionProfileCache(3, MAX_AGE_MS);
+        cache.put("a", profile(0, NOW));
+        cache.put("b", profile(1, NOW));
+        cache.put("c", profile(2, NOW));
+        // A lookup counts as a use, so "b" is now the eldest
+        assertNotNull(cache.get("a", NOW));
+        cache.put("d", profile(3, NOW));
+
+        assertEquals(3, cache.size());
+        assertNull(cache.get("b", NOW));
+        assertNotNull(cache.get("a", NOW));
+        assertNotNull(cache.get("c", NOW));
+        assertNotNull(cache.get("d", NOW));
+    }
+
+    @Test
+    public void expiredEntriesAreDroppedOnLookup() {
+        ConnectionProfileCache cache = new ConnectionProfileCache(3, MAX_AGE_MS);
+        cache.put("a", profile(2, NOW));
+
+        assertNotNull(cache.get("a", NOW + MAX_AGE_MS));
+        assertNull(cache.get("a", NOW + MAX_AGE_MS + 1));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void saveAndLoadRoundTripKeepsFieldsAndUseOrder() throws IOException {
+        File file = new File(folder.getRoot(), "profiles.json");
+        ConnectionProfileCache cache = new ConnectionProfileCache(3, MAX_AGE_MS);
+        cache.put("a", new ConnectionProfileCache.Profile("relay", "VP8", 3,
+            Arrays.asList("turn:turn.example.org:3478", "stun:stun.example.org"), NOW - 10));
+        cache.put("b", new ConnectionProfileCache.Profile(null, null, 1,
+            Collections.<String>emptyList(), NOW - 20));
+        cache.put("c", profile(0, NOW));
+        cache.get("a", NOW);
+        cache.save(file);
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        ConnectionProfileCache loaded = new ConnectionProfileCache(3, MAX_AGE_MS);
+        loaded.load(file, NOW);
+        assertEquals(3, loaded.size());
+        ConnectionProfileCache.Profile a = loaded.get("a", NOW);
+        assertEquals("relay", a.candidateType);
+        assertTrue(a.isRelayed());
+        assertEquals("VP8", a.codec);
+        assertEquals(3, a.qualityLevel);
+        assertEquals(Arrays.asList("turn:turn.example.org:3478", "stun:stun.example.org"), a.iceServers);
+        assertEquals(NOW - 10, a.savedAtMs);
+        ConnectionProfileCache.Profile b = loaded.get("b", NOW);
+        assertNull(b.candidateType);
+        assertNull(b.codec);
+        assertEquals(Collections.emptyList(), b.iceServers);
+
+        // "c" was the least recently used when saved, and lookups above did not touch it
+        loaded.put("d", profile(0, NOW));
+        assertNull(loaded.get("c", NOW));
+    }
+
+    @Test
+    public void loadSkipsEntriesThatExpiredOnDisk() throws IOException {
+        File file = new File(folder.getRoot(), "profiles.json");
+        ConnectionProfileCache cache = new ConnectionProfileCache(3, MAX_AGE_MS);
+        cache.put("old", profile(1, NOW - MAX_AGE_MS - 1));
+        cache.put("fresh", profile(2, NOW));
+        cache.save(file);
+
+        ConnectionProfileCache loaded = new ConnectionProfileCache(3, MAX_AGE_MS);
+        loaded.load(file, NOW);
+        assertEquals(1, loaded.size());
+        assertEquals(2, loaded.get("fresh", NOW).qualityLevel);
+    }
+
+    @Test
+    public void corruptOrMissingFileLoadsEmpty() throws IOException {
+        List<String> corrupt = Arrays.asList(
+            "",
+            "not json",
+            "{\"hostCode\":\"a\"}",
+            "[{\"hostCode\":\"a\",\"qualityLevel\":\"high\"}]",
+            "[{\"hostCode\":\"a\",\"qualityLevel\":2,\"savedAt\":" + NOW + "},{\"hostCode\":");
+        File file = folder.newFile("profiles.json");
+        for (String contents : corrupt) {
+            Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+            ConnectionProfileCache cache = new ConnectionProfileCache(3, MAX_AGE_MS);
+            cache.put("stale", profile(0, NOW));
+            cache.load(file, NOW);
+            assertEquals(contents, 0, cache.size());
+        }
+
+        ConnectionProfileCache cache = new ConnectionProfileCache(3, MAX_AGE_MS);
+        cache.put("stale", profile(0, NOW));
+        cache.load(new File(folder.getRoot(), "missing.json"), NOW);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void cachedLevelSeedsTheHostPolicy() throws IOException {
+        final int[] received = {-1};
+        SignalingCodec.decode(SignalingCodec.encodeQualityLevel(2, "guest", "host"), new LevelHandler() {
+            @Override
+            public void onQualityLevel(int level, String from) {
+                assertEquals("guest", from);
+                received[0] = level;
+            }
+        });
+        assertEquals(2, received[0]);
+
+        // On a link that carries rung 2 but not the top, a seeded start holds while a cold one
+        // has to step down first
+        StreamQualityPolicy.LinkSample sample = new StreamQualityPolicy.LinkSample(60, 0,
+            StreamQualityPolicy.LADDER[2].maxBitrateBps * 1.1, 30);
+        StreamQualityPolicy warm = new StreamQualityPolicy(37);
+        warm.setLevel(received[0]);
+        StreamQualityPolicy cold = new StreamQualityPolicy(37);
+        int coldChanges = 0;
+        for (int i = 0; i < StreamQualityPolicy.MIN_UP_SAMPLES; i++) {
+            assertFalse(warm.onSample(sample));
+            coldChanges += cold.onSample(sample) ? 1 : 0;
+        }
+        assertEquals(2, warm.level());
+        assertTrue(coldChanges > 0);
+    }
+
+    @Test
+    public void outOfRangeSeedsAreClampedOrRejected() {
+        StreamQualityPolicy policy = new StreamQualityPolicy(37);
+        policy.setLevel(99);
+        assertEquals(StreamQualityPolicy.LADDER.length - 1, policy.level());
+
+        try {
+            SignalingCodec.decode(SignalingCodec.encodeQualityLevel(-1, "guest", null), new LevelHandler() {
+                @Override
+                public void onQualityLevel(int level, String from) {
+                    fail("negative level delivered");
+                }
+            });
+            fail("negative level accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * Fails on anything but a quality level.
+     */
+    private abstract static class LevelHandler implements SignalingCodec.Handler {
+        @Override
+        public boolean accepts(String from, String to) {
+            return true;
+        }
+
+        @Override
+        public void onConnectionRequest(String hostCode, String from) {
+            fail();
+        }
+
+        @Override
+        public void onIceCandidate(SignalingCodec.Candidate candidate, String from) {
+            fail();
+        }
+
+        @Override
+        public void onIceCandidates(List<SignalingCodec.Candidate> candidates, boolean complete,
+                                    String from) {
+            fail();
+        }
+
+        @Override
+        public void onSessionDescription(SignalingCodec.Description description, String from) {
+            fail();
+        }
+
+        @Override
+        public void onTouchEvent(TouchEvent event, String from) {
+            fail();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.remotecontrol.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Traces a point on the host display forward to where the guest sees it, then back through the
+ * real path: {@link CoordinateTransform} on the guest, {@link TouchEventCodec}, and
+ * {@link DisplayTouchMapper} on the host. Runs for every rotation against guest views that
+ * letterbox and pillarbox the stream.
+ */
+@RunWith(Parameterized.class)
+public class CoordinateMappingTest {
+    // Far below a fingertip's width
+    private static final double TOLERANCE_PX = 3;
+
+    private static final int[][] DISPLAYS = {{1080, 2340}, {1600, 2560}};
+    private static final int[][] VIEWS = {
+        {1080, 1920}, {1920, 1080}, {1000, 1000}, {2400, 1080}
+    };
+
+    @Parameterized.Parameters(name = "display {0}x{1} rotation {2} view {3}x{4}")
+    public static Collection<Object[]> cases() {
+        List<Object[]> cases = new ArrayList<>();
+        for (int[] display : DISPLAYS) {
+            for (int rotation = 0; rotation < 4; rotation++) {
+                for (int[] view : VIEWS) {
+                    cases.add(new Object[] {display[0], display[1], rotation, view[0], view[1]});
+                }
+            }
+        }
+        return cases;
+    }
+
+    private final int displayWidth;
+    private final int displayHeight;
+    private final int rotation;
+    private final int viewWidth;
+    private final int viewHeight;
+
+    private final float[] landed = new float[2];
+    private final ByteBuffer message =
+        ByteBuffer.allocate(TouchEventCodec.HEADER_BYTES + TouchEventCodec.MAX_EVENT_BYTES);
+    private final TouchEventCodec.Writer writer = new TouchEventCodec.Writer();
+    private DisplayTouchMapper mapper;
+
+    public CoordinateMappingTest(int naturalWidth, int naturalHeight, int rotation,
+                                 int viewWidth, int viewHeight) {
+        boolean sideways = rotation % 2 == 1;
+        this.displayWidth = sideways ? naturalHeight : naturalWidth;
+        this.displayHeight = sideways ? naturalWidth : naturalHeight;
+        this.rotation = rotation;
+        this.viewWidth = viewWidth;
+        this.viewHeight = viewHeight;
+    }
+
+    @Before
+    public void setUp() {
+        mapper = new DisplayTouchMapper(new TouchEventCodec.Sink() {
+            @Override
+            public void onTouchEvent(int action, int pointerId, long eventTime,
+                                     float x, float y, float pressure, float size) {
+                landed[0] = x;
+                landed[1] = y;
+            }
+        });
+        mapper.setDisplay(displayWidth, displayHeight, rotation);
+    }
+
+    @Test
+    public void everyLadderStepLandsWhereItWasAimed() {
+        for (StreamQualityPolicy.OperatingPoint point : StreamQualityPolicy.LADDER) {
+            mapper.setFrameSize(point.captureWidth, point.captureHeight);
+            for (float[] target : targets()) {
+                assertLandsOn(target[0], target[1], point);
+            }
+        }
+    }
+
+    @Test
+    public void gestureAcrossAResolutionSwitchStaysOnTarget() {
+        StreamQualityPolicy.OperatingPoint before = StreamQualityPolicy.LADDER[0];
+        StreamQualityPolicy.OperatingPoint after =
+            StreamQualityPolicy.LADDER[StreamQualityPolicy.LADDER.length - 1];
+        mapper.setFrameSize(before.captureWidth, before.captureHeight);
+        assertLandsOn(displayWidth / 3f, displayHeight / 3f, before);
+
+        // The host switches first; the guest still decodes the old size for a few frames
+        mapper.setFrameSize(after.captureWidth, after.captureHeight);
+        assertLandsOn(displayWidth / 3f + 10, displayHeight / 3f + 10, before);
+        assertLandsOn(displayWidth / 3f + 20, displayHeight / 3f + 20, after);
+    }
+
+    @Test
+    public void transformIsRebuiltOnlyWhenASizeChanges() {
+        StreamQualityPolicy.OperatingPoint point = StreamQualityPolicy.LADDER[0];
+        mapper.setFrameSize(point.captureWidth, point.captureHeight);
+        long rebuilds = mapper.getRebuilds();
+
+        mapper.setFrameSize(point.captureWidth, point.captureHeight);
+        mapper.setDisplay(displayWidth, displayHeight, rotation);
+        assertLandsOn(0, 0, point);
+        assertEquals(rebuilds, mapper.getRebuilds());
+
+        mapper.setDisplay(displayHeight, displayWidth, (rotation + 1) % 4);
+        assertEquals(rebuilds + 1, mapper.getRebuilds());
+    }
+
+    @Test
+    public void touchesOnTheGuestBarsClampToTheFrameEdge() {
+        CoordinateTransform guest = CoordinateTransform.fit(displayWidth, displayHeight, viewWidth, viewHeight);
+        assertEquals(0f, guest.toNormalizedContentX(-50), 0f);
+        assertEquals(0f, guest.toNormalizedContentY(-50), 0f);
+        assertEquals(1f, guest.toNormalizedContentX(viewWidth + 50), 0f);
+        assertEquals(1f, guest.toNormalizedContentY(viewHeight + 50), 0f);
+        // Both corners of the view sit on a bar or on the frame's corner
+        assertEquals(0f, guest.toNormalizedContentX(0) * guest.toNormalizedContentY(0), 0f);
+    }
+
+    @Test
+    public void noTransformUntilEverySizeIsKnown() {
+        assertNull(CoordinateTransform.fit(0, displayHeight, viewWidth, viewHeight));
+        assertNull(CoordinateTransform.fit(displayWidth, displayHeight, viewWidth, 0));
+
+        DisplayTouchMapper unsized = new DisplayTouchMapper(new TouchEventCodec.Sink() {
+            @Override
+            public void onTouchEvent(int action, int pointerId, long eventTime,
+                                     float x, float y, float pressure, float size) {
+                throw new AssertionError("touch injected before the frame size was known");
+            }
+        });
+        unsized.setDisplay(displayWidth, displayHeight, rotation);
+        send(unsized, 0.5f, 0.5f);
+    }
+
+    private List<float[]> targets() {
+        List<float[]> targets = new ArrayList<>();
+        for (int i = 0; i <= 4; i++) {
+            for (int j = 0; j <= 4; j++) {
+                targets.add(new float[] {i * (displayWidth - 1) / 4f, j * (displayHeight - 1) / 4f});
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * Aims at a display pixel as the guest sees it when decoding {@code seenByGuest}.
+     */
+    private void assertLandsOn(float x, float y, StreamQualityPolicy.OperatingPoint seenByGuest) {
+        // Forward: display inside the captured frame, frame as decoded inside the guest view
+        float[] normalizedFrame = fitForward(x, y, displayWidth, displayHeight,
+            seenByGuest.captureWidth, seenByGuest.captureHeight);
+        int frameWidth = encodedSize(seenByGuest.captureWidth, seenByGuest.scaleResolutionDownBy);
+        int frameHeight = encodedSize(seenByGuest.captureHeight, seenByGuest.scaleResolutionDownBy);
+        float[] normalizedView = fitForward(normalizedFrame[0] * frameWidth,
+            normalizedFrame[1] * frameHeight, frameWidth, frameHeight, viewWidth, viewHeight);
+
+        CoordinateTransform guest = CoordinateTransform.fit(frameWidth, frameHeight, viewWidth, viewHeight);
+        landed[0] = Float.NaN;
+        send(mapper, guest.toNormalizedContentX(normalizedView[0] * viewWidth),
+            guest.toNormalizedContentY(normalizedView[1] * viewHeight));
+
+        double error = Math.hypot(landed[0] - x, landed[1] - y);
+        assertTrue("aimed at " + x + "," + y + " landed on " + landed[0] + "," + landed[1],
+            error <= TOLERANCE_PX);
+    }
+
+    private void send(TouchEventCodec.Sink sink, float normalizedX, float normalizedY) {
+        message.clear();
+        writer.begin(message).add(TouchInputReceiver.ACTION_MOVE, 0, 0, normalizedX, normalizedY, 1f, 0f);
+        writer.finish();
+        message.flip();
+        TouchEventCodec.decode(message, sink);
+    }
+
+    /**
+     * Where a content pixel ends up in a container it is fitted into, normalized to the container.
+     */
+    private static float[] fitForward(float x, float y, int contentWidth, int contentHeight,
+                                      int containerWidth, int containerHeight) {
+        float scale = Math.min((float) containerWidth / contentWidth, (float) containerHeight / contentHeight);
+        float offsetX = (containerWidth - contentWidth * scale) / 2f;
+        float offsetY = (containerHeight - contentHeight * scale) / 2f;
+        return new float[] {(offsetX + x * scale) / containerWidth, (offsetY + y * scale) / containerHeight};
+    }
+
+    /**
+     * Encoders round scaled sizes down to even numbers, which shifts the aspect ratio slightly.
+     */
+    private static int encodedSize(int captureSize, double scaleDownBy) {
+        return ((int) (captureSize / scaleDownBy)) & ~1;
+    }
+}
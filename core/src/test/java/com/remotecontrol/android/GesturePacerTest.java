@@ -0,0 +1,201 @@
+package com.remotecontrol.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+public class GesturePacerTest {
+    private static final long SAMPLE_INTERVAL_MS = 8;
+    private static final long PLAYOUT_MS = GesturePacer.DEFAULT_PLAYOUT_DELAY_MS;
+
+    private final List<StrokePlanner.Segment> dispatched = new ArrayList<>();
+    private final List<Long> durations = new ArrayList<>();
+    private final GesturePacer pacer = new GesturePacer(new GesturePacer.Dispatcher() {
+        @Override
+        public void dispatch(StrokePlanner.Segment segment, long durationMillis) {
+            dispatched.add(segment);
+            durations.add(durationMillis);
+        }
+    });
+
+    @Test
+    public void segmentsOnTimePlayAtTheOriginalSpeed() {
+        pacer.enqueue(segment(1000, 1016, true), 5000);
+        assertEquals(16 + PLAYOUT_MS, (long) durations.get(0));
+
+        long now = 5000 + durations.get(0);
+        pacer.enqueue(segment(1016, 1032, true), now - 10);
+        pacer.onDispatchFinished(now);
+        assertEquals(16, (long) durations.get(1));
+    }
+
+    @Test
+    public void lateSegmentShrinksToCatchUp() {
+        pacer.enqueue(segment(1000, 1016, true), 5000);
+        long now = 5000 + durations.get(0);
+        pacer.onDispatchFinished(now);
+
+        // Arrives 40 ms after it should have started playing
+        pacer.enqueue(segment(1016, 1032, true), now + 40);
+        assertEquals(GesturePacer.MIN_DURATION_MS, (long) durations.get(1));
+        assertEquals(GesturePacer.MIN_DURATION_MS, pacer.getLastLagMillis());
+
+        // The gesture keeps its anchor, so a longer segment ends back on the original schedule
+        now += 40 + GesturePacer.MIN_DURATION_MS;
+        pacer.enqueue(segment(1032, 1120, true), now - 5);
+        pacer.onDispatchFinished(now);
+        long anchor = 5000 + PLAYOUT_MS - 1000;
+        assertEquals(1120 + anchor, now + durations.get(2));
+    }
+
+    @Test
+    public void onlyOneSegmentIsInFlight() {
+        pacer.enqueue(segment(1000, 1016, true), 5000);
+        pacer.enqueue(segment(1016, 1032, true), 5001);
+        pacer.enqueue(segment(1032, 1048, false), 5002);
+        assertEquals(1, dispatched.size());
+
+        pacer.onDispatchFinished(5032);
+        assertEquals(2, dispatched.size());
+        pacer.clear();
+        pacer.onDispatchFinished(5048);
+        assertEquals(2, dispatched.size());
+    }
+
+    @Test
+    public void lastInjectedSampleTimeFollowsFinishedSegments() {
+        assertEquals(-1, pacer.getLastInjectedSampleTime());
+        pacer.enqueue(segment(1000, 1016, true), 5000);
+        assertEquals(-1, pacer.getLastInjectedSampleTime());
+        pacer.onDispatchFinished(5032);
+        assertEquals(1016, pacer.getLastInjectedSampleTime());
+    }
+
+    @Test
+    public void newGestureReanchorsAfterTheLastSegment() {
+        pacer.enqueue(segment(1000, 1016, false), 5000);
+        pacer.onDispatchFinished(5000 + durations.get(0));
+        // Ten seconds later on both clocks; the old anchor would make this one already late
+        pacer.enqueue(segment(11000, 11016, true), 15500);
+        assertEquals(16 + PLAYOUT_MS, (long) durations.get(1));
+    }
+
+    @Test
+    public void jitteryDragEndsCloseBehindTheOriginal() {
+        for (long seed = 0; seed < 20; seed++) {
+            Replay replay = replay(drag(1000, 600), 40, 30, seed);
+            // Reordered MOVEs are dropped, never replayed backwards
+            assertTrue(replay.staleMoves < 75 / 2);
+            // Playout headroom, the worst jitter and a slice of batching at most
+            assertTrue("seed " + seed + " ended " + replay.behindMs + " ms behind",
+                replay.behindMs <= PLAYOUT_MS + 30 + StrokePlanner.DEFAULT_SLICE_MS);
+            assertTrue("seed " + seed + " max lag " + replay.maxLagMs,
+                replay.maxLagMs <= PLAYOUT_MS + 30 + 2 * StrokePlanner.DEFAULT_SLICE_MS);
+        }
+    }
+
+    @Test
+    public void steadyDelayAddsOnlyThePlayoutHeadroom() {
+        Replay replay = replay(drag(1000, 600), 80, 0, 0);
+        assertTrue("ended " + replay.behindMs + " ms behind",
+            replay.behindMs >= 0 && replay.behindMs <= PLAYOUT_MS + SAMPLE_INTERVAL_MS);
+    }
+
+    private static final class Replay {
+        long now;
+        long injectedEndMs;
+        long behindMs;
+        long maxLagMs;
+        long staleMoves;
+    }
+
+    /**
+     * Feeds a trace through {@link TouchInputReceiver}, {@link StrokePlanner} and a pacer whose
+     * dispatches finish exactly after their duration, each sample delayed by {@code baseDelayMs}
+     * plus up to {@code jitterMs}.
+     */
+    private static Replay replay(List<TouchEvent> trace, long baseDelayMs, long jitterMs, long seed) {
+        Random random = new Random(seed);
+        List<long[]> arrivals = new ArrayList<>();
+        long latest = Long.MIN_VALUE;
+        for (int i = 0; i < trace.size(); i++) {
+            long arrival = trace.get(i).getEventTime() + baseDelayMs + (long) (random.nextDouble() * jitterMs);
+            // Pointer state changes go over the reliable channel and never overtake earlier samples
+            if (!TouchInputReceiver.isMove(trace.get(i).getAction())) {
+                arrival = Math.max(arrival, latest);
+            }
+            latest = Math.max(latest, arrival);
+            arrivals.add(new long[] {arrival, i});
+        }
+        Collections.sort(arrivals, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return Long.compare(a[0], b[0]);
+            }
+        });
+
+        final Replay replay = new Replay();
+        final long[] finishAt = {Long.MAX_VALUE};
+        final GesturePacer pacer = new GesturePacer(new GesturePacer.Dispatcher() {
+            @Override
+            public void dispatch(StrokePlanner.Segment segment, long durationMillis) {
+                finishAt[0] = replay.now + durationMillis;
+                replay.injectedEndMs = finishAt[0];
+            }
+        });
+        TouchInputReceiver receiver = new TouchInputReceiver(new StrokePlanner(new StrokePlanner.Output() {
+            @Override
+            public void onSegment(StrokePlanner.Segment segment) {
+                pacer.enqueue(segment, replay.now);
+            }
+        }));
+
+        for (long[] arrival : arrivals) {
+            finishUntil(pacer, finishAt, replay, arrival[0]);
+            replay.now = arrival[0];
+            TouchEvent event = trace.get((int) arrival[1]);
+            receiver.onTouchEvent(event.getAction(), event.getPointerId(), event.getEventTime(),
+                event.getX(), event.getY(), event.getPressure(), event.getSize());
+        }
+        finishUntil(pacer, finishAt, replay, Long.MAX_VALUE - 1);
+
+        replay.maxLagMs = pacer.getMaxLagMillis();
+        replay.staleMoves = receiver.getStaleMoves();
+        replay.behindMs = replay.injectedEndMs - (trace.get(trace.size() - 1).getEventTime() + baseDelayMs);
+        return replay;
+    }
+
+    private static void finishUntil(GesturePacer pacer, long[] finishAt, Replay replay, long time) {
+        while (finishAt[0] <= time) {
+            replay.now = finishAt[0];
+            finishAt[0] = Long.MAX_VALUE;
+            pacer.onDispatchFinished(replay.now);
+        }
+    }
+
+    private static List<TouchEvent> drag(long startMs, long durationMs) {
+        List<TouchEvent> trace = new ArrayList<>();
+        trace.add(new TouchEvent(TouchInputReceiver.ACTION_DOWN, 0, startMs, 100, 200, 1f, 0.1f));
+        float x = 100;
+        long time = startMs;
+        while (time < startMs + durationMs) {
+            time += SAMPLE_INTERVAL_MS;
+            x += 4;
+            trace.add(new TouchEvent(TouchInputReceiver.ACTION_MOVE, 0, time, x, 200, 1f, 0.1f));
+        }
+        trace.add(new TouchEvent(TouchInputReceiver.ACTION_UP, 0, time + SAMPLE_INTERVAL_MS, x, 200, 1f, 0.1f));
+        return trace;
+    }
+
+    private static StrokePlanner.Segment segment(long startTime, long endTime, boolean willContinue) {
+        StrokePlanner.Stroke stroke = new StrokePlanner.Stroke(0, new float[] {0, 0, 10, 10}, 2,
+            false, willContinue);
+        return new StrokePlanner.Segment(startTime, endTime, new StrokePlanner.Stroke[] {stroke});
+    }
+}
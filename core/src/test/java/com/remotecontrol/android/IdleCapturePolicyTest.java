@@ -0,0 +1,158 @@
+package com.remotecontrol.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Replays synthetic luma frame sequences through {@link FrameChangeDetector} and
+ * {@link IdleCapturePolicy}, the same path {@code IdleCaptureObserver} takes on device.
+ */
+public class IdleCapturePolicyTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 180;
+    private static final long FRAME_INTERVAL_NANOS = 33_333_333L;
+    private static final int FPS = 30;
+
+    private static final int STILL = 0;
+    private static final int SCROLL = 1;
+    private static final int EDIT = 2;
+
+    @Test
+    public void stillScreenForwardsOneKeepAlivePerInterval() {
+        Replay replay = new Replay(1);
+        int[] decisions = replay.run(new IdleCapturePolicy(), STILL, 10 * FPS);
+
+        // Everything up to the quiet period goes out, then one frame per keep-alive interval
+        int quietFrames = framesSpanning(IdleCapturePolicy.DEFAULT_QUIET_PERIOD_NANOS);
+        int keepAliveFrames = framesSpanning(IdleCapturePolicy.DEFAULT_KEEP_ALIVE_INTERVAL_NANOS);
+        for (int i = 0; i < quietFrames; i++) {
+            assertTrue("frame " + i, decisions[i] != IdleCapturePolicy.DROP);
+        }
+        int lastForward = -1;
+        for (int i = quietFrames; i < decisions.length; i++) {
+            if (decisions[i] != IdleCapturePolicy.DROP) {
+                assertEquals("frame " + i, IdleCapturePolicy.FORWARD, decisions[i]);
+                if (lastForward >= 0) {
+                    assertEquals(keepAliveFrames, i - lastForward);
+                }
+                lastForward = i;
+            }
+        }
+        assertTrue(lastForward > decisions.length - keepAliveFrames);
+    }
+
+    /**
+     * Frames until the frame timestamps have covered {@code nanos}.
+     */
+    private static int framesSpanning(long nanos) {
+        return (int) ((nanos + FRAME_INTERVAL_NANOS - 1) / FRAME_INTERVAL_NANOS);
+    }
+
+    @Test
+    public void changesAfterIdleGoOutAtOnceWithAKeyframe() {
+        assertChangesNeverHeldBack(SCROLL);
+        assertChangesNeverHeldBack(EDIT);
+    }
+
+    private void assertChangesNeverHeldBack(int change) {
+        Replay replay = new Replay(2);
+        IdleCapturePolicy policy = new IdleCapturePolicy();
+        for (int segment = 0; segment < 5; segment++) {
+            replay.run(policy, STILL, 5 * FPS);
+            assertTrue(policy.isIdle());
+
+            int[] busy = replay.run(policy, change, FPS);
+            assertEquals(IdleCapturePolicy.FORWARD_KEYFRAME, busy[0]);
+            for (int i = 1; i < busy.length; i++) {
+                assertEquals("frame " + i, IdleCapturePolicy.FORWARD, busy[i]);
+            }
+            assertFalse(policy.isIdle());
+        }
+        assertEquals(5, policy.getIdleEntries());
+    }
+
+    @Test
+    public void pausesShorterThanTheQuietPeriodDropNothing() {
+        Replay replay = new Replay(3);
+        IdleCapturePolicy policy = new IdleCapturePolicy();
+        for (int segment = 0; segment < 10; segment++) {
+            replay.run(policy, STILL, FPS);
+            replay.run(policy, EDIT, 5);
+        }
+        assertEquals(0, policy.getFramesDropped());
+        assertEquals(0, policy.getIdleEntries());
+        assertEquals(10 * (FPS + 5), policy.getFramesIn());
+    }
+
+    @Test
+    public void detectorSeesSmallEditsAndIgnoresStillFrames() {
+        Replay replay = new Replay(4);
+        FrameChangeDetector detector = new FrameChangeDetector();
+        assertTrue("first frame", detector.onFrame(replay.luma, WIDTH, HEIGHT, WIDTH));
+        assertFalse(detector.onFrame(replay.luma, WIDTH, HEIGHT, WIDTH));
+        for (int i = 0; i < 100; i++) {
+            replay.editBlock();
+            assertTrue("edit " + i, detector.onFrame(replay.luma, WIDTH, HEIGHT, WIDTH));
+        }
+        assertTrue("new size", detector.onFrame(replay.luma, WIDTH / 2, HEIGHT, WIDTH));
+    }
+
+    /**
+     * A random luma plane that can be scrolled or edited, and the clock the frames are stamped
+     * with. Detector state carries over between runs.
+     */
+    private static final class Replay {
+        final ByteBuffer luma = ByteBuffer.allocate(WIDTH * HEIGHT);
+        private final Random random;
+        private final FrameChangeDetector detector = new FrameChangeDetector();
+        private long timestamp;
+
+        Replay(long seed) {
+            random = new Random(seed);
+            for (int i = 0; i < luma.capacity(); i++) {
+                luma.put(i, (byte) random.nextInt(256));
+            }
+        }
+
+        int[] run(IdleCapturePolicy policy, int change, int frames) {
+            int[] decisions = new int[frames];
+            for (int i = 0; i < frames; i++) {
+                if (change == SCROLL) {
+                    scroll();
+                } else if (change == EDIT) {
+                    editBlock();
+                }
+                boolean changed = detector.onFrame(luma, WIDTH, HEIGHT, WIDTH);
+                decisions[i] = policy.onFrame(changed, timestamp);
+                timestamp += FRAME_INTERVAL_NANOS;
+            }
+            return decisions;
+        }
+
+        void scroll() {
+            byte[] array = luma.array();
+            System.arraycopy(array, WIDTH, array, 0, array.length - WIDTH);
+            for (int x = 0; x < WIDTH; x++) {
+                array[array.length - WIDTH + x] = (byte) random.nextInt(256);
+            }
+        }
+
+        /**
+         * Flips a 4x4 block, about the size of a blinking cursor.
+         */
+        void editBlock() {
+            int left = random.nextInt(WIDTH - 4);
+            int top = random.nextInt(HEIGHT - 4);
+            for (int y = top; y < top + 4; y++) {
+                for (int x = left; x < left + 4; x++) {
+                    luma.put(y * WIDTH + x, (byte) (luma.get(y * WIDTH + x) ^ 0x80));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.remotecontrol.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The SPAKE2 exchange between a guest and a host's LAN endpoint, the cap on failed attempts, and
+ * discovery over loopback multicast with a host that does not know the code answering as well.
+ */
+public class LanDiscoveryTest {
+    private static final String CODE = "3fa91c07";
+
+    private final List<LocalSignalingServer> servers = new ArrayList<>();
+    private final List<LanDiscovery.Announcer> announcers = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (LanDiscovery.Announcer announcer : announcers) {
+            announcer.stop();
+        }
+        for (LocalSignalingServer server : servers) {
+            server.stop();
+        }
+    }
+
+    private LocalSignalingServer startServer(String code) throws IOException {
+        LocalSignalingServer server = new LocalSignalingServer(LocalSignalingServer.Impairment.NONE,
+            InetAddress.getLoopbackAddress(), code);
+        server.start();
+        servers.add(server);
+        return server;
+    }
+
+    private static LanDiscovery.Endpoint endpoint(LocalSignalingServer server) {
+        return new LanDiscovery.Endpoint(InetAddress.getLoopbackAddress(), server.getPort(),
+            server.getSessionNonce());
+    }
+
+    @Test
+    public void exchangeConfirmsOnlyWhenBothSidesUseTheCode() {
+        String nonce = LanDiscovery.newNonce();
+        assertEquals(32, nonce.length());
+        assertNotEquals(nonce, LanDiscovery.newNonce());
+
+        Spake2 guest = new Spake2(Spake2.GUEST, CODE, nonce);
+        Spake2 host = new Spake2(Spake2.HOST, CODE, nonce);
+        assertTrue(host.receive(guest.getMessage()));
+        assertTrue(guest.receive(host.getMessage()));
+        assertTrue(guest.isConfirmation(host.getConfirmation()));
+        assertTrue(host.isConfirmation(guest.getConfirmation()));
+        // Each side's confirmation is its own, so one cannot be reflected back as the other
+        assertFalse(host.isConfirmation(host.getConfirmation()));
+
+        Spake2 wrongGuest = new Spake2(Spake2.GUEST, "3fa91c08", nonce);
+        Spake2 otherHost = new Spake2(Spake2.HOST, CODE, nonce);
+        assertTrue(otherHost.receive(wrongGuest.getMessage()));
+        assertTrue(wrongGuest.receive(otherHost.getMessage()));
+        assertFalse(wrongGuest.isConfirmation(otherHost.getConfirmation()));
+        assertFalse(otherHost.isConfirmation(wrongGuest.getConfirmation()));
+
+        Spake2 otherSession = new Spake2(Spake2.HOST, CODE, LanDiscovery.newNonce());
+        Spake2 guestAgain = new Spake2(Spake2.GUEST, CODE, nonce);
+        assertTrue(otherSession.receive(guestAgain.getMessage()));
+        assertTrue(guestAgain.receive(otherSession.getMessage()));
+        assertFalse(guestAgain.isConfirmation(otherSession.getConfirmation()));
+    }
+
+    @Test
+    public void elementsAreFreshAndDoNotCarryTheCode() {
+        Spake2 first = new Spake2(Spake2.GUEST, CODE, "nonce");
+        Spake2 second = new Spake2(Spake2.GUEST, CODE, "nonce");
+        assertEquals(512, first.getMessage().length());
+        assertNotEquals(first.getMessage(), second.getMessage());
+        assertFalse(first.getMessage().contains(CODE));
+    }
+
+    @Test
+    public void invalidElementsAreRejected() {
+        BigInteger p = new BigInteger("FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD129024E088A67CC74020BBEA63B139B22514A0879"
+            + "8E3404DDEF9519B3CD3A431B302B0A6DF25F14374FE1356D6D51C245E485B576625E7EC6F44C42E9A637ED"
+            + "6B0BFF5CB6F406B7EDEE386BFB5A899FA5AE9F24117C4B1FE649286651ECE45B3DC2007CB8A163BF0598DA"
+            + "48361C55D39A69163FA8FD24CF5F83655D23DCA3AD961C62F356208552BB9ED529077096966D670C354E4A"
+            + "BC9804F1746C08CA18217C32905E462E36CE3BE39E772C180E86039B2783A2EC07A28FB5C55DF06F4C52C9"
+            + "DE2BCBF6955817183995497CEA956AE515D2261898FA051015728E5A8AACAA68FFFFFFFFFFFFFFFF", 16);
+        String[] invalid = {
+            null,
+            "",
+            "02",
+            element(BigInteger.ZERO),
+            element(BigInteger.ONE),
+            // Order 2, which would pin the shared key to one of two values
+            element(p.subtract(BigInteger.ONE)),
+            element(p),
+            // 11 is a non-residue mod this p, so it lies outside the subgroup
+            element(BigInteger.valueOf(11)),
+            element(BigInteger.valueOf(4)).replace('0', 'x'),
+        };
+        for (String message : invalid) {
+            Spake2 host = new Spake2(Spake2.HOST, CODE, "nonce");
+            assertFalse(String.valueOf(message), host.receive(message));
+            assertFalse(host.isConfirmation("00"));
+        }
+        // 4 = 2^2 is in the subgroup
+        assertTrue(new Spake2(Spake2.HOST, CODE, "nonce").receive(element(BigInteger.valueOf(4))));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void noConfirmationBeforeThePeersElement() {
+        new Spake2(Spake2.GUEST, CODE, "nonce").getConfirmation();
+    }
+
+    @Test
+    public void endpointAdmitsOnlyGuestsThatShareTheCode() throws IOException {
+        LocalSignalingServer server = startServer(CODE);
+        LanDiscovery.Endpoint endpoint = endpoint(server);
+
+        assertTrue(LanDiscovery.verify(endpoint, CODE, 1000));
+        assertFalse(LanDiscovery.verify(endpoint, "00000000", 1000));
+        assertFalse(LanDiscovery.verify(new LanDiscovery.Endpoint(endpoint.address, endpoint.port,
+            LanDiscovery.newNonce()), CODE, 1000));
+        // Without the header at all, as a plain WebSocket client would connect
+        assertEquals("HTTP/1.1 403 Forbidden", upgrade(server, null));
+        assertEquals("HTTP/1.1 403 Forbidden", upgrade(server, element(BigInteger.ONE)));
+    }
+
+    @Test
+    public void failedAttemptsAreCapped() throws IOException {
+        LocalSignalingServer server = startServer(CODE);
+        LanDiscovery.Endpoint endpoint = endpoint(server);
+
+        for (int i = 0; i < LocalSignalingServer.MAX_FAILED_ATTEMPTS - 1; i++) {
+            assertFalse(LanDiscovery.verify(endpoint, String.format("%08x", i), 1000));
+        }
+        // Answered but never confirmed, as a guesser that walks away would leave it
+        assertTrue(upgrade(server, new Spake2(Spake2.GUEST, CODE, server.getSessionNonce()).getMessage())
+            .startsWith("HTTP/1.1 101 "));
+        assertFalse(LanDiscovery.verify(endpoint, CODE, 1000));
+        assertEquals("HTTP/1.1 403 Forbidden",
+            upgrade(server, new Spake2(Spake2.GUEST, CODE, server.getSessionNonce()).getMessage()));
+    }
+
+    @Test
+    public void rightCodeStillGetsInAfterFewerFailures() throws IOException {
+        LocalSignalingServer server = startServer(CODE);
+        LanDiscovery.Endpoint endpoint = endpoint(server);
+
+        for (int i = 0; i < LocalSignalingServer.MAX_FAILED_ATTEMPTS - 1; i++) {
+            assertFalse(LanDiscovery.verify(endpoint, String.format("%08x", i), 1000));
+        }
+        assertTrue(LanDiscovery.verify(endpoint, CODE, 1000));
+    }
+
+    @Test
+    public void hostThatCannotProveTheCodeIsPassedOver() throws IOException {
+        NetworkInterface loopback = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+        // Announces first, so the guest hears it before the real host
+        LocalSignalingServer impostor = startServer("00000000");
+        announce(impostor, loopback);
+        LocalSignalingServer host = startServer(CODE);
+        announce(host, loopback);
+
+        LanDiscovery.Endpoint found = LanDiscovery.race(CODE, LanDiscovery.RACE_MS, loopback);
+        assertNotNull(found);
+        assertEquals(host.getPort(), found.port);
+        assertEquals(host.getSessionNonce(), found.nonce);
+
+        assertNull(LanDiscovery.race("11111111", LanDiscovery.RACE_MS, loopback));
+    }
+
+    private void announce(LocalSignalingServer server, NetworkInterface networkInterface)
+            throws IOException {
+        LanDiscovery.Announcer announcer = new LanDiscovery.Announcer(server.getSessionNonce(),
+            server.getPort(), networkInterface);
+        announcer.start();
+        announcers.add(announcer);
+    }
+
+    private static String element(BigInteger value) {
+        String hex = value.toString(16);
+        StringBuilder padded = new StringBuilder();
+        for (int i = hex.length(); i < 512; i++) {
+            padded.append('0');
+        }
+        return padded.append(hex).toString();
+    }
+
+    /**
+     * Sends a WebSocket upgrade with the given element, if any, and returns the status line.
+     */
+    private static String upgrade(LocalSignalingServer server, String element) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        try {
+            socket.setSoTimeout(1000);
+            String request = "GET / HTTP/1.1\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+                + (element != null ? LanDiscovery.HEADER_PAKE + ": " + element + "\r\n" : "")
+                + "\r\n";
+            OutputStream out = socket.getOutputStream();
+            out.write(request.getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            return new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                StandardCharsets.US_ASCII)).readLine();
+        } finally {
+            socket.close();
+        }
+    }
+}
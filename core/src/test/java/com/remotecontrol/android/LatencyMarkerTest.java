@@ -0,0 +1,57 @@
+package com.remotecontrol.android;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import java.nio.ByteBuffer;
+
+public class LatencyMarkerTest {
+    private static final int WIDTH = 720;
+    private static final int HEIGHT = 1280;
+
+    @Test
+    public void roundTripsCounterTimeAndInputTime() {
+        ByteBuffer y = frame();
+        LatencyMarker.write(y, WIDTH, WIDTH, HEIGHT, 4097, 0x1_2345_6789L, 0x7654_3210L);
+
+        long marker = LatencyMarker.read(y, WIDTH, WIDTH, HEIGHT);
+        assertEquals(1, LatencyMarker.counterOf(marker));
+        assertEquals(0x2345_6789L, LatencyMarker.timeOf(marker));
+        assertEquals(0x43210, LatencyMarker.readInputTime(y, WIDTH, WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void noInputYetReadsAsNone() {
+        ByteBuffer y = frame();
+        LatencyMarker.write(y, WIDTH, WIDTH, HEIGHT, 7, 1000, -1);
+
+        assertEquals(7, LatencyMarker.counterOf(LatencyMarker.read(y, WIDTH, WIDTH, HEIGHT)));
+        assertEquals(-1, LatencyMarker.readInputTime(y, WIDTH, WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void unmarkedFrameReadsAsNone() {
+        ByteBuffer y = frame();
+        assertEquals(-1, LatencyMarker.read(y, WIDTH, WIDTH, HEIGHT));
+        assertEquals(-1, LatencyMarker.readInputTime(y, WIDTH, WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void inputLatencySurvivesWrapOfTheTimeField() {
+        long touchMillis = 5L * (LatencyMarker.INPUT_TIME_MASK + 1) - 30;
+        ByteBuffer y = frame();
+        LatencyMarker.write(y, WIDTH, WIDTH, HEIGHT, 0, 0, touchMillis);
+
+        int inputTime = LatencyMarker.readInputTime(y, WIDTH, WIDTH, HEIGHT);
+        assertEquals(75, LatencyMarker.millisSinceInput(inputTime, touchMillis + 75));
+    }
+
+    private static ByteBuffer frame() {
+        ByteBuffer y = ByteBuffer.allocateDirect(WIDTH * HEIGHT);
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            // Mid grey reads as all ones, which fails the sync bits
+            y.put(i, (byte) 128);
+        }
+        return y;
+    }
+}
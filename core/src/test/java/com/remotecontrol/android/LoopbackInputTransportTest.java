@@ -0,0 +1,209 @@
+package com.remotecontrol.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The two DataChannel modes under injected loss and jitter: the reliable channel delivers every
+ * message in order at the cost of waiting behind earlier ones, the unreliable one loses and
+ * reorders messages but never holds one back. Only delivery order and counts are checked, so a
+ * slow scheduler cannot fail them.
+ */
+public class LoopbackInputTransportTest {
+    private static final long LATENCY_MS = 5;
+    private static final long JITTER_MS = 20;
+    private static final double LOSS_RATE = 0.1;
+
+    private ScheduledExecutorService executor;
+    private LoopbackInputTransport guest;
+    private LoopbackInputTransport host;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newSingleThreadScheduledExecutor();
+        LoopbackInputTransport[] pair =
+            LoopbackInputTransport.createPair(executor, LATENCY_MS, JITTER_MS, LOSS_RATE, 42);
+        guest = pair[0];
+        host = pair[1];
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void reliableMessagesAreNeverLostOrReordered() throws InterruptedException {
+        SequenceRecorder recorder = new SequenceRecorder();
+        host.setReceiver(recorder);
+        for (int i = 0; i < 500; i++) {
+            guest.send(sequenceMessage(i), true);
+        }
+        drain();
+
+        assertEquals(0, guest.getDroppedMessages());
+        assertEquals(500, recorder.sequences.size());
+        for (int i = 0; i < 500; i++) {
+            assertEquals(i, (int) recorder.sequences.get(i));
+        }
+    }
+
+    @Test
+    public void unreliableMessagesAreLostAndReordered() throws InterruptedException {
+        SequenceRecorder recorder = new SequenceRecorder();
+        host.setReceiver(recorder);
+        for (int i = 0; i < 1000; i++) {
+            guest.send(sequenceMessage(i), false);
+        }
+        drain();
+
+        long dropped = guest.getDroppedMessages();
+        assertTrue("dropped " + dropped, dropped > 50 && dropped < 150);
+        assertEquals(1000 - dropped, recorder.sequences.size());
+        assertEquals(1000 - dropped, host.getDeliveredMessages());
+        assertTrue(inversions(recorder.sequences) > 0);
+        List<Integer> sorted = new ArrayList<>(recorder.sequences);
+        Collections.sort(sorted);
+        for (int i = 1; i < sorted.size(); i++) {
+            assertTrue("duplicate " + sorted.get(i), sorted.get(i) > sorted.get(i - 1));
+        }
+    }
+
+    @Test
+    public void reliableMessagesWaitBehindEarlierOnes() throws InterruptedException {
+        ChannelRecorder recorder = new ChannelRecorder();
+        host.setReceiver(recorder);
+        for (int i = 0; i < 200; i++) {
+            guest.send(channelMessage(0, i), true);
+            guest.send(channelMessage(1, i), false);
+        }
+        drain();
+
+        // Jitter draws a later delivery for some message than for the one after it; the reliable
+        // channel holds the later one back instead of letting it overtake, the unreliable one not
+        List<Integer> reliable = recorder.sequences(0);
+        List<Integer> unreliable = recorder.sequences(1);
+        assertEquals(200, reliable.size());
+        for (int i = 0; i < reliable.size(); i++) {
+            assertEquals(i, (int) reliable.get(i));
+        }
+        long heldBack = guest.getHeldBackMessages();
+        assertTrue("held back " + heldBack, heldBack > 0 && heldBack < 200);
+        assertTrue(inversions(unreliable) > 0);
+        assertEquals(200 - guest.getDroppedMessages(), unreliable.size());
+    }
+
+    @Test
+    public void receiverDropsMovesThatArriveLate() throws InterruptedException {
+        final List<int[]> injected = new ArrayList<>();
+        TouchInputReceiver receiver = new TouchInputReceiver(new TouchEventCodec.Sink() {
+            @Override
+            public void onTouchEvent(int action, int pointerId, long eventTime,
+                                     float x, float y, float pressure, float size) {
+                injected.add(new int[] {action, (int) eventTime});
+            }
+        });
+        host.setReceiver(receiver);
+
+        guest.send(touchMessage(TouchInputReceiver.ACTION_DOWN, 0), true);
+        for (int i = 1; i <= 300; i++) {
+            guest.send(touchMessage(TouchInputReceiver.ACTION_MOVE, i), false);
+        }
+        guest.send(touchMessage(TouchInputReceiver.ACTION_UP, 301), true);
+        drain();
+
+        assertEquals(TouchInputReceiver.ACTION_DOWN, injected.get(0)[0]);
+        assertEquals(TouchInputReceiver.ACTION_UP, injected.get(injected.size() - 1)[0]);
+        int moves = injected.size() - 2;
+        for (int i = 2; i < injected.size(); i++) {
+            assertTrue("event time went backwards", injected.get(i)[1] > injected.get(i - 1)[1]);
+        }
+        assertTrue(receiver.getStaleMoves() > 0);
+        assertEquals(300, moves + receiver.getStaleMoves() + guest.getDroppedMessages());
+    }
+
+    @Test
+    public void closedTransportRefusesToSend() {
+        guest.close();
+        assertFalse(guest.isOpen());
+        assertFalse(guest.send(sequenceMessage(0), true));
+        assertEquals(0, guest.getSentMessages());
+    }
+
+    private void drain() throws InterruptedException {
+        // Delayed deliveries still run after shutdown
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    private static ByteBuffer sequenceMessage(int sequence) {
+        ByteBuffer message = ByteBuffer.allocate(4);
+        message.putInt(0, sequence);
+        return message;
+    }
+
+    private static ByteBuffer channelMessage(int channel, int sequence) {
+        ByteBuffer message = ByteBuffer.allocate(5);
+        message.put(0, (byte) channel);
+        message.putInt(1, sequence);
+        return message;
+    }
+
+    private static int inversions(List<Integer> sequences) {
+        int inversions = 0;
+        for (int i = 1; i < sequences.size(); i++) {
+            if (sequences.get(i) < sequences.get(i - 1)) {
+                inversions++;
+            }
+        }
+        return inversions;
+    }
+
+    private static ByteBuffer touchMessage(int action, long eventTime) {
+        ByteBuffer message = ByteBuffer.allocate(
+            TouchEventCodec.HEADER_BYTES + TouchEventCodec.MAX_EVENT_BYTES);
+        TouchEventCodec.encode(new TouchEvent(action, 0, eventTime,
+            eventTime / 400f, 0.5f, 0.5f, 0.1f), message);
+        message.flip();
+        return message;
+    }
+
+    private static final class SequenceRecorder implements InputTransport.Receiver {
+        final List<Integer> sequences = Collections.synchronizedList(new ArrayList<Integer>());
+
+        @Override
+        public void onTouchMessage(ByteBuffer message) {
+            sequences.add(message.getInt(0));
+        }
+    }
+
+    private static final class ChannelRecorder implements InputTransport.Receiver {
+        private final List<List<Integer>> channels = new ArrayList<>();
+
+        ChannelRecorder() {
+            channels.add(new ArrayList<Integer>());
+            channels.add(new ArrayList<Integer>());
+        }
+
+        @Override
+        public synchronized void onTouchMessage(ByteBuffer message) {
+            channels.get(message.get(0)).add(message.getInt(1));
+        }
+
+        synchronized List<Integer> sequences(int channel) {
+            return new ArrayList<>(channels.get(channel));
+        }
+    }
+}
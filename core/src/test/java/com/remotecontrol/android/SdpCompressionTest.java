@@ -0,0 +1,161 @@
+package com.remotecontrol.android;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compressed session descriptions through {@link SignalingCodec}: they arrive exactly as sent,
+ * and nothing a peer sends can make the guest inflate past {@link SdpCompression#MAX_INFLATED_BYTES}.
+ */
+public class SdpCompressionTest {
+    private static final String OFFER = "v=0\r\n"
+        + "o=- 4611731400430051336 2 IN IP4 127.0.0.1\r\n"
+        + "s=-\r\nt=0 0\r\n"
+        + "a=group:BUNDLE 0\r\n"
+        + "m=video 9 UDP/TLS/RTP/SAVPF 96 97\r\n"
+        + "c=IN IP4 0.0.0.0\r\n"
+        + "a=ice-ufrag:Fw7b\r\n"
+        + "a=ice-pwd:5CxSfNfNw9JQd8nLFUb0YjDf\r\n"
+        + "a=mid:0\r\n"
+        + "a=rtpmap:96 VP8/90000\r\n"
+        + "a=rtcp-fb:96 transport-cc\r\n"
+        + "a=rtcp-fb:96 nack\r\n"
+        + "a=rtcp-fb:96 nack pli\r\n"
+        + "a=rtpmap:97 rtx/90000\r\n"
+        + "a=fmtp:97 apt=96\r\n";
+
+    @Test
+    public void compressedDescriptionRoundTripsThroughTheCodec() throws IOException {
+        SignalingCodec.Description offer = new SignalingCodec.Description(SignalingCodec.Description.OFFER, OFFER);
+        String compressed = SignalingCodec.encodeSessionDescription(offer, "host", "guest", true);
+        String plain = SignalingCodec.encodeSessionDescription(offer, "host", "guest", false);
+
+        SignalingCodec.Description received = decode(compressed);
+        assertEquals(OFFER, received.sdp);
+        assertEquals(SignalingCodec.Description.OFFER, received.type);
+        assertTrue(received.acceptsCompressed);
+        assertEquals(OFFER, decode(plain).sdp);
+        assertTrue(compressed.length() < plain.length());
+    }
+
+    @Test
+    public void compressRoundTripsAnyText() throws IOException {
+        Random random = new Random(3);
+        List<String> samples = Arrays.asList("", "a", OFFER, "caf\u00e9 \u2603 \ud83d\ude00", OFFER + OFFER);
+        for (String sample : samples) {
+            assertEquals(sample, SdpCompression.decompress(SdpCompression.compress(sample)));
+        }
+        StringBuilder noise = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            noise.append((char) (' ' + random.nextInt(95)));
+        }
+        assertEquals(noise.toString(), SdpCompression.decompress(SdpCompression.compress(noise.toString())));
+    }
+
+    @Test
+    public void base64MatchesTheStandardEncoding() throws IOException {
+        Random random = new Random(5);
+        for (int length = 0; length < 40; length++) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            String encoded = SdpCompression.encodeBase64(data);
+            assertEquals(Base64.getEncoder().encodeToString(data), encoded);
+            assertArrayEquals(data, SdpCompression.decodeBase64(encoded));
+        }
+    }
+
+    @Test
+    public void inflatingStopsAtTheCap() throws IOException {
+        String atCap = repeat('a', SdpCompression.MAX_INFLATED_BYTES);
+        assertEquals(atCap, SdpCompression.decompress(SdpCompression.compress(atCap)));
+
+        // A few hundred bytes on the wire that would inflate to megabytes
+        String bomb = SdpCompression.compress(repeat('a', 16 * SdpCompression.MAX_INFLATED_BYTES));
+        assertTrue(bomb.length() < 16 * 1024);
+        assertDecompressFails(bomb);
+        assertDecompressFails(SdpCompression.compress(atCap + "a"));
+    }
+
+    @Test
+    public void malformedInputIsRejected() {
+        String valid = SdpCompression.compress(OFFER);
+        assertDecompressFails(valid.substring(0, valid.length() / 2 / 4 * 4));
+        assertDecompressFails("abc");
+        assertDecompressFails("ab!d");
+        assertDecompressFails("a===");
+        assertDecompressFails(SdpCompression.encodeBase64(new byte[] {(byte) 0xFF, 0x12, 0x34, 0x56}));
+    }
+
+    @Test
+    public void unknownEncodingIsRejected() {
+        String message = SignalingCodec.encodeSessionDescription(
+            new SignalingCodec.Description(SignalingCodec.Description.OFFER, OFFER), "host", "guest", true)
+            .replace("\"" + SdpCompression.ENCODING + "\"", "\"brotli\"");
+        try {
+            decode(message);
+            fail("unknown encoding accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static void assertDecompressFails(String encoded) {
+        try {
+            SdpCompression.decompress(encoded);
+            fail("decompressed " + encoded.length() + " chars");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static SignalingCodec.Description decode(String message) throws IOException {
+        final SignalingCodec.Description[] result = new SignalingCodec.Description[1];
+        SignalingCodec.decode(message, new SignalingCodec.Handler() {
+            @Override
+            public boolean accepts(String from, String to) {
+                return true;
+            }
+
+            @Override
+            public void onConnectionRequest(String hostCode, String from) {
+            }
+
+            @Override
+            public void onIceCandidate(SignalingCodec.Candidate candidate, String from) {
+            }
+
+            @Override
+            public void onIceCandidates(List<SignalingCodec.Candidate> candidates, boolean complete,
+                                        String from) {
+            }
+
+            @Override
+            public void onSessionDescription(SignalingCodec.Description description, String from) {
+                result[0] = description;
+            }
+
+            @Override
+            public void onTouchEvent(TouchEvent event, String from) {
+            }
+
+            @Override
+            public void onQualityLevel(int level, String from) {
+            }
+        });
+        assertTrue("no description decoded", result[0] != null);
+        return result[0];
+    }
+}
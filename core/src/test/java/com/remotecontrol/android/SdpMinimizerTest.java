@@ -0,0 +1,288 @@
+package com.remotecontrol.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs offers shaped like what the library creates for the screen track through
+ * {@link SdpMinimizer}: which payload types, attributes and sections survive, and that the
+ * result is still well formed.
+ */
+public class SdpMinimizerTest {
+    private static final List<String> CODECS = Arrays.asList("H264", "VP8");
+
+    @Test
+    public void keepsThePreferredCodecsAndTheirRtxInOfferOrder() {
+        String minimized = SdpMinimizer.minimize(sampleOffer(false), CODECS);
+
+        assertEquals("m=video 9 UDP/TLS/RTP/SAVPF 102 103 100 101 96 97 106 107 108 109",
+            line(minimized, "m=video "));
+        assertEquals(Arrays.asList("102", "100", "96", "106", "108"), payloadTypes(minimized, false));
+        assertEquals(Arrays.asList("103", "101", "97", "107", "109"), payloadTypes(minimized, true));
+        assertTrue(SdpMinimizer.check(minimized).isEmpty());
+        assertTrue(minimized.length() + " chars", minimized.length() < sampleOffer(false).length() * 2 / 3);
+    }
+
+    @Test
+    public void dropsOtherCodecsWithEveryLineAboutThem() {
+        String minimized = SdpMinimizer.minimize(sampleOffer(false), CODECS);
+
+        // VP9 and its rtx, red and the rtx repairing it, FEC
+        for (String payloadType : new String[] {"98", "99", "104", "105", "127", "125", "124"}) {
+            for (String prefix : new String[] {"a=rtpmap:", "a=fmtp:", "a=rtcp-fb:"}) {
+                assertFalse(payloadType, minimized.contains("\r\n" + prefix + payloadType + " "));
+            }
+        }
+        assertFalse(minimized.contains("VP9"));
+        assertFalse(minimized.contains("ulpfec"));
+    }
+
+    @Test
+    public void rtxFollowsTheFormatItRepairs() {
+        String offer = "v=0\r\n"
+            + "m=video 9 UDP/TLS/RTP/SAVPF 96 97 98 99 100\r\n"
+            + "a=mid:0\r\n"
+            + "a=rtpmap:96 VP8/90000\r\n"
+            + "a=rtpmap:97 rtx/90000\r\n"
+            // Parameters after apt must not hide which format it repairs
+            + "a=fmtp:97 apt=96;rtx-time=3000\r\n"
+            + "a=rtpmap:98 VP9/90000\r\n"
+            + "a=rtpmap:99 rtx/90000\r\n"
+            + "a=fmtp:99 apt=98\r\n"
+            // An rtx listed before its rtpmap, repairing a format that is kept
+            + "a=fmtp:100 apt=96\r\n"
+            + "a=rtpmap:100 rtx/90000\r\n";
+        String minimized = SdpMinimizer.minimize(offer, Collections.singletonList("vp8"));
+
+        assertEquals("m=video 9 UDP/TLS/RTP/SAVPF 96 97 100", line(minimized, "m=video "));
+        assertTrue(minimized.contains("a=fmtp:97 apt=96;rtx-time=3000\r\n"));
+        assertTrue(minimized.contains("a=fmtp:100 apt=96\r\n"));
+        assertFalse(minimized.contains("apt=98"));
+        assertTrue(SdpMinimizer.check(minimized).isEmpty());
+    }
+
+    @Test
+    public void sectionWithoutAnyPreferredCodecKeepsAllOfThem() {
+        String offer = sampleOffer(false);
+        String minimized = SdpMinimizer.minimize(offer, Collections.singletonList("AV1"));
+
+        assertEquals(line(offer, "m=video "), line(minimized, "m=video "));
+        assertTrue(minimized.contains("a=rtpmap:98 VP9/90000"));
+        assertTrue(SdpMinimizer.check(minimized).isEmpty());
+    }
+
+    @Test
+    public void prunesExtensionsFeedbackAndSsrcAttributes() {
+        String minimized = SdpMinimizer.minimize(sampleOffer(false), CODECS);
+
+        for (String extmap : lines(minimized, "a=extmap:")) {
+            assertTrue(extmap, SdpMinimizer.KEPT_EXTENSIONS.contains(extmap.split(" ")[1]));
+        }
+        assertTrue(minimized.contains(" " + SdpMinimizer.MID_EXTENSION + "\r\n"));
+        // Transport-wide feedback is offered, so receiver-side estimation goes
+        assertFalse(minimized.contains("goog-remb"));
+        assertTrue(minimized.contains("a=rtcp-fb:96 transport-cc\r\n"));
+        assertTrue(minimized.contains("a=rtcp-fb:96 nack pli\r\n"));
+        assertEquals(Arrays.asList("a=ssrc:2731468402 cname:ZL1lZ3QcBvL2Ec3K",
+            "a=ssrc:1843071259 cname:ZL1lZ3QcBvL2Ec3K"), lines(minimized, "a=ssrc:"));
+        assertTrue(minimized.contains("a=ssrc-group:FID 2731468402 1843071259\r\n"));
+    }
+
+    @Test
+    public void rejectedSectionShrinksAndOtherSectionsStayInPlace() {
+        String offer = sampleOffer(true);
+        String minimized = SdpMinimizer.minimize(offer, CODECS);
+
+        assertEquals(Arrays.asList("m=video 9 UDP/TLS/RTP/SAVPF 102 103 100 101 96 97 106 107 108 109",
+            "m=application 9 UDP/DTLS/SCTP webrtc-datachannel",
+            "m=audio 0 UDP/TLS/RTP/SAVPF 111"), lines(minimized, "m="));
+        String audio = minimized.substring(minimized.indexOf("m=audio "));
+        assertEquals("m=audio 0 UDP/TLS/RTP/SAVPF 111\r\nc=IN IP4 0.0.0.0\r\na=mid:2\r\n", audio);
+        // The data section is not RTP and is kept whole
+        String data = offer.substring(offer.indexOf("m=application "), offer.indexOf("m=audio "));
+        assertTrue(minimized.contains(data));
+        assertEquals(Arrays.asList("a=mid:0", "a=mid:1", "a=mid:2"), lines(minimized, "a=mid:"));
+        assertTrue(SdpMinimizer.check(minimized).isEmpty());
+    }
+
+    @Test
+    public void keepsTheSessionLevelAndTheFinalLineEnd() {
+        String offer = sampleOffer(false);
+        String minimized = SdpMinimizer.minimize(offer, CODECS);
+        assertTrue(minimized.startsWith(offer.substring(0, offer.indexOf("m="))));
+        assertTrue(minimized.endsWith("\r\n"));
+
+        String unterminated = offer.substring(0, offer.length() - 2);
+        assertFalse(SdpMinimizer.minimize(unterminated, CODECS).endsWith("\r\n"));
+        assertEquals(minimized, SdpMinimizer.minimize(unterminated, CODECS) + "\r\n");
+    }
+
+    @Test
+    public void checkReportsDanglingReferences() {
+        String broken = "v=0\r\n"
+            + "a=group:BUNDLE 0 1\r\n"
+            + "m=video 9 UDP/TLS/RTP/SAVPF 96 97\r\n"
+            + "a=mid:0\r\n"
+            + "a=extmap:1 urn:ietf:params:rtp-hdrext:sdes:mid\r\n"
+            + "a=extmap:1 urn:3gpp:video-orientation\r\n"
+            + "a=rtpmap:96 VP8/90000\r\n"
+            + "a=fmtp:97 apt=98\r\n"
+            + "a=rtcp-fb:98 nack\r\n";
+
+        List<String> problems = SdpMinimizer.check(broken);
+        assertEquals(problems.toString(), 5, problems.size());
+    }
+
+    private static String line(String sdp, String prefix) {
+        List<String> found = lines(sdp, prefix);
+        assertEquals(prefix, 1, found.size());
+        return found.get(0);
+    }
+
+    private static List<String> lines(String sdp, String prefix) {
+        List<String> found = new ArrayList<>();
+        for (String line : sdp.split("\r\n")) {
+            if (line.startsWith(prefix)) {
+                found.add(line);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Payload types with an rtpmap, in order: only the rtx ones, or only the others.
+     */
+    private static List<String> payloadTypes(String sdp, boolean rtx) {
+        List<String> found = new ArrayList<>();
+        for (String line : lines(sdp, "a=rtpmap:")) {
+            if (line.endsWith(" rtx/90000") == rtx) {
+                found.add(line.substring("a=rtpmap:".length(), line.indexOf(' ')));
+            }
+        }
+        return found;
+    }
+
+    /**
+     * A sendonly screen-track offer with a data section, as the library creates it with the
+     * hardware and software factories: every codec, profile and header extension it supports.
+     */
+    private static String sampleOffer(boolean stoppedAudio) {
+        StringBuilder sdp = new StringBuilder()
+            .append("v=0\r\n")
+            .append("o=- 4611731400430051336 ").append(stoppedAudio ? 3 : 2).append(" IN IP4 127.0.0.1\r\n")
+            .append("s=-\r\nt=0 0\r\n")
+            // A stopped section leaves the BUNDLE group
+            .append("a=group:BUNDLE 0 1\r\n")
+            .append("a=extmap-allow-mixed\r\n")
+            .append("a=msid-semantic: WMS screen\r\n")
+            .append("m=video 9 UDP/TLS/RTP/SAVPF 102 103 100 101 96 97 98 99 104 105 106 107 108 109 127 125 124\r\n");
+        appendTransport(sdp, "0");
+        appendExtensions(sdp);
+        sdp.append("a=sendonly\r\n")
+            .append("a=msid:screen screen_track\r\n")
+            .append("a=rtcp-mux\r\n")
+            .append("a=rtcp-rsize\r\n");
+        appendVideoCodec(sdp, 102, "H264", "level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42e01f");
+        appendVideoCodec(sdp, 100, "H264", "level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=640c1f");
+        appendVideoCodec(sdp, 96, "VP8", null);
+        appendVideoCodec(sdp, 98, "VP9", "profile-id=0");
+        appendVideoCodec(sdp, 104, "VP9", "profile-id=2");
+        appendVideoCodec(sdp, 106, "H264", "level-asymmetry-allowed=1;packetization-mode=0;profile-level-id=42e01f");
+        appendVideoCodec(sdp, 108, "H264", "level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42001f");
+        sdp.append("a=rtpmap:127 red/90000\r\n")
+            .append("a=rtpmap:125 rtx/90000\r\n")
+            .append("a=fmtp:125 apt=127\r\n")
+            .append("a=rtpmap:124 ulpfec/90000\r\n")
+            .append("a=ssrc-group:FID 2731468402 1843071259\r\n");
+        for (String ssrc : new String[] {"2731468402", "1843071259"}) {
+            sdp.append("a=ssrc:").append(ssrc).append(" cname:ZL1lZ3QcBvL2Ec3K\r\n")
+                .append("a=ssrc:").append(ssrc).append(" msid:screen screen_track\r\n")
+                .append("a=ssrc:").append(ssrc).append(" mslabel:screen\r\n")
+                .append("a=ssrc:").append(ssrc).append(" label:screen_track\r\n");
+        }
+        sdp.append("m=application 9 UDP/DTLS/SCTP webrtc-datachannel\r\n");
+        appendTransport(sdp, "1");
+        sdp.append("a=sctp-port:5000\r\n")
+            .append("a=max-message-size:262144\r\n");
+        if (stoppedAudio) {
+            sdp.append("m=audio 0 UDP/TLS/RTP/SAVPF 111 103 104 9 102 0 8 106 105 13 110 112 113 126\r\n");
+            appendTransport(sdp, "2");
+            sdp.append("a=extmap:14 urn:ietf:params:rtp-hdrext:ssrc-audio-level\r\n")
+                .append("a=extmap:2 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time\r\n")
+                .append("a=extmap:4 http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01\r\n")
+                .append("a=extmap:9 urn:ietf:params:rtp-hdrext:sdes:mid\r\n")
+                .append("a=inactive\r\n")
+                .append("a=rtcp-mux\r\n")
+                .append("a=rtpmap:111 opus/48000/2\r\n")
+                .append("a=rtcp-fb:111 transport-cc\r\n")
+                .append("a=fmtp:111 minptime=10;useinbandfec=1\r\n")
+                .append("a=rtpmap:103 ISAC/16000\r\n")
+                .append("a=rtpmap:104 ISAC/32000\r\n")
+                .append("a=rtpmap:9 G722/8000\r\n")
+                .append("a=rtpmap:102 ILBC/8000\r\n")
+                .append("a=rtpmap:0 PCMU/8000\r\n")
+                .append("a=rtpmap:8 PCMA/8000\r\n")
+                .append("a=rtpmap:106 CN/32000\r\n")
+                .append("a=rtpmap:105 CN/16000\r\n")
+                .append("a=rtpmap:13 CN/8000\r\n")
+                .append("a=rtpmap:110 telephone-event/48000\r\n")
+                .append("a=rtpmap:112 telephone-event/32000\r\n")
+                .append("a=rtpmap:113 telephone-event/16000\r\n")
+                .append("a=rtpmap:126 telephone-event/8000\r\n");
+        }
+        return sdp.toString();
+    }
+
+    private static void appendTransport(StringBuilder sdp, String mid) {
+        sdp.append("c=IN IP4 0.0.0.0\r\n")
+            .append("a=rtcp:9 IN IP4 0.0.0.0\r\n")
+            .append("a=ice-ufrag:Fw7b\r\n")
+            .append("a=ice-pwd:5CxSfNfNw9JQd8nLFUb0YjDf\r\n")
+            .append("a=ice-options:trickle renomination\r\n")
+            .append("a=fingerprint:sha-256 8C:71:B3:8D:A5:38:FD:8F:A4:2E:A2:65:6C:86:52:BC:")
+            .append("E0:6E:94:F2:9F:7C:4D:B5:DF:AF:AA:6F:44:90:8D:F4\r\n")
+            .append("a=setup:actpass\r\n")
+            .append("a=mid:").append(mid).append("\r\n");
+    }
+
+    private static void appendExtensions(StringBuilder sdp) {
+        String[] uris = {
+            "urn:ietf:params:rtp-hdrext:toffset",
+            "http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time",
+            "urn:3gpp:video-orientation",
+            "http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01",
+            "http://www.webrtc.org/experiments/rtp-hdrext/playout-delay",
+            "http://www.webrtc.org/experiments/rtp-hdrext/video-content-type",
+            "http://www.webrtc.org/experiments/rtp-hdrext/video-timing",
+            "http://www.webrtc.org/experiments/rtp-hdrext/color-space",
+            "urn:ietf:params:rtp-hdrext:sdes:mid",
+            "urn:ietf:params:rtp-hdrext:sdes:rtp-stream-id",
+            "urn:ietf:params:rtp-hdrext:sdes:repaired-rtp-stream-id",
+        };
+        for (int i = 0; i < uris.length; i++) {
+            sdp.append("a=extmap:").append(i + 1).append(' ').append(uris[i]).append("\r\n");
+        }
+    }
+
+    private static void appendVideoCodec(StringBuilder sdp, int payloadType, String name,
+                                         String parameters) {
+        sdp.append("a=rtpmap:").append(payloadType).append(' ').append(name).append("/90000\r\n")
+            .append("a=rtcp-fb:").append(payloadType).append(" goog-remb\r\n")
+            .append("a=rtcp-fb:").append(payloadType).append(" transport-cc\r\n")
+            .append("a=rtcp-fb:").append(payloadType).append(" ccm fir\r\n")
+            .append("a=rtcp-fb:").append(payloadType).append(" nack\r\n")
+            .append("a=rtcp-fb:").append(payloadType).append(" nack pli\r\n");
+        if (parameters != null) {
+            sdp.append("a=fmtp:").append(payloadType).append(' ').append(parameters).append("\r\n");
+        }
+        sdp.append("a=rtpmap:").append(payloadType + 1).append(" rtx/90000\r\n")
+            .append("a=fmtp:").append(payloadType + 1).append(" apt=").append(payloadType).append("\r\n");
+    }
+}
@@ -0,0 +1,227 @@
+package com.remotecontrol.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link SignalingMailbox} under several producers posting bursts at once: every task runs
+ * exactly once, on the dispatch thread, in the order its producer posted it.
+ */
+public class SignalingMailboxTest {
+    private static final String CANDIDATE_TAIL = " 1 udp 2122260223 192.168.1.20 50000 typ host generation 0";
+    private static final long TIMEOUT_MS = 30_000;
+
+    private final SignalingMailbox mailbox = new SignalingMailbox("SignalingMailboxTest");
+
+    @After
+    public void tearDown() {
+        mailbox.stop();
+    }
+
+    /**
+     * Checks the sequence numbers of each producer's candidates; dispatch thread only.
+     */
+    private static final class Checker implements SignalingCodec.Handler {
+        final int[] expected;
+        long seen;
+        long reordered;
+        long duplicated;
+
+        Checker(int producers) {
+            expected = new int[producers];
+        }
+
+        @Override
+        public boolean accepts(String from, String to) {
+            return true;
+        }
+
+        @Override
+        public void onIceCandidate(SignalingCodec.Candidate candidate, String from) {
+            int producer = Integer.parseInt(from);
+            String sdp = candidate.sdp;
+            int seq = Integer.parseInt(sdp.substring("candidate:".length(), sdp.indexOf(' ')));
+            seen++;
+            if (seq < expected[producer]) {
+                duplicated++;
+            } else {
+                if (seq > expected[producer]) {
+                    reordered++;
+                }
+                expected[producer] = seq + 1;
+            }
+        }
+
+        @Override
+        public void onConnectionRequest(String hostCode, String from) {
+        }
+
+        @Override
+        public void onIceCandidates(List<SignalingCodec.Candidate> candidates, boolean complete,
+                                    String from) {
+        }
+
+        @Override
+        public void onSessionDescription(SignalingCodec.Description description, String from) {
+        }
+
+        @Override
+        public void onTouchEvent(TouchEvent event, String from) {
+        }
+
+        @Override
+        public void onQualityLevel(int level, String from) {
+        }
+    }
+
+    @Test
+    public void burstsFromManyProducersArriveOnceAndInOrder() throws InterruptedException {
+        final int producers = 8;
+        final int bursts = 200;
+        final int burstSize = 64;
+        final long total = (long) producers * bursts * burstSize;
+        final Checker checker = new Checker(producers);
+        final AtomicBoolean offThread = new AtomicBoolean();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        mailbox.start();
+
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            // Trickled candidates numbered in the foundation, encoded up front so bursts are dense
+            final String[] messages = new String[bursts * burstSize];
+            for (int i = 0; i < messages.length; i++) {
+                messages[i] = SignalingCodec.encodeIceCandidate(new SignalingCodec.Candidate(
+                    "0", 0, "candidate:" + i + CANDIDATE_TAIL), Integer.toString(p), null);
+            }
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (final String message : messages) {
+                        mailbox.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (!mailbox.isDispatchThread()) {
+                                    offThread.set(true);
+                                }
+                                try {
+                                    SignalingCodec.decode(message, checker);
+                                } catch (IOException e) {
+                                    throw new IllegalStateException(e);
+                                }
+                                if (checker.seen == total) {
+                                    done.countDown();
+                                }
+                            }
+                        });
+                    }
+                }
+            }, "Producer-" + p);
+            threads[p].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue("saw " + checker.seen + " of " + total, done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(0, checker.reordered);
+        assertEquals(0, checker.duplicated);
+        assertFalse(offThread.get());
+        for (int p = 0; p < producers; p++) {
+            assertEquals(bursts * burstSize, checker.expected[p]);
+        }
+        assertEquals(0, mailbox.getFailed());
+        assertTrue(mailbox.getMaxDepth() >= 1);
+    }
+
+    @Test
+    public void taskPostedFromTheDispatchThreadRunsAfterTheCurrentOne() throws InterruptedException {
+        final StringBuilder order = new StringBuilder();
+        final CountDownLatch done = new CountDownLatch(1);
+        mailbox.start();
+        mailbox.post(new Runnable() {
+            @Override
+            public void run() {
+                mailbox.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        order.append('c');
+                        done.countDown();
+                    }
+                });
+                order.append('a');
+            }
+        });
+        mailbox.post(new Runnable() {
+            @Override
+            public void run() {
+                order.append('b');
+            }
+        });
+
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals("abc", order.toString());
+    }
+
+    @Test
+    public void failingTaskDoesNotStopTheMailbox() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        mailbox.start();
+        mailbox.post(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("bad message");
+            }
+        });
+        mailbox.post(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(1, mailbox.getFailed());
+        assertTrue(mailbox.describe().contains("bad message"));
+    }
+
+    @Test
+    public void nothingRunsAfterStop() throws InterruptedException {
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final AtomicBoolean ranAfterStop = new AtomicBoolean();
+        mailbox.start();
+        mailbox.post(new Runnable() {
+            @Override
+            public void run() {
+                mailbox.stop();
+                stopped.countDown();
+            }
+        });
+        assertTrue(stopped.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        mailbox.post(new Runnable() {
+            @Override
+            public void run() {
+                ranAfterStop.set(true);
+            }
+        });
+
+        Thread.sleep(100);
+        assertFalse(ranAfterStop.get());
+        assertEquals(1, mailbox.getDepth());
+    }
+}
@@ -0,0 +1,151 @@
+package com.remotecontrol.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Drives the policy with a simulated link, one sample per poll, and checks where the ladder
+ * settles and how often it moves.
+ */
+public class StreamQualityPolicyTest {
+    private static final double QP_HIGH = 37;
+
+    /**
+     * A link of fixed capacity whose bandwidth estimate starts at 300 kbps and grows 8% per
+     * sample, as the estimator's increase phase does, until it reaches the capacity.
+     */
+    private static final class SimulatedLink {
+        private final Random random = new Random(7);
+        double capacityBps;
+        double estimateBps = 300_000;
+        double lossFraction;
+        double baseRttMs = 60;
+
+        SimulatedLink(double capacityBps) {
+            this.capacityBps = capacityBps;
+        }
+
+        StreamQualityPolicy.LinkSample next() {
+            estimateBps = Math.min(capacityBps, estimateBps * 1.08);
+            return new StreamQualityPolicy.LinkSample(baseRttMs + random.nextInt(20),
+                lossFraction, estimateBps, 28 + random.nextInt(4));
+        }
+    }
+
+    /**
+     * Runs the simulator and returns the level after each sample.
+     */
+    private static List<Integer> run(StreamQualityPolicy policy, SimulatedLink link, int samples) {
+        List<Integer> levels = new ArrayList<>();
+        for (int i = 0; i < samples; i++) {
+            policy.onSample(link.next());
+            levels.add(policy.level());
+        }
+        return levels;
+    }
+
+    private static int changes(List<Integer> levels) {
+        int changes = 0;
+        for (int i = 1; i < levels.size(); i++) {
+            if (!levels.get(i).equals(levels.get(i - 1))) {
+                changes++;
+            }
+        }
+        return changes;
+    }
+
+    @Test
+    public void coldStartHoldsTheTopRungWhileTheEstimateRamps() {
+        StreamQualityPolicy policy = new StreamQualityPolicy(QP_HIGH);
+        SimulatedLink link = new SimulatedLink(5_000_000);
+
+        List<Integer> levels = run(policy, link, 60);
+
+        // The estimate spends about 30 samples below the top rung's cap on its way up
+        assertEquals(0, changes(levels));
+        assertEquals(0, policy.level());
+    }
+
+    @Test
+    public void settledEstimateBelowTheCapStepsDownAndStays() {
+        StreamQualityPolicy policy = new StreamQualityPolicy(QP_HIGH);
+        SimulatedLink link = new SimulatedLink(1_000_000);
+
+        List<Integer> levels = run(policy, link, 120);
+
+        // 1 Mbps is short of the 2.5 and 1.5 Mbps rungs but covers 900 kbps, and is not enough
+        // headroom to probe back up
+        assertEquals(2, policy.level());
+        assertEquals(2, changes(levels));
+        assertEquals(2, (int) levels.get(40));
+    }
+
+    @Test
+    public void lossStepsDownEvenWhileTheEstimateRamps() {
+        StreamQualityPolicy policy = new StreamQualityPolicy(QP_HIGH);
+        SimulatedLink link = new SimulatedLink(5_000_000);
+        link.lossFraction = 0.08;
+
+        run(policy, link, StreamQualityPolicy.DOWN_SAMPLES);
+
+        assertEquals(1, policy.level());
+    }
+
+    @Test
+    public void recoversOneRungAtATimeOnceTheLinkIsClean() {
+        StreamQualityPolicy policy = new StreamQualityPolicy(QP_HIGH);
+        SimulatedLink link = new SimulatedLink(5_000_000);
+        run(policy, link, 40);
+        link.baseRttMs = 600;
+        run(policy, link, 2 * StreamQualityPolicy.DOWN_SAMPLES);
+        assertEquals(2, policy.level());
+
+        link.baseRttMs = 60;
+        List<Integer> levels = run(policy, link, 4 * StreamQualityPolicy.MIN_UP_SAMPLES);
+
+        assertEquals(1, (int) levels.get(StreamQualityPolicy.MIN_UP_SAMPLES - 1));
+        assertEquals(0, policy.level());
+        assertEquals(2, changes(levels));
+    }
+
+    @Test
+    public void failedProbesBackOffInsteadOfOscillating() {
+        StreamQualityPolicy policy = new StreamQualityPolicy(QP_HIGH);
+        // Enough headroom at the 1.5 Mbps rung to probe up, not enough to hold 2.5 Mbps
+        SimulatedLink link = new SimulatedLink(2_000_000);
+
+        List<Integer> levels = run(policy, link, 300);
+
+        List<Integer> probeGaps = new ArrayList<>();
+        int lastProbe = -1;
+        for (int i = 1; i < levels.size(); i++) {
+            if (levels.get(i) < levels.get(i - 1)) {
+                if (lastProbe >= 0) {
+                    probeGaps.add(i - lastProbe);
+                }
+                lastProbe = i;
+            }
+        }
+        assertTrue("probes " + probeGaps, probeGaps.size() >= 3);
+        for (int i = 1; i < probeGaps.size(); i++) {
+            assertTrue("probes " + probeGaps, probeGaps.get(i) >= probeGaps.get(i - 1));
+        }
+        assertTrue("probes " + probeGaps,
+            probeGaps.get(probeGaps.size() - 1) >= StreamQualityPolicy.MAX_UP_SAMPLES);
+        assertTrue(changes(levels) <= 20);
+    }
+
+    @Test
+    public void starvedEncoderStepsDown() {
+        StreamQualityPolicy policy = new StreamQualityPolicy(QP_HIGH);
+        for (int i = 0; i < StreamQualityPolicy.DOWN_SAMPLES; i++) {
+            policy.onSample(new StreamQualityPolicy.LinkSample(60, 0, -1, 45));
+        }
+        assertEquals(1, policy.level());
+    }
+}
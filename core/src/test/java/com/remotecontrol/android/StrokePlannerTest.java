@@ -0,0 +1,164 @@
+package com.remotecontrol.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import java.util.ArrayList;
+import java.util.List;
+
+public class StrokePlannerTest {
+    private static final long SAMPLE_INTERVAL_MS = 8;
+
+    private final List<StrokePlanner.Segment> segments = new ArrayList<>();
+    private final StrokePlanner planner = new StrokePlanner(new StrokePlanner.Output() {
+        @Override
+        public void onSegment(StrokePlanner.Segment segment) {
+            segments.add(segment);
+        }
+    });
+
+    @Test
+    public void tapPutsTheFingerDownAtOnceAndLiftsItInPlace() {
+        touch(TouchInputReceiver.ACTION_DOWN, 0, 1000, 300, 300);
+        assertEquals(1, segments.size());
+        StrokePlanner.Stroke down = segments.get(0).strokes[0];
+        assertFalse(down.continuesPrevious);
+        assertTrue(down.willContinue);
+        assertEquals(300, down.getX(0), 0);
+
+        touch(TouchInputReceiver.ACTION_UP, 0, 1060, 300, 300);
+        StrokePlanner.Segment last = segments.get(segments.size() - 1);
+        assertTrue(last.isLast());
+        assertTrue(last.strokes[0].continuesPrevious);
+        assertEquals(1060, last.endTime);
+    }
+
+    @Test
+    public void dragIsInjectedSliceBySliceWhileStillDown() {
+        float x = drag(1000, 500);
+        int beforeUp = segments.size();
+        assertTrue("segments before UP: " + beforeUp, beforeUp >= 500 / StrokePlanner.DEFAULT_SLICE_MS - 1);
+        touch(TouchInputReceiver.ACTION_UP, 0, 1500 + SAMPLE_INTERVAL_MS, x, 200);
+
+        assertContiguous();
+        for (int i = 0; i < segments.size() - 1; i++) {
+            StrokePlanner.Segment segment = segments.get(i);
+            assertFalse("segment " + i, segment.isLast());
+            assertTrue("segment " + i + " lasts " + segment.getDuration(),
+                segment.getDuration() <= StrokePlanner.DEFAULT_SLICE_MS + SAMPLE_INTERVAL_MS);
+        }
+        assertTrue(segments.get(segments.size() - 1).isLast());
+        StrokePlanner.Stroke end = lastStroke(0);
+        assertEquals(x, end.getX(end.pointCount - 1), 0);
+    }
+
+    @Test
+    public void restingFingerHoldsStillInsteadOfStretchingTheNextMove() {
+        touch(TouchInputReceiver.ACTION_DOWN, 0, 1000, 100, 200);
+        touch(TouchInputReceiver.ACTION_MOVE, 0, 1008, 104, 200);
+        touch(TouchInputReceiver.ACTION_MOVE, 0, 1016, 108, 200);
+        int beforePause = segments.size();
+        touch(TouchInputReceiver.ACTION_MOVE, 0, 1516, 112, 200);
+
+        // A segment in place covers the pause, so the move after it takes one slice, not 500 ms
+        boolean held = false;
+        for (int i = beforePause; i < segments.size(); i++) {
+            StrokePlanner.Segment segment = segments.get(i);
+            StrokePlanner.Stroke stroke = segment.strokes[0];
+            if (segment.getDuration() >= 400) {
+                held = true;
+                assertEquals(108, stroke.getX(stroke.pointCount - 1), 0);
+            }
+        }
+        assertTrue(held);
+        planner.flush();
+        StrokePlanner.Segment move = segments.get(segments.size() - 1);
+        assertTrue(move.getDuration() <= StrokePlanner.DEFAULT_SLICE_MS);
+        assertContiguous();
+    }
+
+    @Test
+    public void pinchCarriesBothPointersAndEndsThemSeparately() {
+        touch(TouchInputReceiver.ACTION_DOWN, 0, 1000, 500, 500);
+        touch(TouchInputReceiver.ACTION_POINTER_DOWN, 1, 1020, 600, 600);
+        for (int i = 1; i <= 20; i++) {
+            long time = 1020 + i * SAMPLE_INTERVAL_MS;
+            touch(TouchInputReceiver.ACTION_MOVE, 0, time, 500 - 3 * i, 500 - 3 * i);
+            touch(TouchInputReceiver.ACTION_MOVE, 1, time, 600 + 3 * i, 600 + 3 * i);
+        }
+        touch(TouchInputReceiver.ACTION_POINTER_UP, 1, 1200, 660, 660);
+
+        StrokePlanner.Segment pointerUp = segments.get(segments.size() - 1);
+        assertEquals(2, pointerUp.strokes.length);
+        assertTrue(pointerUp.strokes[0].willContinue);
+        assertFalse(pointerUp.strokes[1].willContinue);
+        assertFalse(pointerUp.isLast());
+
+        touch(TouchInputReceiver.ACTION_UP, 0, 1210, 440, 440);
+        StrokePlanner.Segment up = segments.get(segments.size() - 1);
+        assertEquals(1, up.strokes.length);
+        assertEquals(0, up.strokes[0].pointerId);
+        assertTrue(up.isLast());
+        assertContiguous();
+    }
+
+    @Test
+    public void negativeCoordinatesAreClamped() {
+        touch(TouchInputReceiver.ACTION_DOWN, 0, 1000, -5, -1);
+        StrokePlanner.Stroke stroke = segments.get(0).strokes[0];
+        assertEquals(0, stroke.getX(0), 0);
+        assertEquals(0, stroke.getY(0), 0);
+    }
+
+    /**
+     * Presses at (100, 200) and moves right every sample for {@code durationMs}. Returns the
+     * final x.
+     */
+    private float drag(long startMs, long durationMs) {
+        touch(TouchInputReceiver.ACTION_DOWN, 0, startMs, 100, 200);
+        float x = 100;
+        for (long time = startMs + SAMPLE_INTERVAL_MS; time <= startMs + durationMs; time += SAMPLE_INTERVAL_MS) {
+            x += 4;
+            touch(TouchInputReceiver.ACTION_MOVE, 0, time, x, 200);
+        }
+        return x;
+    }
+
+    /**
+     * Every segment starts when the previous one ended, and every continued stroke starts where
+     * its pointer's previous stroke ended.
+     */
+    private void assertContiguous() {
+        float[][] ends = new float[2][];
+        for (int i = 0; i < segments.size(); i++) {
+            StrokePlanner.Segment segment = segments.get(i);
+            if (i > 0 && !segments.get(i - 1).isLast()) {
+                assertEquals("segment " + i, segments.get(i - 1).endTime, segment.startTime);
+            }
+            for (StrokePlanner.Stroke stroke : segment.strokes) {
+                if (stroke.continuesPrevious) {
+                    assertEquals(ends[stroke.pointerId][0], stroke.getX(0), 0);
+                    assertEquals(ends[stroke.pointerId][1], stroke.getY(0), 0);
+                }
+                ends[stroke.pointerId] = new float[] {
+                    stroke.getX(stroke.pointCount - 1), stroke.getY(stroke.pointCount - 1)};
+            }
+        }
+    }
+
+    private StrokePlanner.Stroke lastStroke(int pointerId) {
+        StrokePlanner.Segment last = segments.get(segments.size() - 1);
+        for (StrokePlanner.Stroke stroke : last.strokes) {
+            if (stroke.pointerId == pointerId) {
+                return stroke;
+            }
+        }
+        throw new AssertionError("No stroke for pointer " + pointerId);
+    }
+
+    private void touch(int action, int pointerId, long time, float x, float y) {
+        planner.onTouchEvent(action, pointerId, time, x, y, 1f, 0.1f);
+    }
+}
@@ -0,0 +1,217 @@
+package com.remotecontrol.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * {@link TouchBatcher}: which MOVE samples survive coalescing on straight runs, bends and several
+ * pointers, when a batch goes out (state change, display frame, deadline, full batch), and what
+ * the counters report. Samples are told apart by their event times.
+ */
+public class TouchBatcherTest {
+    private static final int DOWN = TouchInputReceiver.ACTION_DOWN;
+    private static final int UP = TouchInputReceiver.ACTION_UP;
+    private static final int MOVE = TouchInputReceiver.ACTION_MOVE;
+    private static final int POINTER_DOWN = TouchInputReceiver.ACTION_POINTER_DOWN;
+    private static final long MS = 1_000_000L;
+
+    private final Recorder recorder = new Recorder();
+    private final TouchBatcher batcher = new TouchBatcher(recorder);
+
+    private static final class Batch {
+        final List<TouchEvent> events;
+        final boolean reliable;
+
+        Batch(List<TouchEvent> events, boolean reliable) {
+            this.events = events;
+            this.reliable = reliable;
+        }
+
+        List<Long> times() {
+            List<Long> times = new ArrayList<>();
+            for (TouchEvent event : events) {
+                times.add(event.getEventTime());
+            }
+            return times;
+        }
+    }
+
+    private static final class Recorder implements TouchBatcher.Output {
+        final List<Batch> batches = new ArrayList<>();
+
+        @Override
+        public void onBatch(ByteBuffer message, boolean reliable) {
+            batches.add(new Batch(TouchEventCodec.decode(message), reliable));
+        }
+
+        Batch last() {
+            return batches.get(batches.size() - 1);
+        }
+    }
+
+    private void add(int action, int pointerId, long eventTime, float x, float y, long nowNanos) {
+        batcher.add(action, pointerId, eventTime, x, y, 1f, 0.1f, nowNanos);
+    }
+
+    private static List<Long> times(long... times) {
+        List<Long> list = new ArrayList<>();
+        for (long time : times) {
+            list.add(time);
+        }
+        return list;
+    }
+
+    @Test
+    public void straightRunKeepsOnlyItsFirstAndLastSample() {
+        add(DOWN, 0, 0, 0.1f, 0.2f, 0);
+        for (int i = 1; i <= 10; i++) {
+            add(MOVE, 0, i, 0.1f + 0.01f * i, 0.2f + 0.01f * i, i * MS);
+        }
+        batcher.flush(10 * MS);
+
+        assertEquals(2, recorder.batches.size());
+        assertEquals(times(0), recorder.batches.get(0).times());
+        assertTrue(recorder.batches.get(0).reliable);
+        // The first has nothing before it in the batch to judge a bend by, so it stays
+        assertEquals(times(1, 10), recorder.last().times());
+        assertFalse(recorder.last().reliable);
+
+        assertEquals(11, batcher.getSamplesIn());
+        assertEquals(8, batcher.getSamplesCoalesced());
+        assertEquals(3, batcher.getSamplesSent());
+        assertEquals(2, batcher.getMessagesSent());
+        assertEquals(9, batcher.getMessagesSaved());
+    }
+
+    @Test
+    public void bendSurvivesWhileTheRunsEitherSideCollapse() {
+        // Right along y = 0.5, then up from the corner at (0.5, 0.5)
+        for (int i = 1; i <= 5; i++) {
+            add(MOVE, 0, i, 0.1f * i, 0.5f, 0);
+        }
+        for (int i = 6; i <= 9; i++) {
+            add(MOVE, 0, i, 0.5f, 0.5f - 0.1f * (i - 5), 0);
+        }
+        batcher.flush(0);
+
+        assertEquals(times(1, 5, 9), recorder.last().times());
+        assertEquals(6, batcher.getSamplesCoalesced());
+    }
+
+    @Test
+    public void wobbleWithinTheToleranceIsCoalescedUnlessTheToleranceIsTighter() {
+        float wobble = TouchBatcher.DEFAULT_BEND_TOLERANCE / 2;
+        for (int i = 1; i <= 5; i++) {
+            add(MOVE, 0, i, 0.1f * i, 0.5f + (i % 2 == 0 ? wobble : 0), 0);
+        }
+        batcher.flush(0);
+        assertEquals(times(1, 5), recorder.last().times());
+
+        batcher.setBendTolerance(wobble / 2);
+        for (int i = 6; i <= 10; i++) {
+            add(MOVE, 0, i, 0.1f * (i - 5), 0.5f + (i % 2 == 0 ? wobble : 0), 0);
+        }
+        batcher.flush(0);
+        assertEquals(times(6, 7, 8, 9, 10), recorder.last().times());
+    }
+
+    @Test
+    public void pointersCoalesceOnlyWithinTheirOwnRun() {
+        add(DOWN, 0, 0, 0.1f, 0.1f, 0);
+        add(POINTER_DOWN, 1, 0, 0.9f, 0.9f, 0);
+        // Alternating pointers: the pending sample is always the other pointer's, so all stay
+        for (int i = 1; i <= 3; i++) {
+            add(MOVE, 0, 2 * i - 1, 0.1f + 0.01f * i, 0.1f, 0);
+            add(MOVE, 1, 2 * i, 0.9f - 0.01f * i, 0.9f, 0);
+        }
+        batcher.flush(0);
+        assertEquals(times(1, 2, 3, 4, 5, 6), recorder.last().times());
+
+        // One pointer's straight run after the other's: each collapses on its own
+        for (int i = 1; i <= 3; i++) {
+            add(MOVE, 0, 10 + i, 0.2f + 0.01f * i, 0.1f, 0);
+        }
+        for (int i = 1; i <= 3; i++) {
+            add(MOVE, 1, 20 + i, 0.8f - 0.01f * i, 0.9f, 0);
+        }
+        batcher.flush(0);
+        assertEquals(times(11, 13, 21, 23), recorder.last().times());
+        List<TouchEvent> events = recorder.last().events;
+        assertEquals(Arrays.asList(0, 0, 1, 1), Arrays.asList(events.get(0).getPointerId(),
+            events.get(1).getPointerId(), events.get(2).getPointerId(), events.get(3).getPointerId()));
+        assertEquals(2, batcher.getSamplesCoalesced());
+    }
+
+    @Test
+    public void stateChangeSendsThePendingMovesAtOnceAndReliably() {
+        add(MOVE, 0, 1, 0.1f, 0.1f, 0);
+        add(MOVE, 0, 2, 0.2f, 0.3f, MS);
+        assertTrue(recorder.batches.isEmpty());
+
+        add(UP, 0, 3, 0.2f, 0.3f, 2 * MS);
+        assertEquals(1, recorder.batches.size());
+        assertEquals(times(1, 2, 3), recorder.last().times());
+        assertTrue(recorder.last().reliable);
+        assertFalse(batcher.hasPending());
+        assertEquals(2 * MS, batcher.getMaxAddedLatencyNanos());
+    }
+
+    @Test
+    public void deadlineCountsFromTheFirstPendingSample() {
+        long start = 1000;
+        add(MOVE, 0, 1, 0.1f, 0.1f, start);
+        assertEquals(start + TouchBatcher.DEFAULT_DEADLINE_NANOS, batcher.nextDeadlineNanos());
+        // A sample that replaces the pending one keeps its place, and the deadline with it
+        add(MOVE, 0, 2, 0.2f, 0.1f, start + 3 * MS);
+        add(MOVE, 0, 3, 0.3f, 0.1f, start + 6 * MS);
+        assertEquals(start + TouchBatcher.DEFAULT_DEADLINE_NANOS, batcher.nextDeadlineNanos());
+
+        assertFalse(batcher.flushIfDue(start + TouchBatcher.DEFAULT_DEADLINE_NANOS - 1));
+        assertTrue(recorder.batches.isEmpty());
+        assertTrue(batcher.flushIfDue(start + TouchBatcher.DEFAULT_DEADLINE_NANOS));
+        assertEquals(times(1, 3), recorder.last().times());
+        assertEquals(Long.MAX_VALUE, batcher.nextDeadlineNanos());
+        assertFalse(batcher.flushIfDue(Long.MAX_VALUE - 1));
+        assertEquals(TouchBatcher.DEFAULT_DEADLINE_NANOS, batcher.getMaxAddedLatencyNanos());
+    }
+
+    @Test
+    public void addedLatencyIsAveragedOverMessages() {
+        batcher.setDeadlineNanos(20 * MS);
+        // A display frame 2 ms after the first sample
+        add(MOVE, 0, 1, 0.1f, 0.1f, 0);
+        batcher.flush(2 * MS);
+        // The deadline, with no frame in between
+        add(MOVE, 0, 2, 0.2f, 0.1f, 10 * MS);
+        assertTrue(batcher.flushIfDue(30 * MS));
+        // A state change on its own adds nothing
+        add(UP, 0, 3, 0.2f, 0.1f, 40 * MS);
+
+        assertEquals(3, batcher.getMessagesSent());
+        assertEquals(20 * MS, batcher.getMaxAddedLatencyNanos());
+        assertEquals((2 * MS + 20 * MS) / 3, batcher.getAverageAddedLatencyNanos());
+        assertEquals(0, batcher.getMessagesSaved());
+    }
+
+    @Test
+    public void fullBatchGoesOutBeforeTheNextSample() {
+        // Alternating pointers, so nothing coalesces
+        for (int i = 0; i <= TouchBatcher.CAPACITY; i++) {
+            add(MOVE, i % 2, i, 0.001f * i, 0.5f, i);
+        }
+
+        assertEquals(1, recorder.batches.size());
+        assertEquals(TouchBatcher.CAPACITY, recorder.last().events.size());
+        assertEquals(TouchBatcher.CAPACITY - 1, (long) recorder.last().times().get(TouchBatcher.CAPACITY - 1));
+        assertTrue(batcher.hasPending());
+        // The sample that did not fit starts the next batch's deadline
+        assertEquals(TouchBatcher.CAPACITY + TouchBatcher.DEFAULT_DEADLINE_NANOS, batcher.nextDeadlineNanos());
+    }
+}
@@ -0,0 +1,180 @@
+package com.remotecontrol.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+public class TouchEventRingTest {
+    private static final int DOWN = TouchInputReceiver.ACTION_DOWN;
+    private static final int MOVE = TouchInputReceiver.ACTION_MOVE;
+    private static final int UP = TouchInputReceiver.ACTION_UP;
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBeAPowerOfTwo() {
+        new TouchEventRing(12);
+    }
+
+    @Test
+    public void wrapsAroundWithoutLosingOrder() {
+        TouchEventRing ring = new TouchEventRing(16);
+        Recorder recorder = new Recorder();
+        long time = 0;
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < 5; i++) {
+                assertTrue(ring.offer(MOVE, 0, time++, 0.5f, 0.5f, 1, 1));
+            }
+            assertEquals(5, ring.drain(recorder, 16));
+        }
+        assertEquals(500, recorder.times.size());
+        for (int i = 0; i < 500; i++) {
+            assertEquals(i, (long) recorder.times.get(i));
+        }
+        assertEquals(0, ring.getDroppedMoves());
+    }
+
+    @Test
+    public void overflowEvictsTheOldestMoves() {
+        TouchEventRing ring = new TouchEventRing(16);
+        for (int i = 0; i < 20; i++) {
+            assertTrue(ring.offer(MOVE, 0, i, 0.5f, 0.5f, 1, 1));
+        }
+        // MOVEs stop short of the reserve kept for state changes
+        assertEquals(14, ring.size());
+        assertEquals(6, ring.getDroppedMoves());
+
+        Recorder recorder = new Recorder();
+        ring.drain(recorder, 16);
+        assertEquals(14, recorder.times.size());
+        assertEquals(6, (long) recorder.times.get(0));
+        assertEquals(19, (long) recorder.times.get(13));
+    }
+
+    @Test
+    public void stateChangesAreNeverEvicted() {
+        TouchEventRing ring = new TouchEventRing(16);
+        assertTrue(ring.offer(DOWN, 0, 0, 0.5f, 0.5f, 1, 1));
+        for (int i = 1; i < 20; i++) {
+            ring.offer(MOVE, 0, i, 0.5f, 0.5f, 1, 1);
+        }
+        // The DOWN at the tail blocks eviction, so the newest MOVEs are the ones dropped
+        assertEquals(14, ring.size());
+        assertFalse(ring.offer(MOVE, 0, 20, 0.5f, 0.5f, 1, 1));
+
+        // UPs may use the reserve, and are only rejected once the whole ring is full
+        assertTrue(ring.offer(UP, 0, 21, 0.5f, 0.5f, 1, 1));
+        assertTrue(ring.offer(DOWN, 0, 22, 0.5f, 0.5f, 1, 1));
+        assertEquals(16, ring.size());
+        assertFalse(ring.offer(UP, 0, 23, 0.5f, 0.5f, 1, 1));
+        assertEquals(1, ring.getRejectedEvents());
+
+        Recorder recorder = new Recorder();
+        ring.drain(recorder, 16);
+        assertEquals(DOWN, (int) recorder.actions.get(0));
+        assertEquals(UP, (int) recorder.actions.get(14));
+        assertEquals(DOWN, (int) recorder.actions.get(15));
+    }
+
+    /**
+     * A producer offering strokes as fast as it can against a consumer that keeps stalling, so the
+     * ring wraps around many times and overflows often.
+     */
+    @Test
+    public void concurrentProducerAndConsumerKeepOrderAndStateChanges() throws InterruptedException {
+        final TouchEventRing ring = new TouchEventRing(64);
+        final int strokes = 20_000;
+        final int movesPerStroke = 30;
+        final AtomicBoolean producing = new AtomicBoolean(true);
+        final long[] accepted = new long[2];
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long time = 0;
+                for (int stroke = 0; stroke < strokes; stroke++) {
+                    if (ring.offer(DOWN, 0, time++, 0, 0, 1, 1)) {
+                        accepted[0]++;
+                    }
+                    for (int i = 0; i < movesPerStroke; i++) {
+                        if (ring.offer(MOVE, 0, time++, 0, 0, 1, 1)) {
+                            accepted[1]++;
+                        }
+                    }
+                    if (ring.offer(UP, 0, time++, 0, 0, 1, 1)) {
+                        accepted[0]++;
+                    }
+                }
+                producing.set(false);
+            }
+        }, "RingProducer");
+
+        final Checker checker = new Checker();
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int drains = 0;
+                while (producing.get() || ring.size() > 0) {
+                    ring.drain(checker, 8);
+                    if (++drains % 64 == 0) {
+                        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+                    }
+                }
+            }
+        }, "RingConsumer");
+
+        producer.start();
+        consumer.start();
+        producer.join();
+        consumer.join();
+
+        long offered = strokes * (movesPerStroke + 2L);
+        assertEquals(0, checker.outOfOrder);
+        assertTrue("ring never overflowed", ring.getDroppedMoves() > 0);
+        assertEquals(accepted[0], checker.stateChanges);
+        assertEquals(2L * strokes - accepted[0], ring.getRejectedEvents());
+        assertEquals(offered, checker.moves + checker.stateChanges
+            + ring.getDroppedMoves() + ring.getRejectedEvents());
+    }
+
+    private static final class Recorder implements TouchEventCodec.Sink {
+        final List<Long> times = new ArrayList<>();
+        final List<Integer> actions = new ArrayList<>();
+
+        @Override
+        public void onTouchEvent(int action, int pointerId, long eventTime,
+                                 float x, float y, float pressure, float size) {
+            actions.add(action);
+            times.add(eventTime);
+        }
+    }
+
+    /**
+     * Consumer thread only.
+     */
+    private static final class Checker implements TouchEventCodec.Sink {
+        long lastTime = -1;
+        long outOfOrder;
+        long moves;
+        long stateChanges;
+
+        @Override
+        public void onTouchEvent(int action, int pointerId, long eventTime,
+                                 float x, float y, float pressure, float size) {
+            if (eventTime <= lastTime) {
+                outOfOrder++;
+            }
+            lastTime = eventTime;
+            if (action == MOVE) {
+                moves++;
+            } else {
+                stateChanges++;
+            }
+        }
+    }
+}
@@ -0,0 +1,397 @@
+package com.remotecontrol.android;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Sends files between two {@link TransferEngine}s joined by an in-process link that loses
+ * whatever it still buffers when it is cut, as a DataChannel does when the connection drops.
+ * Also checks that the heap held halfway through a transfer does not grow with the file size.
+ */
+public class TransferEngineTest {
+    // Several times the high-water mark, so backpressure kicks in
+    private static final int FILE_BYTES = 5 * 1024 * 1024 + 123;
+    // A few times what the link may buffer, and far below the larger file of the heap test
+    private static final long HEAP_BOUND_BYTES = 8 * TransferEngine.HIGH_WATER_BYTES;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Result result = new Result();
+    private Pipe toReceiver;
+    private Pipe toSender;
+    private TransferEngine sender;
+    private TransferEngine receiver;
+    private File received;
+    private byte[] content;
+    private File source;
+
+    @Before
+    public void setUp() throws IOException {
+        content = new byte[FILE_BYTES];
+        new Random(FILE_BYTES).nextBytes(content);
+        source = folder.newFile("source.bin");
+        Files.write(source.toPath(), content);
+        received = folder.newFolder("received");
+
+        toReceiver = new Pipe();
+        toSender = new Pipe();
+        sender = new TransferEngine(toReceiver, folder.getRoot(), result);
+        receiver = new TransferEngine(toSender, received, result);
+    }
+
+    @After
+    public void tearDown() {
+        toReceiver.close();
+        toSender.close();
+        sender.close();
+        receiver.close();
+    }
+
+    @Test
+    public void fileArrivesByteExact() throws Exception {
+        connect(receiver);
+        sender.sendFile(source);
+
+        assertReceivedByteExact();
+        assertEquals(0, receiver.getMalformedFrames());
+    }
+
+    @Test
+    public void freshReceiverResumesFromThePartialFile() throws Exception {
+        connect(receiver);
+        sender.sendFile(source);
+        toReceiver.awaitDelivered(FILE_BYTES / 2);
+        cut();
+        receiver.closeIncoming();
+        receiver.close();
+        long partial = partLength();
+        assertTrue("partial " + partial, partial >= FILE_BYTES / 2 - TransferEngine.FRAME_BYTES);
+        assertTrue("partial " + partial, partial < FILE_BYTES);
+
+        // A new receiving engine, as after the app restarted, finds the partial file on disk
+        long deliveredBefore = toReceiver.getDelivered();
+        receiver = new TransferEngine(toSender, received, result);
+        connect(receiver);
+
+        assertReceivedByteExact();
+        long resent = toReceiver.getDelivered() - deliveredBefore;
+        assertTrue("resent " + resent + " of " + FILE_BYTES, resent < FILE_BYTES - partial + 2 * TransferEngine.HIGH_WATER_BYTES);
+    }
+
+    @Test
+    public void survivesRepeatedDropsOnTheSameReceiver() throws Exception {
+        connect(receiver);
+        sender.sendFile(source);
+        for (int drop = 1; drop <= 4; drop++) {
+            toReceiver.awaitDelivered(drop * FILE_BYTES / 5);
+            cut();
+            connect(receiver);
+        }
+
+        assertReceivedByteExact();
+    }
+
+    @Test
+    public void textSurvivesADropBeforeTheOffer() throws Exception {
+        sender.sendText("clipboard \u00e9");
+        connect(receiver);
+        result.await();
+        assertEquals("clipboard \u00e9", result.text);
+    }
+
+    @Test
+    public void heapStaysFlatRegardlessOfFileSize() throws Exception {
+        long baseline = usedHeapAfterGc();
+        long small = heapHeldHalfway(1024 * 1024) - baseline;
+        long large = heapHeldHalfway(64 * 1024 * 1024) - baseline;
+
+        assertTrue("1 MB transfer held " + small + " bytes", small < HEAP_BOUND_BYTES);
+        assertTrue("64 MB transfer held " + large + " bytes", large < HEAP_BOUND_BYTES);
+    }
+
+    /**
+     * Sends a file of {@code length} random bytes between two fresh engines, stops delivery
+     * halfway to measure the heap in use after GC, then lets it finish and checks the content.
+     */
+    private long heapHeldHalfway(int length) throws Exception {
+        File file = folder.newFile("heap-" + length + ".bin");
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[64 * 1024];
+        Random random = new Random(length);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            for (int written = 0; written < length; written += chunk.length) {
+                random.nextBytes(chunk);
+                out.write(chunk);
+                crc.update(chunk);
+            }
+        } finally {
+            out.close();
+        }
+
+        Result heapResult = new Result();
+        Pipe forward = new Pipe();
+        Pipe back = new Pipe();
+        TransferEngine from = new TransferEngine(forward, folder.getRoot(), heapResult);
+        TransferEngine to = new TransferEngine(back, folder.newFolder("heap-" + length), heapResult);
+        try {
+            forward.holdAt(length / 2);
+            forward.connect(from, to);
+            back.connect(to, from);
+            from.onLinkOpen();
+            from.sendFile(file);
+            forward.awaitDelivered(length / 2);
+            long held = usedHeapAfterGc();
+            forward.release();
+
+            heapResult.await();
+            assertEquals(length, heapResult.file.length());
+            assertEquals(crc.getValue(), crcOf(heapResult.file));
+            return held;
+        } finally {
+            forward.close();
+            back.close();
+            from.close();
+            to.close();
+            file.delete();
+            if (heapResult.file != null) {
+                heapResult.file.delete();
+            }
+        }
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // One System.gc() may leave some garbage behind; keep the lowest of a few
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(20);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    private static long crcOf(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[64 * 1024];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = in.read(chunk)) > 0) {
+                crc.update(chunk, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return crc.getValue();
+    }
+
+    private void connect(TransferEngine to) {
+        toReceiver.connect(sender, to);
+        toSender.connect(to, sender);
+        sender.onLinkOpen();
+    }
+
+    private void cut() {
+        toReceiver.close();
+        toSender.close();
+    }
+
+    private void assertReceivedByteExact() throws Exception {
+        result.await();
+        assertNotNull(result.file);
+        assertArrayEquals(content, Files.readAllBytes(result.file.toPath()));
+        assertEquals(-1, partLength());
+    }
+
+    private long partLength() {
+        File[] files = received.listFiles();
+        long length = -1;
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".part")) {
+                    length = file.length();
+                }
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Both ends report, each on its own thread: the sender once DONE arrives, the receiver right
+     * after sending it.
+     */
+    private static final class Result implements TransferEngine.Listener {
+        final CountDownLatch sent = new CountDownLatch(1);
+        final CountDownLatch received = new CountDownLatch(1);
+        volatile File file;
+        volatile String text;
+        volatile String failure;
+        volatile int deliveries;
+
+        void await() throws InterruptedException {
+            assertTrue("transfer timed out", sent.await(30, TimeUnit.SECONDS));
+            assertTrue("nothing received", received.await(5, TimeUnit.SECONDS));
+            assertNull(failure);
+            assertEquals(1, deliveries);
+        }
+
+        @Override
+        public void onSent(long id) {
+            sent.countDown();
+        }
+
+        @Override
+        public void onFileReceived(File file) {
+            this.file = file;
+            deliveries++;
+            received.countDown();
+        }
+
+        @Override
+        public void onTextReceived(String text) {
+            this.text = text;
+            deliveries++;
+            received.countDown();
+        }
+
+        @Override
+        public void onFailed(long id, String reason) {
+            failure = reason;
+            sent.countDown();
+            received.countDown();
+        }
+    }
+
+    /**
+     * One direction of the link. Frames are copied on send and handed over on a delivery thread;
+     * closing drops the ones not delivered yet.
+     */
+    private static final class Pipe implements TransferEngine.Link, Runnable {
+        private final ArrayDeque<byte[]> frames = new ArrayDeque<>();
+        private TransferEngine from;
+        private TransferEngine to;
+        private int generation;
+        private long buffered;
+        private long delivered;
+        private long holdAt = Long.MAX_VALUE;
+        private boolean open;
+
+        /**
+         * Opens the pipe, again after {@link #close} if need be, delivering to {@code to}.
+         */
+        synchronized void connect(TransferEngine from, TransferEngine to) {
+            this.from = from;
+            this.to = to;
+            open = true;
+            generation++;
+            Thread thread = new Thread(this, "TransferEngineTest");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public synchronized boolean send(ByteBuffer frame) {
+            if (!open) {
+                return false;
+            }
+            byte[] copy = new byte[frame.remaining()];
+            frame.get(copy);
+            frames.add(copy);
+            buffered += copy.length;
+            notifyAll();
+            return true;
+        }
+
+        @Override
+        public synchronized long getBufferedAmount() {
+            return buffered;
+        }
+
+        synchronized long getDelivered() {
+            return delivered;
+        }
+
+        synchronized void awaitDelivered(long bytes) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 30_000;
+            while (delivered < bytes) {
+                long left = deadline - System.currentTimeMillis();
+                assertTrue("delivered " + delivered + " of " + bytes, left > 0);
+                wait(left);
+            }
+        }
+
+        /**
+         * Stops delivering once {@code bytes} have been delivered, until {@link #release}.
+         */
+        synchronized void holdAt(long bytes) {
+            holdAt = bytes;
+        }
+
+        synchronized void release() {
+            holdAt = Long.MAX_VALUE;
+            notifyAll();
+        }
+
+        synchronized void close() {
+            open = false;
+            frames.clear();
+            buffered = 0;
+            notifyAll();
+        }
+
+        @Override
+        public void run() {
+            int own;
+            synchronized (this) {
+                own = generation;
+            }
+            while (true) {
+                TransferEngine sender;
+                synchronized (this) {
+                    while (own == generation && open && (frames.isEmpty() || delivered >= holdAt)) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (own != generation || !open) {
+                        return;
+                    }
+                    byte[] frame = frames.poll();
+                    to.onFrame(ByteBuffer.wrap(frame));
+                    buffered -= frame.length;
+                    delivered += frame.length;
+                    sender = from;
+                    notifyAll();
+                }
+                sender.onBufferedAmountChange();
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.remotecontrol.android;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-frame and per-sample decisions on the host: whether a captured frame changed, whether the
+ * idle policy forwards it, and how the quality ladder reacts to a link sample.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ControllerBenchmark {
+    // The GPU-downscaled luma copy the capture path hashes
+    private static final int LUMA_WIDTH = 320;
+    private static final int LUMA_HEIGHT = 180;
+    private static final long FRAME_NANOS = 33_333_333L;
+    private static final int TRACE_LENGTH = 1024;
+
+    private final FrameChangeDetector detector = new FrameChangeDetector();
+    private final IdleCapturePolicy idlePolicy = new IdleCapturePolicy();
+    private final StreamQualityPolicy qualityPolicy = new StreamQualityPolicy(37);
+    private final ByteBuffer luma = ByteBuffer.allocateDirect(LUMA_WIDTH * LUMA_HEIGHT);
+    private final boolean[] changes = new boolean[TRACE_LENGTH];
+    private final StreamQualityPolicy.LinkSample[] samples =
+        new StreamQualityPolicy.LinkSample[TRACE_LENGTH];
+    private int frame;
+    private int sample;
+    private long timestampNanos;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(19);
+        for (int i = 0; i < luma.capacity(); i++) {
+            luma.put(i, (byte) random.nextInt(256));
+        }
+        // Bursts of activity between still stretches long enough to go idle
+        for (int i = 0; i < TRACE_LENGTH; i++) {
+            changes[i] = (i / 64) % 2 == 0 && random.nextInt(4) != 0;
+        }
+        // A link that wanders between clean and congested, so the ladder keeps moving
+        for (int i = 0; i < TRACE_LENGTH; i++) {
+            boolean congested = (i / 48) % 3 == 2;
+            samples[i] = new StreamQualityPolicy.LinkSample(
+                congested ? 450 + random.nextInt(200) : 60 + random.nextInt(80),
+                congested ? 0.08 : random.nextDouble() * 0.01,
+                congested ? 600_000 : 4_000_000,
+                congested ? 40 : 28);
+        }
+    }
+
+    /**
+     * Tile hashing of one downscaled frame; every other frame has one pixel changed.
+     */
+    @Benchmark
+    public boolean detectChange() {
+        int index = frame++ & (TRACE_LENGTH - 1);
+        if ((index & 1) == 0) {
+            luma.put(index, (byte) (luma.get(index) + 1));
+        }
+        return detector.onFrame(luma, LUMA_WIDTH, LUMA_HEIGHT, LUMA_WIDTH);
+    }
+
+    @Benchmark
+    public int idleDecision() {
+        timestampNanos += FRAME_NANOS;
+        return idlePolicy.onFrame(changes[frame++ & (TRACE_LENGTH - 1)], timestampNanos);
+    }
+
+    @Benchmark
+    public boolean qualityDecision() {
+        return qualityPolicy.onSample(samples[sample++ & (TRACE_LENGTH - 1)]);
+    }
+}
@@ -0,0 +1,224 @@
+package com.remotecontrol.android;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization cost of the signaling envelope: a screen-share offer and a trickled candidate
+ * batch, each encoded and decoded the way {@code SignalingClient} does it, and what minimizing and
+ * compressing the offer add.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SignalingCodecBenchmark {
+    private static final String FROM = "3f6c2a9e-host";
+    private static final String TO = "b81d07c4-guest";
+    private static final List<String> PRUNED_CODECS = Arrays.asList("H264", "VP8");
+
+    private SignalingCodec.Description offer;
+    private List<SignalingCodec.Candidate> candidates;
+    private String encodedOffer;
+    private String encodedCandidates;
+    private SignalingCodec.Description minimizedOffer;
+    private String encodedCompressedOffer;
+    private final LastPayload handler = new LastPayload();
+
+    /**
+     * Keeps the last decoded payload so the decode cannot be optimized away.
+     */
+    private static final class LastPayload implements SignalingCodec.Handler {
+        Object payload;
+
+        @Override
+        public boolean accepts(String from, String to) {
+            return true;
+        }
+
+        @Override
+        public void onConnectionRequest(String hostCode, String from) {
+            payload = hostCode;
+        }
+
+        @Override
+        public void onIceCandidate(SignalingCodec.Candidate candidate, String from) {
+            payload = candidate;
+        }
+
+        @Override
+        public void onIceCandidates(List<SignalingCodec.Candidate> candidates, boolean complete,
+                                    String from) {
+            payload = candidates;
+        }
+
+        @Override
+        public void onSessionDescription(SignalingCodec.Description description, String from) {
+            payload = description;
+        }
+
+        @Override
+        public void onTouchEvent(TouchEvent event, String from) {
+            payload = event;
+        }
+
+        @Override
+        public void onQualityLevel(int level, String from) {
+            payload = level;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        offer = new SignalingCodec.Description(SignalingCodec.Description.OFFER, screenShareOffer());
+        candidates = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            candidates.add(new SignalingCodec.Candidate("0", 0, "candidate:" + (842163049 + i)
+                + " 1 udp 2122260223 192.168.1." + (20 + i) + " " + (50000 + i)
+                + " typ host generation 0 ufrag Fw7b network-id 1 network-cost 10"));
+        }
+        encodedOffer = SignalingCodec.encodeSessionDescription(offer, FROM, TO);
+        encodedCandidates = SignalingCodec.encodeIceCandidates(candidates, false, FROM, TO);
+        minimizedOffer = new SignalingCodec.Description(SignalingCodec.Description.OFFER,
+            SdpMinimizer.minimize(offer.sdp, PRUNED_CODECS));
+        encodedCompressedOffer =
+            SignalingCodec.encodeSessionDescription(minimizedOffer, FROM, TO, true);
+    }
+
+    @Benchmark
+    public String encodeOffer() {
+        return SignalingCodec.encodeSessionDescription(offer, FROM, TO);
+    }
+
+    @Benchmark
+    public Object decodeOffer() throws IOException {
+        SignalingCodec.decode(encodedOffer, handler);
+        return handler.payload;
+    }
+
+    @Benchmark
+    public String encodeCandidateBatch() {
+        return SignalingCodec.encodeIceCandidates(candidates, false, FROM, TO);
+    }
+
+    @Benchmark
+    public Object decodeCandidateBatch() throws IOException {
+        SignalingCodec.decode(encodedCandidates, handler);
+        return handler.payload;
+    }
+
+    @Benchmark
+    public String minimizeOffer() {
+        return SdpMinimizer.minimize(offer.sdp, PRUNED_CODECS);
+    }
+
+    @Benchmark
+    public String encodeCompressedOffer() {
+        return SignalingCodec.encodeSessionDescription(minimizedOffer, FROM, TO, true);
+    }
+
+    @Benchmark
+    public Object decodeCompressedOffer() throws IOException {
+        SignalingCodec.decode(encodedCompressedOffer, handler);
+        return handler.payload;
+    }
+
+    /**
+     * A sendonly screen-track offer with a data section, as the library creates it with the
+     * hardware and software factories: every codec, profile and header extension it supports.
+     */
+    private static String screenShareOffer() {
+        StringBuilder sdp = new StringBuilder()
+            .append("v=0\r\n")
+            .append("o=- 4611731400430051336 2 IN IP4 127.0.0.1\r\n")
+            .append("s=-\r\nt=0 0\r\n")
+            .append("a=group:BUNDLE 0 1\r\n")
+            .append("a=extmap-allow-mixed\r\n")
+            .append("a=msid-semantic: WMS screen\r\n")
+            .append("m=video 9 UDP/TLS/RTP/SAVPF 102 103 100 101 96 97 98 99 104 105 106 107 108 109 127 125 124\r\n");
+        appendTransport(sdp, "0");
+        appendExtensions(sdp);
+        sdp.append("a=sendonly\r\n")
+            .append("a=msid:screen screen_track\r\n")
+            .append("a=rtcp-mux\r\n")
+            .append("a=rtcp-rsize\r\n");
+        appendVideoCodec(sdp, 102, "H264", "level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42e01f");
+        appendVideoCodec(sdp, 100, "H264", "level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=640c1f");
+        appendVideoCodec(sdp, 96, "VP8", null);
+        appendVideoCodec(sdp, 98, "VP9", "profile-id=0");
+        appendVideoCodec(sdp, 104, "VP9", "profile-id=2");
+        appendVideoCodec(sdp, 106, "H264", "level-asymmetry-allowed=1;packetization-mode=0;profile-level-id=42e01f");
+        appendVideoCodec(sdp, 108, "H264", "level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42001f");
+        sdp.append("a=rtpmap:127 red/90000\r\n")
+            .append("a=rtpmap:125 rtx/90000\r\n")
+            .append("a=fmtp:125 apt=127\r\n")
+            .append("a=rtpmap:124 ulpfec/90000\r\n")
+            .append("a=ssrc-group:FID 2731468402 1843071259\r\n");
+        for (String ssrc : new String[] {"2731468402", "1843071259"}) {
+            sdp.append("a=ssrc:").append(ssrc).append(" cname:ZL1lZ3QcBvL2Ec3K\r\n")
+                .append("a=ssrc:").append(ssrc).append(" msid:screen screen_track\r\n")
+                .append("a=ssrc:").append(ssrc).append(" mslabel:screen\r\n")
+                .append("a=ssrc:").append(ssrc).append(" label:screen_track\r\n");
+        }
+        sdp.append("m=application 9 UDP/DTLS/SCTP webrtc-datachannel\r\n");
+        appendTransport(sdp, "1");
+        sdp.append("a=sctp-port:5000\r\n")
+            .append("a=max-message-size:262144\r\n");
+        return sdp.toString();
+    }
+
+    private static void appendTransport(StringBuilder sdp, String mid) {
+        sdp.append("c=IN IP4 0.0.0.0\r\n")
+            .append("a=rtcp:9 IN IP4 0.0.0.0\r\n")
+            .append("a=ice-ufrag:Fw7b\r\n")
+            .append("a=ice-pwd:5CxSfNfNw9JQd8nLFUb0YjDf\r\n")
+            .append("a=ice-options:trickle renomination\r\n")
+            .append("a=fingerprint:sha-256 8C:71:B3:8D:A5:38:FD:8F:A4:2E:A2:65:6C:86:52:BC:")
+            .append("E0:6E:94:F2:9F:7C:4D:B5:DF:AF:AA:6F:44:90:8D:F4\r\n")
+            .append("a=setup:actpass\r\n")
+            .append("a=mid:").append(mid).append("\r\n");
+    }
+
+    private static void appendExtensions(StringBuilder sdp) {
+        String[] uris = {
+            "urn:ietf:params:rtp-hdrext:toffset",
+            "http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time",
+            "urn:3gpp:video-orientation",
+            "http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01",
+            "http://www.webrtc.org/experiments/rtp-hdrext/playout-delay",
+            "http://www.webrtc.org/experiments/rtp-hdrext/video-content-type",
+            "http://www.webrtc.org/experiments/rtp-hdrext/video-timing",
+            "http://www.webrtc.org/experiments/rtp-hdrext/color-space",
+            "urn:ietf:params:rtp-hdrext:sdes:mid",
+            "urn:ietf:params:rtp-hdrext:sdes:rtp-stream-id",
+            "urn:ietf:params:rtp-hdrext:sdes:repaired-rtp-stream-id",
+        };
+        for (int i = 0; i < uris.length; i++) {
+            sdp.append("a=extmap:").append(i + 1).append(' ').append(uris[i]).append("\r\n");
+        }
+    }
+
+    private static void appendVideoCodec(StringBuilder sdp, int payloadType, String name,
+                                         String parameters) {
+        sdp.append("a=rtpmap:").append(payloadType).append(' ').append(name).append("/90000\r\n")
+            .append("a=rtcp-fb:").append(payloadType).append(" goog-remb\r\n")
+            .append("a=rtcp-fb:").append(payloadType).append(" transport-cc\r\n")
+            .append("a=rtcp-fb:").append(payloadType).append(" ccm fir\r\n")
+            .append("a=rtcp-fb:").append(payloadType).append(" nack\r\n")
+            .append("a=rtcp-fb:").append(payloadType).append(" nack pli\r\n");
+        if (parameters != null) {
+            sdp.append("a=fmtp:").append(payloadType).append(' ').append(parameters).append("\r\n");
+        }
+        sdp.append("a=rtpmap:").append(payloadType + 1).append(" rtx/90000\r\n")
+            .append("a=fmtp:").append(payloadType + 1).append(" apt=").append(payloadType).append("\r\n");
+    }
+}
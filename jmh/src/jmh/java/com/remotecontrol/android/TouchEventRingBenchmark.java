@@ -0,0 +1,78 @@
+package com.remotecontrol.android;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The UI-thread handoff: offering a sample to the {@link TouchEventRing} and the sender thread
+ * draining it. Run with {@code -prof gc}; the offer side is meant to allocate nothing, the drain
+ * side nothing beyond what its sink does.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TouchEventRingBenchmark {
+    private static final int CAPACITY = 256;
+
+    private TouchEventRing ring;
+    private TouchEventCodec.Sink sink;
+    private long eventTime;
+    private long drained;
+
+    @Setup
+    public void setUp() {
+        ring = new TouchEventRing(CAPACITY);
+        sink = new TouchEventCodec.Sink() {
+            @Override
+            public void onTouchEvent(int action, int pointerId, long eventTime,
+                                     float x, float y, float pressure, float size) {
+                drained += eventTime;
+            }
+        };
+    }
+
+    /**
+     * One sample in and out on the same thread, the uncontended cost of each side.
+     */
+    @Benchmark
+    @Group("offerThenDrain")
+    public long offerThenDrain() {
+        ring.offer(TouchInputReceiver.ACTION_MOVE, 0, eventTime++, 0.5f, 0.5f, 0.5f, 0.1f);
+        ring.drain(sink, 1);
+        return drained;
+    }
+
+    /**
+     * A MOVE into a ring the sender has stopped draining, which evicts the oldest one.
+     */
+    @Benchmark
+    @Group("offerWhenFull")
+    public boolean offerWhenFull() {
+        return ring.offer(TouchInputReceiver.ACTION_MOVE, 0, eventTime++, 0.5f, 0.5f, 0.5f, 0.1f);
+    }
+
+    /**
+     * The UI thread offering while the sender thread drains, on separate threads as in the app.
+     */
+    @Benchmark
+    @Group("concurrent")
+    @GroupThreads(1)
+    public boolean offer() {
+        return ring.offer(TouchInputReceiver.ACTION_MOVE, 0, eventTime++, 0.5f, 0.5f, 0.5f, 0.1f);
+    }
+
+    @Benchmark
+    @Group("concurrent")
+    @GroupThreads(1)
+    public int drain() {
+        return ring.drain(sink, 16);
+    }
+}
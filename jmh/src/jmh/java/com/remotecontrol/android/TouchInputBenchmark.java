@@ -0,0 +1,190 @@
+package com.remotecontrol.android;
+
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The touch input path, one stroke at a time: the guest batching and encoding samples, and the
+ * host decoding and validating them before injection.
+ *
+ * The {@code Json} benchmarks are the path this replaced: each event serialized by Gson, wrapped
+ * in a signaling message and serialized again, then parsed twice on the host. Run with
+ * {@code -prof gc} for bytes allocated per event. On the wire a move sent on its own is an 11-byte
+ * binary message against 104 characters of JSON.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TouchInputBenchmark {
+    // A stroke of about a quarter second at a 120 Hz touch rate
+    private static final int STROKE_MOVES = 30;
+    private static final long SAMPLE_NANOS = 8_333_333L;
+    // Two samples per 60 Hz display frame
+    private static final int SAMPLES_PER_FLUSH = 2;
+
+    /**
+     * The old wire shape: a touch event as a JSON string inside a JSON signaling message.
+     */
+    static final class JsonTouchEvent {
+        int action;
+        float x;
+        float y;
+        float pressure;
+        float size;
+    }
+
+    static final class JsonSignalingMessage {
+        String type;
+        String data;
+    }
+
+    private final Gson gson = new Gson();
+    private final TouchEventCodec.Writer writer = new TouchEventCodec.Writer();
+    private final ByteBuffer sent = ByteBuffer.allocate(
+        TouchEventCodec.HEADER_BYTES + TouchBatcher.CAPACITY * TouchEventCodec.MAX_EVENT_BYTES);
+    private TouchBatcher batcher;
+    private List<TouchEvent> stroke;
+    private ByteBuffer encodedStroke;
+    private ByteBuffer encodedEvent;
+    private ByteBuffer scratch;
+    private JsonTouchEvent jsonEvent;
+    private String encodedJsonEvent;
+    private TouchInputReceiver receiver;
+    private long nowNanos;
+    private int injected;
+
+    @Setup
+    public void setUp() {
+        batcher = new TouchBatcher(new TouchBatcher.Output() {
+            @Override
+            public void onBatch(ByteBuffer message, boolean reliable) {
+                sent.clear();
+                sent.put(message);
+            }
+        });
+        stroke = new ArrayList<>();
+        stroke.add(new TouchEvent(TouchInputReceiver.ACTION_DOWN, 0, 1000, 0.2f, 0.3f, 0.5f, 0.1f));
+        for (int i = 1; i <= STROKE_MOVES; i++) {
+            // A shallow arc, so some samples are bends the batcher has to keep
+            float t = (float) i / STROKE_MOVES;
+            stroke.add(new TouchEvent(TouchInputReceiver.ACTION_MOVE, 0, 1000 + i * 8L,
+                0.2f + 0.5f * t, 0.3f + 0.2f * t * t, 0.5f, 0.1f));
+        }
+        stroke.add(new TouchEvent(TouchInputReceiver.ACTION_UP, 0, 1000 + (STROKE_MOVES + 1) * 8L,
+            0.7f, 0.5f, 0.5f, 0.1f));
+
+        encodedStroke = ByteBuffer.allocate(
+            TouchEventCodec.HEADER_BYTES + stroke.size() * TouchEventCodec.MAX_EVENT_BYTES);
+        TouchEventCodec.encode(stroke, encodedStroke);
+        encodedStroke.flip();
+        scratch = ByteBuffer.allocate(encodedStroke.capacity());
+        TouchEvent move = stroke.get(STROKE_MOVES / 2);
+        encodedEvent = ByteBuffer.allocate(
+            TouchEventCodec.HEADER_BYTES + TouchEventCodec.MAX_EVENT_BYTES);
+        TouchEventCodec.encode(move, encodedEvent);
+        encodedEvent.flip();
+
+        // The old path sent view pixels, here on a 1080x2340 screen
+        jsonEvent = new JsonTouchEvent();
+        jsonEvent.action = move.getAction();
+        jsonEvent.x = move.getX() * 1080;
+        jsonEvent.y = move.getY() * 2340;
+        jsonEvent.pressure = move.getPressure();
+        jsonEvent.size = move.getSize();
+        encodedJsonEvent = encodeJson(jsonEvent);
+
+        receiver = new TouchInputReceiver(new TouchEventCodec.Sink() {
+            @Override
+            public void onTouchEvent(int action, int pointerId, long eventTime,
+                                     float x, float y, float pressure, float size) {
+                injected++;
+            }
+        });
+    }
+
+    /**
+     * Guest side: every sample through the batcher, flushed once per display frame.
+     */
+    @Benchmark
+    public long batchStroke() {
+        for (int i = 0; i < stroke.size(); i++) {
+            TouchEvent event = stroke.get(i);
+            nowNanos += SAMPLE_NANOS;
+            batcher.add(event.getAction(), event.getPointerId(), event.getEventTime(),
+                event.getX(), event.getY(), event.getPressure(), event.getSize(), nowNanos);
+            if (i % SAMPLES_PER_FLUSH == 0) {
+                batcher.flush(nowNanos);
+            }
+        }
+        return batcher.getMessagesSent();
+    }
+
+    /**
+     * The whole stroke as one message, the worst case for a single send.
+     */
+    @Benchmark
+    public int encodeStroke() {
+        scratch.clear();
+        writer.begin(scratch);
+        for (int i = 0; i < stroke.size(); i++) {
+            writer.add(stroke.get(i));
+        }
+        return writer.finish();
+    }
+
+    /**
+     * One sample sent on its own, as the guest did before batching.
+     */
+    @Benchmark
+    public int encodeEvent() {
+        scratch.clear();
+        writer.begin(scratch);
+        writer.add(stroke.get(STROKE_MOVES / 2));
+        return writer.finish();
+    }
+
+    @Benchmark
+    public int encodeEventJson() {
+        return encodeJson(jsonEvent).length();
+    }
+
+    @Benchmark
+    public int decodeEvent() {
+        encodedEvent.rewind();
+        receiver.onTouchMessage(encodedEvent);
+        return injected;
+    }
+
+    @Benchmark
+    public float decodeEventJson() {
+        JsonSignalingMessage message = gson.fromJson(encodedJsonEvent, JsonSignalingMessage.class);
+        return gson.fromJson(message.data, JsonTouchEvent.class).x;
+    }
+
+    /**
+     * Host side: decode and the per-pointer checks, up to the hand-off to injection.
+     */
+    @Benchmark
+    public int receiveStroke() {
+        encodedStroke.rewind();
+        receiver.onTouchMessage(encodedStroke);
+        return injected;
+    }
+
+    private String encodeJson(JsonTouchEvent event) {
+        JsonSignalingMessage message = new JsonSignalingMessage();
+        message.type = "TOUCH_EVENT";
+        message.data = gson.toJson(event);
+        return gson.toJson(message);
+    }
+}
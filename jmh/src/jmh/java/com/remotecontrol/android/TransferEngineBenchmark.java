@@ -0,0 +1,192 @@
+package com.remotecontrol.android;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * File transfer throughput over loopback: one file from disk through a sending
+ * {@link TransferEngine}, an in-process link and a receiving engine, back to disk, including the
+ * checksum and the rename. Each direction of the link hands frames over on a thread of its own,
+ * as a DataChannel does, and reports its buffered amount, so the high- and low-water marks pace
+ * the sender as they would on a device.
+ *
+ * The score is milliseconds per file; {@code fileMegabytes} divided by it is the throughput.
+ * Allocation per file under {@code -prof gc} tracks the file size because the link copies every
+ * frame, as a DataChannel's send buffer does; TransferEngineTest checks that the heap the engines
+ * hold on to stays flat.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TransferEngineBenchmark {
+    @Param({"1", "16"})
+    public int fileMegabytes;
+
+    private final Semaphore finished = new Semaphore(0);
+    private volatile File receivedFile;
+    private volatile String failure;
+    private File directory;
+    private File source;
+    private Loopback toReceiver;
+    private Loopback toSender;
+    private TransferEngine sender;
+    private TransferEngine receiver;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("TransferEngineBenchmark").toFile();
+        source = new File(directory, "source.bin");
+        byte[] chunk = new byte[1024 * 1024];
+        Random random = new Random(fileMegabytes);
+        OutputStream out = new FileOutputStream(source);
+        try {
+            for (int i = 0; i < fileMegabytes; i++) {
+                random.nextBytes(chunk);
+                out.write(chunk);
+            }
+        } finally {
+            out.close();
+        }
+
+        TransferEngine.Listener listener = new TransferEngine.Listener() {
+            @Override
+            public void onSent(long id) {
+                finished.release();
+            }
+
+            @Override
+            public void onFileReceived(File file) {
+                receivedFile = file;
+            }
+
+            @Override
+            public void onTextReceived(String text) {
+            }
+
+            @Override
+            public void onFailed(long id, String reason) {
+                failure = reason;
+                finished.release();
+            }
+        };
+        toReceiver = new Loopback();
+        toSender = new Loopback();
+        sender = new TransferEngine(toReceiver, directory, listener);
+        receiver = new TransferEngine(toSender, new File(directory, "received"), listener);
+        toReceiver.start(sender, receiver);
+        toSender.start(receiver, sender);
+        sender.onLinkOpen();
+    }
+
+    @TearDown
+    public void tearDown() {
+        sender.close();
+        receiver.close();
+        toReceiver.stop();
+        toSender.stop();
+        File[] received = new File(directory, "received").listFiles();
+        if (received != null) {
+            for (File file : received) {
+                file.delete();
+            }
+        }
+        new File(directory, "received").delete();
+        source.delete();
+        directory.delete();
+    }
+
+    /**
+     * One whole file, until the sender has the receiver's DONE.
+     */
+    @Benchmark
+    public long sendFile() throws InterruptedException {
+        sender.sendFile(source);
+        if (!finished.tryAcquire(60, TimeUnit.SECONDS) || failure != null) {
+            throw new IllegalStateException("Transfer failed: " + failure);
+        }
+        // DONE goes out before the receiver reports, so wait for the report too
+        File file;
+        while ((file = receivedFile) == null) {
+            Thread.yield();
+        }
+        receivedFile = null;
+        long length = file.length();
+        file.delete();
+        return length;
+    }
+
+    /**
+     * One direction of the link: frames are copied on send and delivered on a thread of its own.
+     */
+    private static final class Loopback implements TransferEngine.Link, Runnable {
+        private static final byte[] STOP = new byte[0];
+
+        private final LinkedBlockingQueue<byte[]> frames = new LinkedBlockingQueue<>();
+        private final AtomicLong buffered = new AtomicLong();
+        private TransferEngine from;
+        private TransferEngine to;
+        private Thread thread;
+
+        void start(TransferEngine from, TransferEngine to) {
+            this.from = from;
+            this.to = to;
+            thread = new Thread(this, "TransferEngineBenchmark");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop() {
+            frames.add(STOP);
+        }
+
+        @Override
+        public boolean send(ByteBuffer frame) {
+            byte[] copy = new byte[frame.remaining()];
+            frame.get(copy);
+            buffered.addAndGet(copy.length);
+            frames.add(copy);
+            return true;
+        }
+
+        @Override
+        public long getBufferedAmount() {
+            return buffered.get();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                byte[] frame;
+                try {
+                    frame = frames.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (frame == STOP) {
+                    return;
+                }
+                to.onFrame(ByteBuffer.wrap(frame));
+                buffered.addAndGet(-frame.length);
+                from.onBufferedAmountChange();
+            }
+        }
+    }
+}
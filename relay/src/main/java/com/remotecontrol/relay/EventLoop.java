@@ -0,0 +1,189 @@
+package com.remotecontrol.relay;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One selector thread owning a share of the connections.
+ *
+ * Other threads reach a loop only through its queues: new sockets, connections with frames to
+ * flush, and connections to close. Flushes are done once per pass after all reads, so a burst
+ * relayed to one recipient goes out in as few writes as the socket allows.
+ */
+class EventLoop implements Runnable {
+    private static final long SWEEP_INTERVAL_MS = 1000;
+
+    private final RelayServer server;
+    private final Selector selector;
+    private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+    private final Queue<RelayConnection> flushes = new ConcurrentLinkedQueue<>();
+    private final Queue<RelayConnection> closes = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    // Loop thread only
+    private final Set<RelayConnection> connections = new HashSet<>();
+    private long lastSweepNanos;
+    private volatile boolean stopped;
+    private Thread thread;
+
+    // Read once per pass, so the hot path never calls the clock; loop thread only
+    long nowNanos;
+
+    EventLoop(RelayServer server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    void start(String name) {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    void stop() {
+        stopped = true;
+        selector.wakeup();
+    }
+
+    void register(SocketChannel channel) {
+        accepted.add(channel);
+        wakeup();
+    }
+
+    void scheduleFlush(RelayConnection connection) {
+        flushes.add(connection);
+        if (Thread.currentThread() != thread) {
+            wakeup();
+        }
+    }
+
+    void closeLater(RelayConnection connection) {
+        closes.add(connection);
+        if (Thread.currentThread() != thread) {
+            wakeup();
+        }
+    }
+
+    void onClosed(RelayConnection connection) {
+        if (connections.remove(connection)) {
+            server.stats.connections.decrement();
+        }
+    }
+
+    private void wakeup() {
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!stopped) {
+                selector.select(SWEEP_INTERVAL_MS);
+                wakeupPending.set(false);
+                nowNanos = System.nanoTime();
+                registerAccepted();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+                RelayConnection connection;
+                while ((connection = flushes.poll()) != null) {
+                    flush(connection);
+                }
+                while ((connection = closes.poll()) != null) {
+                    connection.close();
+                }
+                if (nowNanos - lastSweepNanos > TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MS)) {
+                    lastSweepNanos = nowNanos;
+                    closeUnjoined();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Event loop failed: " + e);
+        } finally {
+            for (RelayConnection connection : new ArrayList<>(connections)) {
+                connection.close();
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void registerAccepted() {
+        SocketChannel channel;
+        while ((channel = accepted.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                RelayConnection connection = new RelayConnection(server, this, channel, nowNanos);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connections.add(connection);
+                server.stats.connections.increment();
+            } catch (IOException e) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        RelayConnection connection = (RelayConnection) key.attachment();
+        try {
+            if (key.isReadable()) {
+                connection.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.flush();
+            }
+        } catch (IOException | CancelledKeyException e) {
+            connection.close();
+        }
+    }
+
+    private void flush(RelayConnection connection) {
+        if (connection.isClosed()) {
+            return;
+        }
+        try {
+            connection.flush();
+        } catch (IOException | CancelledKeyException e) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Closes connections that never sent a join; otherwise a scan of the port would hold
+     * sockets forever.
+     */
+    private void closeUnjoined() {
+        long cutoff = nowNanos - TimeUnit.MILLISECONDS.toNanos(server.joinTimeoutMs);
+        List<RelayConnection> stale = new ArrayList<>();
+        for (RelayConnection connection : connections) {
+            if (connection.room == null && connection.connectedNanos - cutoff < 0) {
+                stale.add(connection);
+            }
+        }
+        for (RelayConnection connection : stale) {
+            connection.close();
+        }
+        server.stats.unjoinedClosed.add(stale.size());
+    }
+}
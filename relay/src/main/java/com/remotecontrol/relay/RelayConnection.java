@@ -0,0 +1,441 @@
+package com.remotecontrol.relay;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One client socket: the WebSocket upgrade, frame parsing, and the queue of frames to write.
+ *
+ * Reads and the relay decision run on the owning {@link EventLoop}. Other loops hand frames to
+ * {@link #enqueue}, which only touches the queue and asks the owner to flush. A relayed message
+ * is framed once and the same bytes are queued for every recipient; only the join is parsed, so
+ * the server never decodes or re-encodes the messages it forwards.
+ */
+class RelayConnection {
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int OPCODE_CONTINUATION = 0x0;
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_BINARY = 0x2;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xA;
+    private static final int MAX_HANDSHAKE_BYTES = 8 * 1024;
+    private static final int INITIAL_READ_BYTES = 4 * 1024;
+    // Flushed per gathering write
+    private static final int WRITE_BATCH = 16;
+
+    final EventLoop loop;
+    final SocketChannel channel;
+    final long connectedNanos;
+    SelectionKey key;
+    RoomRegistry.Room room;
+
+    private final RelayServer server;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BYTES);
+    private boolean upgraded;
+    // Fragments of a message split across frames; rare, so kept out of the common path
+    private ByteBuffer fragments;
+    private int fragmentOpcode;
+
+    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final ByteBuffer[] writeBatch = new ByteBuffer[WRITE_BATCH];
+    private volatile boolean closed;
+
+    RelayConnection(RelayServer server, EventLoop loop, SocketChannel channel, long nowNanos) {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+        this.connectedNanos = nowNanos;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Reads what the socket has and handles every complete frame. Runs on the owning loop.
+     */
+    void onReadable() throws IOException {
+        if (channel.read(readBuffer) < 0) {
+            throw new IOException("Closed by peer");
+        }
+        readBuffer.flip();
+        try {
+            if (!upgraded && !readUpgrade()) {
+                return;
+            }
+            while (upgraded && readFrame()) {
+                // Handles frames until only a partial one is left
+            }
+        } finally {
+            readBuffer.compact();
+        }
+    }
+
+    private boolean readUpgrade() throws IOException {
+        int end = indexOfHeaderEnd(readBuffer);
+        if (end < 0) {
+            if (readBuffer.limit() >= MAX_HANDSHAKE_BYTES) {
+                throw new IOException("Upgrade request too large");
+            }
+            if (readBuffer.limit() == readBuffer.capacity()) {
+                grow(MAX_HANDSHAKE_BYTES);
+            }
+            return false;
+        }
+        byte[] head = new byte[end];
+        readBuffer.get(head);
+        String key = null;
+        String[] lines = new String(head, StandardCharsets.US_ASCII).split("\r\n");
+        if (lines.length == 0 || !lines[0].startsWith("GET ")) {
+            throw new IOException("Not a WebSocket upgrade");
+        }
+        for (String line : lines) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().toLowerCase(Locale.ROOT)
+                    .equals("sec-websocket-key")) {
+                key = line.substring(colon + 1).trim();
+            }
+        }
+        if (key == null) {
+            throw new IOException("Missing Sec-WebSocket-Key");
+        }
+        String response = "HTTP/1.1 101 Switching Protocols\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Sec-WebSocket-Accept: " + acceptKey(key) + "\r\n\r\n";
+        upgraded = true;
+        enqueue(ByteBuffer.wrap(response.getBytes(StandardCharsets.US_ASCII)));
+        return true;
+    }
+
+    /**
+     * Handles one frame if it is all there. Returns false if more bytes are needed.
+     */
+    private boolean readFrame() throws IOException {
+        int start = readBuffer.position();
+        int available = readBuffer.remaining();
+        if (available < 2) {
+            return false;
+        }
+        int first = readBuffer.get(start) & 0xFF;
+        int second = readBuffer.get(start + 1) & 0xFF;
+        boolean fin = (first & 0x80) != 0;
+        int opcode = first & 0x0F;
+        boolean masked = (second & 0x80) != 0;
+        long length = second & 0x7F;
+        int headerBytes = 2;
+        if (length == 126) {
+            if (available < 4) {
+                return false;
+            }
+            length = readBuffer.getShort(start + 2) & 0xFFFF;
+            headerBytes = 4;
+        } else if (length == 127) {
+            if (available < 10) {
+                return false;
+            }
+            length = readBuffer.getLong(start + 2);
+            headerBytes = 10;
+        }
+        if (!masked) {
+            throw new IOException("Unmasked client frame");
+        }
+        if (length < 0 || length > server.maxMessageBytes) {
+            throw new IOException("Frame too large: " + length);
+        }
+        int frameBytes = headerBytes + 4 + (int) length;
+        if (available < frameBytes) {
+            if (frameBytes > readBuffer.capacity()) {
+                grow(frameBytes);
+            }
+            return false;
+        }
+
+        int maskAt = start + headerBytes;
+        int payloadAt = maskAt + 4;
+        byte[] mask = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            mask[i] = readBuffer.get(maskAt + i);
+        }
+        readBuffer.position(start + frameBytes);
+        if (room != null) {
+            // Pings count too: a member that pings is alive even while the room is quiet
+            room.lastActivityNanos = loop.nowNanos;
+        }
+
+        switch (opcode) {
+            case OPCODE_CLOSE:
+                enqueue(frame(OPCODE_CLOSE, readBuffer, payloadAt, (int) length, mask));
+                flush();
+                throw new IOException("Closed by peer");
+            case OPCODE_PING:
+                enqueue(frame(OPCODE_PONG, readBuffer, payloadAt, (int) length, mask));
+                return true;
+            case OPCODE_PONG:
+                return true;
+            case OPCODE_CONTINUATION:
+                appendFragment(readBuffer, payloadAt, (int) length, mask);
+                if (fin && fragments != null) {
+                    fragments.flip();
+                    ByteBuffer whole = fragments;
+                    fragments = null;
+                    onMessage(frame(fragmentOpcode, whole, 0, whole.remaining(), null));
+                }
+                return true;
+            case OPCODE_TEXT:
+            case OPCODE_BINARY:
+                if (!fin) {
+                    fragmentOpcode = opcode;
+                    fragments = null;
+                    appendFragment(readBuffer, payloadAt, (int) length, mask);
+                    return true;
+                }
+                onMessage(frame(opcode, readBuffer, payloadAt, (int) length, mask));
+                return true;
+            default:
+                throw new IOException("Unknown opcode " + opcode);
+        }
+    }
+
+    /**
+     * A text or binary message, framed for sending. Joins the room with the first
+     * CONNECTION_REQUEST; until then messages are dropped, as the public relay does.
+     */
+    private void onMessage(ByteBuffer frame) {
+        if (room == null) {
+            String hostCode = (frame.get(0) & 0x0F) == OPCODE_TEXT ? parseJoin(frame) : null;
+            if (hostCode == null) {
+                return;
+            }
+            room = server.registry.join(hostCode, this, server.maxRoomMembers, loop.nowNanos);
+            if (room == null) {
+                server.stats.roomsFull.increment();
+                close();
+                return;
+            }
+            server.stats.joins.increment();
+        }
+        RoomRegistry.Room current = room;
+        if (current.closed) {
+            // Expired while this message was on its way
+            close();
+            return;
+        }
+        current.lastActivityNanos = loop.nowNanos;
+        int relayed = 0;
+        for (RelayConnection member : current.members) {
+            if (member != this) {
+                member.enqueue(frame.duplicate());
+                relayed++;
+            }
+        }
+        server.stats.messages.increment();
+        server.stats.relayed.add(relayed);
+        server.stats.relayedBytes.add((long) relayed * frame.remaining());
+    }
+
+    /**
+     * Queues bytes to write and makes sure the owning loop flushes them. Safe from any thread.
+     */
+    void enqueue(ByteBuffer bytes) {
+        if (closed) {
+            return;
+        }
+        if (queuedBytes.addAndGet(bytes.remaining()) > server.maxQueuedBytes) {
+            // A reader this far behind would only hold the room back
+            server.stats.slowConsumers.increment();
+            loop.closeLater(this);
+            return;
+        }
+        writeQueue.add(bytes);
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.scheduleFlush(this);
+        }
+    }
+
+    /**
+     * Writes as much of the queue as the socket takes. Runs on the owning loop.
+     */
+    void flush() throws IOException {
+        flushScheduled.set(false);
+        while (true) {
+            int count = 0;
+            for (ByteBuffer buffer : writeQueue) {
+                writeBatch[count++] = buffer;
+                if (count == WRITE_BATCH) {
+                    break;
+                }
+            }
+            if (count == 0) {
+                setWriteInterest(false);
+                return;
+            }
+            long written = channel.write(writeBatch, 0, count);
+            queuedBytes.addAndGet(-written);
+            boolean drained = true;
+            for (int i = 0; i < count; i++) {
+                if (writeBatch[i].hasRemaining()) {
+                    drained = false;
+                    break;
+                }
+                writeQueue.poll();
+            }
+            Arrays.fill(writeBatch, 0, count, null);
+            if (!drained) {
+                // The socket buffer is full; continue when it drains
+                setWriteInterest(true);
+                return;
+            }
+        }
+    }
+
+    private void setWriteInterest(boolean write) {
+        if (key != null && key.isValid()) {
+            int ops = write ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+            if (key.interestOps() != ops) {
+                key.interestOps(ops);
+            }
+        }
+    }
+
+    /**
+     * Leaves the room and closes the socket. Runs on the owning loop.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (room != null) {
+            server.registry.leave(room, this);
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        writeQueue.clear();
+        loop.onClosed(this);
+    }
+
+    private void grow(int capacity) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(capacity, readBuffer.capacity() * 2));
+        larger.put(readBuffer);
+        larger.flip();
+        readBuffer = larger;
+    }
+
+    private void appendFragment(ByteBuffer source, int at, int length, byte[] mask) throws IOException {
+        int size = fragments != null ? fragments.position() : 0;
+        if (size + length > server.maxMessageBytes) {
+            throw new IOException("Message too large");
+        }
+        if (fragments == null || fragments.remaining() < length) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(size + length, size * 2));
+            if (fragments != null) {
+                fragments.flip();
+                larger.put(fragments);
+            }
+            fragments = larger;
+        }
+        for (int i = 0; i < length; i++) {
+            fragments.put((byte) (source.get(at + i) ^ mask[i & 3]));
+        }
+    }
+
+    /**
+     * Builds an unmasked server frame around a payload, unmasking it on the way if a mask is
+     * given. The result is read-only and positioned at its start, ready to share.
+     */
+    static ByteBuffer frame(int opcode, ByteBuffer source, int at, int length, byte[] mask) {
+        int headerBytes = length < 126 ? 2 : length <= 0xFFFF ? 4 : 10;
+        ByteBuffer frame = ByteBuffer.allocate(headerBytes + length);
+        frame.put((byte) (0x80 | opcode));
+        if (length < 126) {
+            frame.put((byte) length);
+        } else if (length <= 0xFFFF) {
+            frame.put((byte) 126).putShort((short) length);
+        } else {
+            frame.put((byte) 127).putLong(length);
+        }
+        for (int i = 0; i < length; i++) {
+            byte b = source.get(at + i);
+            frame.put(mask != null ? (byte) (b ^ mask[i & 3]) : b);
+        }
+        frame.flip();
+        return frame.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the host code if the framed message is a CONNECTION_REQUEST, else null.
+     */
+    static String parseJoin(ByteBuffer frame) {
+        int length = frame.get(1) & 0x7F;
+        int headerBytes = length < 126 ? 2 : length == 126 ? 4 : 10;
+        byte[] payload = new byte[frame.remaining() - headerBytes];
+        ByteBuffer view = frame.duplicate();
+        view.position(headerBytes);
+        view.get(payload);
+        String type = null;
+        String data = null;
+        try {
+            JsonReader reader = new JsonReader(new InputStreamReader(
+                new ByteArrayInputStream(payload), StandardCharsets.UTF_8));
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("type".equals(name) && reader.peek() == JsonToken.STRING) {
+                    type = reader.nextString();
+                } else if ("data".equals(name) && reader.peek() == JsonToken.STRING) {
+                    data = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+        return "CONNECTION_REQUEST".equals(type) && data != null && !data.isEmpty() ? data : null;
+    }
+
+    private static int indexOfHeaderEnd(ByteBuffer buffer) {
+        for (int i = buffer.position(); i + 3 < buffer.limit(); i++) {
+            if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n'
+                    && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+                return i + 4 - buffer.position();
+            }
+        }
+        return -1;
+    }
+
+    private static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
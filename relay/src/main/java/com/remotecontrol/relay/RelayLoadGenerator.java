@@ -0,0 +1,561 @@
+package com.remotecontrol.relay;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Load generator for the relay.
+ *
+ * Connects the simulated hosts first, each joining the room for its own code, then one guest per
+ * room. Join latency runs from the guest sending its CONNECTION_REQUEST to its host receiving it,
+ * which is what a user waits for before the offer can start. Once every guest is in, each sends
+ * touch-sized messages at a fixed interval; relay latency and throughput are measured at the
+ * hosts. Without {@code --target} a relay is started in this process.
+ *
+ * Every socket is a file descriptor on both ends, so 10k rooms with guests need about 20k on each
+ * side; raise {@code ulimit -n} or run the relay as its own process.
+ */
+public final class RelayLoadGenerator {
+
+    static final class Options {
+        String target;
+        int hosts = 10_000;
+        // Rooms that also get a guest; defaults to all of them
+        int guests = -1;
+        int loops = 2;
+        int messagesPerGuest = 50;
+        long intervalMs = 100;
+        int connectsPerSecond = 5000;
+        long phaseTimeoutMs = TimeUnit.SECONDS.toMillis(120);
+    }
+
+    // About what a TOUCH_EVENT from the guest looks like on the wire
+    private static final String TOUCH_EVENT = "{\"type\":\"TOUCH_EVENT\",\"from\":\"%s\","
+        + "\"data\":{\"action\":2,\"pointerId\":0,\"eventTime\":81234567,\"x\":0.4821,"
+        + "\"y\":0.6177,\"pressure\":1.0,\"size\":0.05}}";
+    private static final String JOIN = "{\"type\":\"CONNECTION_REQUEST\",\"from\":\"%s\",\"data\":\"%s\"}";
+    private static final byte[] MASK = {0x5A, 0x13, 0x7C, 0x2E};
+
+    private static final class Room {
+        final String hostCode;
+        final AtomicLongArray sentNanos;
+        volatile long joinSentNanos;
+        int received;
+
+        Room(String hostCode, int messages) {
+            this.hostCode = hostCode;
+            this.sentNanos = new AtomicLongArray(messages);
+        }
+    }
+
+    private static final class Client {
+        final Room room;
+        final boolean host;
+        final long startNanos;
+        SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+        ByteBuffer pending;
+        ByteBuffer message;
+        boolean upgraded;
+        int sent;
+        long nextSendNanos;
+
+        Client(Room room, boolean host, long startNanos) {
+            this.room = room;
+            this.host = host;
+            this.startNanos = startNanos;
+        }
+    }
+
+    /** Growable array of samples, owned by one loop. */
+    private static final class Samples {
+        long[] values = new long[1024];
+        int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        static long[] merge(List<Samples> all) {
+            int total = 0;
+            for (Samples samples : all) {
+                total += samples.size;
+            }
+            long[] merged = new long[total];
+            int at = 0;
+            for (Samples samples : all) {
+                System.arraycopy(samples.values, 0, merged, at, samples.size);
+                at += samples.size;
+            }
+            Arrays.sort(merged);
+            return merged;
+        }
+    }
+
+    private final class ClientLoop implements Runnable {
+        final Selector selector = Selector.open();
+        final Queue<Client> connects = new ConcurrentLinkedQueue<>();
+        final List<Client> guests = new ArrayList<>();
+        final Samples handshakeNanos = new Samples();
+        final Samples joinNanos = new Samples();
+        final Samples relayNanos = new Samples();
+
+        ClientLoop() throws IOException {
+        }
+
+        void connect(Client client) {
+            connects.add(client);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stopped) {
+                    selector.select(1);
+                    long now = System.nanoTime();
+                    Client client;
+                    while ((client = connects.poll()) != null) {
+                        open(client);
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Client owner = (Client) key.attachment();
+                        try {
+                            handle(owner, key, now);
+                        } catch (IOException e) {
+                            fail(owner);
+                        }
+                    }
+                    if (streaming) {
+                        sendDue(now);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Client loop failed: " + e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    try {
+                        key.channel().close();
+                    } catch (IOException ignored) {
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void open(Client client) {
+            try {
+                client.channel = SocketChannel.open();
+                client.channel.configureBlocking(false);
+                client.channel.socket().setTcpNoDelay(true);
+                client.channel.connect(address);
+                client.key = client.channel.register(selector, SelectionKey.OP_CONNECT, client);
+            } catch (IOException e) {
+                fail(client);
+            }
+        }
+
+        private void handle(Client client, SelectionKey key, long now) throws IOException {
+            if (key.isConnectable()) {
+                client.channel.finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+                write(client, ByteBuffer.wrap(upgradeRequest().getBytes(StandardCharsets.US_ASCII)));
+                return;
+            }
+            if (key.isWritable()) {
+                write(client, null);
+            }
+            if (key.isReadable()) {
+                if (client.channel.read(client.readBuffer) < 0) {
+                    throw new IOException("Closed by relay");
+                }
+                client.readBuffer.flip();
+                try {
+                    if (!client.upgraded && !readUpgrade(client, now)) {
+                        return;
+                    }
+                    while (readFrame(client, now)) {
+                        // Counts frames until only a partial one is left
+                    }
+                } finally {
+                    client.readBuffer.compact();
+                }
+            }
+        }
+
+        private boolean readUpgrade(Client client, long now) throws IOException {
+            ByteBuffer buffer = client.readBuffer;
+            for (int i = buffer.position(); i + 3 < buffer.limit(); i++) {
+                if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n'
+                        && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+                    buffer.position(i + 4);
+                    client.upgraded = true;
+                    handshakeNanos.add(now - client.startNanos);
+                    String from = (client.host ? "h-" : "g-") + client.room.hostCode;
+                    if (!client.host) {
+                        client.room.joinSentNanos = System.nanoTime();
+                        client.message = maskedFrame(String.format(Locale.ROOT, TOUCH_EVENT, from));
+                        // Spread over the interval, as real guests would be
+                        client.nextSendNanos = now + ThreadLocalRandom.current()
+                            .nextLong(TimeUnit.MILLISECONDS.toNanos(options.intervalMs));
+                        guests.add(client);
+                    }
+                    write(client, maskedFrame(String.format(Locale.ROOT, JOIN, from,
+                        client.room.hostCode)));
+                    if (client.host) {
+                        hostsJoined.incrementAndGet();
+                    } else {
+                        guestsJoining.incrementAndGet();
+                    }
+                    return true;
+                }
+            }
+            if (buffer.limit() == buffer.capacity()) {
+                throw new IOException("Upgrade response too large");
+            }
+            return false;
+        }
+
+        private boolean readFrame(Client client, long now) throws IOException {
+            ByteBuffer buffer = client.readBuffer;
+            int start = buffer.position();
+            if (buffer.remaining() < 2) {
+                return false;
+            }
+            int length = buffer.get(start + 1) & 0x7F;
+            int headerBytes = 2;
+            if (length == 126) {
+                if (buffer.remaining() < 4) {
+                    return false;
+                }
+                length = buffer.getShort(start + 2) & 0xFFFF;
+                headerBytes = 4;
+            } else if (length == 127) {
+                throw new IOException("Unexpectedly large frame");
+            }
+            if (buffer.remaining() < headerBytes + length) {
+                if (headerBytes + length > buffer.capacity()) {
+                    ByteBuffer larger = ByteBuffer.allocate(headerBytes + length);
+                    larger.put(buffer);
+                    larger.flip();
+                    client.readBuffer = larger;
+                }
+                return false;
+            }
+            buffer.position(start + headerBytes + length);
+            if (!client.host) {
+                return true;
+            }
+            Room room = client.room;
+            if (room.received == 0) {
+                joinNanos.add(now - room.joinSentNanos);
+                guestsJoined.incrementAndGet();
+            } else {
+                relayNanos.add(now - room.sentNanos.get(room.received - 1));
+                received.incrementAndGet();
+                lastReceiveNanos.set(now);
+            }
+            room.received++;
+            return true;
+        }
+
+        private void sendDue(long now) {
+            for (int i = guests.size() - 1; i >= 0; i--) {
+                Client guest = guests.get(i);
+                if (guest.pending != null || now - guest.nextSendNanos < 0) {
+                    continue;
+                }
+                if (guest.sent == options.messagesPerGuest) {
+                    guests.remove(i);
+                    continue;
+                }
+                guest.room.sentNanos.set(guest.sent++, System.nanoTime());
+                guest.nextSendNanos = now + TimeUnit.MILLISECONDS.toNanos(options.intervalMs);
+                try {
+                    write(guest, guest.message.duplicate());
+                } catch (IOException e) {
+                    fail(guest);
+                }
+            }
+        }
+
+        private void write(Client client, ByteBuffer bytes) throws IOException {
+            if (bytes != null && client.pending != null) {
+                // Sends are paced, so this only happens while the relay is falling behind
+                ByteBuffer joined = ByteBuffer.allocate(client.pending.remaining() + bytes.remaining());
+                joined.put(client.pending).put(bytes).flip();
+                bytes = joined;
+            } else if (bytes == null) {
+                bytes = client.pending;
+            }
+            client.channel.write(bytes);
+            client.pending = bytes.hasRemaining() ? bytes : null;
+            client.key.interestOps(client.pending != null
+                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        private void fail(Client client) {
+            failures.incrementAndGet();
+            guests.remove(client);
+            if (client.key != null) {
+                client.key.cancel();
+            }
+            try {
+                if (client.channel != null) {
+                    client.channel.close();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private final Options options;
+    private final InetSocketAddress address;
+    private final AtomicInteger hostsJoined = new AtomicInteger();
+    private final AtomicInteger guestsJoining = new AtomicInteger();
+    private final AtomicInteger guestsJoined = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong lastReceiveNanos = new AtomicLong();
+    private volatile boolean streaming;
+    private volatile boolean stopped;
+
+    RelayLoadGenerator(Options options, InetSocketAddress address) {
+        this.options = options;
+        this.address = address;
+    }
+
+    /**
+     * Runs the three phases and prints the report. Returns false if a phase timed out.
+     */
+    boolean run(RelayServer inProcess) throws Exception {
+        int guests = options.guests < 0 ? options.hosts : Math.min(options.guests, options.hosts);
+        ClientLoop[] loops = new ClientLoop[options.loops];
+        Thread[] threads = new Thread[loops.length];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new ClientLoop();
+            threads[i] = new Thread(loops[i], "LoadLoop-" + i);
+            threads[i].start();
+        }
+        Room[] rooms = new Room[options.hosts];
+        for (int i = 0; i < rooms.length; i++) {
+            rooms[i] = new Room(String.format(Locale.ROOT, "%06d", i), options.messagesPerGuest);
+        }
+
+        long started = System.nanoTime();
+        connectAll(loops, rooms, rooms.length, true);
+        boolean ok = await(hostsJoined, rooms.length);
+        long hostsMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        // Host joins are written but maybe not yet handled; a guest that beats its host is lost
+        if (inProcess != null) {
+            long deadline = System.currentTimeMillis() + options.phaseTimeoutMs;
+            while (inProcess.registry.roomCount() < hostsJoined.get() - failures.get()
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        } else {
+            Thread.sleep(1000);
+        }
+
+        started = System.nanoTime();
+        connectAll(loops, rooms, guests, false);
+        ok &= await(guestsJoined, guests);
+        long guestsMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+        long streamStart = System.nanoTime();
+        lastReceiveNanos.set(streamStart);
+        streaming = true;
+        long expected = (long) guestsJoined.get() * options.messagesPerGuest;
+        long deadline = System.currentTimeMillis() + options.phaseTimeoutMs
+            + options.messagesPerGuest * options.intervalMs;
+        while (received.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        ok &= received.get() >= expected;
+        double streamSeconds = (lastReceiveNanos.get() - streamStart) / 1e9;
+        String relayStats = inProcess != null ? inProcess.describe() : null;
+
+        stopped = true;
+        for (int i = 0; i < loops.length; i++) {
+            loops[i].selector.wakeup();
+            threads[i].join();
+        }
+        List<Samples> handshakes = new ArrayList<>();
+        List<Samples> joins = new ArrayList<>();
+        List<Samples> relays = new ArrayList<>();
+        for (ClientLoop loop : loops) {
+            handshakes.add(loop.handshakeNanos);
+            joins.add(loop.joinNanos);
+            relays.add(loop.relayNanos);
+        }
+        int messageBytes = maskedFrame(String.format(Locale.ROOT, TOUCH_EVENT, "g-000000")).remaining();
+        System.out.println(String.format(Locale.ROOT,
+            "%d hosts connected and joined in %d ms, %d guests in %d ms, %d failed sockets",
+            hostsJoined.get(), hostsMs, guestsJoined.get(), guestsMs, failures.get()));
+        System.out.println("Upgrade latency " + percentiles(Samples.merge(handshakes)));
+        System.out.println("Join latency    " + percentiles(Samples.merge(joins)));
+        System.out.println("Relay latency   " + percentiles(Samples.merge(relays)));
+        System.out.println(String.format(Locale.ROOT,
+            "Relayed %d of %d messages in %.1f s: %.0f msg/s, %.2f MB/s",
+            received.get(), expected, streamSeconds, received.get() / streamSeconds,
+            received.get() * messageBytes / streamSeconds / 1e6));
+        if (relayStats != null) {
+            System.out.println("Relay: " + relayStats);
+        }
+        return ok;
+    }
+
+    private void connectAll(ClientLoop[] loops, Room[] rooms, int count, boolean hosts)
+            throws InterruptedException {
+        // Paced, so the listen backlog does not overflow into SYN retries
+        int perTick = Math.max(1, options.connectsPerSecond / 100);
+        for (int i = 0; i < count; i++) {
+            loops[i % loops.length].connect(new Client(rooms[i], hosts, System.nanoTime()));
+            if ((i + 1) % perTick == 0) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private boolean await(AtomicInteger counter, int target) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + options.phaseTimeoutMs;
+        while (counter.get() + failures.get() < target) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return counter.get() == target;
+    }
+
+    private String upgradeRequest() {
+        return "GET / HTTP/1.1\r\n"
+            + "Host: " + address.getHostString() + ":" + address.getPort() + "\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+            + "Sec-WebSocket-Version: 13\r\n\r\n";
+    }
+
+    /**
+     * A masked client text frame. Every frame uses the same mask; the relay unmasks regardless.
+     */
+    static ByteBuffer maskedFrame(String text) {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        int headerBytes = payload.length < 126 ? 2 : 4;
+        ByteBuffer frame = ByteBuffer.allocate(headerBytes + 4 + payload.length);
+        frame.put((byte) 0x81);
+        if (payload.length < 126) {
+            frame.put((byte) (0x80 | payload.length));
+        } else {
+            frame.put((byte) (0x80 | 126)).putShort((short) payload.length);
+        }
+        frame.put(MASK);
+        for (int i = 0; i < payload.length; i++) {
+            frame.put((byte) (payload[i] ^ MASK[i & 3]));
+        }
+        frame.flip();
+        return frame.asReadOnlyBuffer();
+    }
+
+    private static String percentiles(long[] sortedNanos) {
+        if (sortedNanos.length == 0) {
+            return "no samples";
+        }
+        return String.format(Locale.ROOT, "p50 %.2f ms, p99 %.2f ms, max %.2f ms (%d samples)",
+            at(sortedNanos, 0.50), at(sortedNanos, 0.99),
+            sortedNanos[sortedNanos.length - 1] / 1e6, sortedNanos.length);
+    }
+
+    private static double at(long[] sorted, double quantile) {
+        return sorted[Math.min(sorted.length - 1, (int) (quantile * sorted.length))] / 1e6;
+    }
+
+    /**
+     * {@code --target=host:port --hosts=10000 --guests=10000 --loops=2 --messages=50
+     * --interval-ms=100}
+     */
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            String value = pair.length == 2 ? pair[1] : "";
+            switch (pair[0]) {
+                case "--target":
+                    options.target = value;
+                    break;
+                case "--hosts":
+                    options.hosts = Integer.parseInt(value);
+                    break;
+                case "--guests":
+                    options.guests = Integer.parseInt(value);
+                    break;
+                case "--loops":
+                    options.loops = Integer.parseInt(value);
+                    break;
+                case "--messages":
+                    options.messagesPerGuest = Integer.parseInt(value);
+                    break;
+                case "--interval-ms":
+                    options.intervalMs = Long.parseLong(value);
+                    break;
+                case "--connects-per-second":
+                    options.connectsPerSecond = Integer.parseInt(value);
+                    break;
+                default:
+                    System.err.println("Unknown option " + arg);
+                    System.exit(2);
+            }
+        }
+        RelayServer server = null;
+        InetSocketAddress address;
+        if (options.target == null) {
+            RelayServer.Options serverOptions = new RelayServer.Options();
+            serverOptions.port = 0;
+            serverOptions.bindAddress = "127.0.0.1";
+            server = new RelayServer(serverOptions);
+            server.start();
+            address = new InetSocketAddress("127.0.0.1", server.getPort());
+        } else {
+            int colon = options.target.lastIndexOf(':');
+            address = new InetSocketAddress(options.target.substring(0, colon),
+                Integer.parseInt(options.target.substring(colon + 1)));
+        }
+        boolean ok;
+        try {
+            ok = new RelayLoadGenerator(options, address).run(server);
+        } finally {
+            if (server != null) {
+                server.stop();
+            }
+        }
+        System.exit(ok ? 0 : 1);
+    }
+}
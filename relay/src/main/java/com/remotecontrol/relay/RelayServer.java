@@ -0,0 +1,206 @@
+package com.remotecontrol.relay;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Self-hostable signaling relay speaking the app's protocol over WebSocket.
+ *
+ * A connection joins the room for a host code with its first {@code CONNECTION_REQUEST}; every
+ * later message it sends, the join included, goes to the other members of that room as the same
+ * bytes, without being parsed. Messages before the join are dropped. This is what the public
+ * relay does and what {@code LocalSignalingServer} in core stands in for; it differs in scale,
+ * not behavior.
+ *
+ * Connections are spread over a few selector loops and rooms over lock-striped shards. Rooms in
+ * which nobody has sent anything, pings included, for {@link Options#idleRoomMs} are closed;
+ * clients reconnect and rejoin.
+ */
+public final class RelayServer {
+
+    static final class Options {
+        int port = 8080;
+        String bindAddress = "0.0.0.0";
+        int loops = Math.max(1, Runtime.getRuntime().availableProcessors());
+        int shards = 256;
+        long idleRoomMs = TimeUnit.MINUTES.toMillis(15);
+        long joinTimeoutMs = TimeUnit.SECONDS.toMillis(10);
+        // A host and a handful of guests
+        int maxRoomMembers = 16;
+        // Offers with every codec stay well under this
+        int maxMessageBytes = 256 * 1024;
+        long maxQueuedBytes = 1024 * 1024;
+    }
+
+    static final class Stats {
+        final LongAdder connections = new LongAdder();
+        final LongAdder joins = new LongAdder();
+        final LongAdder messages = new LongAdder();
+        final LongAdder relayed = new LongAdder();
+        final LongAdder relayedBytes = new LongAdder();
+        final LongAdder expiredRooms = new LongAdder();
+        final LongAdder unjoinedClosed = new LongAdder();
+        final LongAdder slowConsumers = new LongAdder();
+        final LongAdder roomsFull = new LongAdder();
+
+        String describe(int rooms) {
+            return String.format(Locale.ROOT,
+                "%d connections, %d rooms, %d joins, %d messages relayed to %d recipients"
+                    + " (%.1f MB), %d rooms expired, %d unjoined closed, %d slow consumers,"
+                    + " %d joins to full rooms",
+                connections.sum(), rooms, joins.sum(), messages.sum(), relayed.sum(),
+                relayedBytes.sum() / 1e6, expiredRooms.sum(), unjoinedClosed.sum(),
+                slowConsumers.sum(), roomsFull.sum());
+        }
+    }
+
+    final RoomRegistry registry;
+    final Stats stats = new Stats();
+    final int maxRoomMembers;
+    final int maxMessageBytes;
+    final long maxQueuedBytes;
+    final long joinTimeoutMs;
+
+    private final Options options;
+    private final EventLoop[] loops;
+    private final ScheduledExecutorService expiry = Executors.newSingleThreadScheduledExecutor();
+    private ServerSocketChannel serverChannel;
+    private volatile boolean stopped;
+
+    RelayServer(Options options) throws IOException {
+        this.options = options;
+        this.registry = new RoomRegistry(options.shards);
+        this.maxRoomMembers = options.maxRoomMembers;
+        this.maxMessageBytes = options.maxMessageBytes;
+        this.maxQueuedBytes = options.maxQueuedBytes;
+        this.joinTimeoutMs = options.joinTimeoutMs;
+        loops = new EventLoop[options.loops];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(this);
+        }
+    }
+
+    void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        // A load test connects thousands of sockets at once
+        serverChannel.bind(new InetSocketAddress(options.bindAddress, options.port), 4096);
+        for (int i = 0; i < loops.length; i++) {
+            loops[i].start("RelayLoop-" + i);
+        }
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "RelayAccept");
+        acceptThread.start();
+        long sweepMs = Math.max(1000, Math.min(options.idleRoomMs / 4, TimeUnit.SECONDS.toMillis(30)));
+        expiry.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                expireIdleRooms();
+            }
+        }, sweepMs, sweepMs, TimeUnit.MILLISECONDS);
+    }
+
+    int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    void stop() {
+        stopped = true;
+        expiry.shutdownNow();
+        try {
+            serverChannel.close();
+        } catch (IOException ignored) {
+        }
+        for (EventLoop loop : loops) {
+            loop.stop();
+        }
+    }
+
+    String describe() {
+        return stats.describe(registry.roomCount());
+    }
+
+    private void acceptLoop() {
+        int next = 0;
+        while (!stopped) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                if (!stopped) {
+                    System.err.println("Accept failed: " + e);
+                }
+                return;
+            }
+            loops[next].register(channel);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    private void expireIdleRooms() {
+        long cutoff = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(options.idleRoomMs);
+        List<RoomRegistry.Room> expired = registry.expire(cutoff);
+        for (RoomRegistry.Room room : expired) {
+            for (RelayConnection member : room.members) {
+                member.loop.closeLater(member);
+            }
+        }
+        stats.expiredRooms.add(expired.size());
+    }
+
+    /**
+     * {@code --port=8080 --loops=4 --shards=256 --idle-minutes=15}
+     */
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            String value = pair.length == 2 ? pair[1] : "";
+            switch (pair[0]) {
+                case "--port":
+                    options.port = Integer.parseInt(value);
+                    break;
+                case "--bind":
+                    options.bindAddress = value;
+                    break;
+                case "--loops":
+                    options.loops = Integer.parseInt(value);
+                    break;
+                case "--shards":
+                    options.shards = Integer.parseInt(value);
+                    break;
+                case "--idle-minutes":
+                    options.idleRoomMs = TimeUnit.MINUTES.toMillis(Long.parseLong(value));
+                    break;
+                default:
+                    System.err.println("Unknown option " + arg);
+                    System.exit(2);
+            }
+        }
+        final RelayServer server = new RelayServer(options);
+        server.start();
+        System.out.println("Relay listening on " + options.bindAddress + ":" + server.getPort()
+            + " with " + options.loops + " loops and " + options.shards + " shards");
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.stop();
+            }
+        }));
+        while (true) {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(60));
+            System.out.println(server.describe());
+        }
+    }
+}
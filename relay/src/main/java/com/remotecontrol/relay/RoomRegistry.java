@@ -0,0 +1,144 @@
+package com.remotecontrol.relay;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rooms keyed by host code, split into shards that each have their own lock, so joins and
+ * leaves for different codes rarely contend.
+ *
+ * Only joining, leaving and expiry take a shard lock. Relaying reads the sender's room's member
+ * array, which is replaced rather than modified, so it never locks at all.
+ */
+class RoomRegistry {
+
+    static final class Room {
+        final String hostCode;
+        // Copy on write; replaced under the shard lock
+        volatile RelayConnection[] members = new RelayConnection[0];
+        volatile long lastActivityNanos;
+        // Set under the shard lock once the room is out of the registry
+        volatile boolean closed;
+
+        Room(String hostCode, long nowNanos) {
+            this.hostCode = hostCode;
+            this.lastActivityNanos = nowNanos;
+        }
+    }
+
+    private static final class Shard {
+        final Map<String, Room> rooms = new HashMap<>();
+    }
+
+    private final Shard[] shards;
+
+    RoomRegistry(int shardCount) {
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    /**
+     * Adds the connection to the room for the code, creating the room if needed. Returns null if
+     * the room is full.
+     */
+    Room join(String hostCode, RelayConnection connection, int maxMembers, long nowNanos) {
+        Shard shard = shardFor(hostCode);
+        synchronized (shard) {
+            Room room = shard.rooms.get(hostCode);
+            if (room == null) {
+                room = new Room(hostCode, nowNanos);
+                shard.rooms.put(hostCode, room);
+            }
+            RelayConnection[] members = room.members;
+            if (members.length >= maxMembers) {
+                return null;
+            }
+            RelayConnection[] grown = new RelayConnection[members.length + 1];
+            System.arraycopy(members, 0, grown, 0, members.length);
+            grown[members.length] = connection;
+            room.members = grown;
+            room.lastActivityNanos = nowNanos;
+            return room;
+        }
+    }
+
+    /**
+     * Removes the connection from its room, and the room once it is empty.
+     */
+    void leave(Room room, RelayConnection connection) {
+        Shard shard = shardFor(room.hostCode);
+        synchronized (shard) {
+            RelayConnection[] members = room.members;
+            int index = -1;
+            for (int i = 0; i < members.length; i++) {
+                if (members[i] == connection) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                return;
+            }
+            RelayConnection[] shrunk = new RelayConnection[members.length - 1];
+            System.arraycopy(members, 0, shrunk, 0, index);
+            System.arraycopy(members, index + 1, shrunk, index, members.length - index - 1);
+            room.members = shrunk;
+            if (shrunk.length == 0 && shard.rooms.get(room.hostCode) == room) {
+                shard.rooms.remove(room.hostCode);
+                room.closed = true;
+            }
+        }
+    }
+
+    /**
+     * Takes out every room in which no member has sent anything since the cutoff. The caller
+     * closes their members outside the locks.
+     */
+    List<Room> expire(long idleSinceNanos) {
+        List<Room> expired = new ArrayList<>();
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                Iterator<Room> it = shard.rooms.values().iterator();
+                while (it.hasNext()) {
+                    Room room = it.next();
+                    if (room.lastActivityNanos - idleSinceNanos < 0) {
+                        it.remove();
+                        room.closed = true;
+                        expired.add(room);
+                    }
+                }
+            }
+        }
+        return expired;
+    }
+
+    int roomCount() {
+        int count = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                count += shard.rooms.size();
+            }
+        }
+        return count;
+    }
+
+    int memberCount(String hostCode) {
+        Shard shard = shardFor(hostCode);
+        synchronized (shard) {
+            Room room = shard.rooms.get(hostCode);
+            return room != null ? room.members.length : 0;
+        }
+    }
+
+    private Shard shardFor(String hostCode) {
+        int hash = hostCode.hashCode();
+        // Spread the bits; access codes differ mostly in their last characters
+        hash ^= hash >>> 16;
+        return shards[(hash & 0x7FFFFFFF) % shards.length];
+    }
+}
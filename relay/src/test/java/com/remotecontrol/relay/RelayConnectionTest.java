@@ -0,0 +1,465 @@
+package com.remotecontrol.relay;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link RelayConnection} against an in-process {@link RelayServer} on loopback, driven by raw
+ * sockets that write exactly the bytes a test wants: the upgrade, frames split across reads,
+ * extended lengths, fragmented messages and control frames, the frames the relay must refuse,
+ * full rooms and expiry. Also the join parser on its own.
+ */
+public class RelayConnectionTest {
+    private static final int TIMEOUT_MS = 5000;
+    // Long enough that the relay reads each piece of a split write on its own
+    private static final long PIECE_GAP_MS = 50;
+    private static final int MAX_MESSAGE_BYTES = 128 * 1024;
+    private static final int MAX_ROOM_MEMBERS = 2;
+    private static final String CODE = "a1b2c3d4";
+    private static final byte[] MASK = {0x37, (byte) 0xFA, 0x21, 0x3D};
+    private static final int FIN = 0x80;
+    private static final int TEXT = 0x1;
+    private static final int BINARY = 0x2;
+    private static final int CLOSE = 0x8;
+    private static final int PING = 0x9;
+    private static final int PONG = 0xA;
+
+    private final List<Client> clients = new ArrayList<>();
+    private RelayServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = start(options());
+    }
+
+    @After
+    public void tearDown() {
+        for (Client client : clients) {
+            client.close();
+        }
+        server.stop();
+    }
+
+    private static RelayServer.Options options() {
+        RelayServer.Options options = new RelayServer.Options();
+        options.port = 0;
+        options.bindAddress = "127.0.0.1";
+        options.loops = 1;
+        options.shards = 4;
+        options.maxRoomMembers = MAX_ROOM_MEMBERS;
+        options.maxMessageBytes = MAX_MESSAGE_BYTES;
+        return options;
+    }
+
+    private static RelayServer start(RelayServer.Options options) throws IOException {
+        RelayServer relay = new RelayServer(options);
+        relay.start();
+        return relay;
+    }
+
+    private static final class Frame {
+        final int first;
+        final byte[] payload;
+
+        Frame(int first, byte[] payload) {
+            this.first = first;
+            this.payload = payload;
+        }
+
+        String text() {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * One client socket; frames it writes are masked unless a test says otherwise.
+     */
+    private final class Client {
+        final Socket socket;
+        final DataInputStream in;
+        final OutputStream out;
+
+        Client() throws IOException {
+            socket = new Socket("127.0.0.1", server.getPort());
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(TIMEOUT_MS);
+            in = new DataInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+            clients.add(this);
+        }
+
+        /**
+         * Returns the response's header block.
+         */
+        String upgrade(String key, int... cuts) throws IOException, InterruptedException {
+            String request = "GET / HTTP/1.1\r\n"
+                + "Host: 127.0.0.1\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: " + key + "\r\n"
+                + "Sec-WebSocket-Version: 13\r\n\r\n";
+            write(request.getBytes(StandardCharsets.US_ASCII), cuts);
+            StringBuilder response = new StringBuilder();
+            while (response.indexOf("\r\n\r\n") < 0) {
+                int b = in.read();
+                if (b < 0) {
+                    fail("Closed during the upgrade: " + response);
+                }
+                response.append((char) b);
+            }
+            return response.toString();
+        }
+
+        void join(String code, int expectedMembers) throws IOException, InterruptedException {
+            send(FIN | TEXT, joinMessage(code).getBytes(StandardCharsets.UTF_8));
+            awaitMembers(code, expectedMembers);
+        }
+
+        void send(int first, byte[] payload) throws IOException, InterruptedException {
+            write(clientFrame(first, payload, true));
+        }
+
+        /**
+         * Writes the bytes, pausing at each cut so they arrive in separate reads.
+         */
+        void write(byte[] bytes, int... cuts) throws IOException, InterruptedException {
+            int from = 0;
+            for (int cut : cuts) {
+                out.write(bytes, from, cut - from);
+                out.flush();
+                Thread.sleep(PIECE_GAP_MS);
+                from = cut;
+            }
+            out.write(bytes, from, bytes.length - from);
+            out.flush();
+        }
+
+        Frame read() throws IOException {
+            int first = in.readUnsignedByte();
+            int second = in.readUnsignedByte();
+            assertEquals("Server frames are not masked", 0, second & 0x80);
+            long length = second & 0x7F;
+            if (length == 126) {
+                length = in.readUnsignedShort();
+            } else if (length == 127) {
+                length = in.readLong();
+            }
+            byte[] payload = new byte[(int) length];
+            in.readFully(payload);
+            return new Frame(first, payload);
+        }
+
+        /**
+         * Fails unless the relay closes the socket, once any frames before that are read.
+         */
+        void assertClosed() throws IOException {
+            try {
+                while (in.read() >= 0) {
+                    // Whatever was queued before the close
+                }
+            } catch (SocketTimeoutException e) {
+                fail("Relay did not close the connection");
+            } catch (SocketException e) {
+                // Reset; closed all the same
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private Client joined(int expectedMembers) throws IOException, InterruptedException {
+        Client client = new Client();
+        client.upgrade("dGhlIHNhbXBsZSBub25jZQ==");
+        client.join(CODE, expectedMembers);
+        return client;
+    }
+
+    /**
+     * A host and a guest in one room, with the guest's join already read off the host.
+     */
+    private Client[] pair() throws IOException, InterruptedException {
+        Client host = joined(1);
+        Client guest = joined(2);
+        assertEquals(joinMessage(CODE), host.read().text());
+        return new Client[] {host, guest};
+    }
+
+    private void awaitMembers(String code, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (server.registry.memberCount(code) != expected) {
+            if (System.currentTimeMillis() > deadline) {
+                fail(code + " has " + server.registry.memberCount(code) + " members, not " + expected);
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    private static void awaitSum(String what, LongAdder counter, long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (counter.sum() != expected) {
+            if (System.currentTimeMillis() > deadline) {
+                fail(what + " is " + counter.sum() + ", not " + expected);
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    private static String joinMessage(String code) {
+        return "{\"type\":\"CONNECTION_REQUEST\",\"data\":\"" + code + "\"}";
+    }
+
+    private static byte[] clientFrame(int first, byte[] payload, boolean masked) {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(first);
+        int maskBit = masked ? 0x80 : 0;
+        if (payload.length < 126) {
+            frame.write(maskBit | payload.length);
+        } else if (payload.length <= 0xFFFF) {
+            frame.write(maskBit | 126);
+            frame.write(payload.length >>> 8);
+            frame.write(payload.length);
+        } else {
+            frame.write(maskBit | 127);
+            frame.write(ByteBuffer.allocate(8).putLong(payload.length).array(), 0, 8);
+        }
+        if (masked) {
+            frame.write(MASK, 0, 4);
+        }
+        for (int i = 0; i < payload.length; i++) {
+            frame.write(masked ? payload[i] ^ MASK[i & 3] : payload[i]);
+        }
+        return frame.toByteArray();
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] repeated(char c, int length) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) c);
+        return bytes;
+    }
+
+    @Test
+    public void upgradeSplitAcrossReadsGetsTheAcceptKey() throws Exception {
+        Client client = new Client();
+        // The key and accept value from RFC 6455, section 1.3
+        String response = client.upgrade("dGhlIHNhbXBsZSBub25jZQ==", 5, 40, 90);
+
+        assertTrue(response, response.startsWith("HTTP/1.1 101 "));
+        assertTrue(response, response.contains("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n"));
+    }
+
+    @Test
+    public void requestWithoutAKeyIsRefused() throws Exception {
+        Client client = new Client();
+        client.write("GET / HTTP/1.1\r\nUpgrade: websocket\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+
+        client.assertClosed();
+    }
+
+    @Test
+    public void frameSplitAcrossReadsIsRelayedWhole() throws Exception {
+        Client[] pair = pair();
+        byte[] payload = repeated('x', 300);
+        byte[] frame = clientFrame(FIN | TEXT, payload, true);
+
+        // Inside the first byte pair, the extended length, the mask, and the payload
+        pair[0].write(frame, 1, 3, 6, 150);
+        Frame relayed = pair[1].read();
+        assertEquals(FIN | TEXT, relayed.first);
+        assertArrayEquals(payload, relayed.payload);
+    }
+
+    @Test
+    public void everyLengthEncodingIsRelayedIntact() throws Exception {
+        Client[] pair = pair();
+        // Largest short length, both ends of the 16-bit length, and a 64-bit length
+        int[] lengths = {125, 126, 0xFFFF, 70_000};
+        for (int length : lengths) {
+            pair[0].send(FIN | BINARY, randomBytes(length));
+        }
+
+        for (int length : lengths) {
+            Frame relayed = pair[1].read();
+            assertEquals(FIN | BINARY, relayed.first);
+            assertArrayEquals(randomBytes(length), relayed.payload);
+        }
+    }
+
+    @Test
+    public void fragmentedMessageIsRelayedAsOne() throws Exception {
+        Client[] pair = pair();
+        pair[0].send(TEXT, "hello".getBytes(StandardCharsets.UTF_8));
+        // Control frames may come between fragments
+        pair[0].send(FIN | PING, "p1".getBytes(StandardCharsets.UTF_8));
+        pair[0].send(0, " wide".getBytes(StandardCharsets.UTF_8));
+        pair[0].send(FIN, " world".getBytes(StandardCharsets.UTF_8));
+
+        Frame pong = pair[0].read();
+        assertEquals(FIN | PONG, pong.first);
+        assertEquals("p1", pong.text());
+        Frame relayed = pair[1].read();
+        assertEquals(FIN | TEXT, relayed.first);
+        assertEquals("hello wide world", relayed.text());
+    }
+
+    @Test
+    public void messagesBeforeTheJoinAreDropped() throws Exception {
+        Client host = joined(1);
+        Client guest = new Client();
+        guest.upgrade("dGhlIHNhbXBsZSBub25jZQ==");
+        guest.send(FIN | TEXT, "{\"type\":\"TOUCH\"}".getBytes(StandardCharsets.UTF_8));
+        guest.send(FIN | BINARY, joinMessage(CODE).getBytes(StandardCharsets.UTF_8));
+        guest.join(CODE, 2);
+
+        // The join is the first thing the host gets
+        assertEquals(joinMessage(CODE), host.read().text());
+        assertEquals(2, server.stats.joins.sum());
+    }
+
+    @Test
+    public void unmaskedFrameClosesTheConnection() throws Exception {
+        Client[] pair = pair();
+        pair[0].write(clientFrame(FIN | TEXT, "{}".getBytes(StandardCharsets.UTF_8), false));
+
+        pair[0].assertClosed();
+        awaitMembers(CODE, 1);
+    }
+
+    @Test
+    public void oversizeFrameClosesTheConnectionBeforeItsPayload() throws Exception {
+        Client[] pair = pair();
+        byte[] header = new byte[14];
+        header[0] = (byte) (FIN | BINARY);
+        header[1] = (byte) (0x80 | 127);
+        ByteBuffer.wrap(header, 2, 8).putLong(MAX_MESSAGE_BYTES + 1);
+        pair[0].write(header);
+
+        pair[0].assertClosed();
+        awaitMembers(CODE, 1);
+    }
+
+    @Test
+    public void oversizeFragmentedMessageClosesTheConnection() throws Exception {
+        Client[] pair = pair();
+        pair[0].send(BINARY, randomBytes(MAX_MESSAGE_BYTES / 2 + 1));
+        pair[0].send(FIN, randomBytes(MAX_MESSAGE_BYTES / 2 + 1));
+
+        pair[0].assertClosed();
+        awaitMembers(CODE, 1);
+    }
+
+    @Test
+    public void unknownOpcodeClosesTheConnection() throws Exception {
+        Client[] pair = pair();
+        pair[0].send(FIN | 0x3, new byte[0]);
+
+        pair[0].assertClosed();
+        awaitMembers(CODE, 1);
+    }
+
+    @Test
+    public void closeIsEchoedAndTheLastToLeaveRemovesTheRoom() throws Exception {
+        Client[] pair = pair();
+        byte[] normalClosure = {0x03, (byte) 0xE8};
+        for (Client client : pair) {
+            client.send(FIN | CLOSE, normalClosure);
+            Frame echo = client.read();
+            assertEquals(FIN | CLOSE, echo.first);
+            assertArrayEquals(normalClosure, echo.payload);
+            client.assertClosed();
+        }
+
+        awaitMembers(CODE, 0);
+        assertEquals(0, server.registry.roomCount());
+    }
+
+    @Test
+    public void fullRoomRefusesAJoin() throws Exception {
+        Client[] pair = pair();
+        Client extra = new Client();
+        extra.upgrade("dGhlIHNhbXBsZSBub25jZQ==");
+        extra.send(FIN | TEXT, joinMessage(CODE).getBytes(StandardCharsets.UTF_8));
+
+        extra.assertClosed();
+        assertEquals(1, server.stats.roomsFull.sum());
+        assertEquals(MAX_ROOM_MEMBERS, server.registry.memberCount(CODE));
+        // The members never hear about it
+        pair[1].send(FIN | TEXT, "after".getBytes(StandardCharsets.UTF_8));
+        assertEquals("after", pair[0].read().text());
+    }
+
+    @Test
+    public void idleRoomExpiresAndClosesItsMembers() throws Exception {
+        server.stop();
+        RelayServer.Options options = options();
+        options.idleRoomMs = 100;
+        server = start(options);
+        Client[] pair = pair();
+
+        // The sweep runs once a second at the least
+        for (Client client : pair) {
+            client.assertClosed();
+        }
+        awaitSum("expired rooms", server.stats.expiredRooms, 1);
+        assertEquals(0, server.registry.roomCount());
+    }
+
+    @Test
+    public void parseJoinTakesOnlyAConnectionRequestWithACode() {
+        assertEquals(CODE, RelayConnection.parseJoin(serverFrame(joinMessage(CODE))));
+        assertEquals(CODE, RelayConnection.parseJoin(serverFrame(
+            "{\"extra\":{\"nested\":[1,2]},\"data\":\"" + CODE + "\",\"type\":\"CONNECTION_REQUEST\"}")));
+
+        assertNull(RelayConnection.parseJoin(serverFrame("{\"type\":\"OFFER\",\"data\":\"" + CODE + "\"}")));
+        assertNull(RelayConnection.parseJoin(serverFrame("{\"type\":\"CONNECTION_REQUEST\",\"data\":\"\"}")));
+        assertNull(RelayConnection.parseJoin(serverFrame("{\"type\":\"CONNECTION_REQUEST\",\"data\":7}")));
+        assertNull(RelayConnection.parseJoin(serverFrame("{\"type\":\"CONNECTION_REQUEST\"")));
+        assertNull(RelayConnection.parseJoin(serverFrame("[\"CONNECTION_REQUEST\"]")));
+        assertNull(RelayConnection.parseJoin(serverFrame("")));
+    }
+
+    @Test
+    public void parseJoinReadsPastAnExtendedLength() {
+        String padding = new String(repeated('p', 70_000), StandardCharsets.US_ASCII);
+        String join = "{\"padding\":\"" + padding + "\",\"type\":\"CONNECTION_REQUEST\",\"data\":\"" + CODE + "\"}";
+
+        assertEquals(CODE, RelayConnection.parseJoin(serverFrame(join)));
+        assertEquals("other", RelayConnection.parseJoin(serverFrame(join.replace(CODE, "other"))));
+    }
+
+    private static ByteBuffer serverFrame(String text) {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        return RelayConnection.frame(TEXT, ByteBuffer.wrap(payload), 0, payload.length, null);
+    }
+}
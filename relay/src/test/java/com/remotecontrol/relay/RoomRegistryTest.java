@@ -0,0 +1,120 @@
+package com.remotecontrol.relay;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import java.util.List;
+
+/**
+ * {@link RoomRegistry} on its own: joining, the room limit, leaving and expiry. The members are
+ * connections without a socket, since the registry only keeps them.
+ */
+public class RoomRegistryTest {
+    private static final int MAX_MEMBERS = 2;
+
+    private final RoomRegistry registry = new RoomRegistry(4);
+
+    private static RelayConnection member() {
+        return new RelayConnection(null, null, null, 0);
+    }
+
+    @Test
+    public void joinsWithTheSameCodeShareARoom() {
+        RelayConnection host = member();
+        RelayConnection guest = member();
+        RoomRegistry.Room room = registry.join("a1b2c3d4", host, MAX_MEMBERS, 0);
+        assertSame(room, registry.join("a1b2c3d4", guest, MAX_MEMBERS, 10));
+
+        assertArrayEquals(new RelayConnection[] {host, guest}, room.members);
+        assertEquals(10, room.lastActivityNanos);
+        assertNotSame(room, registry.join("e5f6a7b8", member(), MAX_MEMBERS, 10));
+        assertEquals(2, registry.roomCount());
+    }
+
+    @Test
+    public void fullRoomRefusesAJoin() {
+        RoomRegistry.Room room = registry.join("a1b2c3d4", member(), MAX_MEMBERS, 0);
+        registry.join("a1b2c3d4", member(), MAX_MEMBERS, 0);
+
+        assertNull(registry.join("a1b2c3d4", member(), MAX_MEMBERS, 20));
+        assertEquals(MAX_MEMBERS, registry.memberCount("a1b2c3d4"));
+        // A refused join is not activity
+        assertEquals(0, room.lastActivityNanos);
+    }
+
+    @Test
+    public void leaveRemovesTheRoomOnceItIsEmpty() {
+        RelayConnection host = member();
+        RelayConnection guest = member();
+        RoomRegistry.Room room = registry.join("a1b2c3d4", host, MAX_MEMBERS, 0);
+        registry.join("a1b2c3d4", guest, MAX_MEMBERS, 0);
+
+        registry.leave(room, host);
+        assertArrayEquals(new RelayConnection[] {guest}, room.members);
+        assertEquals(1, registry.roomCount());
+        assertFalse(room.closed);
+
+        registry.leave(room, guest);
+        assertEquals(0, room.members.length);
+        assertEquals(0, registry.roomCount());
+        assertTrue(room.closed);
+
+        // The next join with the code gets a new room
+        RoomRegistry.Room next = registry.join("a1b2c3d4", host, MAX_MEMBERS, 0);
+        assertNotSame(room, next);
+        assertFalse(next.closed);
+    }
+
+    @Test
+    public void leavingTwiceOrFromAnotherRoomChangesNothing() {
+        RelayConnection host = member();
+        RoomRegistry.Room room = registry.join("a1b2c3d4", host, MAX_MEMBERS, 0);
+        registry.join("a1b2c3d4", member(), MAX_MEMBERS, 0);
+
+        registry.leave(room, member());
+        registry.leave(room, host);
+        registry.leave(room, host);
+        assertEquals(1, registry.memberCount("a1b2c3d4"));
+        assertFalse(room.closed);
+    }
+
+    @Test
+    public void expireTakesOnlyRoomsIdleSinceTheCutoff() {
+        RelayConnection idleMember = member();
+        RoomRegistry.Room idle = registry.join("a1b2c3d4", idleMember, MAX_MEMBERS, 100);
+        RoomRegistry.Room active = registry.join("e5f6a7b8", member(), MAX_MEMBERS, 100);
+        active.lastActivityNanos = 300;
+
+        List<RoomRegistry.Room> expired = registry.expire(200);
+        assertEquals(1, expired.size());
+        assertSame(idle, expired.get(0));
+        assertTrue(idle.closed);
+        // Left in the room so the caller can close them
+        assertArrayEquals(new RelayConnection[] {idleMember}, idle.members);
+        assertFalse(active.closed);
+        assertEquals(1, registry.roomCount());
+        assertEquals(0, registry.memberCount("a1b2c3d4"));
+
+        // Leaving an expired room must not take out a new room with the same code
+        RoomRegistry.Room rejoined = registry.join("a1b2c3d4", member(), MAX_MEMBERS, 400);
+        registry.leave(idle, idleMember);
+        assertNotNull(rejoined);
+        assertEquals(1, registry.memberCount("a1b2c3d4"));
+    }
+
+    @Test
+    public void expiryComparesAcrossNanoTimeWraparound() {
+        RoomRegistry.Room room = registry.join("a1b2c3d4", member(), MAX_MEMBERS, Long.MAX_VALUE - 10);
+
+        assertTrue(registry.expire(Long.MAX_VALUE - 20).isEmpty());
+        assertEquals(1, registry.expire(Long.MIN_VALUE + 10).size());
+        assertTrue(room.closed);
+    }
+}
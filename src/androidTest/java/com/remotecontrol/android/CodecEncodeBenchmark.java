@@ -0,0 +1,238 @@
+package com.remotecontrol.android;
+
+import static org.junit.Assert.assertFalse;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.webrtc.EncodedImage;
+import org.webrtc.JavaI420Buffer;
+import org.webrtc.SoftwareVideoEncoderFactory;
+import org.webrtc.VideoCodecInfo;
+import org.webrtc.VideoCodecStatus;
+import org.webrtc.VideoEncoder;
+import org.webrtc.VideoEncoderFactory;
+import org.webrtc.VideoFrame;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes a synthetic screen-content sequence with every codec the app advertises, on the path
+ * {@link FallbackVideoEncoderFactory} picks and in software where this build has a software
+ * encoder, and reports encode time per frame.
+ *
+ * The sequence is what screen sharing mostly looks like: a still page of text-like rows, a list
+ * scrolling through the middle of it and a blinking cursor. Run with
+ * {@code ./gradlew connectedAndroidTest}; results go to logcat under {@value #TAG} and to the
+ * instrumentation status.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CodecEncodeBenchmark {
+    private static final String TAG = "CodecEncodeBenchmark";
+    private static final int WIDTH = 720;
+    private static final int HEIGHT = 1280;
+    private static final int FRAME_RATE = 30;
+    private static final int FRAMES = 150;
+    private static final int WARM_UP_FRAMES = 15;
+    private static final int BITRATE_BPS = 1_500_000;
+    private static final int SCROLL_PX_PER_FRAME = 12;
+    private static final long DRAIN_TIMEOUT_MS = 2000;
+
+    private WebRtcEngine engine;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        engine = WebRtcEngine.acquire(context);
+    }
+
+    @After
+    public void tearDown() {
+        WebRtcEngine.release();
+    }
+
+    @Test
+    public void encodeScreenContent() throws InterruptedException {
+        CodecSelector selector = new CodecSelector(engine.getEglBase().getEglBaseContext());
+        VideoEncoderFactory appFactory = selector.createEncoderFactory();
+        VideoEncoderFactory softwareFactory = new SoftwareVideoEncoderFactory();
+
+        List<String> results = new ArrayList<>();
+        for (VideoCodecInfo codec : appFactory.getSupportedCodecs()) {
+            Result result = encode(codec, appFactory);
+            if (result != null) {
+                result.path = selector.getEncoderPaths().get(codec.name);
+                results.add(result.toString());
+            }
+        }
+        for (VideoCodecInfo codec : softwareFactory.getSupportedCodecs()) {
+            Result result = encode(codec, softwareFactory);
+            if (result != null) {
+                result.path = CodecSelector.PATH_SOFTWARE;
+                results.add(result.toString());
+            }
+        }
+
+        Bundle status = new Bundle();
+        for (int i = 0; i < results.size(); i++) {
+            Log.i(TAG, results.get(i));
+            status.putString("codec" + i, results.get(i));
+        }
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, status);
+        assertFalse("No codec could encode", results.isEmpty());
+    }
+
+    private static final class Result {
+        final String codec;
+        String path;
+        int encoded;
+        long totalBytes;
+        double meanMs;
+        double p95Ms;
+
+        Result(String codec) {
+            this.codec = codec;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                "%-5s %-28s %3d frames  mean %6.2f ms  p95 %6.2f ms  %5.0f kbps",
+                codec, path, encoded, meanMs, p95Ms,
+                totalBytes * 8.0 * FRAME_RATE / Math.max(1, encoded) / 1000);
+        }
+    }
+
+    /**
+     * Returns null if the factory could not create or initialize an encoder for the codec.
+     */
+    private Result encode(VideoCodecInfo codec, VideoEncoderFactory factory)
+            throws InterruptedException {
+        VideoEncoder encoder = factory.createEncoder(codec);
+        if (encoder == null) {
+            return null;
+        }
+        final Map<Long, Long> startNanos = new ConcurrentHashMap<>();
+        final List<Long> latencies = new ArrayList<>();
+        final long[] bytes = new long[1];
+        VideoEncoder.Callback callback = new VideoEncoder.Callback() {
+            @Override
+            public void onEncodedFrame(EncodedImage frame, VideoEncoder.CodecSpecificInfo info) {
+                Long start = startNanos.remove(frame.captureTimeNs);
+                if (start == null) {
+                    return;
+                }
+                synchronized (latencies) {
+                    latencies.add(System.nanoTime() - start);
+                    bytes[0] += frame.buffer.remaining();
+                    latencies.notifyAll();
+                }
+            }
+        };
+        VideoEncoder.Settings settings = new VideoEncoder.Settings(
+            Runtime.getRuntime().availableProcessors(), WIDTH, HEIGHT, BITRATE_BPS / 1000,
+            FRAME_RATE, 1, /* automaticResizeOn= */ false, new VideoEncoder.Capabilities(false));
+        if (encoder.initEncode(settings, callback) != VideoCodecStatus.OK) {
+            encoder.release();
+            return null;
+        }
+        encoder.setRateAllocation(
+            new VideoEncoder.BitrateAllocation(new int[][] {{BITRATE_BPS}}), FRAME_RATE);
+
+        VideoEncoder.EncodeInfo delta = new VideoEncoder.EncodeInfo(
+            new EncodedImage.FrameType[] {EncodedImage.FrameType.VideoFrameDelta});
+        VideoEncoder.EncodeInfo key = new VideoEncoder.EncodeInfo(
+            new EncodedImage.FrameType[] {EncodedImage.FrameType.VideoFrameKey});
+        long frameNanos = TimeUnit.SECONDS.toNanos(1) / FRAME_RATE;
+        for (int i = 0; i < FRAMES; i++) {
+            JavaI420Buffer buffer = JavaI420Buffer.allocate(WIDTH, HEIGHT);
+            drawScreen(buffer, i);
+            long timestampNanos = i * frameNanos;
+            VideoFrame frame = new VideoFrame(buffer, 0, timestampNanos);
+            if (i >= WARM_UP_FRAMES) {
+                startNanos.put(timestampNanos, System.nanoTime());
+            }
+            encoder.encode(frame, i == 0 ? key : delta);
+            frame.release();
+            // Paced like a capturer, so a hardware encoder is not measured with a full queue
+            Thread.sleep(TimeUnit.NANOSECONDS.toMillis(frameNanos));
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT_MS);
+        synchronized (latencies) {
+            while (!startNanos.isEmpty() && System.nanoTime() < deadline) {
+                latencies.wait(50);
+            }
+        }
+        encoder.release();
+
+        Result result = new Result(codec.name);
+        synchronized (latencies) {
+            result.encoded = latencies.size();
+            result.totalBytes = bytes[0];
+            if (latencies.isEmpty()) {
+                return result;
+            }
+            long[] sorted = new long[latencies.size()];
+            long total = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = latencies.get(i);
+                total += sorted[i];
+            }
+            Arrays.sort(sorted);
+            result.meanMs = total / 1e6 / sorted.length;
+            result.p95Ms = sorted[(int) (sorted.length * 0.95)] / 1e6;
+        }
+        return result;
+    }
+
+    /**
+     * Rows of dark "glyph" runs on white, with the band between a header and a footer scrolled by
+     * {@code frame * SCROLL_PX_PER_FRAME} and a cursor that blinks every half second.
+     */
+    private static void drawScreen(JavaI420Buffer buffer, int frame) {
+        ByteBuffer y = buffer.getDataY();
+        int stride = buffer.getStrideY();
+        int header = HEIGHT / 8;
+        int footer = HEIGHT - HEIGHT / 8;
+        for (int row = 0; row < HEIGHT; row++) {
+            int contentRow = row >= header && row < footer
+                ? row + frame * SCROLL_PX_PER_FRAME : row;
+            int line = contentRow / 40;
+            boolean inGlyphs = contentRow % 40 >= 10 && contentRow % 40 < 30;
+            for (int col = 0; col < WIDTH; col++) {
+                boolean ink = inGlyphs && col >= 24 && col < WIDTH - 24
+                    && ((col / 9 + line * 7) % 11) < 7 && ((col + line) % 9) < 6;
+                y.put(row * stride + col, (byte) (ink ? 30 : 235));
+            }
+        }
+        if ((frame / (FRAME_RATE / 2)) % 2 == 0) {
+            for (int row = footer + 20; row < footer + 60; row++) {
+                for (int col = 40; col < 44; col++) {
+                    y.put(row * stride + col, (byte) 30);
+                }
+            }
+        }
+        fill(buffer.getDataU(), buffer.getStrideU(), (HEIGHT + 1) / 2, (WIDTH + 1) / 2);
+        fill(buffer.getDataV(), buffer.getStrideV(), (HEIGHT + 1) / 2, (WIDTH + 1) / 2);
+    }
+
+    private static void fill(ByteBuffer plane, int stride, int rows, int cols) {
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                plane.put(row * stride + col, (byte) 128);
+            }
+        }
+    }
+}
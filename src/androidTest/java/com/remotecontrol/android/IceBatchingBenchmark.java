@@ -0,0 +1,210 @@
+package com.remotecontrol.android;
+
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.webrtc.DataChannel;
+import org.webrtc.IceCandidate;
+import org.webrtc.PeerConnection;
+import org.webrtc.PeerConnectionFactory;
+import org.webrtc.SessionDescription;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from the offer to ICE connected with local candidates batched for
+ * {@link PeerNegotiator#DEFAULT_BATCH_WINDOW_MS} against each candidate sent on its own.
+ *
+ * Each round joins two in-process peer connections, with a signaling client each, over a
+ * {@link LocalSignalingServer} on loopback, and offers a data channel so there is something to
+ * connect. Only host candidates are gathered, so the network outside the device plays no part.
+ * Rounds alternate between the two windows. Run with {@code ./gradlew connectedAndroidTest};
+ * medians go to logcat under {@value #TAG} and to the instrumentation status.
+ */
+@RunWith(AndroidJUnit4.class)
+public class IceBatchingBenchmark {
+    private static final String TAG = "IceBatchingBenchmark";
+    private static final int ROUNDS = 10;
+    private static final long CONNECT_TIMEOUT_MS = 15_000;
+    private static final long JOIN_RETRY_MS = 500;
+
+    private Context context;
+    private PeerConnectionFactory factory;
+    private LocalSignalingServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        factory = WebRtcEngine.acquire(context).getFactory();
+        server = new LocalSignalingServer(LocalSignalingServer.Impairment.NONE);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        WebRtcEngine.release();
+    }
+
+    @Test
+    public void batchedAgainstUnbatchedCandidates() throws Exception {
+        long[] batched = new long[ROUNDS];
+        long[] unbatched = new long[ROUNDS];
+        int batchedCandidates = 0;
+        int batchedMessages = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            Round single = new Round("single-" + round, 0);
+            unbatched[round] = single.connect();
+            Round batch = new Round("batch-" + round, PeerNegotiator.DEFAULT_BATCH_WINDOW_MS);
+            batched[round] = batch.connect();
+            batchedCandidates += batch.offerer.negotiator.getCandidatesSent();
+            batchedMessages += batch.offerer.negotiator.getCandidateMessagesSent();
+        }
+
+        String result = String.format(Locale.ROOT,
+            "ICE connected after offer, median of %d: window 0 ms %d ms, window %d ms %d ms"
+                + " (%d candidates in %d messages)",
+            ROUNDS, median(unbatched), PeerNegotiator.DEFAULT_BATCH_WINDOW_MS, median(batched),
+            batchedCandidates, batchedMessages);
+        Log.i(TAG, result);
+        Bundle status = new Bundle();
+        status.putString("result", result);
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, status);
+
+        // Batching costs at most one window on the first candidate and should save round trips
+        assertTrue(result, batchedMessages < batchedCandidates + ROUNDS);
+        assertTrue(result, median(batched) <= median(unbatched) + 2 * PeerNegotiator.DEFAULT_BATCH_WINDOW_MS);
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = Arrays.copyOf(values, values.length);
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    /**
+     * One offerer and one answerer in a room of their own, both with the same batch window.
+     */
+    private final class Round {
+        final String room;
+        final Peer offerer;
+        final Peer answerer;
+
+        Round(String room, long batchWindowMs) {
+            this.room = room;
+            offerer = new Peer(batchWindowMs, true);
+            answerer = new Peer(batchWindowMs, false);
+        }
+
+        /**
+         * Returns milliseconds from creating the offer to the offerer's ICE connected.
+         */
+        long connect() throws InterruptedException {
+            try {
+                offerer.client.connect();
+                offerer.client.sendConnectionRequest(room);
+                answerer.client.connect();
+                // The offerer starts once it sees the answerer join; it may not be in the room yet
+                do {
+                    answerer.client.sendConnectionRequest(room);
+                } while (!offerer.joined.await(JOIN_RETRY_MS, TimeUnit.MILLISECONDS));
+                assertTrue(room + " did not connect",
+                    offerer.connected.await(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+                return TimeUnit.NANOSECONDS.toMillis(offerer.connectedNanos - offerer.offerNanos);
+            } finally {
+                offerer.close();
+                answerer.close();
+            }
+        }
+    }
+
+    private final class Peer {
+        final SignalingClient client = new SignalingClient(server.getUrl());
+        final CountDownLatch joined = new CountDownLatch(1);
+        final CountDownLatch connected = new CountDownLatch(1);
+        final PeerConnection peerConnection;
+        final PeerNegotiator negotiator;
+        volatile long offerNanos;
+        volatile long connectedNanos;
+
+        Peer(long batchWindowMs, final boolean offering) {
+            peerConnection = factory.createPeerConnection(
+                WebRtcConfig.createRtcConfiguration(Collections.<String>emptyList(), false),
+                new PeerConnectionObserver() {
+                    @Override
+                    public void onIceCandidate(IceCandidate iceCandidate) {
+                        negotiator.onLocalCandidate(iceCandidate);
+                    }
+
+                    @Override
+                    public void onIceGatheringChange(PeerConnection.IceGatheringState state) {
+                        if (state == PeerConnection.IceGatheringState.COMPLETE) {
+                            negotiator.onLocalGatheringComplete();
+                        }
+                    }
+
+                    @Override
+                    public void onIceConnectionChange(PeerConnection.IceConnectionState state) {
+                        if (state == PeerConnection.IceConnectionState.CONNECTED && connected.getCount() > 0) {
+                            connectedNanos = System.nanoTime();
+                            connected.countDown();
+                        }
+                    }
+                });
+            if (offering) {
+                peerConnection.createDataChannel("probe", new DataChannel.Init());
+            }
+            negotiator = new PeerNegotiator(peerConnection, client, null, batchWindowMs);
+            client.setListener(new SignalingClient.Listener() {
+                @Override
+                public void onConnectionRequest(String hostCode, String peerId) {
+                    if (offering && peerId != null && !peerId.equals(client.getPeerId()) && joined.getCount() > 0) {
+                        negotiator.setRemotePeerId(peerId);
+                        joined.countDown();
+                        offerNanos = System.nanoTime();
+                        negotiator.createOffer();
+                    }
+                }
+
+                @Override
+                public void onSessionDescription(SessionDescription description, String peerId) {
+                    if (!offering && negotiator.getRemotePeerId() == null) {
+                        negotiator.setRemotePeerId(peerId);
+                    }
+                    if (peerId != null && peerId.equals(negotiator.getRemotePeerId())) {
+                        negotiator.onRemoteDescription(description);
+                    }
+                }
+
+                @Override
+                public void onIceCandidates(List<IceCandidate> candidates, boolean complete, String peerId) {
+                    if (peerId != null && peerId.equals(negotiator.getRemotePeerId())) {
+                        negotiator.onRemoteCandidates(candidates, complete);
+                    }
+                }
+
+                @Override
+                public void onQualityLevel(int level, String peerId) {
+                }
+            });
+        }
+
+        void close() {
+            negotiator.close();
+            peerConnection.dispose();
+            client.close();
+        }
+    }
+}
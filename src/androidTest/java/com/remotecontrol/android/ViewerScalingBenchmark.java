@@ -0,0 +1,462 @@
+package com.remotecontrol.android;
+
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Process;
+import android.util.Log;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.webrtc.CapturerObserver;
+import org.webrtc.IceCandidate;
+import org.webrtc.JavaI420Buffer;
+import org.webrtc.MediaStream;
+import org.webrtc.MediaStreamTrack;
+import org.webrtc.PeerConnection;
+import org.webrtc.PeerConnectionFactory;
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsCollectorCallback;
+import org.webrtc.RTCStatsReport;
+import org.webrtc.RtpReceiver;
+import org.webrtc.SessionDescription;
+import org.webrtc.SurfaceTextureHelper;
+import org.webrtc.VideoCapturer;
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoSink;
+import org.webrtc.VideoSource;
+import org.webrtc.VideoTrack;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Host CPU and encode cost as viewers go from 1 to 8 on one captured track.
+ *
+ * A synthetic screen source feeds one {@link VideoTrack}. Each viewer is a {@link ViewerSession},
+ * as {@code ScreenCaptureService} builds it, answered by an in-process guest peer connection over
+ * a {@link LocalSignalingServer} on loopback. Each step adds viewers, lets the quality controllers
+ * settle, then measures for {@value #MEASURE_SECONDS} s. Process CPU includes the guests'
+ * decoding; encode time comes from the host's outbound-rtp stats and is the host's alone. Run
+ * with {@code ./gradlew connectedAndroidTest}; results go to logcat under {@value #TAG} and to
+ * the instrumentation status.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ViewerScalingBenchmark {
+    private static final String TAG = "ViewerScalingBenchmark";
+    private static final String HOST_CODE = "benchmark";
+    private static final int[] VIEWER_COUNTS = {1, 2, 4, 8};
+    private static final int SETTLE_SECONDS = 5;
+    private static final int MEASURE_SECONDS = 10;
+    private static final long CONNECT_TIMEOUT_MS = 15_000;
+
+    private Context context;
+    private PeerConnectionFactory factory;
+    private LocalSignalingServer server;
+    private SyntheticScreenCapturer capturer;
+    private VideoSource videoSource;
+    private VideoTrack videoTrack;
+    private CaptureFormatArbiter captureFormat;
+    private SignalingClient hostClient;
+    private ControlToken controlToken;
+    private final Map<String, ViewerSession> sessions = new ConcurrentHashMap<>();
+    private final List<Guest> guests = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        factory = WebRtcEngine.acquire(context).getFactory();
+        server = new LocalSignalingServer(LocalSignalingServer.Impairment.NONE);
+        server.start();
+
+        StreamQualityPolicy.OperatingPoint initial = StreamQualityPolicy.LADDER[0];
+        capturer = new SyntheticScreenCapturer();
+        videoSource = factory.createVideoSource(true);
+        capturer.initialize(null, context, videoSource.getCapturerObserver());
+        capturer.startCapture(initial.captureWidth, initial.captureHeight, initial.maxFramerate);
+        videoTrack = factory.createVideoTrack("screen_track", videoSource);
+        captureFormat = new CaptureFormatArbiter(capturer, initial.captureWidth, initial.captureHeight,
+            initial.maxFramerate, new CaptureFormatArbiter.Client() {
+                @Override
+                public void onCaptureFormatChanged() {
+                }
+            });
+        controlToken = new ControlToken(new ControlToken.Listener() {
+            @Override
+            public void onHolderChanged(String holder) {
+            }
+        });
+
+        hostClient = new SignalingClient(server.getUrl());
+        hostClient.setListener(new SignalingClient.Listener() {
+            @Override
+            public void onConnectionRequest(String hostCode, String peerId) {
+                if (peerId != null && !sessions.containsKey(peerId)) {
+                    addViewer(peerId);
+                }
+            }
+
+            @Override
+            public void onSessionDescription(SessionDescription description, String peerId) {
+                ViewerSession session = peerId != null ? sessions.get(peerId) : null;
+                if (session != null) {
+                    session.getNegotiator().onRemoteDescription(description);
+                }
+            }
+
+            @Override
+            public void onIceCandidates(List<IceCandidate> candidates, boolean complete, String peerId) {
+                ViewerSession session = peerId != null ? sessions.get(peerId) : null;
+                if (session != null) {
+                    session.getNegotiator().onRemoteCandidates(candidates, complete);
+                }
+            }
+
+            @Override
+            public void onQualityLevel(int level, String peerId) {
+            }
+        });
+        hostClient.connect();
+        hostClient.sendConnectionRequest(HOST_CODE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (ViewerSession session : sessions.values()) {
+            session.close();
+        }
+        for (Guest guest : guests) {
+            guest.close();
+        }
+        hostClient.close();
+        capturer.stopCapture();
+        capturer.dispose();
+        videoTrack.dispose();
+        videoSource.dispose();
+        server.stop();
+        WebRtcEngine.release();
+    }
+
+    @Test
+    public void scaleFromOneToEightViewers() throws Exception {
+        List<String> results = new ArrayList<>();
+        for (int viewers : VIEWER_COUNTS) {
+            while (guests.size() < viewers) {
+                guests.add(new Guest());
+            }
+            for (Guest guest : guests) {
+                assertTrue("Viewer " + guests.indexOf(guest) + " got no video with " + viewers
+                    + " viewers", guest.awaitFirstFrame(CONNECT_TIMEOUT_MS));
+            }
+            Thread.sleep(TimeUnit.SECONDS.toMillis(SETTLE_SECONDS));
+            results.add(measure(viewers).toString());
+        }
+
+        Bundle status = new Bundle();
+        for (int i = 0; i < results.size(); i++) {
+            Log.i(TAG, results.get(i));
+            status.putString("viewers" + VIEWER_COUNTS[i], results.get(i));
+        }
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, status);
+    }
+
+    private void addViewer(final String peerId) {
+        ViewerSession session = new ViewerSession(peerId, peerId, factory, hostClient, videoTrack,
+            captureFormat, controlToken, new InputTransport.Receiver() {
+                @Override
+                public void onTouchMessage(ByteBuffer message) {
+                }
+            }, new File(context.getCacheDir(), "benchmark-transfers"), new TransferEngine.Listener() {
+                @Override
+                public void onSent(long id) {
+                }
+
+                @Override
+                public void onFileReceived(File file) {
+                }
+
+                @Override
+                public void onTextReceived(String text) {
+                }
+
+                @Override
+                public void onFailed(long id, String reason) {
+                }
+            }, new ViewerSession.Listener() {
+                @Override
+                public void onDisconnected(String peerId) {
+                    Log.w(TAG, "Viewer " + peerId + " disconnected during the run");
+                }
+            });
+        session.start();
+        sessions.put(peerId, session);
+        controlToken.addViewer(peerId);
+    }
+
+    private static final class Result {
+        final int viewers;
+        double cpuPercent;
+        double encodeMsPerSecond;
+        double encodeMsPerFrame;
+        double meanViewerFps;
+        double minViewerFps;
+
+        Result(int viewers) {
+            this.viewers = viewers;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                "%d viewers  process CPU %5.1f%%  encode %6.1f ms/s (%5.2f ms/frame)"
+                    + "  viewer fps mean %4.1f min %4.1f",
+                viewers, cpuPercent, encodeMsPerSecond, encodeMsPerFrame, meanViewerFps, minViewerFps);
+        }
+    }
+
+    private Result measure(int viewers) throws InterruptedException {
+        long[] framesBefore = new long[guests.size()];
+        for (int i = 0; i < guests.size(); i++) {
+            framesBefore[i] = guests.get(i).frames.get();
+        }
+        double[] encodeBefore = encodeTotals();
+        long cpuBefore = Process.getElapsedCpuTime();
+        long start = System.nanoTime();
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(MEASURE_SECONDS));
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long cpuMs = Process.getElapsedCpuTime() - cpuBefore;
+        double[] encodeAfter = encodeTotals();
+
+        Result result = new Result(viewers);
+        result.cpuPercent = cpuMs / 10.0 / seconds;
+        double encodeSeconds = encodeAfter[0] - encodeBefore[0];
+        double framesEncoded = encodeAfter[1] - encodeBefore[1];
+        result.encodeMsPerSecond = encodeSeconds * 1000 / seconds;
+        result.encodeMsPerFrame = framesEncoded > 0 ? encodeSeconds * 1000 / framesEncoded : 0;
+        result.minViewerFps = Double.MAX_VALUE;
+        for (int i = 0; i < guests.size(); i++) {
+            double fps = (guests.get(i).frames.get() - framesBefore[i]) / seconds;
+            result.meanViewerFps += fps / guests.size();
+            result.minViewerFps = Math.min(result.minViewerFps, fps);
+        }
+        return result;
+    }
+
+    /**
+     * Total encode seconds and frames encoded over every viewer's outbound video so far.
+     */
+    private double[] encodeTotals() throws InterruptedException {
+        final double[] totals = new double[2];
+        final CountDownLatch done = new CountDownLatch(sessions.size());
+        for (ViewerSession session : sessions.values()) {
+            session.getPeerConnection().getStats(new RTCStatsCollectorCallback() {
+                @Override
+                public void onStatsDelivered(RTCStatsReport report) {
+                    synchronized (totals) {
+                        for (RTCStats stats : report.getStatsMap().values()) {
+                            Map<String, Object> members = stats.getMembers();
+                            if ("outbound-rtp".equals(stats.getType()) && "video".equals(members.get("kind"))) {
+                                totals[0] += number(members.get("totalEncodeTime"));
+                                totals[1] += number(members.get("framesEncoded"));
+                            }
+                        }
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        done.await(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        synchronized (totals) {
+            return totals.clone();
+        }
+    }
+
+    private static double number(Object value) {
+        return value instanceof Number ? ((Number) value).doubleValue() : 0;
+    }
+
+    /**
+     * A guest as {@code RemoteControlService} sets it up, minus input and transfers: its own
+     * signaling client, a peer connection that answers the host's offer and a sink counting the
+     * frames it decodes.
+     */
+    private final class Guest {
+        final SignalingClient client = new SignalingClient(server.getUrl());
+        final AtomicLong frames = new AtomicLong();
+        final CountDownLatch firstFrame = new CountDownLatch(1);
+        final PeerConnection peerConnection;
+        final PeerNegotiator negotiator;
+
+        Guest() {
+            peerConnection = factory.createPeerConnection(WebRtcConfig.createRtcConfiguration(),
+                new PeerConnectionObserver() {
+                    @Override
+                    public void onIceCandidate(IceCandidate iceCandidate) {
+                        negotiator.onLocalCandidate(iceCandidate);
+                    }
+
+                    @Override
+                    public void onIceGatheringChange(PeerConnection.IceGatheringState state) {
+                        if (state == PeerConnection.IceGatheringState.COMPLETE) {
+                            negotiator.onLocalGatheringComplete();
+                        }
+                    }
+
+                    @Override
+                    public void onAddTrack(RtpReceiver receiver, MediaStream[] mediaStreams) {
+                        MediaStreamTrack track = receiver.track();
+                        if (track instanceof VideoTrack) {
+                            ((VideoTrack) track).addSink(new VideoSink() {
+                                @Override
+                                public void onFrame(VideoFrame frame) {
+                                    frames.incrementAndGet();
+                                    firstFrame.countDown();
+                                }
+                            });
+                        }
+                    }
+                });
+            negotiator = new PeerNegotiator(peerConnection, client, null,
+                PeerNegotiator.DEFAULT_BATCH_WINDOW_MS);
+            negotiator.setVideoCodecs(CodecSelector.preferredCodecs());
+            client.setListener(new SignalingClient.Listener() {
+                @Override
+                public void onConnectionRequest(String hostCode, String peerId) {
+                }
+
+                @Override
+                public void onSessionDescription(SessionDescription description, String peerId) {
+                    // Other guests' answers reach us too; only the host offers
+                    if (description.type == SessionDescription.Type.OFFER) {
+                        negotiator.setRemotePeerId(peerId);
+                        negotiator.onRemoteDescription(description);
+                    }
+                }
+
+                @Override
+                public void onIceCandidates(List<IceCandidate> candidates, boolean complete, String peerId) {
+                    String host = negotiator.getRemotePeerId();
+                    if (host != null && host.equals(peerId)) {
+                        negotiator.onRemoteCandidates(candidates, complete);
+                    }
+                }
+
+                @Override
+                public void onQualityLevel(int level, String peerId) {
+                }
+            });
+            client.connect();
+            client.sendConnectionRequest(HOST_CODE);
+        }
+
+        boolean awaitFirstFrame(long timeoutMs) throws InterruptedException {
+            return firstFrame.await(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+
+        void close() {
+            negotiator.close();
+            peerConnection.dispose();
+            client.close();
+        }
+    }
+
+    /**
+     * Screen-like I420 frames at the requested rate: rows of text-like blocks, with a band in the
+     * middle scrolling by a few pixels every frame so the encoders always have work.
+     */
+    private static final class SyntheticScreenCapturer implements VideoCapturer {
+        private static final int SCROLL_PX_PER_FRAME = 4;
+
+        private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        private CapturerObserver observer;
+        private volatile int width;
+        private volatile int height;
+        private int frameIndex;
+
+        @Override
+        public void initialize(SurfaceTextureHelper helper, Context context, CapturerObserver observer) {
+            this.observer = observer;
+        }
+
+        @Override
+        public void startCapture(int width, int height, int framerate) {
+            this.width = width;
+            this.height = height;
+            observer.onCapturerStarted(true);
+            executor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    deliverFrame();
+                }
+            }, 0, 1_000_000 / framerate, TimeUnit.MICROSECONDS);
+        }
+
+        @Override
+        public void stopCapture() throws InterruptedException {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+            observer.onCapturerStopped();
+        }
+
+        @Override
+        public void changeCaptureFormat(int width, int height, int framerate) {
+            // Rate changes would need a new schedule; size is what the quality ladder moves most
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public void dispose() {
+            executor.shutdownNow();
+        }
+
+        @Override
+        public boolean isScreencast() {
+            return true;
+        }
+
+        private void deliverFrame() {
+            int frameWidth = width & ~1;
+            int frameHeight = height & ~1;
+            JavaI420Buffer buffer = JavaI420Buffer.allocate(frameWidth, frameHeight);
+            ByteBuffer y = buffer.getDataY();
+            int stride = buffer.getStrideY();
+            int scroll = frameIndex++ * SCROLL_PX_PER_FRAME;
+            for (int row = 0; row < frameHeight; row++) {
+                boolean scrolling = row > frameHeight / 4 && row < frameHeight * 3 / 4;
+                int source = scrolling ? row + scroll : row;
+                boolean textLine = (source / 8) % 3 != 2;
+                for (int x = 0; x < frameWidth; x++) {
+                    boolean ink = textLine && ((x / 6 + source / 24) % 7) < 4 && (x + source) % 3 == 0;
+                    y.put(row * stride + x, (byte) (ink ? 40 : 230));
+                }
+            }
+            fill(buffer.getDataU(), (byte) 128);
+            fill(buffer.getDataV(), (byte) 128);
+            VideoFrame frame = new VideoFrame(buffer, 0, System.nanoTime());
+            observer.onFrameCaptured(frame);
+            frame.release();
+        }
+
+        private static void fill(ByteBuffer plane, byte value) {
+            for (int i = 0; i < plane.capacity(); i++) {
+                plane.put(i, value);
+            }
+        }
+    }
+}
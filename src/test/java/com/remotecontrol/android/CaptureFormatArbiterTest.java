@@ -0,0 +1,123 @@
+package com.remotecontrol.android;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.Context;
+import org.junit.Test;
+import org.webrtc.CapturerObserver;
+import org.webrtc.SurfaceTextureHelper;
+import org.webrtc.VideoCapturer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * {@link CaptureFormatArbiter} against a capturer that only records format changes: the largest
+ * request wins, a cap limits it, and lifting the cap returns to the requests or, with none, to
+ * the format the capturer was started at.
+ */
+public class CaptureFormatArbiterTest {
+    private static final int NO_CAP = Integer.MAX_VALUE;
+
+    private final RecordingCapturer capturer = new RecordingCapturer();
+    private final CountingClient observer = new CountingClient();
+    private final CaptureFormatArbiter arbiter = new CaptureFormatArbiter(capturer, 1280, 720, 30, observer);
+
+    private static final class RecordingCapturer implements VideoCapturer {
+        final List<String> formats = new ArrayList<>();
+
+        @Override
+        public void initialize(SurfaceTextureHelper surfaceTextureHelper, Context context,
+                               CapturerObserver capturerObserver) {
+        }
+
+        @Override
+        public void startCapture(int width, int height, int framerate) {
+        }
+
+        @Override
+        public void stopCapture() {
+        }
+
+        @Override
+        public void changeCaptureFormat(int width, int height, int framerate) {
+            formats.add(format(width, height, framerate));
+        }
+
+        @Override
+        public void dispose() {
+        }
+
+        @Override
+        public boolean isScreencast() {
+            return true;
+        }
+    }
+
+    private static final class CountingClient implements CaptureFormatArbiter.Client {
+        int changes;
+
+        @Override
+        public void onCaptureFormatChanged() {
+            changes++;
+        }
+    }
+
+    private static String format(int width, int height, int framerate) {
+        return width + "x" + height + "@" + framerate;
+    }
+
+    private static StreamQualityPolicy.OperatingPoint point(int width, int height, int framerate) {
+        return new StreamQualityPolicy.OperatingPoint(width, height, 1.0, framerate, 1_000_000);
+    }
+
+    @Test
+    public void liftingTheCapWithNobodyAskingRestoresTheStartFormat() {
+        arbiter.setCap(640, 360, 15);
+        arbiter.setCap(NO_CAP, NO_CAP, NO_CAP);
+
+        assertEquals(Arrays.asList("640x360@15", "1280x720@30"), capturer.formats);
+        assertEquals(1280, arbiter.getWidth());
+        assertEquals(720, arbiter.getHeight());
+        assertEquals(2, observer.changes);
+    }
+
+    @Test
+    public void aLooserCapWithNobodyAskingIsMeasuredFromTheStartFormat() {
+        arbiter.setCap(640, 360, 15);
+        arbiter.setCap(960, 540, 30);
+        // Larger than the start format in every way, so nothing left to limit
+        arbiter.setCap(1920, 1080, 60);
+
+        assertEquals(Arrays.asList("640x360@15", "960x540@30", "1280x720@30"), capturer.formats);
+    }
+
+    @Test
+    public void theLargestRequestWinsAndTheOthersAreTold() {
+        CountingClient small = new CountingClient();
+        CountingClient large = new CountingClient();
+        arbiter.request(small, point(640, 360, 15));
+        arbiter.request(large, point(1280, 720, 30));
+
+        assertEquals(Arrays.asList("640x360@15", "1280x720@30"), capturer.formats);
+        // Each is told about the change the other caused, not its own
+        assertEquals(1, small.changes);
+        assertEquals(0, large.changes);
+        assertEquals(2, observer.changes);
+
+        // The small viewer leaving changes nothing; the capturer stays with the large one
+        arbiter.remove(small);
+        assertEquals(2, capturer.formats.size());
+    }
+
+    @Test
+    public void liftingTheCapReturnsToWhatWasRequested() {
+        CountingClient client = new CountingClient();
+        arbiter.request(client, point(960, 540, 30));
+        arbiter.setCap(640, 360, 15);
+        arbiter.setCap(NO_CAP, NO_CAP, NO_CAP);
+
+        assertEquals(Arrays.asList("960x540@30", "640x360@15", "960x540@30"), capturer.formats);
+        assertEquals(2, client.changes);
+    }
+}
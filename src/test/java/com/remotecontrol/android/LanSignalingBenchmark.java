@@ -0,0 +1,223 @@
+package com.remotecontrol.android;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares how long a guest takes to reach its host in LAN mode and through the relay, over
+ * loopback multicast.
+ *
+ * Each run starts a host {@link SignalingClient} in a fresh room and times the guest from the
+ * start of its {@link LanDiscovery#race} until the host hears its join. On the LAN path the host
+ * serves its room from a {@link LocalSignalingServer} with no impairment and announces it; the
+ * relay path is that server again, impaired like {@link SignalingBenchmark#PROFILES}. The
+ * fallback path is what a guest pays when no host answers: the whole race, then the relay.
+ *
+ * Runs off-device as a local unit test, like {@link SignalingBenchmark}:
+ * {@code ./gradlew testDebugUnitTest --tests '*LanSignalingBenchmark' -i} prints one line per
+ * path, and {@link #main} does the same from an IDE. Needs multicast on the loopback interface.
+ */
+public class LanSignalingBenchmark {
+    private static final String HOST_CODE = "482913";
+    private static final long TIMEOUT_MS = 30_000;
+
+    static final class Result {
+        final String path;
+        long discoveryMs = -1;
+        long connectMs = -1;
+
+        Result(String path) {
+            this.path = path;
+        }
+
+        long totalMs() {
+            return discoveryMs < 0 || connectMs < 0 ? -1 : discoveryMs + connectMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%-20s discovery %5d ms  connect %5d ms  total %5d ms",
+                path, discoveryMs, connectMs, totalMs());
+        }
+    }
+
+    /**
+     * Counts joins that reach the host.
+     */
+    private static final class HostListener implements SignalingClient.Listener {
+        private int joins;
+
+        @Override
+        public synchronized void onConnectionRequest(String hostCode, String peerId) {
+            joins++;
+            notifyAll();
+        }
+
+        @Override
+        public void onSessionDescription(SessionDescription description, String peerId) {
+        }
+
+        @Override
+        public void onIceCandidates(List<IceCandidate> candidates, boolean complete, String peerId) {
+        }
+
+        @Override
+        public void onQualityLevel(int level, String peerId) {
+        }
+
+        synchronized boolean awaitJoin(long deadlineNanos) throws InterruptedException {
+            while (joins == 0) {
+                long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+                if (remainingMs <= 0) {
+                    return false;
+                }
+                wait(remainingMs);
+            }
+            return true;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (Result result : new LanSignalingBenchmark().runAll()) {
+            System.out.println(result);
+        }
+    }
+
+    @Test
+    public void everyPathReachesTheHost() throws Exception {
+        for (Result result : runAll()) {
+            System.out.println(result);
+            assertTrue(result.toString(), result.totalMs() >= 0);
+            if (result.path.startsWith("fallback/")) {
+                assertTrue(result.toString(), result.discoveryMs >= LanDiscovery.RACE_MS);
+            }
+        }
+    }
+
+    /**
+     * Runs the LAN path, then the relay and fallback paths for every profile that does not cut
+     * connections, after one untimed LAN pass for warm-up.
+     */
+    List<Result> runAll() throws Exception {
+        runLan();
+        List<Result> results = new ArrayList<>();
+        results.add(runLan());
+        for (LocalSignalingServer.Impairment profile : SignalingBenchmark.PROFILES) {
+            if (profile.disconnectIntervalMs == 0) {
+                results.add(runRelay(profile, false));
+                results.add(runRelay(profile, true));
+            }
+        }
+        return results;
+    }
+
+    Result runLan() throws Exception {
+        Result result = new Result("lan");
+        NetworkInterface loopback = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+        LocalSignalingServer server = new LocalSignalingServer(LocalSignalingServer.Impairment.NONE,
+            InetAddress.getLoopbackAddress(), HOST_CODE);
+        server.start();
+        LanDiscovery.Announcer announcer = new LanDiscovery.Announcer(server.getSessionNonce(),
+            server.getPort(), loopback);
+        HostListener hostListener = new HostListener();
+        SignalingClient host = new SignalingClient(server.getUrl());
+        SignalingClient guest = null;
+        host.setListener(hostListener);
+        try {
+            announcer.start();
+            host.setLanEndpoint(server.getUrl(), HOST_CODE, server.getSessionNonce());
+            host.connect();
+            host.sendConnectionRequest(HOST_CODE);
+            if (!awaitRoomSize(server, server.getSessionNonce(), 1)) {
+                return result;
+            }
+
+            long start = System.nanoTime();
+            LanDiscovery.Endpoint endpoint = LanDiscovery.race(HOST_CODE, LanDiscovery.RACE_MS, loopback);
+            if (endpoint == null) {
+                return result;
+            }
+            result.discoveryMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            start = System.nanoTime();
+            guest = new SignalingClient(server.getUrl());
+            guest.setLanEndpoint(endpoint.getUrl(), HOST_CODE, endpoint.nonce);
+            guest.connect();
+            guest.sendConnectionRequest(HOST_CODE);
+            if (hostListener.awaitJoin(deadline())) {
+                result.connectMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            }
+            return result;
+        } finally {
+            if (guest != null) {
+                guest.close();
+            }
+            host.close();
+            announcer.stop();
+            server.stop();
+        }
+    }
+
+    /**
+     * @param fallback race for a host that never answers before going to the relay, as a guest
+     *                 off the host's network does
+     */
+    Result runRelay(LocalSignalingServer.Impairment impairment, boolean fallback) throws Exception {
+        Result result = new Result((fallback ? "fallback/" : "relay/") + impairment.name);
+        NetworkInterface loopback = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+        LocalSignalingServer server = new LocalSignalingServer(impairment);
+        server.start();
+        HostListener hostListener = new HostListener();
+        SignalingClient host = new SignalingClient(server.getUrl());
+        SignalingClient guest = new SignalingClient(server.getUrl());
+        host.setListener(hostListener);
+        try {
+            host.connect();
+            host.sendConnectionRequest(HOST_CODE);
+            if (!awaitRoomSize(server, HOST_CODE, 1)) {
+                return result;
+            }
+
+            long start = System.nanoTime();
+            if (fallback && LanDiscovery.race(HOST_CODE, LanDiscovery.RACE_MS, loopback) != null) {
+                return result;
+            }
+            result.discoveryMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            start = System.nanoTime();
+            guest.connect();
+            guest.sendConnectionRequest(HOST_CODE);
+            if (hostListener.awaitJoin(deadline())) {
+                result.connectMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            }
+            return result;
+        } finally {
+            guest.close();
+            host.close();
+            server.stop();
+        }
+    }
+
+    private static boolean awaitRoomSize(LocalSignalingServer server, String room, int size)
+            throws InterruptedException {
+        long deadline = deadline();
+        while (server.getRoomSize(room) != size) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    private static long deadline() {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+    }
+}
@@ -0,0 +1,226 @@
+package com.remotecontrol.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+import org.webrtc.IceCandidate;
+import org.webrtc.NativePeerConnectionFactory;
+import org.webrtc.PeerConnection;
+import org.webrtc.SdpObserver;
+import org.webrtc.SessionDescription;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link PeerNegotiator}'s candidate handling against a peer connection that only records what
+ * it is given: remote candidates held back until the remote description is set, local ones
+ * batched for the window and sent at once when gathering completes, and the end of candidates.
+ */
+public class PeerNegotiatorTest {
+    private static final String REMOTE = "remote-peer";
+    private static final long TIMEOUT_MS = 5000;
+    // Longer than any test, for batches that only gathering completion may flush
+    private static final long LONG_WINDOW_MS = 60_000;
+
+    private final RecordingPeerConnection peerConnection = new RecordingPeerConnection();
+    private final RecordingSignalingClient signalingClient = new RecordingSignalingClient();
+    private PeerNegotiator negotiator;
+
+    @After
+    public void tearDown() {
+        if (negotiator != null) {
+            negotiator.close();
+        }
+        signalingClient.close();
+    }
+
+    /**
+     * Sets remote descriptions at once and keeps the candidates it is given.
+     */
+    private static final class RecordingPeerConnection extends PeerConnection {
+        final List<IceCandidate> added = Collections.synchronizedList(new ArrayList<IceCandidate>());
+
+        RecordingPeerConnection() {
+            super(new NativePeerConnectionFactory() {
+                @Override
+                public long createNativePeerConnection() {
+                    return 0;
+                }
+            });
+        }
+
+        @Override
+        public void setRemoteDescription(SdpObserver observer, SessionDescription description) {
+            observer.onSetSuccess();
+        }
+
+        @Override
+        public boolean addIceCandidate(IceCandidate candidate) {
+            added.add(candidate);
+            return true;
+        }
+    }
+
+    private static final class Sent {
+        final List<IceCandidate> candidates;
+        final boolean complete;
+        final String to;
+
+        Sent(List<IceCandidate> candidates, boolean complete, String to) {
+            this.candidates = candidates;
+            this.complete = complete;
+            this.to = to;
+        }
+    }
+
+    /**
+     * Never connects; records the candidate messages instead of sending them.
+     */
+    private static final class RecordingSignalingClient extends SignalingClient {
+        final BlockingQueue<Sent> sent = new LinkedBlockingQueue<>();
+
+        RecordingSignalingClient() {
+            super("ws://127.0.0.1:1/");
+        }
+
+        @Override
+        public void sendIceCandidates(List<IceCandidate> candidates, boolean complete, String to) {
+            sent.add(new Sent(new ArrayList<>(candidates), complete, to));
+        }
+
+        Sent next() throws InterruptedException {
+            Sent message = sent.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertNotNull("Timed out waiting for candidates", message);
+            return message;
+        }
+    }
+
+    private static IceCandidate candidate(int n) {
+        return new IceCandidate("0", 0, "candidate:" + n + " 1 udp 2122260223 192.168.1.20 "
+            + (50000 + n) + " typ host generation 0");
+    }
+
+    @Test
+    public void earlyRemoteCandidatesWaitForTheRemoteDescription() {
+        negotiator = new PeerNegotiator(peerConnection, signalingClient, REMOTE, 0);
+        negotiator.onRemoteCandidates(Arrays.asList(candidate(1), candidate(2)), false);
+        assertTrue(peerConnection.added.isEmpty());
+
+        negotiator.onRemoteDescription(new SessionDescription(SessionDescription.Type.ANSWER, "v=0"));
+        assertEquals(Arrays.asList(candidate(1).sdp, candidate(2).sdp), sdps(peerConnection.added));
+
+        // Once the description is set, candidates go straight through
+        negotiator.onRemoteCandidates(Collections.singletonList(candidate(3)), false);
+        assertEquals(3, peerConnection.added.size());
+        assertEquals(candidate(3).sdp, peerConnection.added.get(2).sdp);
+        assertFalse(negotiator.isRemoteComplete());
+    }
+
+    @Test
+    public void remoteEndOfCandidatesIsRememberedEvenBeforeTheDescription() {
+        negotiator = new PeerNegotiator(peerConnection, signalingClient, REMOTE, 0);
+        negotiator.onRemoteCandidates(Collections.singletonList(candidate(1)), true);
+        assertTrue(negotiator.isRemoteComplete());
+        assertTrue(peerConnection.added.isEmpty());
+
+        negotiator.onRemoteDescription(new SessionDescription(SessionDescription.Type.ANSWER, "v=0"));
+        assertEquals(1, peerConnection.added.size());
+    }
+
+    @Test
+    public void candidatesWithinTheWindowGoOutAsOneMessage() throws Exception {
+        negotiator = new PeerNegotiator(peerConnection, signalingClient, REMOTE,
+            PeerNegotiator.DEFAULT_BATCH_WINDOW_MS);
+        // Added on the scheduler's own thread, so the flush cannot run in between however slow
+        // the machine is
+        signalingClient.getScheduler().execute(new Runnable() {
+            @Override
+            public void run() {
+                for (int n = 1; n <= 3; n++) {
+                    negotiator.onLocalCandidate(candidate(n));
+                }
+            }
+        });
+
+        Sent batch = signalingClient.next();
+        assertEquals(3, batch.candidates.size());
+        assertFalse(batch.complete);
+        assertEquals(REMOTE, batch.to);
+        assertEquals(3, negotiator.getCandidatesSent());
+        assertEquals(1, negotiator.getCandidateMessagesSent());
+    }
+
+    @Test
+    public void zeroWindowSendsEachCandidateOnItsOwn() throws Exception {
+        negotiator = new PeerNegotiator(peerConnection, signalingClient, REMOTE, 0);
+        for (int n = 1; n <= 3; n++) {
+            negotiator.onLocalCandidate(candidate(n));
+        }
+
+        for (int n = 1; n <= 3; n++) {
+            Sent message = signalingClient.next();
+            assertEquals(1, message.candidates.size());
+            assertEquals(candidate(n).sdp, message.candidates.get(0).sdp);
+        }
+        assertEquals(3, negotiator.getCandidateMessagesSent());
+    }
+
+    @Test
+    public void gatheringCompleteFlushesTheBatchMarkedComplete() throws Exception {
+        negotiator = new PeerNegotiator(peerConnection, signalingClient, REMOTE, LONG_WINDOW_MS);
+        negotiator.onLocalCandidate(candidate(1));
+        negotiator.onLocalCandidate(candidate(2));
+        assertNull(signalingClient.sent.poll());
+
+        negotiator.onLocalGatheringComplete();
+        Sent last = signalingClient.next();
+        assertEquals(2, last.candidates.size());
+        assertTrue(last.complete);
+        // The window's flush was cancelled with it
+        assertEquals(1, negotiator.getCandidateMessagesSent());
+    }
+
+    @Test
+    public void endOfCandidatesGoesOutAloneWhenNothingIsLeft() throws Exception {
+        negotiator = new PeerNegotiator(peerConnection, signalingClient, REMOTE, 0);
+        negotiator.onLocalCandidate(candidate(1));
+        assertFalse(signalingClient.next().complete);
+
+        negotiator.onLocalGatheringComplete();
+        Sent end = signalingClient.next();
+        assertTrue(end.candidates.isEmpty());
+        assertTrue(end.complete);
+    }
+
+    @Test
+    public void nothingIsSentOrAppliedAfterClose() throws Exception {
+        negotiator = new PeerNegotiator(peerConnection, signalingClient, REMOTE, LONG_WINDOW_MS);
+        negotiator.onLocalCandidate(candidate(1));
+        negotiator.onRemoteCandidates(Collections.singletonList(candidate(2)), false);
+        negotiator.close();
+
+        negotiator.onLocalCandidate(candidate(3));
+        negotiator.onLocalGatheringComplete();
+        negotiator.onRemoteDescription(new SessionDescription(SessionDescription.Type.ANSWER, "v=0"));
+        assertNull(signalingClient.sent.poll(100, TimeUnit.MILLISECONDS));
+        assertTrue(peerConnection.added.isEmpty());
+    }
+
+    private static List<String> sdps(List<IceCandidate> candidates) {
+        List<String> sdps = new ArrayList<>();
+        for (IceCandidate candidate : candidates) {
+            sdps.add(candidate.sdp);
+        }
+        return sdps;
+    }
+}
@@ -0,0 +1,218 @@
+package com.remotecontrol.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a host and a guest {@link SignalingClient} against a {@link LocalSignalingServer} and
+ * measures connect time, reconnect time and message throughput under each impairment profile.
+ *
+ * Connect time runs from the guest's {@code connect()} until the host hears its join. Reconnect
+ * time runs from cutting both sockets until both are back in the room. Throughput is how fast
+ * candidate batches from the guest reach the host. Every profile starts from fresh clients and a
+ * fresh relay, so runs can be compared across builds.
+ *
+ * Runs off-device as a local unit test, where {@code android.util.Log} is a no-op stub:
+ * {@code ./gradlew testDebugUnitTest --tests '*SignalingBenchmark' -i} prints one line per
+ * profile. {@link #main} does the same from an IDE; pass the message count as its argument.
+ */
+public class SignalingBenchmark {
+    static final LocalSignalingServer.Impairment[] PROFILES = {
+        LocalSignalingServer.Impairment.NONE,
+        new LocalSignalingServer.Impairment("wifi", 5, 5, 0.001, 0),
+        new LocalSignalingServer.Impairment("lte", 35, 20, 0.01, 0),
+        new LocalSignalingServer.Impairment("congested", 120, 80, 0.05, 0),
+        new LocalSignalingServer.Impairment("flapping", 35, 20, 0.01, 400),
+    };
+
+    private static final String HOST_CODE = "bench";
+    private static final int MESSAGES = 1000;
+    private static final long TIMEOUT_MS = 30_000;
+    private static final IceCandidate CANDIDATE = new IceCandidate("0", 0,
+        "candidate:1 1 udp 2122260223 192.168.1.20 50000 typ host generation 0");
+
+    static final class Result {
+        final String profile;
+        long connectMs = -1;
+        long reconnectMs = -1;
+        double messagesPerSecond = -1;
+        int sent;
+        int delivered;
+        long disconnects;
+
+        Result(String profile) {
+            this.profile = profile;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                "%-10s connect %5d ms  reconnect %5d ms  %8.0f msg/s  %d/%d delivered  %d drops",
+                profile, connectMs, reconnectMs, messagesPerSecond, delivered, sent, disconnects);
+        }
+    }
+
+    /**
+     * Counts what reaches the host.
+     */
+    private static final class HostListener implements SignalingClient.Listener {
+        private int joins;
+        private int batches;
+
+        @Override
+        public synchronized void onConnectionRequest(String hostCode, String peerId) {
+            joins++;
+            notifyAll();
+        }
+
+        @Override
+        public void onSessionDescription(SessionDescription description, String peerId) {
+        }
+
+        @Override
+        public synchronized void onIceCandidates(List<IceCandidate> candidates, boolean complete,
+                                                 String peerId) {
+            batches++;
+            notifyAll();
+        }
+
+        @Override
+        public void onQualityLevel(int level, String peerId) {
+        }
+
+        synchronized int getBatches() {
+            return batches;
+        }
+
+        synchronized boolean awaitJoins(int count, long deadlineNanos) throws InterruptedException {
+            while (joins < count) {
+                if (!waitUntil(deadlineNanos)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        synchronized boolean awaitBatches(int count, long deadlineNanos) throws InterruptedException {
+            while (batches < count) {
+                if (!waitUntil(deadlineNanos)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean waitUntil(long deadlineNanos) throws InterruptedException {
+            long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+            if (remainingMs <= 0) {
+                return false;
+            }
+            wait(remainingMs);
+            return true;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : MESSAGES;
+        for (Result result : new SignalingBenchmark().runAll(messages)) {
+            System.out.println(result);
+        }
+    }
+
+    @Test
+    public void everyProfileDeliversEveryMessage() throws Exception {
+        for (Result result : runAll(MESSAGES)) {
+            System.out.println(result);
+            assertTrue(result.toString(), result.connectMs >= 0);
+            assertTrue(result.toString(), result.reconnectMs >= 0);
+            assertEquals(result.toString(), result.sent, result.delivered);
+        }
+    }
+
+    /**
+     * Runs every profile after one untimed pass, so the first profile does not pay for warm-up.
+     */
+    List<Result> runAll(int messages) throws Exception {
+        run(LocalSignalingServer.Impairment.NONE, messages);
+        List<Result> results = new ArrayList<>();
+        for (LocalSignalingServer.Impairment profile : PROFILES) {
+            results.add(run(profile, messages));
+        }
+        return results;
+    }
+
+    Result run(LocalSignalingServer.Impairment impairment, int messages) throws Exception {
+        Result result = new Result(impairment.name);
+        LocalSignalingServer server = new LocalSignalingServer(impairment);
+        server.start();
+        HostListener hostListener = new HostListener();
+        SignalingClient host = new SignalingClient(server.getUrl());
+        SignalingClient guest = new SignalingClient(server.getUrl());
+        host.setListener(hostListener);
+        try {
+            host.connect();
+            host.sendConnectionRequest(HOST_CODE);
+            if (!awaitRoomSize(server, 1)) {
+                return result;
+            }
+
+            long start = System.nanoTime();
+            guest.connect();
+            guest.sendConnectionRequest(HOST_CODE);
+            if (!hostListener.awaitJoins(1, deadline())) {
+                return result;
+            }
+            result.connectMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            start = System.nanoTime();
+            List<IceCandidate> batch = Collections.singletonList(CANDIDATE);
+            for (int i = 0; i < messages; i++) {
+                guest.sendIceCandidates(batch, false, null);
+            }
+            result.sent = messages;
+            if (hostListener.awaitBatches(messages, deadline())) {
+                result.messagesPerSecond = messages * 1e9 / (System.nanoTime() - start);
+            }
+
+            // Let both settle in the room, in case a periodic drop just hit them
+            awaitRoomSize(server, 2);
+            start = System.nanoTime();
+            server.dropConnections();
+            awaitRoomSize(server, 0);
+            if (awaitRoomSize(server, 2)) {
+                result.reconnectMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            }
+            return result;
+        } finally {
+            result.delivered = hostListener.getBatches();
+            result.disconnects = server.getDisconnects();
+            guest.close();
+            host.close();
+            server.stop();
+        }
+    }
+
+    private static boolean awaitRoomSize(LocalSignalingServer server, int size) throws InterruptedException {
+        long deadline = deadline();
+        while (server.getRoomSize(HOST_CODE) != size) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    private static long deadline() {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+    }
+}
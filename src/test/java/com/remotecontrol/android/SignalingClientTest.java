@@ -0,0 +1,314 @@
+package com.remotecontrol.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.JsonParser;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.ByteString;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reconnect behaviour of {@link SignalingClient} against a local {@link MockWebServer}: the join
+ * and everything sent while the socket was down arrive in order on the next socket, reconnects
+ * back off, a disconnect stops them, and a close stops the client's threads. Also the guest's
+ * half of the LAN SPAKE2 exchange.
+ */
+public class SignalingClientTest {
+    private static final String HOST_CODE = "a1b2c3d4";
+    private static final long TIMEOUT_MS = 5000;
+
+    private final List<ServerSocket> sockets = new ArrayList<>();
+    private MockWebServer server;
+    private SignalingClient client;
+
+    /**
+     * Server end of one socket: records text frames and can drop the connection.
+     */
+    private static final class ServerSocket extends WebSocketListener {
+        final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        final CountDownLatch opened = new CountDownLatch(1);
+        volatile WebSocket socket;
+
+        @Override
+        public void onOpen(WebSocket webSocket, Response response) {
+            socket = webSocket;
+            opened.countDown();
+        }
+
+        @Override
+        public void onMessage(WebSocket webSocket, String text) {
+            messages.add(text);
+        }
+
+        String next() throws InterruptedException {
+            String message = messages.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertNotNull("Timed out waiting for a message", message);
+            return message;
+        }
+
+        /**
+         * Closes the socket from the server side, as a relay restart does.
+         */
+        void drop() throws InterruptedException {
+            assertTrue(opened.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            socket.close(1001, "restarting");
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+        client = new SignalingClient(server.url("/").toString());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        for (ServerSocket socket : sockets) {
+            if (socket.socket != null) {
+                socket.socket.close(1000, null);
+            }
+        }
+        server.shutdown();
+    }
+
+    @Test
+    public void messagesSentBeforeTheSocketOpensFollowTheJoinInOrder() throws Exception {
+        ServerSocket socket = enqueueSocket();
+
+        client.connect();
+        client.sendConnectionRequest(HOST_CODE);
+        for (int i = 0; i < 50; i++) {
+            client.sendQualityLevel(i, null);
+        }
+
+        assertEquals(SignalingCodec.encodeConnectionRequest(HOST_CODE, client.getPeerId(), null),
+            socket.next());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(SignalingCodec.encodeQualityLevel(i, client.getPeerId(), null),
+                socket.next());
+        }
+    }
+
+    @Test
+    public void reconnectReplaysTheJoinThenTheQueuedMessages() throws Exception {
+        ServerSocket first = enqueueSocket();
+        ServerSocket second = enqueueSocket();
+        String join = SignalingCodec.encodeConnectionRequest(HOST_CODE, client.getPeerId(), null);
+
+        client.connect();
+        client.sendConnectionRequest(HOST_CODE);
+        assertEquals(join, first.next());
+
+        first.drop();
+        awaitState(SignalingClient.State.WAITING_TO_RECONNECT);
+        for (int i = 0; i < 20; i++) {
+            client.sendQualityLevel(i, null);
+        }
+
+        assertEquals(join, second.next());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(SignalingCodec.encodeQualityLevel(i, client.getPeerId(), null),
+                second.next());
+        }
+        assertNull(second.messages.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(2, server.getRequestCount());
+
+        // The first retry waits half to all of the base delay
+        awaitState(SignalingClient.State.OPEN);
+        long reconnectMs = client.getLastReconnectMillis();
+        assertTrue("reconnect took " + reconnectMs + " ms", reconnectMs >= 250 && reconnectMs < 2000);
+    }
+
+    @Test
+    public void failedAttemptsBackOff() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            server.enqueue(new MockResponse().setResponseCode(503));
+        }
+        ServerSocket socket = enqueueSocket();
+
+        client.connect();
+        client.sendConnectionRequest(HOST_CODE);
+        long[] requestNanos = new long[4];
+        for (int i = 0; i < 4; i++) {
+            assertNotNull(server.takeRequest(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            requestNanos[i] = System.nanoTime();
+        }
+
+        // Attempt n waits between half and all of 500 ms * 2^n
+        for (int attempt = 0; attempt < 3; attempt++) {
+            long gapMs = TimeUnit.NANOSECONDS.toMillis(requestNanos[attempt + 1] - requestNanos[attempt]);
+            long ceilingMs = 500L << attempt;
+            assertTrue("attempt " + attempt + " after " + gapMs + " ms",
+                gapMs >= ceilingMs / 2 - 20 && gapMs <= ceilingMs + 300);
+        }
+        assertEquals(SignalingCodec.encodeConnectionRequest(HOST_CODE, client.getPeerId(), null),
+            socket.next());
+    }
+
+    @Test
+    public void disconnectWhileWaitingToReconnectStopsRetrying() throws Exception {
+        ServerSocket first = enqueueSocket();
+        enqueueSocket();
+
+        client.connect();
+        client.sendConnectionRequest(HOST_CODE);
+        first.next();
+        first.drop();
+        awaitState(SignalingClient.State.WAITING_TO_RECONNECT);
+
+        client.disconnect();
+        client.sendQualityLevel(3, null);
+        awaitState(SignalingClient.State.CLOSED);
+
+        // Longer than the largest first-retry delay
+        Thread.sleep(1000);
+        assertEquals(1, server.getRequestCount());
+        assertEquals(SignalingClient.State.CLOSED, client.getState());
+    }
+
+    @Test
+    public void closeStopsTheTimersAndTheSignalingThread() throws Exception {
+        ServerSocket socket = enqueueSocket();
+        enqueueSocket();
+
+        client.connect();
+        client.sendConnectionRequest(HOST_CODE);
+        socket.next();
+        client.close();
+        awaitState(SignalingClient.State.CLOSED);
+        assertTrue(client.getScheduler().awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        // Nothing posted now runs
+        client.connect();
+        Thread.sleep(200);
+        assertEquals(1, server.getRequestCount());
+        assertEquals(SignalingClient.State.CLOSED, client.getState());
+    }
+
+    @Test
+    public void legacyJsonTouchEventsAreDropped() throws Exception {
+        ServerSocket socket = enqueueSocket();
+        final BlockingQueue<ByteBuffer> touches = new LinkedBlockingQueue<>();
+        client.setInputReceiver(new InputTransport.Receiver() {
+            @Override
+            public void onTouchMessage(ByteBuffer message) {
+                touches.add(message);
+            }
+        });
+
+        client.connect();
+        client.sendConnectionRequest(HOST_CODE);
+        socket.next();
+        // View pixels from a guest that predates the binary codec
+        socket.socket.send("{\"type\":\"TOUCH_EVENT\",\"data\":{\"action\":0,\"x\":540.0,"
+            + "\"y\":1200.0,\"pressure\":1.0,\"size\":0.1}}");
+        ByteBuffer binary = ByteBuffer.allocate(TouchEventCodec.HEADER_BYTES + TouchEventCodec.MAX_EVENT_BYTES);
+        TouchEventCodec.encode(new TouchEvent(TouchInputReceiver.ACTION_DOWN, 0, 10, 0.5f, 0.5f, 1f, 0.1f),
+            binary);
+        binary.flip();
+        socket.socket.send(ByteString.of(binary));
+
+        ByteBuffer received = touches.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull(received);
+        assertEquals(0.5f, TouchEventCodec.decode(received).get(0).getX(), 0.001f);
+        assertNull(touches.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void lanJoinConfirmsTheCodeAndNamesTheSessionNonce() throws Exception {
+        final String hostNonce = LanDiscovery.newNonce();
+        final ServerSocket socket = new ServerSocket();
+        sockets.add(socket);
+        final List<Spake2> exchanges = new ArrayList<>();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                Spake2 host = new Spake2(Spake2.HOST, HOST_CODE, hostNonce);
+                if (!host.receive(request.getHeader(LanDiscovery.HEADER_PAKE))) {
+                    return new MockResponse().setResponseCode(403);
+                }
+                exchanges.add(host);
+                return new MockResponse().withWebSocketUpgrade(socket)
+                    .addHeader(LanDiscovery.HEADER_PAKE, host.getMessage())
+                    .addHeader(LanDiscovery.HEADER_CONFIRM, host.getConfirmation());
+            }
+        });
+
+        client.setLanEndpoint(server.url("/").toString(), HOST_CODE, hostNonce);
+        client.connect();
+        client.sendConnectionRequest(HOST_CODE);
+
+        // The guest's confirmation goes first, then the join
+        String confirm = socket.next();
+        assertEquals(1, exchanges.size());
+        assertEquals(LanDiscovery.confirmMessage(exchanges.get(0).getConfirmation()).length(),
+            confirm.length());
+        String data = JsonParser.parseString(confirm).getAsJsonObject().get("data").getAsString();
+        assertTrue(exchanges.get(0).isConfirmation(data));
+        assertFalse(confirm.contains(HOST_CODE));
+        assertEquals(SignalingCodec.encodeConnectionRequest(hostNonce, client.getPeerId(), null),
+            socket.next());
+        awaitState(SignalingClient.State.OPEN);
+    }
+
+    @Test
+    public void lanHostThatCannotConfirmSendsTheClientBackToTheRelay() throws Exception {
+        MockWebServer impostor = new MockWebServer();
+        impostor.start();
+        try {
+            ServerSocket lanSocket = new ServerSocket();
+            sockets.add(lanSocket);
+            impostor.enqueue(new MockResponse().withWebSocketUpgrade(lanSocket));
+            ServerSocket relaySocket = enqueueSocket();
+
+            client.setLanEndpoint(impostor.url("/").toString(), HOST_CODE, LanDiscovery.newNonce());
+            client.connect();
+            client.sendConnectionRequest(HOST_CODE);
+
+            // Nothing went to the impostor; the join reached the relay, naming the code
+            assertEquals(SignalingCodec.encodeConnectionRequest(HOST_CODE, client.getPeerId(), null),
+                relaySocket.next());
+            assertNull(lanSocket.messages.poll(200, TimeUnit.MILLISECONDS));
+            assertEquals(1, impostor.getRequestCount());
+        } finally {
+            impostor.shutdown();
+        }
+    }
+
+    private ServerSocket enqueueSocket() {
+        ServerSocket socket = new ServerSocket();
+        server.enqueue(new MockResponse().withWebSocketUpgrade(socket));
+        sockets.add(socket);
+        return socket;
+    }
+
+    private void awaitState(SignalingClient.State state) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (client.getState() != state) {
+            assertTrue("Still " + client.getState() + ", expected " + state,
+                System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}